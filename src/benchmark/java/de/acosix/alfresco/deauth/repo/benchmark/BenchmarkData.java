@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuditService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+
+/**
+ * Instances of this class generate the synthetic users, person nodes and audit entries shared by the benchmarks. Data is generated from a
+ * fixed seed so that results of different runs remain comparable.
+ *
+ * @author Axel Faust
+ */
+public class BenchmarkData
+{
+
+    public static final String AUDIT_APPLICATION_NAME = "acosix-deauth-benchmark";
+
+    public static final long NOW = TimeUnit.DAYS.toMillis(365 * 48);
+
+    public static final long LOOK_BACK = TimeUnit.DAYS.toMillis(90);
+
+    public static final long FROM_TIME = NOW - LOOK_BACK;
+
+    protected final String[] userNames;
+
+    protected final List<NodeRef> personRefs;
+
+    protected final NodeService nodeService;
+
+    protected final InMemoryAuditService auditService;
+
+    /**
+     * Generates the benchmark data.
+     *
+     * @param users
+     *            the number of users / person nodes
+     * @param auditEntries
+     *            the number of audit entries, spread over twice the look-back period
+     * @param inactivePercent
+     *            the percentage of users without any audit entry in the look-back period
+     */
+    public BenchmarkData(final int users, final int auditEntries, final int inactivePercent)
+    {
+        final Random random = new Random(42);
+
+        this.userNames = new String[users];
+        this.personRefs = new ArrayList<>(users);
+        final InMemoryNodeService nodeService = new InMemoryNodeService();
+        this.nodeService = nodeService.asService();
+        for (int idx = 0; idx < users; idx++)
+        {
+            final String userName = "user" + idx;
+            this.userNames[idx] = userName;
+            final NodeRef personRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "person-" + idx);
+            this.nodeService.setProperty(personRef, ContentModel.PROP_USERNAME, userName);
+            this.nodeService.setProperty(personRef, ContentModel.PROP_FIRSTNAME, "First" + idx);
+            this.nodeService.setProperty(personRef, ContentModel.PROP_LASTNAME, "Last" + idx);
+            this.nodeService.setProperty(personRef, ContentModel.PROP_EMAIL, userName + "@example.com");
+            this.personRefs.add(personRef);
+        }
+
+        // entries are spread over twice the look-back period - inactive users only have entries before the look-back period
+        final int inactiveUsers = users * inactivePercent / 100;
+        final long startTime = NOW - 2 * LOOK_BACK;
+        final long[] times = new long[auditEntries];
+        for (int idx = 0; idx < auditEntries; idx++)
+        {
+            times[idx] = startTime + (long) (random.nextDouble() * 2 * LOOK_BACK);
+        }
+        Arrays.sort(times);
+
+        this.auditService = new InMemoryAuditService(AUDIT_APPLICATION_NAME, this.userNames);
+        for (int idx = 0; idx < auditEntries; idx++)
+        {
+            final int userIdx;
+            if (times[idx] < FROM_TIME || inactiveUsers == users)
+            {
+                userIdx = random.nextInt(users);
+            }
+            else
+            {
+                userIdx = inactiveUsers + random.nextInt(users - inactiveUsers);
+            }
+            this.auditService.addEntry(userIdx, times[idx]);
+        }
+    }
+
+    /**
+     * @return the names of all users
+     */
+    public String[] getUserNames()
+    {
+        return this.userNames.clone();
+    }
+
+    /**
+     * @return the person nodes of all users
+     */
+    public List<NodeRef> getPersonRefs()
+    {
+        return this.personRefs;
+    }
+
+    /**
+     * @return the node service holding the person nodes
+     */
+    public NodeService getNodeService()
+    {
+        return this.nodeService;
+    }
+
+    /**
+     * @return the audit service holding the audit entries
+     */
+    public InMemoryAuditService getAuditService()
+    {
+        return this.auditService;
+    }
+
+    /**
+     * Creates a new authorisation service stand-in with all users authorised.
+     *
+     * @return the authorisation service stand-in
+     */
+    public InMemoryAuthorizationService createAuthorisationService()
+    {
+        return new InMemoryAuthorizationService(Arrays.asList(this.userNames));
+    }
+
+    /**
+     * Creates the work for the deauthorisation of all users.
+     *
+     * @return the work
+     */
+    public List<DeauthorisationUserInfo> createWork()
+    {
+        final List<DeauthorisationUserInfo> work = new ArrayList<>(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            work.add(new DeauthorisationUserInfo(this.userNames[idx], this.personRefs.get(idx), null));
+        }
+        return work;
+    }
+}
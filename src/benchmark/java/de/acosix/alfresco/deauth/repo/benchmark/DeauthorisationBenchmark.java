@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.transaction.TransactionService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.acosix.alfresco.deauth.repo.batch.AuthorisationStateSnapshot;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.PartitionedDeauthorisationProcessor;
+import de.acosix.alfresco.deauth.repo.batch.PersonDeauthorisationWorker;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorities;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+
+/**
+ * Benchmarks the deauthorisation phase, i.e. the throughput of {@link PersonDeauthorisationWorker#process(DeauthorisationUserInfo)
+ * PersonDeauthorisationWorker} in batches processed across one or more lanes, against an in-memory authorisation service which fails
+ * conflicting concurrent commits like the actual service.
+ *
+ * @author Axel Faust
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class DeauthorisationBenchmark
+{
+
+    @Param({ "100000" })
+    public int users;
+
+    @Param({ "1", "4" })
+    public int lanes;
+
+    @Param({ "250" })
+    public int batchSize;
+
+    protected TransactionService transactionService;
+
+    protected List<DeauthorisationUserInfo> work;
+
+    protected List<String> userNames;
+
+    protected InMemoryAuthorizationService authorisationService;
+
+    @Setup
+    public void setUp()
+    {
+        this.transactionService = InMemoryTransactionManager.createTransactionService(20);
+        final BenchmarkData data = new BenchmarkData(this.users, 0, 0);
+        this.work = data.createWork();
+        this.userNames = Arrays.asList(data.getUserNames());
+    }
+
+    @Setup(Level.Invocation)
+    public void resetAuthorisations()
+    {
+        // all users are authorised again before each deauthorisation
+        this.authorisationService = new InMemoryAuthorizationService(this.userNames);
+    }
+
+    @Benchmark
+    public int deauthorise()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+        try
+        {
+            final PersonDeauthorisationWorker worker = new PersonDeauthorisationWorker(false, null, this.authorisationService.asService());
+            worker.setProtectedAuthorities(new ProtectedAuthorities(Collections.<String> emptyList()));
+            worker.setAuthorisationStateSnapshot(new AuthorisationStateSnapshot(this.authorisationService.asService()));
+
+            final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthorisationBenchmark",
+                    this.transactionService, this.lanes, this.batchSize, Integer.MAX_VALUE);
+            processor.process(this.work, worker);
+            return worker.getDeauthorised();
+        }
+        finally
+        {
+            AuthenticationUtil.clearCurrentSecurityContext();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.benchmark;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
+import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker;
+import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker.PersonAuditQueryMode;
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisationStateSnapshot;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisedPersonFilteringWorker;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.PersonActivityIndexWorker;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * Benchmarks the query phase of a deauthorisation, i.e. the default PERSON_AUDIT preparation query running audit queries for each person,
+ * the scan of the audit application into an activity index, the evaluation of all person nodes against that index, and the probes for the
+ * last activity of the resulting candidates (as run by the PROBE query mode).
+ *
+ * @author Axel Faust
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class QueryBenchmark
+{
+
+    @Param({ "100000" })
+    public int users;
+
+    @Param({ "2000000" })
+    public int auditEntries;
+
+    @Param({ "20" })
+    public int inactivePercent;
+
+    @Param({ "4" })
+    public int workerThreads;
+
+    @Param({ "250" })
+    public int batchSize;
+
+    protected BenchmarkData data;
+
+    protected TransactionService transactionService;
+
+    protected AuthorizationService authorisationService;
+
+    protected UserActivityIndex activityIndex;
+
+    protected List<DeauthorisationUserInfo> candidates;
+
+    @Setup
+    public void setUp()
+    {
+        this.data = new BenchmarkData(this.users, this.auditEntries, this.inactivePercent);
+        this.transactionService = InMemoryTransactionManager.createTransactionService(0);
+        this.authorisationService = this.data.createAuthorisationService().asService();
+        this.activityIndex = this.createScanner().scan(BenchmarkData.FROM_TIME);
+        this.candidates = this.evaluatePersons();
+    }
+
+    @Benchmark
+    public Collection<AuditUserInfo> personAuditQuery()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+        try
+        {
+            final PersonAuditWorker worker = new PersonAuditWorker(BenchmarkData.FROM_TIME, PersonAuditQueryMode.INACTIVE_ONLY,
+                    BenchmarkData.AUDIT_APPLICATION_NAME, this.data.getNodeService(), this.data.getAuditService().asService());
+            // set up like the web script / job, with a fresh snapshot just like each run
+            final AuthorisationStateSnapshot authorisationStateSnapshot = new AuthorisationStateSnapshot(this.authorisationService);
+            worker.setIsAuthorisedCheck(userName -> Boolean.valueOf(authorisationStateSnapshot.isAuthorised(userName)));
+            worker.setIsDeauthorisedCheck(userName -> Boolean.valueOf(authorisationStateSnapshot.isDeauthorised(userName)));
+
+            final BatchProcessor<NodeRef> processor = new BatchProcessor<>("QueryBenchmark",
+                    this.transactionService.getRetryingTransactionHelper(),
+                    new CollectionWrappingWorkProvider<>(this.data.getPersonRefs(), this.batchSize), this.workerThreads, this.batchSize,
+                    null, LogFactory.getLog(QueryBenchmark.class), Integer.MAX_VALUE);
+            processor.process(new AuthorisedPersonFilteringWorker(worker, this.data.getNodeService(), authorisationStateSnapshot), true);
+            return worker.getUsers();
+        }
+        finally
+        {
+            AuthenticationUtil.clearCurrentSecurityContext();
+        }
+    }
+
+    @Benchmark
+    public UserActivityIndex auditScan()
+    {
+        return this.createScanner().scan(BenchmarkData.FROM_TIME);
+    }
+
+    @Benchmark
+    public List<DeauthorisationUserInfo> personEvaluation()
+    {
+        return this.evaluatePersons();
+    }
+
+    @Benchmark
+    public int lastActivityProbes()
+    {
+        final AuditActivityScanner scanner = this.createScanner();
+        int resolved = 0;
+        for (final DeauthorisationUserInfo candidate : this.candidates)
+        {
+            if (scanner.probeLastActivity(candidate.getUserName(), 0) != null)
+            {
+                resolved++;
+            }
+        }
+        return resolved;
+    }
+
+    protected AuditActivityScanner createScanner()
+    {
+        final AuditActivityScanner scanner = new AuditActivityScanner(BenchmarkData.AUDIT_APPLICATION_NAME,
+                this.data.getAuditService().asService());
+        scanner.setTransactionHelper(this.transactionService.getRetryingTransactionHelper());
+        return scanner;
+    }
+
+    protected List<DeauthorisationUserInfo> evaluatePersons()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+        try
+        {
+            final PersonActivityIndexWorker worker = new PersonActivityIndexWorker(BenchmarkData.FROM_TIME, this.activityIndex,
+                    this.data.getNodeService());
+            final BatchProcessor<NodeRef> processor = new BatchProcessor<>("QueryBenchmark",
+                    this.transactionService.getRetryingTransactionHelper(),
+                    new CollectionWrappingWorkProvider<>(this.data.getPersonRefs(), this.batchSize), this.workerThreads, this.batchSize,
+                    null, LogFactory.getLog(QueryBenchmark.class), Integer.MAX_VALUE);
+            processor.process(worker, true);
+            return worker.getUsers();
+        }
+        finally
+        {
+            AuthenticationUtil.clearCurrentSecurityContext();
+        }
+    }
+}
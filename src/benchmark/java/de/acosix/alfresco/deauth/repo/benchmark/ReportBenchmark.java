@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkSet;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisedUserRow;
+
+/**
+ * Benchmarks building the model of a deauthorisation run in the web script, i.e. the compact work set of inactive users and its ordering
+ * by last activity, as well as rendering the report of all deauthorised users.
+ *
+ * @author Axel Faust
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ReportBenchmark
+{
+
+    protected static class NullWriter extends Writer
+    {
+
+        protected long written;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final char[] cbuf, final int off, final int len)
+        {
+            this.written += len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void flush()
+        {
+            // NO-OP
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+        {
+            // NO-OP
+        }
+    }
+
+    @Param({ "100000" })
+    public int users;
+
+    @Param({ "JSON", "CSV" })
+    public ReportFormat format;
+
+    @Param({ "250" })
+    public int batchSize;
+
+    protected BenchmarkData data;
+
+    protected List<DeauthorisationUserInfo> work;
+
+    @Setup
+    public void setUp()
+    {
+        this.data = new BenchmarkData(this.users, 0, 0);
+        this.work = new ArrayList<>(this.users);
+        final List<DeauthorisationUserInfo> plainWork = this.data.createWork();
+        for (int idx = 0; idx < plainWork.size(); idx++)
+        {
+            final DeauthorisationUserInfo user = plainWork.get(idx);
+            // mix of users with and without known activity
+            final Long lastActivity = idx % 3 == 0 ? null : Long.valueOf(BenchmarkData.FROM_TIME - idx);
+            this.work.add(new DeauthorisationUserInfo(user.getUserName(), user.getPersonRef(), lastActivity));
+        }
+    }
+
+    @Benchmark
+    public List<DeauthorisationUserInfo> buildWorkSet()
+    {
+        final DeauthorisationWorkSet workSet = DeauthorisationWorkSet.of(this.work);
+        return workSet.selectByLastActivity();
+    }
+
+    @Benchmark
+    public long renderReport() throws IOException
+    {
+        final DeauthorisationReport report = new DeauthorisationReport(this.format, this.data.getNodeService());
+        try
+        {
+            report.begin(this.users);
+            final List<DeauthorisedUserRow> rows = new ArrayList<>(this.batchSize);
+            for (final DeauthorisationUserInfo user : this.work)
+            {
+                rows.add(report.createRow(user));
+                if (rows.size() == this.batchSize)
+                {
+                    report.writeUsers(rows);
+                    rows.clear();
+                }
+            }
+            report.writeUsers(rows);
+            report.complete(0, this.users);
+
+            final NullWriter writer = new NullWriter();
+            report.writeTo(writer);
+            return writer.written;
+        }
+        finally
+        {
+            report.discard();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class adapt the size of deauthorisation batches during a run based on the observed duration of committed batch
+ * transactions and the rate of rolled back (and thus retried) transactions. The size is moved towards the size expected to hold a target
+ * transaction duration, growing at most by half and shrinking at most by half per adjustment, and halved whenever the share of rolled back
+ * transactions exceeds a threshold, so that conflicts do not cause large amounts of work to be redone.
+ *
+ * @author Axel Faust
+ */
+public class AdaptiveBatchSizer
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    protected static final double MAX_ROLLBACK_RATE = 0.1;
+
+    // no adjustment while the average duration is within this tolerance of the target
+    protected static final double TARGET_TOLERANCE = 0.2;
+
+    protected final int minBatchSize;
+
+    protected final int maxBatchSize;
+
+    protected final long targetBatchNanos;
+
+    protected int batchSize;
+
+    protected int committedBatches;
+
+    protected int committedEntries;
+
+    protected long committedBatchNanos;
+
+    protected int rolledBackBatches;
+
+    public AdaptiveBatchSizer(final int initialBatchSize, final int minBatchSize, final int maxBatchSize, final long targetBatchMillis)
+    {
+        if (minBatchSize <= 0)
+        {
+            throw new IllegalArgumentException("Minimum batch size must be a positive integer");
+        }
+        if (maxBatchSize < minBatchSize)
+        {
+            throw new IllegalArgumentException("Maximum batch size must not be lower than the minimum batch size");
+        }
+        if (targetBatchMillis <= 0)
+        {
+            throw new IllegalArgumentException("Target batch duration must be a positive integer");
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetBatchNanos = TimeUnit.MILLISECONDS.toNanos(targetBatchMillis);
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+    }
+
+    /**
+     * Records the commit of a batch transaction.
+     *
+     * @param entries
+     *            the number of entries in the batch
+     * @param durationNanos
+     *            the duration of the transaction in nanoseconds
+     */
+    public synchronized void onBatchCommitted(final int entries, final long durationNanos)
+    {
+        this.committedBatches++;
+        this.committedEntries += entries;
+        this.committedBatchNanos += durationNanos;
+    }
+
+    /**
+     * Records the rollback of a batch transaction.
+     */
+    public synchronized void onBatchRolledBack()
+    {
+        this.rolledBackBatches++;
+    }
+
+    /**
+     * @return the current batch size
+     */
+    public synchronized int getBatchSize()
+    {
+        return this.batchSize;
+    }
+
+    /**
+     * Determines the batch size to use for the next batches, adjusting the current size based on the observations since the last
+     * adjustment.
+     *
+     * @return the batch size to use
+     */
+    public synchronized int nextBatchSize()
+    {
+        final int observedBatches = this.committedBatches + this.rolledBackBatches;
+        if (observedBatches > 0)
+        {
+            final int previousBatchSize = this.batchSize;
+            final double rollbackRate = ((double) this.rolledBackBatches) / observedBatches;
+            if (rollbackRate > MAX_ROLLBACK_RATE)
+            {
+                this.batchSize = Math.max(this.minBatchSize, this.batchSize / 2);
+            }
+            else if (this.committedEntries > 0)
+            {
+                final long averageBatchNanos = this.committedBatchNanos / this.committedBatches;
+                if (Math.abs(averageBatchNanos - this.targetBatchNanos) > this.targetBatchNanos * TARGET_TOLERANCE)
+                {
+                    final double nanosPerEntry = ((double) this.committedBatchNanos) / this.committedEntries;
+                    final long idealBatchSize = Math.round(this.targetBatchNanos / Math.max(1, nanosPerEntry));
+                    final long boundedBatchSize = Math.max(this.batchSize / 2, Math.min(this.batchSize + this.batchSize / 2 + 1,
+                            idealBatchSize));
+                    this.batchSize = (int) Math.max(this.minBatchSize, Math.min(this.maxBatchSize, boundedBatchSize));
+                }
+            }
+
+            if (this.batchSize != previousBatchSize)
+            {
+                LOGGER.debug("Adjusted batch size from {} to {} after {} committed / {} rolled back batches with {} entries in {} ms",
+                        previousBatchSize, this.batchSize, this.committedBatches, this.rolledBackBatches, this.committedEntries,
+                        TimeUnit.NANOSECONDS.toMillis(this.committedBatchNanos));
+            }
+
+            this.committedBatches = 0;
+            this.committedEntries = 0;
+            this.committedBatchNanos = 0;
+            this.rolledBackBatches = 0;
+        }
+        return this.batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("AdaptiveBatchSizer [batchSize=");
+        builder.append(this.batchSize);
+        builder.append(", minBatchSize=");
+        builder.append(this.minBatchSize);
+        builder.append(", maxBatchSize=");
+        builder.append(this.maxBatchSize);
+        builder.append(", targetBatchMillis=");
+        builder.append(TimeUnit.NANOSECONDS.toMillis(this.targetBatchNanos));
+        builder.append("]");
+        return builder.toString();
+    }
+}
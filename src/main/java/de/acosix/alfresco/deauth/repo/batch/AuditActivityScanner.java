@@ -0,0 +1,494 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.audit.AuditQueryParameters;
+import org.alfresco.service.cmr.audit.AuditService;
+import org.alfresco.service.cmr.audit.AuditService.AuditQueryCallback;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+
+/**
+ * Instances of this class read the entries of an audit application in a single pass in order of their IDs and fold the user activity
+ * recorded in them into a {@link UserActivityIndex}. In contrast to the {@code PersonAuditWorker} of the acosix-audit module, the cost of
+ * a scan depends on the number of audit entries in the relevant time frame and not on the number of people in the system.
+ *
+ * Audit entries are selected by the time at which they were recorded. If a date or date range audit path is configured, the time of
+ * activity is taken from the values of an entry, but only entries recorded at or after the start of the relevant time frame are read. An
+ * entry recorded before that time with a date (range end) after it is not considered, e.g. a session recorded at login with the expected
+ * end of the session as the end of its date range. Audit applications are expected to record entries at or after the end of the activity
+ * they describe.
+ *
+ * @author Axel Faust
+ */
+public class AuditActivityScanner
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuditActivityScanner.class);
+
+    protected static final int DEFAULT_PAGE_SIZE = 1000;
+
+    protected static final int DEFAULT_RESCAN_WINDOW = 1000;
+
+    /**
+     *
+     * @author Axel Faust
+     */
+    protected class ActivityFoldingCallback implements AuditQueryCallback
+    {
+
+        protected final UserActivityIndex index;
+
+        protected int entries = 0;
+
+        protected Long lastEntryId;
+
+        protected ActivityFoldingCallback(final UserActivityIndex index)
+        {
+            this.index = index;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean valuesRequired()
+        {
+            return AuditActivityScanner.this.userAuditPath != null || AuditActivityScanner.this.dateAuditPath != null
+                    || AuditActivityScanner.this.dateToAuditPath != null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean handleAuditEntry(final Long entryId, final String applicationName, final String user, final long time,
+                final Map<String, Serializable> values)
+        {
+            this.entries++;
+            this.lastEntryId = entryId;
+            this.index.updateHighestEntryId(entryId.longValue());
+
+            final String userName = AuditActivityScanner.this.determineUserName(user, values);
+            if (userName != null && !userName.trim().isEmpty())
+            {
+                final long activity = AuditActivityScanner.this.determineActivityTime(time, values);
+                this.index.recordActivity(userName, activity);
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean handleAuditEntryError(final Long entryId, final String errorMsg, final Throwable error)
+        {
+            this.entries++;
+            this.lastEntryId = entryId;
+            if (entryId != null)
+            {
+                this.index.updateHighestEntryId(entryId.longValue());
+            }
+            LOGGER.warn("Error processing audit entry {}: {}", entryId, errorMsg, error);
+            return true;
+        }
+    }
+
+    protected final String auditApplicationName;
+
+    protected final AuditService auditService;
+
+    protected String userAuditPath;
+
+    protected String dateAuditPath;
+
+    protected String dateFromAuditPath;
+
+    protected String dateToAuditPath;
+
+    protected int pageSize = DEFAULT_PAGE_SIZE;
+
+    protected int rescanWindow = DEFAULT_RESCAN_WINDOW;
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    protected RetryingTransactionHelper txnHelper;
+
+    public AuditActivityScanner(final String auditApplicationName, final AuditService auditService)
+    {
+        ParameterCheck.mandatoryString("auditApplicationName", auditApplicationName);
+        ParameterCheck.mandatory("auditService", auditService);
+        this.auditApplicationName = auditApplicationName;
+        this.auditService = auditService;
+    }
+
+    /**
+     * @param userAuditPath
+     *            the userAuditPath to set
+     */
+    public void setUserAuditPath(final String userAuditPath)
+    {
+        this.userAuditPath = userAuditPath;
+    }
+
+    /**
+     * @param dateAuditPath
+     *            the dateAuditPath to set
+     */
+    public void setDateAuditPath(final String dateAuditPath)
+    {
+        this.dateAuditPath = dateAuditPath;
+    }
+
+    /**
+     * @param dateFromAuditPath
+     *            the dateFromAuditPath to set
+     */
+    public void setDateFromAuditPath(final String dateFromAuditPath)
+    {
+        this.dateFromAuditPath = dateFromAuditPath;
+    }
+
+    /**
+     * @param dateToAuditPath
+     *            the dateToAuditPath to set
+     */
+    public void setDateToAuditPath(final String dateToAuditPath)
+    {
+        this.dateToAuditPath = dateToAuditPath;
+    }
+
+    /**
+     * @param pageSize
+     *            the number of audit entries to retrieve per query
+     */
+    public void setPageSize(final int pageSize)
+    {
+        if (pageSize <= 0)
+        {
+            throw new IllegalArgumentException("Page size must be a positive integer");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of audit entry IDs below the highest ID already processed into an index which are read again when
+     * {@link #update(UserActivityIndex, long) updating} that index. IDs of audit entries are assigned before their transaction commits, so
+     * an entry with a lower ID may only become visible after an entry with a higher ID has already been processed. Folding entries into an
+     * index more than once is harmless, as only the latest activity of each user is retained.
+     *
+     * @param rescanWindow
+     *            the number of audit entry IDs to read again on update
+     */
+    public void setRescanWindow(final int rescanWindow)
+    {
+        if (rescanWindow < 0)
+        {
+            throw new IllegalArgumentException("Rescan window must not be negative");
+        }
+        this.rescanWindow = rescanWindow;
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the registry to which the latency of audit queries should be recorded
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        ParameterCheck.mandatory("metricsRegistry", metricsRegistry);
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Sets the transaction helper to use for running each audit query in a short read-only transaction of its own, so that a scan does not
+     * need to be run within a transaction spanning all its pages. If no helper is set, or a transaction is already active when a query is
+     * run, the current transaction is used.
+     *
+     * @param txnHelper
+     *            the txnHelper to set
+     */
+    public void setTransactionHelper(final RetryingTransactionHelper txnHelper)
+    {
+        this.txnHelper = txnHelper;
+    }
+
+    /**
+     * Retrieves the key identifying the configuration of this instance. Indices filled using different configurations are incompatible
+     * with each other.
+     *
+     * @return the configuration key
+     */
+    public String getConfigurationKey()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(this.auditApplicationName);
+        builder.append('|');
+        builder.append(this.userAuditPath != null ? this.userAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateAuditPath != null ? this.dateAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateFromAuditPath != null ? this.dateFromAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateToAuditPath != null ? this.dateToAuditPath : "");
+        return builder.toString();
+    }
+
+    /**
+     * Scans all audit entries recorded since a specific point in time and builds an index of the last activity of users.
+     *
+     * @param fromTime
+     *            the earliest time of audit entries to consider
+     * @return the index of user activity
+     */
+    public UserActivityIndex scan(final long fromTime)
+    {
+        final UserActivityIndex index = new UserActivityIndex(this.getConfigurationKey(), fromTime);
+        this.update(index, fromTime);
+        return index;
+    }
+
+    /**
+     * Scans all audit entries recorded since a specific point in time that have not yet been processed into an existing index and adds
+     * them to that index. The scan starts {@link #setRescanWindow(int) a number of entry IDs} before the highest entry ID already processed
+     * to pick up entries that were committed out of order.
+     *
+     * @param index
+     *            the index to update
+     * @param fromTime
+     *            the earliest time of audit entries to consider
+     */
+    public void update(final UserActivityIndex index, final long fromTime)
+    {
+        ParameterCheck.mandatory("index", index);
+        if (!index.isCompatible(this.getConfigurationKey(), fromTime))
+        {
+            throw new IllegalArgumentException("Index " + index + " is not compatible with the configuration of this scanner");
+        }
+
+        // entry IDs are assigned before commit, so entries below the highest ID may have been committed since the last scan
+        Long fromId = index.getHighestEntryId() != null
+                ? Long.valueOf(Math.max(0, index.getHighestEntryId().longValue() + 1 - this.rescanWindow)) : null;
+
+        LOGGER.debug("Scanning audit application {} for user activity since {} starting at entry {}", this.auditApplicationName, fromTime,
+                fromId);
+        int totalEntries = 0;
+        boolean moreEntries = true;
+        while (moreEntries)
+        {
+            final AuditQueryParameters parameters = new AuditQueryParameters();
+            parameters.setApplicationName(this.auditApplicationName);
+            parameters.setForward(true);
+            parameters.setFromTime(Long.valueOf(fromTime));
+            if (fromId != null)
+            {
+                parameters.setFromId(fromId);
+            }
+
+            final ActivityFoldingCallback callback = new ActivityFoldingCallback(index);
+            final long start = System.nanoTime();
+            this.runQuery(() -> {
+                // reset in case of a retry - folding the same entries into the index again is harmless
+                callback.entries = 0;
+                callback.lastEntryId = null;
+                this.auditService.auditQuery(callback, parameters, this.pageSize);
+            });
+            this.metricsRegistry.recordDuration(DeauthorisationMetrics.QUERY_AUDIT_QUERY, System.nanoTime() - start);
+            this.metricsRegistry.increment(DeauthorisationMetrics.QUERY_AUDIT_ENTRIES, callback.entries);
+
+            totalEntries += callback.entries;
+            moreEntries = callback.entries == this.pageSize && callback.lastEntryId != null;
+            if (moreEntries)
+            {
+                fromId = Long.valueOf(callback.lastEntryId.longValue() + 1);
+            }
+        }
+
+        LOGGER.debug("Scanned {} audit entries into {}", totalEntries, index);
+    }
+
+    /**
+     * Checks whether a single user has any activity recorded in audit entries since a specific point in time. In contrast to a
+     * {@link #scan(long) scan}, this only runs a single {@link #probeLastActivity(String, long) probe}.
+     *
+     * @param userName
+     *            the name of the user to check
+     * @param fromTime
+     *            the earliest time of activity to consider
+     * @return {@code true} if any activity of the user has been recorded since the specified time, {@code false} otherwise
+     */
+    public boolean hasActivitySince(final String userName, final long fromTime)
+    {
+        final Long lastActivity = this.probeLastActivity(userName, fromTime);
+        final boolean active = lastActivity != null && lastActivity.longValue() >= fromTime;
+        LOGGER.trace("User {} has {}been active since {}", userName, active ? "" : "not ", fromTime);
+        return active;
+    }
+
+    /**
+     * Probes the last activity of a single user recorded in audit entries since a specific point in time. This runs a single audit query
+     * reading the newest entry for the user and limited to that one result, so that the cost of the probe does not depend on the number
+     * of audit entries recorded for the user. The time of activity is determined from the entry like in a {@link #scan(long) scan}, i.e.
+     * via the configured date / date range audit paths if set.
+     *
+     * @param userName
+     *            the name of the user to probe
+     * @param fromTime
+     *            the earliest time of audit entries to consider
+     * @return the time of activity of the newest audit entry for the user or {@code null} if no audit entry has been recorded since the
+     *         specified time
+     */
+    public Long probeLastActivity(final String userName, final long fromTime)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+
+        final AuditQueryParameters parameters = new AuditQueryParameters();
+        parameters.setApplicationName(this.auditApplicationName);
+        parameters.setForward(false);
+        parameters.setFromTime(Long.valueOf(fromTime));
+        if (this.userAuditPath != null)
+        {
+            parameters.addSearchKey(this.userAuditPath, userName);
+        }
+        else
+        {
+            parameters.setUser(userName);
+        }
+
+        final Long[] lastActivity = new Long[1];
+        final int[] entries = new int[1];
+        final long start = System.nanoTime();
+        this.runQuery(() -> this.auditService.auditQuery(new AuditQueryCallback()
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean valuesRequired()
+            {
+                return AuditActivityScanner.this.dateAuditPath != null || AuditActivityScanner.this.dateToAuditPath != null;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean handleAuditEntry(final Long entryId, final String applicationName, final String user, final long time,
+                    final Map<String, Serializable> values)
+            {
+                entries[0]++;
+                lastActivity[0] = Long.valueOf(AuditActivityScanner.this.determineActivityTime(time, values));
+                return false;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean handleAuditEntryError(final Long entryId, final String errorMsg, final Throwable error)
+            {
+                LOGGER.warn("Error processing audit entry {}: {}", entryId, errorMsg, error);
+                return true;
+            }
+        }, parameters, 1));
+        this.metricsRegistry.recordDuration(DeauthorisationMetrics.QUERY_AUDIT_QUERY, userName, System.nanoTime() - start);
+        this.metricsRegistry.increment(DeauthorisationMetrics.QUERY_AUDIT_ENTRIES, entries[0]);
+
+        LOGGER.trace("Probed last activity of user {} since {} as {}", userName, fromTime, lastActivity[0]);
+        return lastActivity[0];
+    }
+
+    protected void runQuery(final Runnable query)
+    {
+        if (this.txnHelper != null)
+        {
+            this.txnHelper.doInTransaction(() -> {
+                query.run();
+                return null;
+            }, true, false);
+        }
+        else
+        {
+            query.run();
+        }
+    }
+
+    protected String determineUserName(final String user, final Map<String, Serializable> values)
+    {
+        String userName;
+        if (this.userAuditPath != null)
+        {
+            final Serializable value = values != null ? values.get(this.userAuditPath) : null;
+            userName = value instanceof String ? (String) value : null;
+        }
+        else
+        {
+            userName = user;
+        }
+        return userName;
+    }
+
+    protected long determineActivityTime(final long time, final Map<String, Serializable> values)
+    {
+        Long activity = null;
+        if (values != null)
+        {
+            if (this.dateAuditPath != null)
+            {
+                activity = this.toTime(values.get(this.dateAuditPath));
+            }
+            else if (this.dateFromAuditPath != null && this.dateToAuditPath != null)
+            {
+                // end of time frame is the last point of activity
+                activity = this.toTime(values.get(this.dateToAuditPath));
+            }
+        }
+        return activity != null ? activity.longValue() : time;
+    }
+
+    protected Long toTime(final Serializable value)
+    {
+        Long time = null;
+        if (value instanceof Date)
+        {
+            time = Long.valueOf(((Date) value).getTime());
+        }
+        else if (value instanceof String && !((String) value).trim().isEmpty())
+        {
+            try
+            {
+                time = Long.valueOf(ISO8601DateFormat.parse((String) value).getTime());
+            }
+            catch (final RuntimeException ex)
+            {
+                LOGGER.debug("Audit value {} is not a valid ISO 8601 date", value, ex);
+            }
+        }
+        return time;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+
+/**
+ * Instances of this class cache the authorisation state of users for the duration of a single deauthorisation run. The
+ * {@link AuthorizationService} does not offer any operation to read the states of all users in bulk, so this is not a bulk snapshot:
+ * the state of each user is still read lazily via individual service calls, but at most once per run, and then shared by the query phase
+ * and the deauthorisation phase of the run, which previously each performed their own checks per user, as well as any retries of
+ * batches. Changes made by the run itself are applied to the cache so that it does not need to be reloaded. User names are treated
+ * case-insensitively, consistent with the default user name handling of Alfresco.
+ *
+ * @author Axel Faust
+ */
+public class AuthorisationStateSnapshot
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthorisationStateSnapshot.class);
+
+    public static enum AuthorisationState
+    {
+        AUTHORISED, DEAUTHORISED, UNAUTHORISED;
+    }
+
+    protected final AuthorizationService authorisationService;
+
+    protected final Map<String, AuthorisationState> stateByUser = new ConcurrentHashMap<>(1024);
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    public AuthorisationStateSnapshot(final AuthorizationService authorisationService)
+    {
+        ParameterCheck.mandatory("authorisationService", authorisationService);
+        this.authorisationService = authorisationService;
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        ParameterCheck.mandatory("metricsRegistry", metricsRegistry);
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Retrieves the authorisation state of a user, loading it if it is not yet contained in this snapshot. Loading requires an active
+     * transaction.
+     *
+     * @param userName
+     *            the name of the user
+     * @return the authorisation state
+     */
+    public AuthorisationState getState(final String userName)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+
+        final String key = toKey(userName);
+        AuthorisationState state = this.stateByUser.get(key);
+        if (state == null)
+        {
+            // service calls intentionally not made within computeIfAbsent to avoid blocking other threads on the same bin
+            final long start = System.nanoTime();
+            if (this.authorisationService.isAuthorized(userName))
+            {
+                state = AuthorisationState.AUTHORISED;
+            }
+            else if (this.authorisationService.isDeauthorized(userName))
+            {
+                state = AuthorisationState.DEAUTHORISED;
+            }
+            else
+            {
+                state = AuthorisationState.UNAUTHORISED;
+            }
+            this.metricsRegistry.recordDuration(DeauthorisationMetrics.AUTHORISATION_CHECK, userName, System.nanoTime() - start);
+
+            final AuthorisationState concurrentState = this.stateByUser.putIfAbsent(key, state);
+            if (concurrentState != null)
+            {
+                state = concurrentState;
+            }
+            else
+            {
+                LOGGER.trace("Loaded authorisation state {} of user {}", state, userName);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Checks whether a user is authorised according to this snapshot.
+     *
+     * @param userName
+     *            the name of the user
+     * @return {@code true} if the user is authorised, {@code false} otherwise
+     */
+    public boolean isAuthorised(final String userName)
+    {
+        return this.getState(userName) == AuthorisationState.AUTHORISED;
+    }
+
+    /**
+     * Checks whether a user is deauthorised according to this snapshot.
+     *
+     * @param userName
+     *            the name of the user
+     * @return {@code true} if the user is deauthorised, {@code false} otherwise
+     */
+    public boolean isDeauthorised(final String userName)
+    {
+        return this.getState(userName) == AuthorisationState.DEAUTHORISED;
+    }
+
+    /**
+     * Records the deauthorisation of a user. This operation should only be called once the deauthorisation has been committed.
+     *
+     * @param userName
+     *            the name of the user
+     */
+    public void markDeauthorised(final String userName)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        this.stateByUser.put(toKey(userName), AuthorisationState.DEAUTHORISED);
+    }
+
+    /**
+     * @return the number of users contained in this snapshot
+     */
+    public int size()
+    {
+        return this.stateByUser.size();
+    }
+
+    protected static String toKey(final String userName)
+    {
+        // user names are case-insensitive by default
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("AuthorisationStateSnapshot [size=");
+        builder.append(this.stateByUser.size());
+        builder.append("]");
+        return builder.toString();
+    }
+}
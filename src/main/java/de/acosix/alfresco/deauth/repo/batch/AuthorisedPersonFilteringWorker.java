@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class decorate a batch process worker to only pass on the persons of users currently considered as authorised
+ * according to an {@link AuthorisationStateSnapshot}. Already deauthorised and never authorised users can never be candidates for
+ * deauthorisation, so filtering the persons this way avoids evaluating audit data for them. The check is run by the worker threads within
+ * the transaction of each batch, so that the work provider can hand out each page of persons as is. As the {@code AuthorizationService}
+ * provides no API to enumerate authorised users, all people are still paged through - only the evaluation of audit data for persons of
+ * users that are not authorised is saved.
+ *
+ * @author Axel Faust
+ */
+public class AuthorisedPersonFilteringWorker implements BatchProcessWorker<NodeRef>
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthorisedPersonFilteringWorker.class);
+
+    protected final BatchProcessWorker<NodeRef> delegate;
+
+    protected final NodeService nodeService;
+
+    protected final AuthorisationStateSnapshot authorisationStateSnapshot;
+
+    public AuthorisedPersonFilteringWorker(final BatchProcessWorker<NodeRef> delegate, final NodeService nodeService,
+            final AuthorisationStateSnapshot authorisationStateSnapshot)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("nodeService", nodeService);
+        ParameterCheck.mandatory("authorisationStateSnapshot", authorisationStateSnapshot);
+        this.delegate = delegate;
+        this.nodeService = nodeService;
+        this.authorisationStateSnapshot = authorisationStateSnapshot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIdentifier(final NodeRef entry)
+    {
+        return this.delegate.getIdentifier(entry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeProcess() throws Throwable
+    {
+        this.delegate.beforeProcess();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final NodeRef entry) throws Throwable
+    {
+        final Serializable userName = this.nodeService.getProperty(entry, ContentModel.PROP_USERNAME);
+        if (userName != null && this.authorisationStateSnapshot.isAuthorised(userName.toString()))
+        {
+            this.delegate.process(entry);
+        }
+        else
+        {
+            LOGGER.trace("Skipping person {} of user {} which is not marked as being authorised", entry, userName);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterProcess() throws Throwable
+    {
+        this.delegate.afterProcess();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("AuthorisedPersonFilteringWorker [delegate=");
+        builder.append(this.delegate);
+        builder.append(", authorisationStateSnapshot=");
+        builder.append(this.authorisationStateSnapshot);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * This load monitor assesses the load of the repository based on the database connection pool. The repository is considered to be
+ * overloaded if the share of active connections in the pool exceeds a threshold, or if obtaining a connection from the pool takes longer
+ * than a threshold. As request processing in the repository requires a database connection for nearly every request, the latter also
+ * serves as an indicator for increased request latency. Samples are taken at most once per sample interval and shared between all
+ * callers. While an operation is paused, it only resumes once both values have dropped below 80% of their thresholds.
+ *
+ * @author Axel Faust
+ */
+public class ConnectionPoolLoadMonitor implements LoadMonitor, InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPoolLoadMonitor.class);
+
+    protected static final double RESUME_FACTOR = 0.8;
+
+    protected DataSource dataSource;
+
+    protected int maxPoolUtilisationPercent = 80;
+
+    protected int maxConnectionWaitMillis = 500;
+
+    protected int sampleIntervalMillis = 1000;
+
+    protected long lastSampleTime = -1;
+
+    protected double poolUtilisation;
+
+    protected long connectionWaitMillis;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "dataSource", this.dataSource);
+        if (this.maxPoolUtilisationPercent <= 0 || this.maxPoolUtilisationPercent > 100)
+        {
+            throw new IllegalStateException("Maximum pool utilisation must be a percentage between 1 and 100");
+        }
+        if (this.maxConnectionWaitMillis <= 0)
+        {
+            throw new IllegalStateException("Maximum connection wait time must be a positive integer");
+        }
+        if (!(this.dataSource instanceof BasicDataSource))
+        {
+            LOGGER.info("Data source {} does not expose pool statistics - only connection wait time will be monitored",
+                    this.dataSource.getClass());
+        }
+    }
+
+    /**
+     * @param dataSource
+     *            the dataSource to set
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param maxPoolUtilisationPercent
+     *            the maxPoolUtilisationPercent to set
+     */
+    public void setMaxPoolUtilisationPercent(final int maxPoolUtilisationPercent)
+    {
+        this.maxPoolUtilisationPercent = maxPoolUtilisationPercent;
+    }
+
+    /**
+     * @param maxConnectionWaitMillis
+     *            the maxConnectionWaitMillis to set
+     */
+    public void setMaxConnectionWaitMillis(final int maxConnectionWaitMillis)
+    {
+        this.maxConnectionWaitMillis = maxConnectionWaitMillis;
+    }
+
+    /**
+     * @param sampleIntervalMillis
+     *            the sampleIntervalMillis to set
+     */
+    public void setSampleIntervalMillis(final int sampleIntervalMillis)
+    {
+        this.sampleIntervalMillis = sampleIntervalMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isOverloaded(final boolean paused)
+    {
+        final long now = System.currentTimeMillis();
+        if (this.lastSampleTime == -1 || now - this.lastSampleTime >= this.sampleIntervalMillis)
+        {
+            this.sample();
+            this.lastSampleTime = System.currentTimeMillis();
+        }
+
+        final double factor = paused ? RESUME_FACTOR : 1;
+        final boolean overloaded = this.poolUtilisation * 100 > this.maxPoolUtilisationPercent * factor
+                || this.connectionWaitMillis > this.maxConnectionWaitMillis * factor;
+        LOGGER.trace("Pool utilisation {} and connection wait time {} ms evaluated as {}", this.poolUtilisation, this.connectionWaitMillis,
+                overloaded ? "overloaded" : "not overloaded");
+        return overloaded;
+    }
+
+    protected void sample()
+    {
+        if (this.dataSource instanceof BasicDataSource)
+        {
+            final BasicDataSource basicDataSource = (BasicDataSource) this.dataSource;
+            final int maxActive = basicDataSource.getMaxActive();
+            this.poolUtilisation = maxActive > 0 ? ((double) basicDataSource.getNumActive()) / maxActive : 0;
+        }
+
+        final long start = System.nanoTime();
+        try (Connection connection = this.dataSource.getConnection())
+        {
+            this.connectionWaitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        catch (final SQLException sqlex)
+        {
+            LOGGER.warn("Failed to obtain a connection for assessing repository load", sqlex);
+            // treat as overloaded - repository is unlikely to be healthy
+            this.connectionWaitMillis = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ConnectionPoolLoadMonitor [maxPoolUtilisationPercent=");
+        builder.append(this.maxPoolUtilisationPercent);
+        builder.append(", maxConnectionWaitMillis=");
+        builder.append(this.maxConnectionWaitMillis);
+        builder.append("]");
+        return builder.toString();
+    }
+}
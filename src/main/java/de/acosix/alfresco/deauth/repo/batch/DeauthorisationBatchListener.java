@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.List;
+
+/**
+ * Instances of this interface are notified by a {@link PersonDeauthorisationWorker} whenever a batch of users has been committed.
+ *
+ * @author Axel Faust
+ */
+@FunctionalInterface
+public interface DeauthorisationBatchListener
+{
+
+    /**
+     * Handles the commit of a batch. This operation is called outside of any transaction and may be called concurrently if the
+     * deauthorisation is processed in multiple lanes.
+     *
+     * @param processed
+     *            the users processed in the committed batch
+     * @param deauthorised
+     *            the number of users deauthorised in the committed batch
+     */
+    void onBatchCommitted(List<DeauthorisationUserInfo> processed, int deauthorised);
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the checkpoint of a deauthorisation run, consisting of the list of users determined to be deauthorised in
+ * the query phase and the progress of the deauthorisation phase. The list of users is immutable and meant to be persisted once, while the
+ * much smaller {@link Progress progress} is meant to be persisted after each committed batch. This allows a restarted run to continue
+ * with the remaining users instead of re-querying and re-processing all users.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationCheckpoint implements Serializable
+{
+
+    private static final long serialVersionUID = 5730880927493417462L;
+
+    /**
+     * Instances of this class hold the progress of the deauthorisation phase of a checkpointed run.
+     *
+     * @author Axel Faust
+     */
+    public static class Progress implements Serializable
+    {
+
+        private static final long serialVersionUID = -1442378712660287310L;
+
+        protected final long createdTime;
+
+        protected final BitSet processed;
+
+        protected final int deauthorised;
+
+        protected Progress(final long createdTime, final BitSet processed, final int deauthorised)
+        {
+            this.createdTime = createdTime;
+            this.processed = processed;
+            this.deauthorised = deauthorised;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("Progress [createdTime=");
+            builder.append(this.createdTime);
+            builder.append(", processed=");
+            builder.append(this.processed.cardinality());
+            builder.append(", deauthorised=");
+            builder.append(this.deauthorised);
+            builder.append("]");
+            return builder.toString();
+        }
+    }
+
+    protected final String configurationKey;
+
+    protected final long createdTime;
+
+    protected transient String[] userNames;
+
+    protected transient NodeRef[] personRefs;
+
+    protected transient Map<String, Integer> indexByUserName;
+
+    protected transient BitSet processed;
+
+    protected transient int deauthorised;
+
+    public DeauthorisationCheckpoint(final String configurationKey, final long createdTime, final List<DeauthorisationUserInfo> work)
+    {
+        ParameterCheck.mandatoryString("configurationKey", configurationKey);
+        ParameterCheck.mandatory("work", work);
+
+        this.configurationKey = configurationKey;
+        this.createdTime = createdTime;
+        this.userNames = new String[work.size()];
+        this.personRefs = new NodeRef[work.size()];
+        for (int idx = 0; idx < work.size(); idx++)
+        {
+            final DeauthorisationUserInfo user = work.get(idx);
+            this.userNames[idx] = user.getUserName();
+            this.personRefs[idx] = user.getPersonRef();
+        }
+        this.initialiseTransientState();
+    }
+
+    /**
+     * @return the key of the configuration of the run
+     */
+    public String getConfigurationKey()
+    {
+        return this.configurationKey;
+    }
+
+    /**
+     * @return the time at which the checkpoint was created
+     */
+    public long getCreatedTime()
+    {
+        return this.createdTime;
+    }
+
+    /**
+     * @return the total number of users to process in the run
+     */
+    public int size()
+    {
+        return this.userNames.length;
+    }
+
+    /**
+     * @return the number of users already processed
+     */
+    public synchronized int getProcessed()
+    {
+        return this.processed.cardinality();
+    }
+
+    /**
+     * @return the number of users already deauthorised
+     */
+    public synchronized int getDeauthorised()
+    {
+        return this.deauthorised;
+    }
+
+    /**
+     * @return {@code true} if all users have been processed, {@code false} otherwise
+     */
+    public synchronized boolean isCompleted()
+    {
+        return this.processed.cardinality() == this.userNames.length;
+    }
+
+    /**
+     * Retrieves the users that still need to be processed.
+     *
+     * @return the list of users which have not yet been processed
+     */
+    public synchronized DeauthorisationWorkSet getRemainingWork()
+    {
+        final DeauthorisationWorkSet.Builder remainingWork = new DeauthorisationWorkSet.Builder(
+                this.userNames.length - this.processed.cardinality());
+        for (int idx = this.processed.nextClearBit(0); idx < this.userNames.length; idx = this.processed.nextClearBit(idx + 1))
+        {
+            remainingWork.add(this.userNames[idx], this.personRefs[idx], null);
+        }
+        return remainingWork.build();
+    }
+
+    /**
+     * Records the processing of a committed batch of users.
+     *
+     * @param processedUsers
+     *            the users processed in the batch
+     * @param deauthorisedUsers
+     *            the number of users deauthorised in the batch
+     */
+    public synchronized void markProcessed(final List<DeauthorisationUserInfo> processedUsers, final int deauthorisedUsers)
+    {
+        ParameterCheck.mandatory("processedUsers", processedUsers);
+        for (final DeauthorisationUserInfo user : processedUsers)
+        {
+            final Integer idx = this.indexByUserName.get(user.getUserName());
+            if (idx != null)
+            {
+                this.processed.set(idx.intValue());
+            }
+        }
+        this.deauthorised += deauthorisedUsers;
+    }
+
+    /**
+     * Retrieves the current progress of the run for persisting it.
+     *
+     * @return a copy of the current progress
+     */
+    public synchronized Progress getProgress()
+    {
+        return new Progress(this.createdTime, (BitSet) this.processed.clone(), this.deauthorised);
+    }
+
+    /**
+     * Restores previously persisted progress of the run.
+     *
+     * @param progress
+     *            the progress to restore
+     * @return {@code true} if the progress was restored, {@code false} if it does not belong to this checkpoint
+     */
+    public synchronized boolean restoreProgress(final Progress progress)
+    {
+        ParameterCheck.mandatory("progress", progress);
+        final boolean matches = progress.createdTime == this.createdTime && progress.processed.length() <= this.userNames.length;
+        if (matches)
+        {
+            this.processed = (BitSet) progress.processed.clone();
+            this.deauthorised = progress.deauthorised;
+        }
+        return matches;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        // compact format - avoid serialising every single user as an object graph
+        out.writeInt(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            out.writeUTF(this.userNames[idx]);
+            out.writeUTF(this.personRefs[idx].toString());
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        final int size = in.readInt();
+        this.userNames = new String[size];
+        this.personRefs = new NodeRef[size];
+        for (int idx = 0; idx < size; idx++)
+        {
+            this.userNames[idx] = in.readUTF();
+            this.personRefs[idx] = new NodeRef(in.readUTF());
+        }
+        this.initialiseTransientState();
+    }
+
+    protected void initialiseTransientState()
+    {
+        this.indexByUserName = new HashMap<>(Math.max(16, (int) (this.userNames.length / 0.75f) + 1));
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            this.indexByUserName.put(this.userNames[idx], Integer.valueOf(idx));
+        }
+        this.processed = new BitSet(this.userNames.length);
+        this.deauthorised = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationCheckpoint [configurationKey=");
+        builder.append(this.configurationKey);
+        builder.append(", createdTime=");
+        builder.append(this.createdTime);
+        builder.append(", size=");
+        builder.append(this.userNames.length);
+        builder.append(", processed=");
+        builder.append(this.getProcessed());
+        builder.append(", deauthorised=");
+        builder.append(this.getDeauthorised());
+        builder.append("]");
+        return builder.toString();
+    }
+}
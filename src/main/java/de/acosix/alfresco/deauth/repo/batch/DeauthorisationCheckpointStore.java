@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationCheckpoint.Progress;
+
+/**
+ * Instances of this class persist a {@link DeauthorisationCheckpoint} via the {@link AttributeService} so that an interrupted run can be
+ * continued by a subsequent run. The list of users and the progress of the run are persisted as separate attributes, so that recording
+ * the progress after each batch does not require the list of users to be written again.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationCheckpointStore
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationCheckpointStore.class);
+
+    protected static final String ATTR_KEY_ROOT = "acosix-deauth";
+
+    protected static final String ATTR_KEY_CHECKPOINT = "checkpoint";
+
+    protected static final String ATTR_KEY_CHECKPOINT_PROGRESS = "checkpointProgress";
+
+    protected final AttributeService attributeService;
+
+    protected final String checkpointName;
+
+    public DeauthorisationCheckpointStore(final AttributeService attributeService, final String checkpointName)
+    {
+        ParameterCheck.mandatory("attributeService", attributeService);
+        ParameterCheck.mandatoryString("checkpointName", checkpointName);
+        this.attributeService = attributeService;
+        this.checkpointName = checkpointName;
+    }
+
+    /**
+     * Loads the persisted checkpoint if it was created for a specific configuration and is not outdated.
+     *
+     * @param configurationKey
+     *            the key of the configuration of the current run
+     * @param notCreatedBefore
+     *            the earliest creation time of a checkpoint that may still be continued
+     * @return the persisted checkpoint with its latest progress or {@code null} if no checkpoint has been persisted or the persisted
+     *         checkpoint is incompatible / outdated
+     */
+    public DeauthorisationCheckpoint load(final String configurationKey, final long notCreatedBefore)
+    {
+        final Serializable value = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT, this.checkpointName);
+
+        DeauthorisationCheckpoint checkpoint = null;
+        if (value instanceof DeauthorisationCheckpoint)
+        {
+            checkpoint = (DeauthorisationCheckpoint) value;
+            if (!checkpoint.getConfigurationKey().equals(configurationKey) || checkpoint.getCreatedTime() < notCreatedBefore)
+            {
+                LOGGER.info("Discarding persisted checkpoint {} as it is incompatible with configuration {} or has been created before {}",
+                        checkpoint, configurationKey, notCreatedBefore);
+                checkpoint = null;
+            }
+            else
+            {
+                final Serializable progress = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT_PROGRESS,
+                        this.checkpointName);
+                if (progress instanceof Progress && !checkpoint.restoreProgress((Progress) progress))
+                {
+                    LOGGER.warn("Ignoring persisted progress {} which does not match checkpoint {}", progress, checkpoint);
+                }
+                LOGGER.debug("Loaded persisted checkpoint {}", checkpoint);
+            }
+        }
+        else if (value != null)
+        {
+            LOGGER.warn("Discarding persisted checkpoint of unexpected type {}", value.getClass());
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Persists a checkpoint including its current progress, replacing any previously persisted checkpoint.
+     *
+     * @param checkpoint
+     *            the checkpoint to persist
+     */
+    public void save(final DeauthorisationCheckpoint checkpoint)
+    {
+        ParameterCheck.mandatory("checkpoint", checkpoint);
+        LOGGER.debug("Persisting checkpoint {}", checkpoint);
+        this.attributeService.setAttribute(checkpoint, ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT, this.checkpointName);
+        this.saveProgress(checkpoint);
+    }
+
+    /**
+     * Persists the current progress of a checkpoint.
+     *
+     * @param checkpoint
+     *            the checkpoint for which to persist the progress
+     */
+    public void saveProgress(final DeauthorisationCheckpoint checkpoint)
+    {
+        ParameterCheck.mandatory("checkpoint", checkpoint);
+        final Progress progress = checkpoint.getProgress();
+        LOGGER.trace("Persisting checkpoint progress {}", progress);
+        this.attributeService.setAttribute(progress, ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT_PROGRESS, this.checkpointName);
+    }
+
+    /**
+     * Removes any persisted checkpoint.
+     */
+    public void clear()
+    {
+        this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT, this.checkpointName);
+        this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_CHECKPOINT_PROGRESS, this.checkpointName);
+    }
+}
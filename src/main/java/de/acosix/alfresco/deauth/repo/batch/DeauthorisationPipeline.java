@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+
+/**
+ * Instances of this class connect the query and deauthorisation phases of a pipelined deauthorisation run via a bounded queue. Users
+ * confirmed to be inactive and authorised by the query are {@link #put(DeauthorisationUserInfo) put} onto the queue while a single
+ * deauthorisation lane concurrently drains it via the {@link #createWorkProvider() work provider} of this instance. When the queue is full,
+ * producers are blocked until the deauthorisation has caught up, so the users held in-memory are limited by the capacity of the queue
+ * instead of the number of inactive users.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationPipeline
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationPipeline.class);
+
+    // interval in which blocked producers / consumers re-check the state of the pipeline
+    protected static final int STATE_CHECK_INTERVAL_MILLIS = 1000;
+
+    protected final BlockingQueue<DeauthorisationUserInfo> queue;
+
+    protected final int capacity;
+
+    protected final AtomicInteger enqueued = new AtomicInteger(0);
+
+    protected volatile boolean completed;
+
+    protected volatile boolean closed;
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    public DeauthorisationPipeline(final int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be a positive integer");
+        }
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        ParameterCheck.mandatory("metricsRegistry", metricsRegistry);
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Puts a user onto the queue of this pipeline, blocking the current thread while the queue is full.
+     *
+     * @param user
+     *            the user to deauthorise
+     */
+    public void put(final DeauthorisationUserInfo user)
+    {
+        ParameterCheck.mandatory("user", user);
+        if (this.completed)
+        {
+            throw new IllegalStateException("Pipeline has already been completed");
+        }
+
+        try
+        {
+            final long start = System.nanoTime();
+            boolean added = this.queue.offer(user);
+            while (!added)
+            {
+                if (this.closed)
+                {
+                    throw new AlfrescoRuntimeException("Deauthorisation pipeline has been closed by its consumer");
+                }
+                added = this.queue.offer(user, STATE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            this.metricsRegistry.recordDuration(DeauthorisationMetrics.PIPELINE_PRODUCER_WAIT, System.nanoTime() - start);
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting to put user onto deauthorisation pipeline", iex);
+        }
+
+        this.enqueued.incrementAndGet();
+        this.metricsRegistry.increment(DeauthorisationMetrics.PIPELINE_USERS_ENQUEUED, 1);
+        this.metricsRegistry.setGauge(DeauthorisationMetrics.PIPELINE_QUEUE_DEPTH, this.queue.size());
+    }
+
+    /**
+     * Puts users onto the queue of this pipeline, blocking the current thread while the queue is full.
+     *
+     * @param users
+     *            the users to deauthorise
+     */
+    public void putAll(final Collection<? extends DeauthorisationUserInfo> users)
+    {
+        ParameterCheck.mandatory("users", users);
+        for (final DeauthorisationUserInfo user : users)
+        {
+            this.put(user);
+        }
+    }
+
+    /**
+     * Marks the end of input to this pipeline - once the queue has been drained, the {@link #createWorkProvider() work provider} will
+     * report the end of work.
+     */
+    public void complete()
+    {
+        this.completed = true;
+    }
+
+    /**
+     * Marks this pipeline as closed by its consumer, e.g. due to a failure of the deauthorisation lane, so that producers blocked on a full
+     * queue fail instead of waiting indefinitely.
+     */
+    public void close()
+    {
+        this.closed = true;
+    }
+
+    /**
+     * @return the total number of users put onto this pipeline
+     */
+    public int getEnqueued()
+    {
+        return this.enqueued.get();
+    }
+
+    /**
+     * Creates the provider draining the queue of this pipeline. Only a single provider should be created and used by a single-threaded
+     * batch processor.
+     *
+     * @return the work provider
+     */
+    public BatchProcessWorkProvider<DeauthorisationUserInfo> createWorkProvider()
+    {
+        return new BatchProcessWorkProvider<DeauthorisationUserInfo>()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public int getTotalEstimatedWorkSize()
+            {
+                // total is unknown while the query is still running
+                return DeauthorisationPipeline.this.completed ? DeauthorisationPipeline.this.enqueued.get() : -1;
+            }
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public Collection<DeauthorisationUserInfo> getNextWork()
+            {
+                return DeauthorisationPipeline.this.drain();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationPipeline [capacity=");
+        builder.append(this.capacity);
+        builder.append(", queued=");
+        builder.append(this.queue.size());
+        builder.append(", enqueued=");
+        builder.append(this.enqueued.get());
+        builder.append(", completed=");
+        builder.append(this.completed);
+        builder.append(", closed=");
+        builder.append(this.closed);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected Collection<DeauthorisationUserInfo> drain()
+    {
+        try
+        {
+            DeauthorisationUserInfo first = null;
+            boolean wasCompleted = false;
+            while (first == null && !wasCompleted)
+            {
+                // completion is read before polling so that no user put before completion can be missed
+                wasCompleted = this.completed;
+                first = wasCompleted ? this.queue.poll() : this.queue.poll(STATE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            final List<DeauthorisationUserInfo> work;
+            if (first != null)
+            {
+                work = new ArrayList<>();
+                work.add(first);
+                this.queue.drainTo(work);
+                this.metricsRegistry.setGauge(DeauthorisationMetrics.PIPELINE_QUEUE_DEPTH, this.queue.size());
+                LOGGER.trace("Drained {} users from deauthorisation pipeline", work.size());
+            }
+            else
+            {
+                LOGGER.debug("Deauthorisation pipeline has been completed with {} users in total", this.enqueued.get());
+                work = Collections.emptyList();
+            }
+            return work;
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for users on deauthorisation pipeline", iex);
+        }
+    }
+}
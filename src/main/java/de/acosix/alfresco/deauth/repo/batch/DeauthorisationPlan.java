@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the plan of a deauthorisation determined by a dry run, consisting of the users that were candidates for
+ * deauthorisation and the last activity found for them. A plan can be applied later on without repeating the query phase, as long as the
+ * users have not been active since the plan was created.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationPlan implements Serializable
+{
+
+    private static final long serialVersionUID = -2874163504927315086L;
+
+    protected final String planId;
+
+    protected final long createdTime;
+
+    protected final long fromTime;
+
+    protected final String description;
+
+    protected transient String[] userNames;
+
+    protected transient NodeRef[] personRefs;
+
+    protected transient long[] lastActivity;
+
+    public DeauthorisationPlan(final String planId, final long createdTime, final long fromTime, final String description,
+            final List<DeauthorisationUserInfo> work)
+    {
+        ParameterCheck.mandatoryString("planId", planId);
+        ParameterCheck.mandatory("work", work);
+
+        this.planId = planId;
+        this.createdTime = createdTime;
+        this.fromTime = fromTime;
+        this.description = description;
+        this.userNames = new String[work.size()];
+        this.personRefs = new NodeRef[work.size()];
+        this.lastActivity = new long[work.size()];
+        for (int idx = 0; idx < work.size(); idx++)
+        {
+            final DeauthorisationUserInfo user = work.get(idx);
+            this.userNames[idx] = user.getUserName();
+            this.personRefs[idx] = user.getPersonRef();
+            final Long lastActivity = user.getLastActivity();
+            this.lastActivity[idx] = lastActivity != null ? lastActivity.longValue() : DeauthorisationWorkSet.NO_ACTIVITY;
+        }
+    }
+
+    /**
+     * @return the ID of the plan
+     */
+    public String getPlanId()
+    {
+        return this.planId;
+    }
+
+    /**
+     * @return the time at which the plan was created
+     */
+    public long getCreatedTime()
+    {
+        return this.createdTime;
+    }
+
+    /**
+     * @return the earliest point in time of user activity that was considered when determining the users of the plan
+     */
+    public long getFromTime()
+    {
+        return this.fromTime;
+    }
+
+    /**
+     * @return the description of the parameters of the run which created the plan
+     */
+    public String getDescription()
+    {
+        return this.description;
+    }
+
+    /**
+     * @return the number of users in the plan
+     */
+    public int size()
+    {
+        return this.userNames.length;
+    }
+
+    /**
+     * Retrieves the users of this plan as work for a {@link PersonDeauthorisationWorker}.
+     *
+     * @return the users to deauthorise
+     */
+    public DeauthorisationWorkSet getWork()
+    {
+        final DeauthorisationWorkSet.Builder work = new DeauthorisationWorkSet.Builder(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            final long lastActivity = this.lastActivity[idx];
+            work.add(this.userNames[idx], this.personRefs[idx],
+                    lastActivity != DeauthorisationWorkSet.NO_ACTIVITY ? Long.valueOf(lastActivity) : null);
+        }
+        return work.build();
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        // compact format - avoid serialising every single user as an object graph
+        out.writeInt(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            out.writeUTF(this.userNames[idx]);
+            out.writeUTF(this.personRefs[idx].toString());
+            out.writeLong(this.lastActivity[idx]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        final int size = in.readInt();
+        this.userNames = new String[size];
+        this.personRefs = new NodeRef[size];
+        this.lastActivity = new long[size];
+        for (int idx = 0; idx < size; idx++)
+        {
+            this.userNames[idx] = in.readUTF();
+            this.personRefs[idx] = new NodeRef(in.readUTF());
+            this.lastActivity[idx] = in.readLong();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationPlan [planId=");
+        builder.append(this.planId);
+        builder.append(", createdTime=");
+        builder.append(this.createdTime);
+        builder.append(", fromTime=");
+        builder.append(this.fromTime);
+        builder.append(", description=");
+        builder.append(this.description);
+        builder.append(", size=");
+        builder.append(this.userNames.length);
+        builder.append("]");
+        return builder.toString();
+    }
+}
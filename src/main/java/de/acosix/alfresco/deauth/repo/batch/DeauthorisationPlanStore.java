@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class persist {@link DeauthorisationPlan deauthorisation plans} via the {@link AttributeService}. The creation time of
+ * each plan is persisted as a separate attribute, so that expired plans can be determined without loading any of the lists of users.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationPlanStore
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationPlanStore.class);
+
+    protected static final String ATTR_KEY_ROOT = "acosix-deauth";
+
+    protected static final String ATTR_KEY_PLAN = "plan";
+
+    protected static final String ATTR_KEY_PLAN_CREATED = "planCreated";
+
+    protected final AttributeService attributeService;
+
+    public DeauthorisationPlanStore(final AttributeService attributeService)
+    {
+        ParameterCheck.mandatory("attributeService", attributeService);
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * Loads a persisted plan if it is not outdated.
+     *
+     * @param planId
+     *            the ID of the plan
+     * @param notCreatedBefore
+     *            the earliest creation time of a plan that may still be applied
+     * @return the persisted plan or {@code null} if no such plan has been persisted or the plan is outdated
+     */
+    public DeauthorisationPlan load(final String planId, final long notCreatedBefore)
+    {
+        ParameterCheck.mandatoryString("planId", planId);
+        final Serializable value = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_PLAN, planId);
+
+        DeauthorisationPlan plan = null;
+        if (value instanceof DeauthorisationPlan)
+        {
+            plan = (DeauthorisationPlan) value;
+            if (plan.getCreatedTime() < notCreatedBefore)
+            {
+                LOGGER.info("Ignoring persisted plan {} as it has been created before {}", plan, notCreatedBefore);
+                plan = null;
+            }
+            else
+            {
+                LOGGER.debug("Loaded persisted plan {}", plan);
+            }
+        }
+        else if (value != null)
+        {
+            LOGGER.warn("Ignoring persisted plan {} of unexpected type {}", planId, value.getClass());
+        }
+
+        return plan;
+    }
+
+    /**
+     * Persists a plan.
+     *
+     * @param plan
+     *            the plan to persist
+     */
+    public void save(final DeauthorisationPlan plan)
+    {
+        ParameterCheck.mandatory("plan", plan);
+        LOGGER.debug("Persisting plan {}", plan);
+        this.attributeService.setAttribute(plan, ATTR_KEY_ROOT, ATTR_KEY_PLAN, plan.getPlanId());
+        this.attributeService.setAttribute(Long.valueOf(plan.getCreatedTime()), ATTR_KEY_ROOT, ATTR_KEY_PLAN_CREATED, plan.getPlanId());
+    }
+
+    /**
+     * Removes a persisted plan.
+     *
+     * @param planId
+     *            the ID of the plan to remove
+     */
+    public void remove(final String planId)
+    {
+        ParameterCheck.mandatoryString("planId", planId);
+        LOGGER.debug("Removing persisted plan {}", planId);
+        this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_PLAN, planId);
+        this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_PLAN_CREATED, planId);
+    }
+
+    /**
+     * Removes all persisted plans which have become outdated.
+     *
+     * @param notCreatedBefore
+     *            the earliest creation time of a plan that may still be applied
+     * @return the number of removed plans
+     */
+    public int removeExpired(final long notCreatedBefore)
+    {
+        final List<String> expiredPlanIds = new ArrayList<>();
+        this.attributeService.getAttributes((id, value, keys) -> {
+            if (value instanceof Long && ((Long) value).longValue() < notCreatedBefore && keys.length == 3 && keys[2] instanceof String)
+            {
+                expiredPlanIds.add((String) keys[2]);
+            }
+            return true;
+        }, ATTR_KEY_ROOT, ATTR_KEY_PLAN_CREATED);
+
+        expiredPlanIds.forEach(this::remove);
+        return expiredPlanIds.size();
+    }
+}
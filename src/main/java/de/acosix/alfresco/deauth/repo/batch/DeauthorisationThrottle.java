@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class throttle the processing of users in either phase of a deauthorisation run. Processing is limited to a maximum
+ * rate of users per second and optionally paused while a {@link LoadMonitor} considers the repository to be overloaded. As waiting within
+ * a transaction would hold on to a database connection, the throttle is meant to be applied between batches, accounting for the users
+ * processed in the preceding batch.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationThrottle
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationThrottle.class);
+
+    protected static final int DEFAULT_PAUSE_CHECK_INTERVAL_MILLIS = 5000;
+
+    protected final int maxUsersPerSecond;
+
+    protected final LoadMonitor loadMonitor;
+
+    protected int pauseCheckIntervalMillis = DEFAULT_PAUSE_CHECK_INTERVAL_MILLIS;
+
+    protected long nextPermitNanos = System.nanoTime();
+
+    public DeauthorisationThrottle(final int maxUsersPerSecond, final LoadMonitor loadMonitor)
+    {
+        if (maxUsersPerSecond < 0)
+        {
+            throw new IllegalArgumentException("Maximum number of users per second must not be negative");
+        }
+        this.maxUsersPerSecond = maxUsersPerSecond;
+        this.loadMonitor = loadMonitor;
+    }
+
+    /**
+     * @param pauseCheckIntervalMillis
+     *            the interval in which to check whether the load of the repository allows a paused operation to resume
+     */
+    public void setPauseCheckIntervalMillis(final int pauseCheckIntervalMillis)
+    {
+        if (pauseCheckIntervalMillis <= 0)
+        {
+            throw new IllegalArgumentException("Pause check interval must be a positive integer");
+        }
+        this.pauseCheckIntervalMillis = pauseCheckIntervalMillis;
+    }
+
+    /**
+     * @return {@code true} if this instance will actually throttle processing, {@code false} if it is configured without any limits
+     */
+    public boolean isActive()
+    {
+        return this.maxUsersPerSecond > 0 || this.loadMonitor != null;
+    }
+
+    /**
+     * Accounts for a number of processed users, blocking the current thread as long as required to honour the maximum rate of users per
+     * second and while the repository is overloaded.
+     *
+     * @param users
+     *            the number of users processed since the last call
+     */
+    public void acquire(final int users)
+    {
+        try
+        {
+            if (this.maxUsersPerSecond > 0 && users > 0)
+            {
+                final long waitNanos;
+                synchronized (this)
+                {
+                    final long now = System.nanoTime();
+                    final long intervalNanos = TimeUnit.SECONDS.toNanos(users) / this.maxUsersPerSecond;
+                    // time not used in the past is not accumulated to avoid bursts after idle periods
+                    final long permitNanos = Math.max(now, this.nextPermitNanos);
+                    // users of the preceding batch are accounted for after the fact by reserving the time slot following any previous ones
+                    this.nextPermitNanos = permitNanos + intervalNanos;
+                    waitNanos = permitNanos - now;
+                }
+                if (waitNanos > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+
+            if (this.loadMonitor != null && this.loadMonitor.isOverloaded(false))
+            {
+                LOGGER.info("Pausing deauthorisation processing as the repository is currently overloaded");
+                final long pauseStart = System.currentTimeMillis();
+                do
+                {
+                    Thread.sleep(this.pauseCheckIntervalMillis);
+                }
+                while (this.loadMonitor.isOverloaded(true));
+                LOGGER.info("Resuming deauthorisation processing after a pause of {} ms", System.currentTimeMillis() - pauseStart);
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while throttling deauthorisation processing", iex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationThrottle [maxUsersPerSecond=");
+        builder.append(this.maxUsersPerSecond);
+        builder.append(", loadMonitor=");
+        builder.append(this.loadMonitor);
+        builder.append("]");
+        return builder.toString();
+    }
+}
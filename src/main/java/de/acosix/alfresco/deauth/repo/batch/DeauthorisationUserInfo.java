@@ -15,6 +15,7 @@
  */
 package de.acosix.alfresco.deauth.repo.batch;
 
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.util.ParameterCheck;
 
 import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
@@ -25,16 +26,70 @@ import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
 public class DeauthorisationUserInfo
 {
 
+    protected final String userName;
+
+    protected final NodeRef personRef;
+
+    protected final Long lastActivity;
+
     protected final AuditUserInfo auditUserInfo;
 
     protected boolean deauthorised;
 
+    /**
+     * Creates a new instance for subclasses which manage the state of the user externally and override all accessors.
+     */
+    protected DeauthorisationUserInfo()
+    {
+        this.userName = null;
+        this.personRef = null;
+        this.lastActivity = null;
+        this.auditUserInfo = null;
+    }
+
     public DeauthorisationUserInfo(final AuditUserInfo auditUserInfo)
     {
         ParameterCheck.mandatory("auditUserInfo", auditUserInfo);
+        this.userName = auditUserInfo.getUserName();
+        this.personRef = auditUserInfo.getPersonRef();
+        this.lastActivity = null;
         this.auditUserInfo = auditUserInfo;
     }
 
+    public DeauthorisationUserInfo(final String userName, final NodeRef personRef, final Long lastActivity)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        ParameterCheck.mandatory("personRef", personRef);
+        this.userName = userName;
+        this.personRef = personRef;
+        this.lastActivity = lastActivity;
+        this.auditUserInfo = null;
+    }
+
+    /**
+     * @return the userName
+     */
+    public String getUserName()
+    {
+        return this.userName;
+    }
+
+    /**
+     * @return the personRef
+     */
+    public NodeRef getPersonRef()
+    {
+        return this.personRef;
+    }
+
+    /**
+     * @return the timestamp of the last known activity of the user or {@code null} if no activity is known / was not determined
+     */
+    public Long getLastActivity()
+    {
+        return this.lastActivity;
+    }
+
     /**
      * @return the deauthorised
      */
@@ -53,7 +108,7 @@ public class DeauthorisationUserInfo
     }
 
     /**
-     * @return the auditUserInfo
+     * @return the auditUserInfo or {@code null} if this instance was not created from the result of a {@code PersonAuditWorker}
      */
     public AuditUserInfo getAuditUserInfo()
     {
@@ -67,7 +122,16 @@ public class DeauthorisationUserInfo
     public String toString()
     {
         final StringBuilder builder = new StringBuilder();
-        builder.append("DeauthorisationUserInfo [");
+        builder.append("DeauthorisationUserInfo [userName=");
+        builder.append(this.getUserName());
+        builder.append(", ");
+        final Long lastActivity = this.getLastActivity();
+        if (lastActivity != null)
+        {
+            builder.append("lastActivity=");
+            builder.append(lastActivity);
+            builder.append(", ");
+        }
         if (this.auditUserInfo != null)
         {
             builder.append("auditUserInfo=");
@@ -75,7 +139,7 @@ public class DeauthorisationUserInfo
             builder.append(", ");
         }
         builder.append("deauthorised=");
-        builder.append(this.deauthorised);
+        builder.append(this.isDeauthorised());
         builder.append("]");
         return builder.toString();
     }
@@ -0,0 +1,608 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.TempFileProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
+import de.acosix.alfresco.audit.repo.batch.AuditUserInfo.AuthorisedState;
+
+/**
+ * Instances of this class hold the users to deauthorise in a temporary file instead of the Java heap, so that the memory required for
+ * the users of a run remains fixed regardless of the number of people in the system. Users are written via a {@link Writer} in runs of a
+ * limited size, each run being sorted in-memory as a {@link DeauthorisationWorkSet} before being written, and the sorted runs are merged
+ * into the final file sorted by user name. Users are stored in a compact binary record format, with person nodes using the canonical
+ * UUID format stored as two primitive longs, and read back sequentially via a {@link #createWorkProvider(int) work provider}.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationWorkFile
+{
+
+    /**
+     * Instances of this class write users to a work file.
+     *
+     * @author Axel Faust
+     */
+    public static class Writer
+    {
+
+        protected final int runSize;
+
+        protected final List<StoreRef> stores = new ArrayList<>();
+
+        protected final Map<StoreRef, Integer> storeIndices = new HashMap<>();
+
+        protected final List<File> runFiles = new ArrayList<>();
+
+        protected DeauthorisationWorkSet.Builder run;
+
+        protected int runUsers;
+
+        protected int size;
+
+        protected int pendingRuns;
+
+        protected boolean finished;
+
+        protected boolean discarded;
+
+        public Writer(final int runSize)
+        {
+            if (runSize <= 0)
+            {
+                throw new IllegalArgumentException("Run size must be a positive integer");
+            }
+            this.runSize = runSize;
+            this.run = new DeauthorisationWorkSet.Builder(Math.min(runSize, 1024));
+        }
+
+        /**
+         * Adds a user to the work file. When the current run has reached its size, it is swapped for a new run while holding the lock of
+         * this writer, and then sorted and written to its file outside of that lock, so that concurrent callers only block each other for
+         * the duration of adding a user to the in-memory run.
+         *
+         * @param user
+         *            the user to add
+         * @return this writer
+         */
+        public Writer add(final DeauthorisationUserInfo user)
+        {
+            ParameterCheck.mandatory("user", user);
+
+            DeauthorisationWorkSet.Builder fullRun = null;
+            synchronized (this)
+            {
+                if (this.finished)
+                {
+                    throw new IllegalStateException("Work file has already been finished");
+                }
+
+                this.run.add(user);
+                this.size++;
+                if (++this.runUsers >= this.runSize)
+                {
+                    fullRun = this.run;
+                    this.run = new DeauthorisationWorkSet.Builder(Math.min(this.runSize, 1024));
+                    this.runUsers = 0;
+                    this.pendingRuns++;
+                }
+            }
+
+            if (fullRun != null)
+            {
+                File runFile = null;
+                try
+                {
+                    runFile = this.writeRun(fullRun);
+                }
+                finally
+                {
+                    this.completeRun(runFile);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds all users to the work file.
+         *
+         * @param users
+         *            the users to add
+         * @return this writer
+         */
+        public Writer addAll(final Collection<? extends DeauthorisationUserInfo> users)
+        {
+            ParameterCheck.mandatory("users", users);
+            for (final DeauthorisationUserInfo user : users)
+            {
+                this.add(user);
+            }
+            return this;
+        }
+
+        /**
+         * Adds all currently authorised users from the result of a {@code PersonAuditWorker} to the work file, skipping any users that are
+         * not / no longer authorised.
+         *
+         * @param auditUsers
+         *            the users to add
+         * @return this writer
+         */
+        public Writer addAllAuthorised(final Collection<AuditUserInfo> auditUsers)
+        {
+            ParameterCheck.mandatory("auditUsers", auditUsers);
+            for (final AuditUserInfo user : auditUsers)
+            {
+                if (user.getAuthorisedState() == AuthorisedState.AUTHORISED)
+                {
+                    this.add(new DeauthorisationUserInfo(user.getUserName(), user.getPersonRef(), null));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Finishes writing users, merging all sorted runs into the final work file. A writer can only be used to write a single work file.
+         *
+         * @return the work file
+         */
+        public synchronized DeauthorisationWorkFile finish()
+        {
+            if (this.finished)
+            {
+                throw new IllegalStateException("Work file has already been finished");
+            }
+            this.finished = true;
+            this.awaitPendingRuns();
+
+            if (this.runUsers > 0 || this.runFiles.isEmpty())
+            {
+                this.runFiles.add(this.writeRun(this.run));
+            }
+            this.run = null;
+
+            final File file;
+            if (this.runFiles.size() == 1)
+            {
+                file = this.runFiles.get(0);
+            }
+            else
+            {
+                file = this.mergeRuns();
+            }
+            this.runFiles.clear();
+
+            LOGGER.debug("Finished work file {} with {} users", file, this.size);
+            return new DeauthorisationWorkFile(file, this.size, this.stores);
+        }
+
+        /**
+         * Discards all data written so far, e.g. after the query for users has failed.
+         */
+        public synchronized void discard()
+        {
+            this.finished = true;
+            this.discarded = true;
+            this.run = null;
+            this.runFiles.forEach(DeauthorisationWorkFile::delete);
+            this.runFiles.clear();
+        }
+
+        protected File writeRun(final DeauthorisationWorkSet.Builder run)
+        {
+            final DeauthorisationWorkSet runSet = run.build();
+
+            final File runFile = TempFileProvider.createTempFile("acosix-deauth-work-", ".run");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile.toPath()),
+                    BUFFER_SIZE)))
+            {
+                for (int idx = 0, size = runSet.size(); idx < size; idx++)
+                {
+                    this.writeRecord(out, runSet.getUserName(idx), runSet.getPersonRef(idx), runSet.getLastActivity(idx));
+                }
+            }
+            catch (final IOException ioex)
+            {
+                delete(runFile);
+                throw new AlfrescoRuntimeException("Failed to write users to work file", ioex);
+            }
+            LOGGER.trace("Wrote sorted run of {} users to {}", runSet.size(), runFile);
+            return runFile;
+        }
+
+        protected synchronized void completeRun(final File runFile)
+        {
+            this.pendingRuns--;
+            if (runFile != null)
+            {
+                if (this.discarded)
+                {
+                    delete(runFile);
+                }
+                else
+                {
+                    this.runFiles.add(runFile);
+                }
+            }
+            this.notifyAll();
+        }
+
+        protected synchronized void awaitPendingRuns()
+        {
+            boolean interrupted = false;
+            while (this.pendingRuns > 0)
+            {
+                try
+                {
+                    this.wait();
+                }
+                catch (final InterruptedException iex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected File mergeRuns()
+        {
+            final File file = TempFileProvider.createTempFile("acosix-deauth-work-", ".bin");
+            final List<RunReader> openedReaders = new ArrayList<>(this.runFiles.size());
+            final PriorityQueue<RunReader> readers = new PriorityQueue<>(this.runFiles.size(),
+                    Comparator.comparing(reader -> reader.current.getUserName()));
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()),
+                    BUFFER_SIZE)))
+            {
+                for (final File runFile : this.runFiles)
+                {
+                    final RunReader reader = new RunReader(runFile, this.stores);
+                    openedReaders.add(reader);
+                    if (reader.advance())
+                    {
+                        readers.add(reader);
+                    }
+                }
+
+                while (!readers.isEmpty())
+                {
+                    final RunReader reader = readers.poll();
+                    this.writeRecord(out, reader.current.getUserName(), reader.current.getPersonRef(),
+                            reader.current.getLastActivity());
+                    if (reader.advance())
+                    {
+                        readers.add(reader);
+                    }
+                }
+            }
+            catch (final IOException ioex)
+            {
+                delete(file);
+                throw new AlfrescoRuntimeException("Failed to merge sorted runs of work file", ioex);
+            }
+            finally
+            {
+                // readers are only re-queued while they have records, so exhausted ones must be closed via the list of all opened readers
+                openedReaders.forEach(RunReader::close);
+                this.runFiles.forEach(DeauthorisationWorkFile::delete);
+            }
+            LOGGER.trace("Merged {} sorted runs into {}", this.runFiles.size(), file);
+            return file;
+        }
+
+        protected void writeRecord(final DataOutputStream out, final String userName, final NodeRef personRef, final Long lastActivity)
+                throws IOException
+        {
+            out.writeUTF(userName);
+
+            out.writeShort(this.getStoreIndex(personRef.getStoreRef()));
+
+            final String id = personRef.getId();
+            final UUID uuid = DeauthorisationWorkSet.toUUID(id);
+            if (uuid != null)
+            {
+                out.writeBoolean(true);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+            }
+            else
+            {
+                out.writeBoolean(false);
+                out.writeUTF(id);
+            }
+
+            out.writeLong(lastActivity != null ? lastActivity.longValue() : DeauthorisationWorkSet.NO_ACTIVITY);
+        }
+
+        protected synchronized int getStoreIndex(final StoreRef store)
+        {
+            Integer storeIndex = this.storeIndices.get(store);
+            if (storeIndex == null)
+            {
+                storeIndex = Integer.valueOf(this.stores.size());
+                this.stores.add(store);
+                this.storeIndices.put(store, storeIndex);
+            }
+            return storeIndex.intValue();
+        }
+    }
+
+    /**
+     * Instances of this class sequentially read the records of a single file.
+     *
+     * @author Axel Faust
+     */
+    protected static class RunReader implements Closeable
+    {
+
+        protected final DataInputStream in;
+
+        protected final List<StoreRef> stores;
+
+        protected DeauthorisationUserInfo current;
+
+        protected RunReader(final File file, final List<StoreRef> stores) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE));
+            this.stores = stores;
+        }
+
+        protected boolean advance() throws IOException
+        {
+            try
+            {
+                final String userName = this.in.readUTF();
+                final StoreRef store = this.stores.get(this.in.readShort());
+                final String id = this.in.readBoolean() ? new UUID(this.in.readLong(), this.in.readLong()).toString() : this.in.readUTF();
+                final long lastActivity = this.in.readLong();
+                this.current = new DeauthorisationUserInfo(userName, new NodeRef(store, id),
+                        lastActivity != DeauthorisationWorkSet.NO_ACTIVITY ? Long.valueOf(lastActivity) : null);
+            }
+            catch (final EOFException eofex)
+            {
+                this.current = null;
+            }
+            return this.current != null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+        {
+            try
+            {
+                this.in.close();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.debug("Failed to close reader of work file", ioex);
+            }
+        }
+    }
+
+    /**
+     * Instances of this class provide the users of a work file in chunks to a {@link org.alfresco.repo.batch.BatchProcessor batch
+     * processor}, so that only the users of the batches currently being processed are held in-memory.
+     *
+     * @author Axel Faust
+     */
+    protected class WorkFileProvider implements BatchProcessWorkProvider<DeauthorisationUserInfo>
+    {
+
+        protected final int chunkSize;
+
+        protected RunReader reader;
+
+        protected boolean exhausted;
+
+        protected WorkFileProvider(final int chunkSize)
+        {
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getTotalEstimatedWorkSize()
+        {
+            return DeauthorisationWorkFile.this.size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized Collection<DeauthorisationUserInfo> getNextWork()
+        {
+            List<DeauthorisationUserInfo> work = Collections.emptyList();
+            if (!this.exhausted)
+            {
+                try
+                {
+                    if (this.reader == null)
+                    {
+                        this.reader = DeauthorisationWorkFile.this.openReader();
+                    }
+
+                    work = new ArrayList<>(this.chunkSize);
+                    while (work.size() < this.chunkSize && this.reader.advance())
+                    {
+                        work.add(this.reader.current);
+                    }
+                }
+                catch (final IOException ioex)
+                {
+                    throw new AlfrescoRuntimeException("Failed to read users from work file", ioex);
+                }
+
+                if (work.size() < this.chunkSize)
+                {
+                    this.exhausted = true;
+                    this.close();
+                }
+            }
+            return work;
+        }
+
+        protected synchronized void close()
+        {
+            if (this.reader != null)
+            {
+                DeauthorisationWorkFile.this.closeReader(this.reader);
+                this.reader = null;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationWorkFile.class);
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final File file;
+
+    protected final int size;
+
+    protected final List<StoreRef> stores;
+
+    protected final List<RunReader> openReaders = new ArrayList<>();
+
+    protected boolean discarded;
+
+    protected DeauthorisationWorkFile(final File file, final int size, final List<StoreRef> stores)
+    {
+        this.file = file;
+        this.size = size;
+        this.stores = Collections.unmodifiableList(new ArrayList<>(stores));
+    }
+
+    /**
+     * @return the number of users in this work file
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return {@code true} if this work file does not contain any users, {@code false} otherwise
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     * Creates a work provider sequentially reading the users of this work file in order of their user names.
+     *
+     * @param chunkSize
+     *            the number of users to read for each request of work
+     * @return the work provider
+     */
+    public BatchProcessWorkProvider<DeauthorisationUserInfo> createWorkProvider(final int chunkSize)
+    {
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be a positive integer");
+        }
+        return new WorkFileProvider(chunkSize);
+    }
+
+    /**
+     * Discards this work file, closing any active readers and removing the temporary file.
+     */
+    public synchronized void discard()
+    {
+        this.discarded = true;
+        this.openReaders.forEach(RunReader::close);
+        this.openReaders.clear();
+        delete(this.file);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationWorkFile [file=");
+        builder.append(this.file);
+        builder.append(", size=");
+        builder.append(this.size);
+        builder.append(", discarded=");
+        builder.append(this.discarded);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected synchronized RunReader openReader() throws IOException
+    {
+        if (this.discarded)
+        {
+            throw new IllegalStateException("Work file has already been discarded");
+        }
+        final RunReader reader = new RunReader(this.file, this.stores);
+        this.openReaders.add(reader);
+        return reader;
+    }
+
+    protected synchronized void closeReader(final RunReader reader)
+    {
+        reader.close();
+        this.openReaders.remove(reader);
+    }
+
+    protected static void delete(final File file)
+    {
+        if (file.exists() && !file.delete())
+        {
+            LOGGER.debug("Failed to delete temporary work file {}", file);
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.UUID;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
+import de.acosix.alfresco.audit.repo.batch.AuditUserInfo.AuthorisedState;
+
+/**
+ * Instances of this class hold the users to be processed in the deauthorisation phase in a compact, columnar form. Instead of retaining
+ * one object graph per user, user names are kept as the string instances provided by the caller (deliberately not interned, as that would
+ * only shift their retention to the JVM string table), UUID-based person node IDs as pairs of primitive longs, timestamps of the last
+ * activity as primitive longs and the deauthorised flags in a bit set. The entries of this list are lightweight views which
+ * are created on access and read / write the columns of the work set, so that both the {@link PersonDeauthorisationWorker worker} and the
+ * report can operate on them like on any other {@link DeauthorisationUserInfo}.
+ *
+ * Work sets are sorted by user name once, in place, when being {@link Builder#build() built}, and are immutable except for the
+ * deauthorised flags.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationWorkSet extends AbstractList<DeauthorisationUserInfo> implements RandomAccess
+{
+
+    /**
+     * The marker value for users without any known activity.
+     */
+    public static final long NO_ACTIVITY = Long.MIN_VALUE;
+
+    // rough size of a user name string in addition to its characters
+    private static final int USER_NAME_OVERHEAD_BYTES = 56;
+
+    /**
+     * Instances of this class collect users for a work set. The collection of users is thread-safe so that a single builder may be shared
+     * by the parallel workers of a query.
+     *
+     * @author Axel Faust
+     */
+    public static class Builder
+    {
+
+        protected String[] userNames;
+
+        protected StoreRef[] personStores;
+
+        protected long[] personIdBits;
+
+        protected Map<Integer, String> irregularPersonIds = new HashMap<>();
+
+        protected long[] lastActivity;
+
+        protected int size;
+
+        protected final Map<StoreRef, StoreRef> canonicalStores = new HashMap<>();
+
+        protected boolean built;
+
+        public Builder()
+        {
+            this(16);
+        }
+
+        public Builder(final int expectedSize)
+        {
+            final int capacity = Math.max(expectedSize, 1);
+            this.userNames = new String[capacity];
+            this.personStores = new StoreRef[capacity];
+            this.personIdBits = new long[capacity * 2];
+            this.lastActivity = new long[capacity];
+        }
+
+        /**
+         * Adds a user to the work set.
+         *
+         * @param userName
+         *            the name of the user
+         * @param personRef
+         *            the person node of the user
+         * @param lastActivity
+         *            the timestamp of the last known activity of the user or {@code null} if no activity is known / was not determined
+         * @return this builder
+         */
+        public synchronized Builder add(final String userName, final NodeRef personRef, final Long lastActivity)
+        {
+            ParameterCheck.mandatoryString("userName", userName);
+            ParameterCheck.mandatory("personRef", personRef);
+            if (this.built)
+            {
+                throw new IllegalStateException("Work set has already been built");
+            }
+
+            if (this.size == this.userNames.length)
+            {
+                this.grow();
+            }
+
+            final int idx = this.size++;
+            this.userNames[idx] = userName;
+            this.personStores[idx] = this.canonicalStores.computeIfAbsent(personRef.getStoreRef(), storeRef -> storeRef);
+
+            final String id = personRef.getId();
+            final UUID uuid = toUUID(id);
+            if (uuid != null)
+            {
+                this.personIdBits[idx * 2] = uuid.getMostSignificantBits();
+                this.personIdBits[idx * 2 + 1] = uuid.getLeastSignificantBits();
+            }
+            else
+            {
+                this.irregularPersonIds.put(Integer.valueOf(idx), id);
+            }
+            this.lastActivity[idx] = lastActivity != null ? lastActivity.longValue() : NO_ACTIVITY;
+            return this;
+        }
+
+        /**
+         * Adds a user to the work set.
+         *
+         * @param user
+         *            the user to add
+         * @return this builder
+         */
+        public Builder add(final DeauthorisationUserInfo user)
+        {
+            ParameterCheck.mandatory("user", user);
+            return this.add(user.getUserName(), user.getPersonRef(), user.getLastActivity());
+        }
+
+        /**
+         * Adds all users to the work set.
+         *
+         * @param users
+         *            the users to add
+         * @return this builder
+         */
+        public Builder addAll(final Collection<? extends DeauthorisationUserInfo> users)
+        {
+            ParameterCheck.mandatory("users", users);
+            for (final DeauthorisationUserInfo user : users)
+            {
+                this.add(user);
+            }
+            return this;
+        }
+
+        /**
+         * Adds all currently authorised users from the result of a {@code PersonAuditWorker} to the work set, skipping any users that are
+         * not / no longer authorised.
+         *
+         * @param auditUsers
+         *            the users to add
+         * @return this builder
+         */
+        public Builder addAllAuthorised(final Collection<AuditUserInfo> auditUsers)
+        {
+            ParameterCheck.mandatory("auditUsers", auditUsers);
+            for (final AuditUserInfo user : auditUsers)
+            {
+                if (user.getAuthorisedState() == AuthorisedState.AUTHORISED)
+                {
+                    this.add(user.getUserName(), user.getPersonRef(), null);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Builds the work set from all added users, sorting them by user name. A builder can only be used to build a single work set.
+         *
+         * @return the work set
+         */
+        public synchronized DeauthorisationWorkSet build()
+        {
+            if (this.built)
+            {
+                throw new IllegalStateException("Work set has already been built");
+            }
+            this.built = true;
+
+            final DeauthorisationWorkSet workSet = new DeauthorisationWorkSet(Arrays.copyOf(this.userNames, this.size),
+                    Arrays.copyOf(this.personStores, this.size), Arrays.copyOf(this.personIdBits, this.size * 2),
+                    this.irregularPersonIds.isEmpty() ? new String[0] : new String[this.size], Arrays.copyOf(this.lastActivity, this.size));
+            this.irregularPersonIds.forEach((idx, id) -> {
+                workSet.irregularPersonIds[idx.intValue()] = id;
+            });
+            workSet.sort();
+
+            this.userNames = null;
+            this.personStores = null;
+            this.personIdBits = null;
+            this.irregularPersonIds = null;
+            this.lastActivity = null;
+
+            return workSet;
+        }
+
+        protected void grow()
+        {
+            final int capacity = this.userNames.length + (this.userNames.length >> 1) + 1;
+            this.userNames = Arrays.copyOf(this.userNames, capacity);
+            this.personStores = Arrays.copyOf(this.personStores, capacity);
+            this.personIdBits = Arrays.copyOf(this.personIdBits, capacity * 2);
+            this.lastActivity = Arrays.copyOf(this.lastActivity, capacity);
+        }
+    }
+
+    /**
+     * Instances of this class provide a view on a single user of a work set.
+     *
+     * @author Axel Faust
+     */
+    protected class Entry extends DeauthorisationUserInfo
+    {
+
+        protected final int idx;
+
+        protected Entry(final int idx)
+        {
+            super();
+            this.idx = idx;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getUserName()
+        {
+            return DeauthorisationWorkSet.this.userNames[this.idx];
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NodeRef getPersonRef()
+        {
+            return DeauthorisationWorkSet.this.getPersonRef(this.idx);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long getLastActivity()
+        {
+            final long lastActivity = DeauthorisationWorkSet.this.lastActivity[this.idx];
+            return lastActivity != NO_ACTIVITY ? Long.valueOf(lastActivity) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isDeauthorised()
+        {
+            return DeauthorisationWorkSet.this.isDeauthorised(this.idx);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setDeauthorised(final boolean deauthorised)
+        {
+            DeauthorisationWorkSet.this.setDeauthorised(this.idx, deauthorised);
+        }
+    }
+
+    /**
+     * Instances of this class provide a view on a subset of the users of a work set.
+     *
+     * @author Axel Faust
+     */
+    protected class Selection extends AbstractList<DeauthorisationUserInfo> implements RandomAccess
+    {
+
+        protected final int[] indices;
+
+        protected Selection(final int[] indices)
+        {
+            this.indices = indices;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DeauthorisationUserInfo get(final int index)
+        {
+            return DeauthorisationWorkSet.this.get(this.indices[index]);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size()
+        {
+            return this.indices.length;
+        }
+    }
+
+    protected final String[] userNames;
+
+    protected final StoreRef[] personStores;
+
+    protected final long[] personIdBits;
+
+    // only populated (and of full length) if any person node IDs are not UUIDs
+    protected final String[] irregularPersonIds;
+
+    protected final long[] lastActivity;
+
+    protected final BitSet deauthorised = new BitSet();
+
+    protected DeauthorisationWorkSet(final String[] userNames, final StoreRef[] personStores, final long[] personIdBits,
+            final String[] irregularPersonIds, final long[] lastActivity)
+    {
+        this.userNames = userNames;
+        this.personStores = personStores;
+        this.personIdBits = personIdBits;
+        this.irregularPersonIds = irregularPersonIds;
+        this.lastActivity = lastActivity;
+    }
+
+    /**
+     * Creates a work set from the currently authorised users in the result of a {@code PersonAuditWorker}.
+     *
+     * @param auditUsers
+     *            the users determined by the worker
+     * @return the work set
+     */
+    public static DeauthorisationWorkSet ofAuthorised(final Collection<AuditUserInfo> auditUsers)
+    {
+        ParameterCheck.mandatory("auditUsers", auditUsers);
+        return new Builder(auditUsers.size()).addAllAuthorised(auditUsers).build();
+    }
+
+    /**
+     * Creates a work set from a collection of users.
+     *
+     * @param users
+     *            the users
+     * @return the work set
+     */
+    public static DeauthorisationWorkSet of(final Collection<? extends DeauthorisationUserInfo> users)
+    {
+        ParameterCheck.mandatory("users", users);
+        if (users instanceof DeauthorisationWorkSet)
+        {
+            return (DeauthorisationWorkSet) users;
+        }
+        return new Builder(users.size()).addAll(users).build();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeauthorisationUserInfo get(final int index)
+    {
+        if (index < 0 || index >= this.userNames.length)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.userNames.length);
+        }
+        return new Entry(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return this.userNames.length;
+    }
+
+    /**
+     * Selects a subset of the users in this work set. The returned list is a view backed by this work set, so that deauthorised flags set
+     * via its entries are reflected in this work set.
+     *
+     * @param indices
+     *            the indices of the users to select
+     * @return the list of selected users
+     */
+    public List<DeauthorisationUserInfo> select(final int[] indices)
+    {
+        ParameterCheck.mandatory("indices", indices);
+        return new Selection(indices);
+    }
+
+    /**
+     * Selects all users in this work set ordered by their last activity, starting with the users that have been inactive the longest.
+     * Users without any known activity ({@link #NO_ACTIVITY}) are considered to be the longest inactive and always come first, in order of
+     * their user names, followed by all other users in ascending order of their last activity. Users with the same last activity retain
+     * the order of their user names. The returned list is a view backed by this work set, just like any other {@link #select(int[]) selection}.
+     *
+     * @return the list of all users ordered by their last activity
+     */
+    public List<DeauthorisationUserInfo> selectByLastActivity()
+    {
+        final int[] indices = new int[this.userNames.length];
+        int noActivityCount = 0;
+        int activityCount = 0;
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            if (this.lastActivity[idx] == NO_ACTIVITY)
+            {
+                indices[noActivityCount++] = idx;
+            }
+            else
+            {
+                activityCount++;
+            }
+        }
+
+        if (activityCount > 0)
+        {
+            // typically few users with known activity remain, so only these are boxed for a stable sort
+            final Integer[] activityIndices = new Integer[activityCount];
+            int activityIdx = 0;
+            for (int idx = 0; idx < this.userNames.length; idx++)
+            {
+                if (this.lastActivity[idx] != NO_ACTIVITY)
+                {
+                    activityIndices[activityIdx++] = Integer.valueOf(idx);
+                }
+            }
+            Arrays.sort(activityIndices, Comparator.comparingLong(idx -> this.lastActivity[idx.intValue()]));
+            for (int idx = 0; idx < activityCount; idx++)
+            {
+                indices[noActivityCount + idx] = activityIndices[idx].intValue();
+            }
+        }
+
+        return new Selection(indices);
+    }
+
+    /**
+     * Retrieves the name of a user in this work set without creating a view of the user.
+     *
+     * @param index
+     *            the index of the user
+     * @return the name of the user
+     */
+    public String getUserName(final int index)
+    {
+        return this.userNames[index];
+    }
+
+    /**
+     * Retrieves the person node of a user in this work set without creating a view of the user.
+     *
+     * @param index
+     *            the index of the user
+     * @return the person node of the user
+     */
+    public NodeRef getPersonRef(final int index)
+    {
+        final String irregularId = this.irregularPersonIds.length != 0 ? this.irregularPersonIds[index] : null;
+        final String id = irregularId != null ? irregularId
+                : new UUID(this.personIdBits[index * 2], this.personIdBits[index * 2 + 1]).toString();
+        return new NodeRef(this.personStores[index], id);
+    }
+
+    /**
+     * Retrieves the last known activity of a user in this work set without creating a view of the user.
+     *
+     * @param index
+     *            the index of the user
+     * @return the timestamp of the last known activity of the user or {@code null} if no activity is known / was not determined
+     */
+    public Long getLastActivity(final int index)
+    {
+        final long lastActivity = this.lastActivity[index];
+        return lastActivity != NO_ACTIVITY ? Long.valueOf(lastActivity) : null;
+    }
+
+    /**
+     * Checks whether a user in this work set has been deauthorised.
+     *
+     * @param index
+     *            the index of the user
+     * @return {@code true} if the user has been deauthorised, {@code false} otherwise
+     */
+    public boolean isDeauthorised(final int index)
+    {
+        synchronized (this.deauthorised)
+        {
+            return this.deauthorised.get(index);
+        }
+    }
+
+    /**
+     * Sets the deauthorised flag of a user in this work set.
+     *
+     * @param index
+     *            the index of the user
+     * @param deauthorised
+     *            the deauthorised flag to set
+     */
+    public void setDeauthorised(final int index, final boolean deauthorised)
+    {
+        synchronized (this.deauthorised)
+        {
+            this.deauthorised.set(index, deauthorised);
+        }
+    }
+
+    /**
+     * @return the number of users in this work set which have been deauthorised
+     */
+    public int getDeauthorisedCount()
+    {
+        synchronized (this.deauthorised)
+        {
+            return this.deauthorised.cardinality();
+        }
+    }
+
+    /**
+     * Estimates the memory retained by this work set, including the characters of the user names.
+     *
+     * @return the estimated number of bytes
+     */
+    public long estimateRetainedBytes()
+    {
+        // 8 bytes per reference in user name / store arrays, 3 primitive longs, 1 bit for the flag
+        long bytes = this.userNames.length * (8L + 8L + 24L) + this.userNames.length / 8 + 1;
+        for (final String userName : this.userNames)
+        {
+            bytes += USER_NAME_OVERHEAD_BYTES + 2L * userName.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationWorkSet [size=");
+        builder.append(this.userNames.length);
+        builder.append(", deauthorised=");
+        builder.append(this.getDeauthorisedCount());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected void sort()
+    {
+        // in-place heap sort over all columns - avoids boxing / copying for large work sets
+        final int size = this.userNames.length;
+        for (int idx = size / 2 - 1; idx >= 0; idx--)
+        {
+            this.siftDown(idx, size);
+        }
+        for (int end = size - 1; end > 0; end--)
+        {
+            this.swap(0, end);
+            this.siftDown(0, end);
+        }
+    }
+
+    protected void siftDown(final int start, final int end)
+    {
+        int root = start;
+        int child = 2 * root + 1;
+        while (child < end)
+        {
+            if (child + 1 < end && this.userNames[child].compareTo(this.userNames[child + 1]) < 0)
+            {
+                child++;
+            }
+            if (this.userNames[root].compareTo(this.userNames[child]) >= 0)
+            {
+                break;
+            }
+            this.swap(root, child);
+            root = child;
+            child = 2 * root + 1;
+        }
+    }
+
+    protected void swap(final int idxA, final int idxB)
+    {
+        final String userName = this.userNames[idxA];
+        this.userNames[idxA] = this.userNames[idxB];
+        this.userNames[idxB] = userName;
+
+        final StoreRef personStore = this.personStores[idxA];
+        this.personStores[idxA] = this.personStores[idxB];
+        this.personStores[idxB] = personStore;
+
+        for (int offset = 0; offset < 2; offset++)
+        {
+            final long bits = this.personIdBits[idxA * 2 + offset];
+            this.personIdBits[idxA * 2 + offset] = this.personIdBits[idxB * 2 + offset];
+            this.personIdBits[idxB * 2 + offset] = bits;
+        }
+
+        if (this.irregularPersonIds.length != 0)
+        {
+            final String irregularId = this.irregularPersonIds[idxA];
+            this.irregularPersonIds[idxA] = this.irregularPersonIds[idxB];
+            this.irregularPersonIds[idxB] = irregularId;
+        }
+
+        final long lastActivity = this.lastActivity[idxA];
+        this.lastActivity[idxA] = this.lastActivity[idxB];
+        this.lastActivity[idxB] = lastActivity;
+    }
+
+    protected static UUID toUUID(final String id)
+    {
+        UUID uuid = null;
+        if (id.length() == 36)
+        {
+            try
+            {
+                uuid = UUID.fromString(id);
+                // only accept the canonical, lower-case form which can be restored losslessly
+                if (!uuid.toString().equals(id))
+                {
+                    uuid = null;
+                }
+            }
+            catch (final IllegalArgumentException iaex)
+            {
+                uuid = null;
+            }
+        }
+        return uuid;
+    }
+}
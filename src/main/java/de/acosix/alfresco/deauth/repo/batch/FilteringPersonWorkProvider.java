@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class restrict the person nodes provided by another work provider based on the user name of each person. This
+ * operation must be used within an active transaction as it needs to load the user name of each person.
+ *
+ * @author Axel Faust
+ */
+public abstract class FilteringPersonWorkProvider implements BatchProcessWorkProvider<NodeRef>
+{
+
+    protected final BatchProcessWorkProvider<NodeRef> delegate;
+
+    protected final NodeService nodeService;
+
+    protected FilteringPersonWorkProvider(final BatchProcessWorkProvider<NodeRef> delegate, final NodeService nodeService)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("nodeService", nodeService);
+        this.delegate = delegate;
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<NodeRef> getNextWork()
+    {
+        List<NodeRef> work = Collections.emptyList();
+
+        // an empty result signals completion, so keep reading until some accepted person has been found
+        Collection<NodeRef> delegateWork = this.delegate.getNextWork();
+        while (work.isEmpty() && delegateWork != null && !delegateWork.isEmpty())
+        {
+            work = new ArrayList<>();
+            for (final NodeRef person : delegateWork)
+            {
+                final Serializable userName = this.nodeService.getProperty(person, ContentModel.PROP_USERNAME);
+                if (userName != null && this.accept(userName.toString()))
+                {
+                    work.add(person);
+                }
+            }
+
+            if (work.isEmpty())
+            {
+                delegateWork = this.delegate.getNextWork();
+            }
+        }
+
+        return work;
+    }
+
+    /**
+     * Checks whether a person should be included in the work provided by this instance.
+     *
+     * @param userName
+     *            the name of the user
+     * @return {@code true} if the person should be included, {@code false} otherwise
+     */
+    protected abstract boolean accept(String userName);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+/**
+ * The modes of determining inactive users.
+ *
+ * @author Axel Faust
+ */
+public enum InactiveUserQueryMode
+{
+    /**
+     * Inactive users are determined by running audit queries for each person via the {@code PersonAuditWorker} of the acosix-audit module.
+     */
+    PERSON_AUDIT,
+    /**
+     * Inactive users are determined by scanning the audit application once via {@link AuditActivityScanner} and comparing persons against
+     * the resulting {@link UserActivityIndex}.
+     */
+    AUDIT_SCAN,
+    /**
+     * Inactive users are determined by comparing persons against the activity recorded in real time by the {@code UserActivityTracker},
+     * falling back to {@link #AUDIT_SCAN} if tracking is disabled or has not covered the entire look-back period.
+     */
+    TRACKED,
+    /**
+     * Inactive users are determined by probing the last activity of each authorised person via a single audit query limited to the newest
+     * entry using {@link AuditActivityScanner#probeLastActivity(String, long)}, so that each person costs the same regardless of the
+     * number of audit entries recorded for it.
+     */
+    PROBE;
+}
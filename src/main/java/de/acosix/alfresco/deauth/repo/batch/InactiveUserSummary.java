@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the aggregated counts of authorised and inactive users, as determined by an
+ * {@link InactiveUserSummaryWorker}, without retaining any information about individual users.
+ *
+ * @author Axel Faust
+ */
+public class InactiveUserSummary
+{
+
+    /**
+     * Instances of this class represent a single bucket of the histogram of the age of the last activity of authorised users.
+     *
+     * @author Axel Faust
+     */
+    public static class Bucket
+    {
+
+        protected final Integer maxAgeDays;
+
+        protected final long users;
+
+        protected Bucket(final Integer maxAgeDays, final long users)
+        {
+            this.maxAgeDays = maxAgeDays;
+            this.users = users;
+        }
+
+        /**
+         * @return the exclusive upper bound of the age of the last activity of users in this bucket in days, or {@code null} for the
+         *         bucket of all users with older / no known activity
+         */
+        public Integer getMaxAgeDays()
+        {
+            return this.maxAgeDays;
+        }
+
+        /**
+         * @return the number of users in this bucket
+         */
+        public long getUsers()
+        {
+            return this.users;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("Bucket [maxAgeDays=");
+            builder.append(this.maxAgeDays);
+            builder.append(", users=");
+            builder.append(this.users);
+            builder.append("]");
+            return builder.toString();
+        }
+    }
+
+    protected final long computedTime;
+
+    protected final long fromTime;
+
+    protected final long authorised;
+
+    protected final long protectedAuthorised;
+
+    protected final long inactiveAuthorised;
+
+    protected final List<Bucket> histogram;
+
+    public InactiveUserSummary(final long computedTime, final long fromTime, final long authorised, final long protectedAuthorised,
+            final long inactiveAuthorised, final int[] histogramDays, final long[] histogramCounts)
+    {
+        ParameterCheck.mandatory("histogramDays", histogramDays);
+        ParameterCheck.mandatory("histogramCounts", histogramCounts);
+        if (histogramCounts.length != histogramDays.length + 1)
+        {
+            throw new IllegalArgumentException("Histogram must have exactly one count more than bucket boundaries");
+        }
+
+        this.computedTime = computedTime;
+        this.fromTime = fromTime;
+        this.authorised = authorised;
+        this.protectedAuthorised = protectedAuthorised;
+        this.inactiveAuthorised = inactiveAuthorised;
+
+        final List<Bucket> histogram = new ArrayList<>(histogramCounts.length);
+        for (int idx = 0; idx < histogramCounts.length; idx++)
+        {
+            histogram.add(new Bucket(idx < histogramDays.length ? Integer.valueOf(histogramDays[idx]) : null, histogramCounts[idx]));
+        }
+        this.histogram = Collections.unmodifiableList(histogram);
+    }
+
+    /**
+     * @return the point in time at which this summary was computed
+     */
+    public long getComputedTime()
+    {
+        return this.computedTime;
+    }
+
+    /**
+     * @return the point in time since which users without activity are considered inactive
+     */
+    public long getFromTime()
+    {
+        return this.fromTime;
+    }
+
+    /**
+     * @return the number of authorised users
+     */
+    public long getAuthorised()
+    {
+        return this.authorised;
+    }
+
+    /**
+     * @return the number of authorised users which are protected admin / guest users
+     */
+    public long getProtectedAuthorised()
+    {
+        return this.protectedAuthorised;
+    }
+
+    /**
+     * @return the number of authorised users which are inactive and not protected, i.e. the candidates for deauthorisation
+     */
+    public long getInactiveAuthorised()
+    {
+        return this.inactiveAuthorised;
+    }
+
+    /**
+     * @return the histogram of the age of the last activity of authorised users which are not protected
+     */
+    public List<Bucket> getHistogram()
+    {
+        return this.histogram;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("InactiveUserSummary [computedTime=");
+        builder.append(this.computedTime);
+        builder.append(", fromTime=");
+        builder.append(this.fromTime);
+        builder.append(", authorised=");
+        builder.append(this.authorised);
+        builder.append(", protectedAuthorised=");
+        builder.append(this.protectedAuthorised);
+        builder.append(", inactiveAuthorised=");
+        builder.append(this.inactiveAuthorised);
+        builder.append(", histogram=");
+        builder.append(this.histogram);
+        builder.append("]");
+        return builder.toString();
+    }
+}
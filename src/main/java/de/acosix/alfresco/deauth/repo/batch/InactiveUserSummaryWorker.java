@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.transaction.TransactionSupportUtil;
+
+/**
+ * A batch process worker implementation that aggregates the counts of authorised and inactive users by comparing person nodes against a
+ * pre-built {@link UserActivityIndex}. In contrast to the {@link PersonActivityIndexWorker}, no information about individual users is
+ * retained, and the authorisation state of each user is checked directly instead of being recorded in an
+ * {@link AuthorisationStateSnapshot}, so the memory used by this worker does not grow with the number of users.
+ *
+ * @author Axel Faust
+ */
+public class InactiveUserSummaryWorker extends BatchProcessWorkerAdaptor<NodeRef>
+{
+
+    private static final String TXN_KEY_RUN_INITIALISED = InactiveUserSummaryWorker.class.getName() + "-runInitialised";
+
+    protected static final int IDX_AUTHORISED = 0;
+
+    protected static final int IDX_PROTECTED = 1;
+
+    protected static final int IDX_INACTIVE = 2;
+
+    protected static final int IDX_HISTOGRAM = 3;
+
+    protected final String runAsUser = AuthenticationUtil.getRunAsUser();
+
+    // use separate counts for total and txn local - txn may be rolled back after all
+    protected final ThreadLocal<long[]> countsTxn = new ThreadLocal<long[]>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[InactiveUserSummaryWorker.this.counts.length()];
+        }
+    };
+
+    protected final TransactionListener commitHandler = new TransactionListenerAdapter()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            InactiveUserSummaryWorker.this.handleCommit();
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterRollback()
+        {
+            // rolled back transactions are typically retried by the batch processor - nothing of it must be counted
+            InactiveUserSummaryWorker.this.countsTxn.remove();
+        }
+    };
+
+    protected final AtomicLongArray counts;
+
+    protected final long referenceTime;
+
+    protected final long fromTime;
+
+    protected final UserActivityIndex activityIndex;
+
+    protected final AuthorizationService authorisationService;
+
+    protected final NodeService nodeService;
+
+    protected final ProtectedAuthorities protectedAuthorities;
+
+    protected final int[] histogramDays;
+
+    public InactiveUserSummaryWorker(final long referenceTime, final long fromTime, final UserActivityIndex activityIndex,
+            final AuthorizationService authorisationService, final NodeService nodeService, final ProtectedAuthorities protectedAuthorities,
+            final int[] histogramDays)
+    {
+        ParameterCheck.mandatory("activityIndex", activityIndex);
+        ParameterCheck.mandatory("authorisationService", authorisationService);
+        ParameterCheck.mandatory("nodeService", nodeService);
+        ParameterCheck.mandatory("protectedAuthorities", protectedAuthorities);
+        ParameterCheck.mandatory("histogramDays", histogramDays);
+        this.referenceTime = referenceTime;
+        this.fromTime = fromTime;
+        this.activityIndex = activityIndex;
+        this.authorisationService = authorisationService;
+        this.nodeService = nodeService;
+        this.protectedAuthorities = protectedAuthorities;
+        this.histogramDays = histogramDays.clone();
+        this.counts = new AtomicLongArray(IDX_HISTOGRAM + histogramDays.length + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeProcess() throws Throwable
+    {
+        AuthenticationUtil.setRunAsUser(this.runAsUser);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIdentifier(final NodeRef entry)
+    {
+        return entry.toString();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final NodeRef entry) throws Throwable
+    {
+        final Object runInitialised = TransactionSupportUtil.getResource(TXN_KEY_RUN_INITIALISED);
+        if (!Boolean.TRUE.equals(runInitialised))
+        {
+            // reset cannot be in beforeProcess - only process is covered by retrying txn helper
+            this.countsTxn.remove();
+
+            TransactionSupportUtil.bindResource(TXN_KEY_RUN_INITIALISED, Boolean.TRUE);
+            AlfrescoTransactionSupport.bindListener(this.commitHandler);
+        }
+
+        final Serializable userNameValue = this.nodeService.getProperty(entry, ContentModel.PROP_USERNAME);
+        final String userName = userNameValue instanceof String ? (String) userNameValue : null;
+        if (userName != null && this.authorisationService.isAuthorized(userName))
+        {
+            final long[] countsTxn = this.countsTxn.get();
+            countsTxn[IDX_AUTHORISED]++;
+            if (this.protectedAuthorities.isProtected(userName))
+            {
+                countsTxn[IDX_PROTECTED]++;
+            }
+            else
+            {
+                final Long lastActivity = this.activityIndex.getLastActivity(userName);
+                if (lastActivity == null || lastActivity.longValue() < this.fromTime)
+                {
+                    countsTxn[IDX_INACTIVE]++;
+                }
+                countsTxn[IDX_HISTOGRAM + this.determineBucket(lastActivity)]++;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterProcess() throws Throwable
+    {
+        // counts are only aggregated on commit - afterProcess is also called when the last attempt of a batch failed
+        this.countsTxn.remove();
+    }
+
+    protected void handleCommit()
+    {
+        final long[] countsTxn = this.countsTxn.get();
+        this.countsTxn.remove();
+        for (int idx = 0; idx < countsTxn.length; idx++)
+        {
+            if (countsTxn[idx] != 0)
+            {
+                this.counts.addAndGet(idx, countsTxn[idx]);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the summary of the counts aggregated so far.
+     *
+     * @return the summary
+     */
+    public InactiveUserSummary getSummary()
+    {
+        final long[] histogramCounts = new long[this.histogramDays.length + 1];
+        for (int idx = 0; idx < histogramCounts.length; idx++)
+        {
+            histogramCounts[idx] = this.counts.get(IDX_HISTOGRAM + idx);
+        }
+        return new InactiveUserSummary(this.referenceTime, this.fromTime, this.counts.get(IDX_AUTHORISED), this.counts.get(IDX_PROTECTED),
+                this.counts.get(IDX_INACTIVE), this.histogramDays, histogramCounts);
+    }
+
+    protected int determineBucket(final Long lastActivity)
+    {
+        int bucket = this.histogramDays.length;
+        if (lastActivity != null)
+        {
+            final long ageDays = TimeUnit.MILLISECONDS.toDays(Math.max(0, this.referenceTime - lastActivity.longValue()));
+            for (int idx = 0; idx < this.histogramDays.length && bucket == this.histogramDays.length; idx++)
+            {
+                if (ageDays < this.histogramDays[idx])
+                {
+                    bucket = idx;
+                }
+            }
+        }
+        return bucket;
+    }
+}
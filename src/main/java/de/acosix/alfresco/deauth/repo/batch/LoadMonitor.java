@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+/**
+ * Instances of this interface assess the current load of the repository, so that long-running operations can pause while interactive
+ * users would otherwise be affected.
+ *
+ * @author Axel Faust
+ */
+@FunctionalInterface
+public interface LoadMonitor
+{
+
+    /**
+     * Checks whether the repository is currently overloaded. Implementations should use lower thresholds while an operation is paused so
+     * that it does not rapidly alternate between pausing and resuming.
+     *
+     * @param paused
+     *            {@code true} if the calling operation is currently paused due to load, {@code false} otherwise
+     * @return {@code true} if the repository is considered to be overloaded, {@code false} otherwise
+     */
+    boolean isOverloaded(boolean paused);
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * Instances of this class drive the deauthorisation of users via a {@link PersonDeauthorisationWorker} in one or more parallel lanes. Each
+ * lane processes its users single-threaded in its own {@link BatchProcessor}. Users are assigned to lanes round-robin, so that lanes are
+ * evenly sized - the users to process are expected to be distinct, as they are derived from person nodes. Lanes only overlap in reading
+ * state, i.e. checking authorisation states, protected authorities and recent activity as well as loading report details, as the worker
+ * serialises all writes to the authorisation state across lanes. Update conflicts between the lanes themselves thus cannot occur, and the
+ * default transaction retry behaviour only needs to handle conflicts with other writers, e.g. users being authorised on login. With a
+ * single lane, the processing is identical to the previous strictly serial processing. If the worker has been configured with an
+ * {@link AdaptiveBatchSizer}, each lane processes its users in rounds of a few batches, determining the batch size anew for each round.
+ *
+ * @author Axel Faust
+ */
+public class PartitionedDeauthorisationProcessor
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedDeauthorisationProcessor.class);
+
+    protected static final int ADAPTIVE_BATCHES_PER_ROUND = 5;
+
+    protected final String processName;
+
+    protected final TransactionService transactionService;
+
+    protected final int lanes;
+
+    protected final int batchSize;
+
+    protected final int loggingInterval;
+
+    protected DeauthorisationThrottle throttle;
+
+    public PartitionedDeauthorisationProcessor(final String processName, final TransactionService transactionService, final int lanes,
+            final int batchSize, final int loggingInterval)
+    {
+        ParameterCheck.mandatoryString("processName", processName);
+        ParameterCheck.mandatory("transactionService", transactionService);
+        if (lanes <= 0)
+        {
+            throw new IllegalArgumentException("Number of lanes must be a positive integer");
+        }
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Batch size must be a positive integer");
+        }
+        this.processName = processName;
+        this.transactionService = transactionService;
+        this.lanes = lanes;
+        this.batchSize = batchSize;
+        this.loggingInterval = loggingInterval;
+    }
+
+    /**
+     * @param throttle
+     *            the throttle to apply after each batch in all lanes
+     */
+    public void setThrottle(final DeauthorisationThrottle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Processes the deauthorisation of users.
+     *
+     * @param work
+     *            the users to process
+     * @param worker
+     *            the worker to use in all lanes - as the worker keeps its counters in thread-safe structures, its count of deauthorised
+     *            users remains exact regardless of the number of lanes
+     */
+    public void process(final Collection<DeauthorisationUserInfo> work, final PersonDeauthorisationWorker worker)
+    {
+        ParameterCheck.mandatory("work", work);
+        ParameterCheck.mandatory("worker", worker);
+
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        if (this.lanes == 1 || work.size() <= this.batchSize)
+        {
+            this.processLane(this.processName, work, worker, txnHelper);
+        }
+        else
+        {
+            final List<List<DeauthorisationUserInfo>> partitions = this.partition(work);
+
+            final AtomicInteger threadIndex = new AtomicInteger(0);
+            final ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), runnable -> {
+                final Thread thread = new Thread(runnable, this.processName + "-Lane-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try
+            {
+                final List<Callable<Void>> laneTasks = new ArrayList<>(partitions.size());
+                for (int lane = 0; lane < partitions.size(); lane++)
+                {
+                    final String laneProcessName = this.processName + "-Lane-" + (lane + 1);
+                    final List<DeauthorisationUserInfo> laneWork = partitions.get(lane);
+                    laneTasks.add(() -> {
+                        this.processLane(laneProcessName, laneWork, worker, txnHelper);
+                        return null;
+                    });
+                }
+
+                LOGGER.debug("Processing deauthorisation of {} users in {} lanes", work.size(), laneTasks.size());
+                final List<Future<Void>> results = executor.invokeAll(laneTasks);
+                for (final Future<Void> result : results)
+                {
+                    result.get();
+                }
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException("Interrupted while waiting for deauthorisation lanes to complete", iex);
+            }
+            catch (final ExecutionException eex)
+            {
+                throw new AlfrescoRuntimeException("Deauthorisation lane failed", eex.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Processes the deauthorisation of users provided by a work provider, e.g. reading them from a {@link DeauthorisationWorkFile}. The
+     * users are processed in a single lane on the current thread, as the users are not known up front to assign them to lanes, and the
+     * configured number of lanes as well as any {@link AdaptiveBatchSizer adaptive batch sizing} of the worker do not apply.
+     *
+     * @param workProvider
+     *            the provider of the users to process
+     * @param worker
+     *            the worker to use
+     */
+    public void process(final BatchProcessWorkProvider<DeauthorisationUserInfo> workProvider, final PersonDeauthorisationWorker worker)
+    {
+        ParameterCheck.mandatory("workProvider", workProvider);
+        ParameterCheck.mandatory("worker", worker);
+
+        LOGGER.debug("Processing deauthorisation of {} users provided by {}", workProvider.getTotalEstimatedWorkSize(), workProvider);
+        this.processBatches(this.processName, workProvider, this.batchSize, worker, this.transactionService.getRetryingTransactionHelper());
+    }
+
+    /**
+     * Processes the deauthorisation of users in pipelined mode, concurrently with the query determining them. The users are consumed from
+     * the pipeline by a single lane running on a separate thread while the query is run on the current thread. The pipeline is
+     * {@link DeauthorisationPipeline#complete() completed} once the query has finished, and this operation only returns after the lane has
+     * consumed all users. The configured number of lanes as well as any {@link AdaptiveBatchSizer adaptive batch sizing} of the worker do
+     * not apply in this mode.
+     *
+     * @param pipeline
+     *            the pipeline connecting the query and the deauthorisation
+     * @param worker
+     *            the worker to use in the lane
+     * @param query
+     *            the query putting users onto the pipeline
+     */
+    public void processPipelined(final DeauthorisationPipeline pipeline, final PersonDeauthorisationWorker worker, final Runnable query)
+    {
+        ParameterCheck.mandatory("pipeline", pipeline);
+        ParameterCheck.mandatory("worker", worker);
+        ParameterCheck.mandatory("query", query);
+
+        final String laneProcessName = this.processName + "-Pipeline";
+        final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, laneProcessName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try
+        {
+            final RetryingTransactionHelper laneTxnHelper = this.transactionService.getRetryingTransactionHelper();
+            final Future<?> lane = executor.submit(() -> {
+                try
+                {
+                    this.processBatches(laneProcessName, pipeline.createWorkProvider(), this.batchSize, worker, laneTxnHelper);
+                }
+                finally
+                {
+                    // unblock the query in case the lane terminated prematurely
+                    pipeline.close();
+                }
+            });
+
+            LOGGER.debug("Processing deauthorisation of users in pipeline {}", pipeline);
+            try
+            {
+                query.run();
+            }
+            finally
+            {
+                pipeline.complete();
+            }
+            lane.get();
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for deauthorisation pipeline to complete", iex);
+        }
+        catch (final ExecutionException eex)
+        {
+            throw new AlfrescoRuntimeException("Deauthorisation pipeline failed", eex.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes the deauthorisation of users until a quota of deauthorised users has been reached. The users are processed strictly in the
+     * order provided in a single lane, regardless of the configured number of lanes, so that e.g. the users inactive for the longest time
+     * can be deauthorised first. The users are processed in rounds, with the size of each round limited to the number of users still
+     * required to meet the quota, so that processing stops at the first batch boundary at which the quota has been met.
+     *
+     * @param work
+     *            the users to process in the order in which they should be deauthorised
+     * @param worker
+     *            the worker to use
+     * @param quota
+     *            the number of users to deauthorise - the count is tracked via the {@link PersonDeauthorisationWorker#getDeauthorised()
+     *            counter} of the worker
+     */
+    public void processUntil(final Collection<DeauthorisationUserInfo> work, final PersonDeauthorisationWorker worker, final int quota)
+    {
+        ParameterCheck.mandatory("work", work);
+        ParameterCheck.mandatory("worker", worker);
+
+        final AdaptiveBatchSizer adaptiveBatchSizer = worker.getAdaptiveBatchSizer();
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        final int initialDeauthorised = worker.getDeauthorised();
+
+        final Iterator<DeauthorisationUserInfo> workIterator = work.iterator();
+        int remaining = quota;
+        while (workIterator.hasNext() && remaining > 0)
+        {
+            final int roundBatchSize = Math.min(adaptiveBatchSizer != null ? adaptiveBatchSizer.nextBatchSize() : this.batchSize,
+                    remaining);
+            final List<DeauthorisationUserInfo> roundWork = new ArrayList<>(roundBatchSize);
+            while (workIterator.hasNext() && roundWork.size() < roundBatchSize)
+            {
+                roundWork.add(workIterator.next());
+            }
+            this.processBatches(this.processName, roundWork, roundBatchSize, worker, txnHelper);
+            remaining = quota - (worker.getDeauthorised() - initialDeauthorised);
+        }
+
+        if (remaining > 0)
+        {
+            LOGGER.info("Deauthorisation quota of {} users could not be met - {} users still remaining after processing all candidates",
+                    quota, remaining);
+        }
+        else
+        {
+            LOGGER.debug("Deauthorisation quota of {} users met", quota);
+        }
+    }
+
+    protected List<List<DeauthorisationUserInfo>> partition(final Collection<DeauthorisationUserInfo> work)
+    {
+        if (work instanceof DeauthorisationWorkSet)
+        {
+            return this.partition((DeauthorisationWorkSet) work);
+        }
+
+        final List<List<DeauthorisationUserInfo>> partitions = new ArrayList<>(this.lanes);
+        final int expectedPartitionSize = work.size() / this.lanes + 1;
+        for (int lane = 0; lane < this.lanes; lane++)
+        {
+            partitions.add(new ArrayList<>(expectedPartitionSize));
+        }
+
+        int idx = 0;
+        for (final DeauthorisationUserInfo user : work)
+        {
+            partitions.get(this.determineLane(idx++)).add(user);
+        }
+
+        partitions.removeIf(List::isEmpty);
+        return partitions;
+    }
+
+    protected List<List<DeauthorisationUserInfo>> partition(final DeauthorisationWorkSet work)
+    {
+        // partition by index to avoid materialising a view object for each user up front
+        final int size = work.size();
+        final int[][] laneIndices = new int[this.lanes][];
+        for (int lane = 0; lane < this.lanes; lane++)
+        {
+            // number of indices idx < size with determineLane(idx) == lane
+            laneIndices[lane] = new int[size / this.lanes + (lane < size % this.lanes ? 1 : 0)];
+        }
+        for (int idx = 0; idx < size; idx++)
+        {
+            laneIndices[this.determineLane(idx)][idx / this.lanes] = idx;
+        }
+
+        final List<List<DeauthorisationUserInfo>> partitions = new ArrayList<>(this.lanes);
+        for (int lane = 0; lane < this.lanes; lane++)
+        {
+            if (laneIndices[lane].length > 0)
+            {
+                partitions.add(work.select(laneIndices[lane]));
+            }
+        }
+        return partitions;
+    }
+
+    protected int determineLane(final int index)
+    {
+        // round-robin - conflicts are avoided by the worker serialising writes, so assignment only needs to balance the lanes
+        final int lane = index % this.lanes;
+        return lane;
+    }
+
+    protected void processLane(final String laneProcessName, final Collection<DeauthorisationUserInfo> laneWork,
+            final PersonDeauthorisationWorker worker, final RetryingTransactionHelper txnHelper)
+    {
+        final AdaptiveBatchSizer adaptiveBatchSizer = worker.getAdaptiveBatchSizer();
+        if (adaptiveBatchSizer == null)
+        {
+            this.processBatches(laneProcessName, laneWork, this.batchSize, worker, txnHelper);
+        }
+        else
+        {
+            // batch size of a BatchProcessor is fixed, so a lane is processed in rounds to allow for adjustments
+            final Iterator<DeauthorisationUserInfo> laneWorkIterator = laneWork.iterator();
+            while (laneWorkIterator.hasNext())
+            {
+                final int roundBatchSize = adaptiveBatchSizer.nextBatchSize();
+                final int roundSize = roundBatchSize * ADAPTIVE_BATCHES_PER_ROUND;
+                final List<DeauthorisationUserInfo> roundWork = new ArrayList<>(roundSize);
+                while (laneWorkIterator.hasNext() && roundWork.size() < roundSize)
+                {
+                    roundWork.add(laneWorkIterator.next());
+                }
+                this.processBatches(laneProcessName, roundWork, roundBatchSize, worker, txnHelper);
+            }
+        }
+    }
+
+    protected void processBatches(final String laneProcessName, final Collection<DeauthorisationUserInfo> work, final int batchSize,
+            final PersonDeauthorisationWorker worker, final RetryingTransactionHelper txnHelper)
+    {
+        this.processBatches(laneProcessName, new CollectionWrappingWorkProvider<>(work, 1), batchSize, worker, txnHelper);
+    }
+
+    protected void processBatches(final String laneProcessName, final BatchProcessWorkProvider<DeauthorisationUserInfo> workProvider,
+            final int batchSize, final PersonDeauthorisationWorker worker, final RetryingTransactionHelper txnHelper)
+    {
+        // each lane is processed single-threaded
+        final BatchProcessor<DeauthorisationUserInfo> processor = new BatchProcessor<>(laneProcessName, txnHelper, workProvider, 1,
+                batchSize, null, LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), this.loggingInterval);
+        processor.process(this.throttle != null ? new ThrottledBatchProcessWorker<>(worker, this.throttle) : worker, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("PartitionedDeauthorisationProcessor [processName=");
+        builder.append(this.processName);
+        builder.append(", lanes=");
+        builder.append(this.lanes);
+        builder.append(", batchSize=");
+        builder.append(this.batchSize);
+        builder.append("]");
+        return builder.toString();
+    }
+}
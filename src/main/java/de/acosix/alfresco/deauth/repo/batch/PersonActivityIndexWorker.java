@@ -0,0 +1,300 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.transaction.TransactionSupportUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A batch process worker implementation that determines inactive, authorised users by comparing person nodes against a pre-built
+ * {@link UserActivityIndex}.
+ *
+ * @author Axel Faust
+ */
+public class PersonActivityIndexWorker extends BatchProcessWorkerAdaptor<NodeRef>
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersonActivityIndexWorker.class);
+
+    private static final String TXN_KEY_RUN_INITIALISED = PersonActivityIndexWorker.class.getName() + "-runInitialised";
+
+    protected final String runAsUser = AuthenticationUtil.getRunAsUser();
+
+    // use separate collections for total and txn local - txn may be rolled back after all
+    protected final ThreadLocal<List<DeauthorisationUserInfo>> usersTxn = new ThreadLocal<List<DeauthorisationUserInfo>>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected List<DeauthorisationUserInfo> initialValue()
+        {
+            return new ArrayList<>();
+        }
+    };
+
+    protected final TransactionListener commitHandler = new TransactionListenerAdapter()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            PersonActivityIndexWorker.this.handleCommit();
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterRollback()
+        {
+            // rolled back transactions are typically retried by the batch processor - nothing of it must be published
+            PersonActivityIndexWorker.this.usersTxn.remove();
+        }
+    };
+
+    protected final DeauthorisationWorkSet.Builder users = new DeauthorisationWorkSet.Builder();
+
+    protected final AtomicInteger candidates = new AtomicInteger(0);
+
+    protected final AtomicInteger candidatesWithoutActivity = new AtomicInteger(0);
+
+    protected final long fromTime;
+
+    protected final UserActivityIndex activityIndex;
+
+    protected final NodeService nodeService;
+
+    protected Function<String, Boolean> isAuthorisedCheck;
+
+    protected DeauthorisationPipeline pipeline;
+
+    protected DeauthorisationWorkFile.Writer workFileWriter;
+
+    public PersonActivityIndexWorker(final long fromTime, final UserActivityIndex activityIndex, final NodeService nodeService)
+    {
+        ParameterCheck.mandatory("activityIndex", activityIndex);
+        ParameterCheck.mandatory("nodeService", nodeService);
+        this.fromTime = fromTime;
+        this.activityIndex = activityIndex;
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * Creates a new instance for subclasses which {@link #determineLastActivity(String) determine the last activity} of users without an
+     * index.
+     *
+     * @param fromTime
+     *            the point in time since which users without activity are considered inactive
+     * @param nodeService
+     *            the node service
+     */
+    protected PersonActivityIndexWorker(final long fromTime, final NodeService nodeService)
+    {
+        ParameterCheck.mandatory("nodeService", nodeService);
+        this.fromTime = fromTime;
+        this.activityIndex = null;
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param isAuthorisedCheck
+     *            the isAuthorisedCheck to set
+     */
+    public void setIsAuthorisedCheck(final Function<String, Boolean> isAuthorisedCheck)
+    {
+        this.isAuthorisedCheck = isAuthorisedCheck;
+    }
+
+    /**
+     * @param pipeline
+     *            the pipeline to put inactive, authorised users onto as soon as the batch evaluating them has been committed - if set,
+     *            these users will not be collected for {@link #getUsers() retrieval}
+     */
+    public void setPipeline(final DeauthorisationPipeline pipeline)
+    {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * @param workFileWriter
+     *            the writer to write inactive, authorised users to as soon as the batch evaluating them has been committed - if set, these
+     *            users will not be collected for {@link #getUsers() retrieval}
+     */
+    public void setWorkFileWriter(final DeauthorisationWorkFile.Writer workFileWriter)
+    {
+        this.workFileWriter = workFileWriter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeProcess() throws Throwable
+    {
+        AuthenticationUtil.setRunAsUser(this.runAsUser);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIdentifier(final NodeRef entry)
+    {
+        return entry.toString();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final NodeRef entry) throws Throwable
+    {
+        final Object runInitialised = TransactionSupportUtil.getResource(TXN_KEY_RUN_INITIALISED);
+        if (!Boolean.TRUE.equals(runInitialised))
+        {
+            // reset cannot be in beforeProcess - only process is covered by retrying txn helper
+            this.usersTxn.remove();
+
+            TransactionSupportUtil.bindResource(TXN_KEY_RUN_INITIALISED, Boolean.TRUE);
+            AlfrescoTransactionSupport.bindListener(this.commitHandler);
+        }
+
+        final Serializable userNameValue = this.nodeService.getProperty(entry, ContentModel.PROP_USERNAME);
+        final String userName = userNameValue instanceof String ? (String) userNameValue : null;
+        if (userName != null)
+        {
+            // check authorisation first - it is a cached lookup, while determining the last activity may require an audit query
+            final boolean authorised = this.isAuthorisedCheck == null || Boolean.TRUE.equals(this.isAuthorisedCheck.apply(userName));
+            if (authorised)
+            {
+                final Long lastActivity = this.determineLastActivity(userName);
+                if (lastActivity == null || lastActivity.longValue() < this.fromTime)
+                {
+                    LOGGER.trace("User {} has been inactive since {}", userName, lastActivity);
+                    this.usersTxn.get().add(new DeauthorisationUserInfo(userName, entry, lastActivity));
+                }
+                else
+                {
+                    LOGGER.trace("User {} has been active at {}", userName, lastActivity);
+                }
+            }
+            else
+            {
+                LOGGER.trace("Ignoring user {} which is not marked as being authorised", userName);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterProcess() throws Throwable
+    {
+        // users are only published on commit - afterProcess is also called when the last attempt of a batch failed
+        // reset so that the next batch does not inherit state in case it fails before reaching process
+        this.usersTxn.remove();
+    }
+
+    protected void handleCommit()
+    {
+        final List<DeauthorisationUserInfo> usersTxn = this.usersTxn.get();
+        this.usersTxn.remove();
+        this.candidates.addAndGet(usersTxn.size());
+        int withoutActivity = 0;
+        for (final DeauthorisationUserInfo user : usersTxn)
+        {
+            if (user.getLastActivity() == null)
+            {
+                withoutActivity++;
+            }
+        }
+        this.candidatesWithoutActivity.addAndGet(withoutActivity);
+        if (this.pipeline != null)
+        {
+            // blocks while the deauthorisation falls behind - the transaction of the batch has already been completed
+            this.pipeline.putAll(usersTxn);
+        }
+        else if (this.workFileWriter != null)
+        {
+            this.workFileWriter.addAll(usersTxn);
+        }
+        else
+        {
+            this.users.addAll(usersTxn);
+        }
+    }
+
+    protected Long determineLastActivity(final String userName)
+    {
+        return this.activityIndex.getLastActivity(userName);
+    }
+
+    /**
+     * @return the number of inactive, authorised users found so far in successfully processed batches
+     */
+    public int getCandidates()
+    {
+        return this.candidates.get();
+    }
+
+    /**
+     * Retrieves the number of inactive, authorised users found so far without any known activity. As these users are considered to be
+     * inactive the longest, no user found later can take precedence over them when deauthorising the longest inactive users first.
+     *
+     * @return the number of inactive, authorised users without any known activity found so far in successfully processed batches
+     */
+    public int getCandidatesWithoutActivity()
+    {
+        return this.candidatesWithoutActivity.get();
+    }
+
+    /**
+     * Retrieves the inactive users that are currently authorised. This operation may only be called once after the processing has been
+     * completed.
+     *
+     * @return the work set of inactive, authorised users
+     */
+    public DeauthorisationWorkSet getUsers()
+    {
+        return this.users.build();
+    }
+}
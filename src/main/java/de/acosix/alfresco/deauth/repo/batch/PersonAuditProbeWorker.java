@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * A batch process worker implementation that determines inactive, authorised users by probing the last activity of each person via a
+ * single audit query limited to the newest audit entry of the user. As the cost of the probe for a person does not depend on the number of
+ * audit entries recorded for the user, heavy users cost the same as light users. The authorisation check of the worker is run before the
+ * probe, so that no audit queries are run for users that are not authorised. The probe is not restricted to the time since which users
+ * without activity are considered inactive, so that the last activity of inactive users is known as well, e.g. to deauthorise the users
+ * inactive for the longest time first - reading the newest entry of a user costs the same either way.
+ *
+ * @author Axel Faust
+ */
+public class PersonAuditProbeWorker extends PersonActivityIndexWorker
+{
+
+    protected final AuditActivityScanner scanner;
+
+    public PersonAuditProbeWorker(final long fromTime, final AuditActivityScanner scanner, final NodeService nodeService)
+    {
+        super(fromTime, nodeService);
+        ParameterCheck.mandatory("scanner", scanner);
+        this.scanner = scanner;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Long determineLastActivity(final String userName)
+    {
+        return this.scanner.probeLastActivity(userName, 0);
+    }
+}
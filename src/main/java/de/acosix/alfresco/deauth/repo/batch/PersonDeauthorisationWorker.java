@@ -15,18 +15,36 @@
  */
 package de.acosix.alfresco.deauth.repo.batch;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import org.alfresco.enterprise.repo.authorization.AuthorizationService;
 import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.util.transaction.TransactionSupportUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisedUserRow;
+
 /**
- * A batch process worker implementation that deauthorises users with regards to the Enterprise-only license management.
+ * A batch process worker implementation that deauthorises users with regards to the Enterprise-only license management. Whenever the worker
+ * is used by multiple threads (e.g. {@link PartitionedDeauthorisationProcessor parallel lanes}), writes to the authorisation state are
+ * serialised: a transaction acquires a lock shared by all threads before its first deauthorisation and only releases it once it has been
+ * committed or rolled back. All reads (checking the authorisation state, protected authorities, recent activity and loading the report
+ * details) remain concurrent. The {@code AuthorizationService} keeps the authorisation state in a structure shared by all users, so
+ * concurrent write transactions conflict regardless of which users they deauthorise.
  *
  * @author Axel Faust
  */
@@ -54,14 +72,111 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
         }
     };
 
+    protected final ThreadLocal<List<DeauthorisedUserRow>> reportRowsTxn = new ThreadLocal<List<DeauthorisedUserRow>>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected List<DeauthorisedUserRow> initialValue()
+        {
+            return new ArrayList<>();
+        }
+    };
+
+    protected final ThreadLocal<List<String>> deauthorisedUsersTxn = new ThreadLocal<List<String>>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected List<String> initialValue()
+        {
+            return new ArrayList<>();
+        }
+    };
+
+    protected final ThreadLocal<List<DeauthorisationUserInfo>> processedTxn = new ThreadLocal<List<DeauthorisationUserInfo>>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected List<DeauthorisationUserInfo> initialValue()
+        {
+            return new ArrayList<>();
+        }
+    };
+
+    protected final ThreadLocal<Long> txnStartTxn = new ThreadLocal<>();
+
+    protected final ThreadLocal<Long> commitStartTxn = new ThreadLocal<>();
+
+    protected final TransactionListener commitHandler = new TransactionListenerAdapter()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void beforeCommit(final boolean readOnly)
+        {
+            PersonDeauthorisationWorker.this.commitStartTxn.set(Long.valueOf(System.nanoTime()));
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            PersonDeauthorisationWorker.this.handleCommit();
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterRollback()
+        {
+            PersonDeauthorisationWorker.this.handleRollback();
+        }
+    };
+
     protected final AtomicInteger deauthorised = new AtomicInteger(0);
 
+    // fair to avoid starving individual lanes
+    protected final ReentrantLock writeLock = new ReentrantLock(true);
+
     protected final boolean dryRun;
 
     protected final AuthorityService authorityService;
 
     protected final AuthorizationService authorisationService;
 
+    protected DeauthorisationReport report;
+
+    protected AuthorisationStateSnapshot authorisationStateSnapshot;
+
+    protected ProtectedAuthorities protectedAuthorities;
+
+    protected Function<String, Boolean> recentActivityCheck;
+
+    protected DeauthorisationBatchListener batchListener;
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    protected AdaptiveBatchSizer adaptiveBatchSizer;
+
     public PersonDeauthorisationWorker(final boolean dryRun, final AuthorityService authorityService,
             final AuthorizationService authorisationService)
     {
@@ -70,6 +185,96 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
         this.authorisationService = authorisationService;
     }
 
+    /**
+     * Sets the report to which any deauthorised users should be written as soon as their deauthorisation has been committed.
+     *
+     * @param report
+     *            the report to set
+     */
+    public void setReport(final DeauthorisationReport report)
+    {
+        this.report = report;
+    }
+
+    /**
+     * Sets the snapshot of authorisation states to use instead of checking the authorisation state of each user via the authorisation
+     * service. The snapshot will be updated with any deauthorisations once they have been committed.
+     *
+     * @param authorisationStateSnapshot
+     *            the authorisationStateSnapshot to set
+     */
+    public void setAuthorisationStateSnapshot(final AuthorisationStateSnapshot authorisationStateSnapshot)
+    {
+        this.authorisationStateSnapshot = authorisationStateSnapshot;
+    }
+
+    /**
+     * Sets the protected authorities to use instead of checking whether each user is a special admin / guest authority via the authority
+     * service.
+     *
+     * @param protectedAuthorities
+     *            the protectedAuthorities to set
+     */
+    public void setProtectedAuthorities(final ProtectedAuthorities protectedAuthorities)
+    {
+        this.protectedAuthorities = protectedAuthorities;
+    }
+
+    /**
+     * Sets the check whether a user has been active since the users to process have been determined, e.g. when applying a
+     * {@link DeauthorisationPlan plan} created by an earlier dry run. Users for which this check yields {@code true} will not be
+     * deauthorised.
+     *
+     * @param recentActivityCheck
+     *            the recentActivityCheck to set
+     */
+    public void setRecentActivityCheck(final Function<String, Boolean> recentActivityCheck)
+    {
+        this.recentActivityCheck = recentActivityCheck;
+    }
+
+    /**
+     * Sets the listener to notify whenever a batch of users has been committed.
+     *
+     * @param batchListener
+     *            the batchListener to set
+     */
+    public void setBatchListener(final DeauthorisationBatchListener batchListener)
+    {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Sets the registry to which metrics about the deauthorisation calls and the batch transactions should be recorded.
+     *
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : NoOpMetricsRegistry.INSTANCE;
+    }
+
+    /**
+     * Sets the sizer to which the duration of committed and the number of rolled back batch transactions should be reported, and which
+     * will be used to determine the size of batches when this worker is driven by a {@link PartitionedDeauthorisationProcessor}.
+     *
+     * @param adaptiveBatchSizer
+     *            the adaptiveBatchSizer to set
+     */
+    public void setAdaptiveBatchSizer(final AdaptiveBatchSizer adaptiveBatchSizer)
+    {
+        this.adaptiveBatchSizer = adaptiveBatchSizer;
+    }
+
+    /**
+     * @return the adaptiveBatchSizer or {@code null} if batches are not sized adaptively
+     */
+    public AdaptiveBatchSizer getAdaptiveBatchSizer()
+    {
+        return this.adaptiveBatchSizer;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -85,7 +290,7 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
     @Override
     public String getIdentifier(final DeauthorisationUserInfo entry)
     {
-        final String userName = entry.getAuditUserInfo().getUserName();
+        final String userName = entry.getUserName();
         return userName;
     }
 
@@ -101,29 +306,55 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
         {
             // reset cannot be in beforeProcess - only process is covered by retrying txn helper
             this.deauthorisedTxn.remove();
+            this.reportRowsTxn.remove();
+            this.deauthorisedUsersTxn.remove();
+            this.processedTxn.remove();
+            this.commitStartTxn.remove();
+            this.txnStartTxn.set(Long.valueOf(System.nanoTime()));
 
             TransactionSupportUtil.bindResource(TXN_KEY_RUN_INITIALISED, Boolean.TRUE);
+            // always bound as commit / rollback are relevant for metrics
+            AlfrescoTransactionSupport.bindListener(this.commitHandler);
+            this.metricsRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_TXN_STARTED, 1);
         }
-        final String userName = entry.getAuditUserInfo().getUserName();
+        final String userName = entry.getUserName();
 
-        final boolean wasAuthorised = this.authorisationService.isAuthorized(userName);
+        final boolean wasAuthorised = this.authorisationStateSnapshot != null ? this.authorisationStateSnapshot.isAuthorised(userName)
+                : this.authorisationService.isAuthorized(userName);
+        final boolean isProtected = this.protectedAuthorities != null ? this.protectedAuthorities.isProtected(userName)
+                : (this.authorityService.isAdminAuthority(userName) || this.authorityService.isGuestAuthority(userName));
         final boolean deauthorised;
-        if (!(this.authorityService.isAdminAuthority(userName) || this.authorityService.isGuestAuthority(userName)))
+        if (!isProtected)
         {
-            if (wasAuthorised)
+            if (wasAuthorised && this.recentActivityCheck != null && Boolean.TRUE.equals(this.recentActivityCheck.apply(userName)))
+            {
+                LOGGER.debug("Not deauthorising user {} which has been active since the deauthorisation was planned", userName);
+                deauthorised = false;
+            }
+            else if (wasAuthorised)
             {
                 LOGGER.debug("Deauthorising user {}{}", userName, this.dryRun ? " (dry-run)" : "");
                 if (!this.dryRun)
                 {
+                    this.acquireWriteLock();
+                    final long start = System.nanoTime();
                     this.authorisationService.deauthorize(userName);
+                    this.metricsRegistry.recordDuration(DeauthorisationMetrics.DEAUTHORISATION_DEAUTHORIZE_CALL, userName,
+                            System.nanoTime() - start);
                 }
+                this.deauthorisedUsersTxn.get().add(userName);
                 this.deauthorisedTxn.get().incrementAndGet();
+                if (this.report != null)
+                {
+                    this.reportRowsTxn.get().add(this.report.createRow(entry));
+                }
+                deauthorised = true;
             }
             else
             {
                 LOGGER.debug("Not deauthorising user {} which is not marked as being authorised", userName);
+                deauthorised = false;
             }
-            deauthorised = wasAuthorised;
         }
         else
         {
@@ -131,6 +362,7 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
             deauthorised = false;
         }
         entry.setDeauthorised(deauthorised);
+        this.processedTxn.get().add(entry);
     }
 
     /**
@@ -139,7 +371,10 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
     @Override
     public void afterProcess() throws Throwable
     {
-        this.deauthorised.addAndGet(this.deauthorisedTxn.get().intValue());
+        // counters and report rows are only published on commit - afterProcess is also called when the last attempt of a batch failed
+        // reset so that the next batch does not inherit state in case it fails before reaching process
+        this.deauthorisedTxn.remove();
+        this.reportRowsTxn.remove();
     }
 
     /**
@@ -151,4 +386,96 @@ public class PersonDeauthorisationWorker extends BatchProcessWorkerAdaptor<Deaut
     {
         return this.deauthorised.intValue();
     }
+
+    protected void handleCommit()
+    {
+        try
+        {
+            this.publishCommit();
+        }
+        finally
+        {
+            this.releaseWriteLock();
+        }
+    }
+
+    protected void publishCommit()
+    {
+        final int deauthorisedCount = this.deauthorisedTxn.get().intValue();
+        final List<DeauthorisedUserRow> reportRows = this.reportRowsTxn.get();
+        final List<String> deauthorisedUsers = this.deauthorisedUsersTxn.get();
+        final List<DeauthorisationUserInfo> processed = this.processedTxn.get();
+        final Long commitStart = this.commitStartTxn.get();
+        final Long txnStart = this.txnStartTxn.get();
+        this.deauthorisedTxn.remove();
+        this.reportRowsTxn.remove();
+        this.deauthorisedUsersTxn.remove();
+        this.processedTxn.remove();
+        this.commitStartTxn.remove();
+        this.txnStartTxn.remove();
+
+        if (this.adaptiveBatchSizer != null && txnStart != null)
+        {
+            this.adaptiveBatchSizer.onBatchCommitted(processed.size(), System.nanoTime() - txnStart.longValue());
+        }
+
+        if (commitStart != null)
+        {
+            final long commitDuration = System.nanoTime() - commitStart.longValue();
+            this.metricsRegistry.recordDuration(DeauthorisationMetrics.DEAUTHORISATION_BATCH_COMMIT, commitDuration);
+        }
+        this.metricsRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_TXN_COMMITTED, 1);
+        this.metricsRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_USERS_PROCESSED, processed.size());
+        this.metricsRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_USERS_DEAUTHORISED, deauthorisedUsers.size());
+
+        this.deauthorised.addAndGet(deauthorisedCount);
+        if (this.report != null)
+        {
+            this.report.writeUsers(reportRows);
+        }
+
+        if (this.authorisationStateSnapshot != null && !this.dryRun)
+        {
+            deauthorisedUsers.forEach(this.authorisationStateSnapshot::markDeauthorised);
+        }
+        if (this.batchListener != null)
+        {
+            this.batchListener.onBatchCommitted(processed, deauthorisedUsers.size());
+        }
+    }
+
+    protected void handleRollback()
+    {
+        // rolled back transactions are typically retried by the batch processor (e.g. due to concurrency conflicts)
+        // if this was the last attempt, nothing of it must be counted / reported
+        this.deauthorisedTxn.remove();
+        this.reportRowsTxn.remove();
+        this.deauthorisedUsersTxn.remove();
+        this.processedTxn.remove();
+        this.commitStartTxn.remove();
+        this.txnStartTxn.remove();
+        this.releaseWriteLock();
+        this.metricsRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_TXN_ROLLED_BACK, 1);
+        if (this.adaptiveBatchSizer != null)
+        {
+            this.adaptiveBatchSizer.onBatchRolledBack();
+        }
+    }
+
+    protected void acquireWriteLock() throws InterruptedException
+    {
+        if (!this.writeLock.isHeldByCurrentThread())
+        {
+            // released by commitHandler
+            this.writeLock.lockInterruptibly();
+        }
+    }
+
+    protected void releaseWriteLock()
+    {
+        if (this.writeLock.isHeldByCurrentThread())
+        {
+            this.writeLock.unlock();
+        }
+    }
 }
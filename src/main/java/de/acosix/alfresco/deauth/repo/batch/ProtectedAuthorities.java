@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class provide an immutable lookup of the users which must never be deauthorised as they are special admin / guest
+ * authorities, either directly or via membership in one of the admin / guest groups.
+ *
+ * @author Axel Faust
+ */
+public class ProtectedAuthorities
+{
+
+    protected final Set<String> userKeys;
+
+    public ProtectedAuthorities(final Collection<String> userNames)
+    {
+        ParameterCheck.mandatory("userNames", userNames);
+        final Set<String> userKeys = new HashSet<>(userNames.size() * 2);
+        for (final String userName : userNames)
+        {
+            userKeys.add(toKey(userName));
+        }
+        this.userKeys = Collections.unmodifiableSet(userKeys);
+    }
+
+    /**
+     * Checks whether a user is protected from being deauthorised.
+     *
+     * @param userName
+     *            the name of the user to check
+     * @return {@code true} if the user is a special admin / guest authority, {@code false} otherwise
+     */
+    public boolean isProtected(final String userName)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        return this.userKeys.contains(toKey(userName));
+    }
+
+    /**
+     * @return the number of protected users
+     */
+    public int size()
+    {
+        return this.userKeys.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ProtectedAuthorities [userKeys=");
+        builder.append(this.userKeys);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected static String toKey(final String userName)
+    {
+        // user names are case-insensitive by default
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies.OnCreateChildAssociationPolicy;
+import org.alfresco.repo.node.NodeServicePolicies.OnDeleteChildAssociationPolicy;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Instances of this class resolve the set of {@link ProtectedAuthorities protected authorities} once and cache it until the membership of
+ * any group is changed, so that deauthorisation runs do not need to check each individual user via the {@link AuthorityService}, which
+ * would resolve all containing authorities of the user in group-based admin setups. In multi-tenant setups, the protected authorities are
+ * resolved and cached separately for each tenant.
+ *
+ * @author Axel Faust
+ */
+public class ProtectedAuthorityResolver implements InitializingBean, OnCreateChildAssociationPolicy, OnDeleteChildAssociationPolicy
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProtectedAuthorityResolver.class);
+
+    protected final AtomicLong generation = new AtomicLong(0);
+
+    protected final TransactionListener invalidationHandler = new TransactionListenerAdapter()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            ProtectedAuthorityResolver.this.invalidate();
+        }
+    };
+
+    protected AuthorityService authorityService;
+
+    protected PolicyComponent policyComponent;
+
+    protected Set<String> adminGroups = Collections.emptySet();
+
+    protected Set<String> guestGroups = Collections.emptySet();
+
+    protected Set<String> protectedUsers = Collections.emptySet();
+
+    protected final Map<String, ProtectedAuthorities> protectedAuthoritiesByDomain = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "authorityService", this.authorityService);
+        PropertyCheck.mandatory(this, "policyComponent", this.policyComponent);
+
+        // any change in group membership may affect the protected authorities
+        this.policyComponent.bindAssociationBehaviour(OnCreateChildAssociationPolicy.QNAME, ContentModel.TYPE_AUTHORITY_CONTAINER,
+                ContentModel.ASSOC_MEMBER, new JavaBehaviour(this, "onCreateChildAssociation", NotificationFrequency.EVERY_EVENT));
+        this.policyComponent.bindAssociationBehaviour(OnDeleteChildAssociationPolicy.QNAME, ContentModel.TYPE_AUTHORITY_CONTAINER,
+                ContentModel.ASSOC_MEMBER, new JavaBehaviour(this, "onDeleteChildAssociation", NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * @param authorityService
+     *            the authorityService to set
+     */
+    public void setAuthorityService(final AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param policyComponent
+     *            the policyComponent to set
+     */
+    public void setPolicyComponent(final PolicyComponent policyComponent)
+    {
+        this.policyComponent = policyComponent;
+    }
+
+    /**
+     * @param adminGroups
+     *            the comma-separated names of the groups whose (transitive) members are admin authorities
+     */
+    public void setAdminGroups(final String adminGroups)
+    {
+        this.adminGroups = this.parseNames(adminGroups);
+    }
+
+    /**
+     * @param guestGroups
+     *            the comma-separated names of the groups whose (transitive) members are guest authorities
+     */
+    public void setGuestGroups(final String guestGroups)
+    {
+        this.guestGroups = this.parseNames(guestGroups);
+    }
+
+    /**
+     * @param protectedUsers
+     *            the comma-separated names of users to protect in addition to the default admin and guest users
+     */
+    public void setProtectedUsers(final String protectedUsers)
+    {
+        this.protectedUsers = this.parseNames(protectedUsers);
+    }
+
+    /**
+     * Retrieves the protected authorities of the current tenant, resolving them if they have not been resolved yet or group membership has
+     * changed since.
+     *
+     * @return the protected authorities
+     */
+    public ProtectedAuthorities getProtectedAuthorities()
+    {
+        final String tenantDomain = TenantUtil.getCurrentDomain();
+        ProtectedAuthorities protectedAuthorities = this.protectedAuthoritiesByDomain.get(tenantDomain);
+        if (protectedAuthorities == null)
+        {
+            final long generation = this.generation.get();
+            protectedAuthorities = TenantUtil.runAsSystemTenant(() -> {
+                return this.resolveProtectedAuthorities(tenantDomain);
+            }, tenantDomain);
+            synchronized (this)
+            {
+                // don't cache if invalidated concurrently as the result may not reflect the change
+                if (this.generation.get() == generation)
+                {
+                    this.protectedAuthoritiesByDomain.put(tenantDomain, protectedAuthorities);
+                }
+            }
+        }
+        return protectedAuthorities;
+    }
+
+    /**
+     * Discards the cached protected authorities so that they will be resolved again on the next access.
+     */
+    public synchronized void invalidate()
+    {
+        this.generation.incrementAndGet();
+        this.protectedAuthoritiesByDomain.clear();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreateChildAssociation(final ChildAssociationRef childAssocRef, final boolean isNewNode)
+    {
+        AlfrescoTransactionSupport.bindListener(this.invalidationHandler);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDeleteChildAssociation(final ChildAssociationRef childAssocRef)
+    {
+        AlfrescoTransactionSupport.bindListener(this.invalidationHandler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ProtectedAuthorityResolver [adminGroups=");
+        builder.append(this.adminGroups);
+        builder.append(", guestGroups=");
+        builder.append(this.guestGroups);
+        builder.append(", protectedUsers=");
+        builder.append(this.protectedUsers);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected ProtectedAuthorities resolveProtectedAuthorities(final String tenantDomain)
+    {
+        final Set<String> userNames = new HashSet<>(this.protectedUsers);
+        if (TenantService.DEFAULT_DOMAIN.equals(tenantDomain))
+        {
+            userNames.add(AuthenticationUtil.getAdminUserName());
+            userNames.add(AuthenticationUtil.getGuestUserName());
+        }
+        else
+        {
+            userNames.add(AuthenticationUtil.getAdminUserName() + TenantService.SEPARATOR + tenantDomain);
+            userNames.add(AuthenticationUtil.getGuestUserName() + TenantService.SEPARATOR + tenantDomain);
+        }
+
+        final Set<String> groups = new LinkedHashSet<>(this.adminGroups);
+        groups.addAll(this.guestGroups);
+        for (final String group : groups)
+        {
+            if (this.authorityService.authorityExists(group))
+            {
+                userNames.addAll(this.authorityService.getContainedAuthorities(AuthorityType.USER, group, false));
+            }
+            else
+            {
+                LOGGER.debug("Protected group {} does not exist", group);
+            }
+        }
+
+        final ProtectedAuthorities protectedAuthorities = new ProtectedAuthorities(userNames);
+        LOGGER.debug("Resolved {} protected admin / guest users in tenant domain \"{}\"", protectedAuthorities.size(), tenantDomain);
+        return protectedAuthorities;
+    }
+
+    protected Set<String> parseNames(final String names)
+    {
+        final Set<String> parsed = new LinkedHashSet<>();
+        if (names != null)
+        {
+            for (final String name : names.split(","))
+            {
+                if (!name.trim().isEmpty())
+                {
+                    parsed.add(name.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(parsed);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the partial result of the inactive user query for a single shard of the person space, i.e. the users of
+ * the shard which have been determined to be inactive and are currently authorised.
+ *
+ * @author Axel Faust
+ */
+public class QueryShardResult implements Serializable
+{
+
+    private static final long serialVersionUID = -6170465470869424651L;
+
+    protected final int shard;
+
+    protected transient String[] userNames;
+
+    protected transient NodeRef[] personRefs;
+
+    public QueryShardResult(final int shard, final List<DeauthorisationUserInfo> users)
+    {
+        ParameterCheck.mandatory("users", users);
+        this.shard = shard;
+        this.userNames = new String[users.size()];
+        this.personRefs = new NodeRef[users.size()];
+        for (int idx = 0; idx < users.size(); idx++)
+        {
+            final DeauthorisationUserInfo user = users.get(idx);
+            this.userNames[idx] = user.getUserName();
+            this.personRefs[idx] = user.getPersonRef();
+        }
+    }
+
+    /**
+     * @return the shard
+     */
+    public int getShard()
+    {
+        return this.shard;
+    }
+
+    /**
+     * @return the number of users in this result
+     */
+    public int size()
+    {
+        return this.userNames.length;
+    }
+
+    /**
+     * Adds the users of this result to a work set.
+     *
+     * @param workSet
+     *            the builder of the work set to add to
+     */
+    public void addUsersTo(final DeauthorisationWorkSet.Builder workSet)
+    {
+        ParameterCheck.mandatory("workSet", workSet);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            workSet.add(this.userNames[idx], this.personRefs[idx], null);
+        }
+    }
+
+    /**
+     * Retrieves the users of this result.
+     *
+     * @return the list of users
+     */
+    public List<DeauthorisationUserInfo> getUsers()
+    {
+        final List<DeauthorisationUserInfo> users = new ArrayList<>(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            users.add(new DeauthorisationUserInfo(this.userNames[idx], this.personRefs[idx], null));
+        }
+        return users;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        // compact format - avoid serialising every single user as an object graph
+        out.writeInt(this.userNames.length);
+        for (int idx = 0; idx < this.userNames.length; idx++)
+        {
+            out.writeUTF(this.userNames[idx]);
+            out.writeUTF(this.personRefs[idx].toString());
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        final int size = in.readInt();
+        this.userNames = new String[size];
+        this.personRefs = new NodeRef[size];
+        for (int idx = 0; idx < size; idx++)
+        {
+            this.userNames[idx] = in.readUTF();
+            this.personRefs[idx] = new NodeRef(in.readUTF());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("QueryShardResult [shard=");
+        builder.append(this.shard);
+        builder.append(", size=");
+        builder.append(this.userNames.length);
+        builder.append("]");
+        return builder.toString();
+    }
+}
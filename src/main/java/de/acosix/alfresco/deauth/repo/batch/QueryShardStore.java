@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class share the {@link QueryShardResult partial results} of the inactive user query between the nodes of a cluster
+ * via the {@link AttributeService}. As the attribute service supports at most three keys per attribute, the name of the store and the
+ * key of a run are each combined with another key.
+ *
+ * @author Axel Faust
+ */
+public class QueryShardStore
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryShardStore.class);
+
+    protected static final String ATTR_KEY_ROOT = "acosix-deauth";
+
+    protected static final String ATTR_KEY_QUERY_SHARD = "queryShard";
+
+    protected final AttributeService attributeService;
+
+    protected final String storeName;
+
+    protected final String storeKey;
+
+    public QueryShardStore(final AttributeService attributeService, final String storeName)
+    {
+        ParameterCheck.mandatory("attributeService", attributeService);
+        ParameterCheck.mandatoryString("storeName", storeName);
+        this.attributeService = attributeService;
+        this.storeName = storeName;
+        this.storeKey = ATTR_KEY_QUERY_SHARD + "|" + storeName;
+    }
+
+    /**
+     * Checks whether the result for a shard of a specific run has already been published.
+     *
+     * @param runKey
+     *            the key of the run
+     * @param shard
+     *            the shard
+     * @return {@code true} if the result has been published, {@code false} otherwise
+     */
+    public boolean isCompleted(final String runKey, final int shard)
+    {
+        ParameterCheck.mandatoryString("runKey", runKey);
+        return this.attributeService.exists(ATTR_KEY_ROOT, this.storeKey, toShardKey(runKey, shard));
+    }
+
+    /**
+     * Publishes the result for a shard of a specific run.
+     *
+     * @param runKey
+     *            the key of the run
+     * @param result
+     *            the result of the shard
+     */
+    public void save(final String runKey, final QueryShardResult result)
+    {
+        ParameterCheck.mandatoryString("runKey", runKey);
+        ParameterCheck.mandatory("result", result);
+        LOGGER.debug("Publishing {} of run {}", result, runKey);
+        this.attributeService.setAttribute(result, ATTR_KEY_ROOT, this.storeKey, toShardKey(runKey, result.getShard()));
+    }
+
+    /**
+     * Loads the combined results of all shards of a specific run.
+     *
+     * @param runKey
+     *            the key of the run
+     * @param shards
+     *            the number of shards
+     * @return the users of all shards or {@code null} if the results of some shards have not yet been published
+     */
+    public DeauthorisationWorkSet loadAll(final String runKey, final int shards)
+    {
+        ParameterCheck.mandatoryString("runKey", runKey);
+
+        DeauthorisationWorkSet.Builder users = new DeauthorisationWorkSet.Builder();
+        for (int shard = 0; shard < shards && users != null; shard++)
+        {
+            final Serializable value = this.attributeService.getAttribute(ATTR_KEY_ROOT, this.storeKey, toShardKey(runKey, shard));
+            if (value instanceof QueryShardResult)
+            {
+                ((QueryShardResult) value).addUsersTo(users);
+            }
+            else
+            {
+                LOGGER.debug("Result of shard {} of run {} has not been published yet", shard, runKey);
+                users = null;
+            }
+        }
+        return users != null ? users.build() : null;
+    }
+
+    /**
+     * Removes the results of all shards of all runs.
+     */
+    public void clear()
+    {
+        this.attributeService.removeAttributes(ATTR_KEY_ROOT, this.storeKey);
+    }
+
+    protected static String toShardKey(final String runKey, final int shard)
+    {
+        return shard + "|" + runKey;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Locale;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class restrict the person nodes provided by another work provider to a single shard of the person space, as
+ * determined by the hash of the user name. This operation must be used within an active transaction as it needs to load the user name of
+ * each person.
+ *
+ * @author Axel Faust
+ */
+public class ShardFilteringPersonWorkProvider extends FilteringPersonWorkProvider
+{
+
+    protected final int shard;
+
+    protected final int shards;
+
+    public ShardFilteringPersonWorkProvider(final BatchProcessWorkProvider<NodeRef> delegate, final NodeService nodeService,
+            final int shard, final int shards)
+    {
+        super(delegate, nodeService);
+        if (shards <= 0)
+        {
+            throw new IllegalArgumentException("Number of shards must be a positive integer");
+        }
+        if (shard < 0 || shard >= shards)
+        {
+            throw new IllegalArgumentException("Shard must be between 0 and the number of shards (exclusive)");
+        }
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Determines the shard of the person space a user belongs to.
+     *
+     * @param userName
+     *            the name of the user
+     * @param shards
+     *            the number of shards
+     * @return the shard of the user
+     */
+    public static int determineShard(final String userName, final int shards)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        // user names are case-insensitive by default
+        final int shard = Math.floorMod(userName.toLowerCase(Locale.ENGLISH).hashCode(), shards);
+        return shard;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTotalEstimatedWorkSize()
+    {
+        final int totalEstimatedWorkSize = this.delegate.getTotalEstimatedWorkSize();
+        return (totalEstimatedWorkSize + this.shards - 1) / this.shards;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean accept(final String userName)
+    {
+        return determineShard(userName, this.shards) == this.shard;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ShardFilteringPersonWorkProvider [shard=");
+        builder.append(this.shard);
+        builder.append(", shards=");
+        builder.append(this.shards);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class provide the work of another work provider until a stop condition has been met. As an empty page of work signals
+ * completion to a {@link org.alfresco.repo.batch.BatchProcessor batch processor}, this ends a batch process early, e.g. as soon as enough
+ * results have been found. The condition is checked before each page is requested, so batches already handed out are still processed.
+ *
+ * @param <T>
+ *            the type of the work entries
+ * @author Axel Faust
+ */
+public class StoppingWorkProvider<T> implements BatchProcessWorkProvider<T>
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoppingWorkProvider.class);
+
+    protected final BatchProcessWorkProvider<T> delegate;
+
+    protected final BooleanSupplier stopCondition;
+
+    protected boolean stopped = false;
+
+    public StoppingWorkProvider(final BatchProcessWorkProvider<T> delegate, final BooleanSupplier stopCondition)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("stopCondition", stopCondition);
+        this.delegate = delegate;
+        this.stopCondition = stopCondition;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTotalEstimatedWorkSize()
+    {
+        return this.delegate.getTotalEstimatedWorkSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<T> getNextWork()
+    {
+        if (!this.stopped && this.stopCondition.getAsBoolean())
+        {
+            LOGGER.debug("Stop condition met - not providing any further work from {}", this.delegate);
+            this.stopped = true;
+        }
+
+        final Collection<T> work = this.stopped ? Collections.emptyList() : this.delegate.getNextWork();
+        return work;
+    }
+
+    /**
+     * @return {@code true} if this instance stopped providing work due to its stop condition, {@code false} otherwise
+     */
+    public boolean isStopped()
+    {
+        return this.stopped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("StoppingWorkProvider [delegate=");
+        builder.append(this.delegate);
+        builder.append(", stopped=");
+        builder.append(this.stopped);
+        builder.append("]");
+        return builder.toString();
+    }
+}
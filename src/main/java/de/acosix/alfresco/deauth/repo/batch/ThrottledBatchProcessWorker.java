@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class decorate a batch process worker to apply a {@link DeauthorisationThrottle} after each batch, i.e. outside of
+ * the batch transaction.
+ *
+ * @param <T>
+ *            the type of entries being processed
+ * @author Axel Faust
+ */
+public class ThrottledBatchProcessWorker<T> implements BatchProcessWorker<T>
+{
+
+    protected final BatchProcessWorker<T> delegate;
+
+    protected final DeauthorisationThrottle throttle;
+
+    protected final ThreadLocal<int[]> processedInBatch = new ThreadLocal<int[]>()
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
+
+    public ThrottledBatchProcessWorker(final BatchProcessWorker<T> delegate, final DeauthorisationThrottle throttle)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("throttle", throttle);
+        this.delegate = delegate;
+        this.throttle = throttle;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIdentifier(final T entry)
+    {
+        return this.delegate.getIdentifier(entry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeProcess() throws Throwable
+    {
+        this.processedInBatch.get()[0] = 0;
+        this.delegate.beforeProcess();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final T entry) throws Throwable
+    {
+        // retried entries are counted again, as they caused load again
+        this.processedInBatch.get()[0]++;
+        this.delegate.process(entry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterProcess() throws Throwable
+    {
+        try
+        {
+            this.delegate.afterProcess();
+        }
+        finally
+        {
+            final int processed = this.processedInBatch.get()[0];
+            this.processedInBatch.remove();
+            this.throttle.acquire(processed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ThrottledBatchProcessWorker [delegate=");
+        builder.append(this.delegate);
+        builder.append(", throttle=");
+        builder.append(this.throttle);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Collection;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class retrieve each page of work from another work provider in a short read-only transaction of its own. A
+ * {@link org.alfresco.repo.batch.BatchProcessor batch processor} requests work outside of the transactions of its batches, so work
+ * providers reading persons from the repository would otherwise need to be run within a transaction spanning the entire batch process.
+ * If a transaction is already active when work is requested, it is used instead.
+ *
+ * @param <T>
+ *            the type of the work entries
+ * @author Axel Faust
+ */
+public class TransactionalWorkProvider<T> implements BatchProcessWorkProvider<T>
+{
+
+    protected final BatchProcessWorkProvider<T> delegate;
+
+    protected final RetryingTransactionHelper txnHelper;
+
+    public TransactionalWorkProvider(final BatchProcessWorkProvider<T> delegate, final RetryingTransactionHelper txnHelper)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("txnHelper", txnHelper);
+        this.delegate = delegate;
+        this.txnHelper = txnHelper;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTotalEstimatedWorkSize()
+    {
+        return this.txnHelper.doInTransaction(() -> Integer.valueOf(this.delegate.getTotalEstimatedWorkSize()), true, false).intValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<T> getNextWork()
+    {
+        return this.txnHelper.doInTransaction(this.delegate::getNextWork, true, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("TransactionalWorkProvider [delegate=");
+        builder.append(this.delegate);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the last known activity of users as determined from audit data. An index is meant to be filled by a single
+ * thread (e.g. {@link AuditActivityScanner}) and may be read concurrently once filling has been completed. Instances are serialisable in a
+ * compact format so that they can be persisted and incrementally updated by subsequent runs.
+ *
+ * @author Axel Faust
+ */
+public class UserActivityIndex implements Serializable
+{
+
+    private static final long serialVersionUID = -3484316380212455017L;
+
+    protected final String configurationKey;
+
+    protected long coveredFromTime;
+
+    protected transient Map<String, Long> lastActivityByUser = new HashMap<>();
+
+    protected Long highestEntryId;
+
+    public UserActivityIndex(final String configurationKey, final long coveredFromTime)
+    {
+        ParameterCheck.mandatoryString("configurationKey", configurationKey);
+        this.configurationKey = configurationKey;
+        this.coveredFromTime = coveredFromTime;
+    }
+
+    /**
+     * @return the key of the configuration used to fill this index
+     */
+    public String getConfigurationKey()
+    {
+        return this.configurationKey;
+    }
+
+    /**
+     * @return the earliest point in time from which all user activity is guaranteed to have been recorded in this index
+     */
+    public long getCoveredFromTime()
+    {
+        return this.coveredFromTime;
+    }
+
+    /**
+     * Checks if this index can be used / incrementally updated for a specific configuration and time frame.
+     *
+     * @param configurationKey
+     *            the key of the configuration which will be used to fill this index
+     * @param fromTime
+     *            the earliest point in time for which user activity needs to be known
+     * @return {@code true} if this index is compatible, {@code false} otherwise
+     */
+    public boolean isCompatible(final String configurationKey, final long fromTime)
+    {
+        final boolean compatible = this.configurationKey.equals(configurationKey) && this.coveredFromTime <= fromTime;
+        return compatible;
+    }
+
+    /**
+     * Removes all recorded activity that lies before a specific point in time. As this index is only used to determine whether users have
+     * been active since a specific point in time, activity before that point is equivalent to no recorded activity at all.
+     *
+     * @param fromTime
+     *            the earliest point in time for which to retain user activity
+     */
+    public void prune(final long fromTime)
+    {
+        if (fromTime > this.coveredFromTime)
+        {
+            final Iterator<Long> iterator = this.lastActivityByUser.values().iterator();
+            while (iterator.hasNext())
+            {
+                if (iterator.next().longValue() < fromTime)
+                {
+                    iterator.remove();
+                }
+            }
+            this.coveredFromTime = fromTime;
+        }
+    }
+
+    /**
+     * Creates an independent copy of this index restricted to the activity since a specific point in time, e.g. to allow the copy to be
+     * read concurrently while this index continues to be updated.
+     *
+     * @param fromTime
+     *            the earliest point in time for which to retain user activity in the copy
+     * @return the copy of this index
+     */
+    public UserActivityIndex copy(final long fromTime)
+    {
+        final long copyFromTime = Math.max(fromTime, this.coveredFromTime);
+        final UserActivityIndex copy = new UserActivityIndex(this.configurationKey, copyFromTime);
+        this.lastActivityByUser.forEach((key, time) -> {
+            if (time.longValue() >= copyFromTime)
+            {
+                copy.lastActivityByUser.put(key, time);
+            }
+        });
+        copy.highestEntryId = this.highestEntryId;
+        return copy;
+    }
+
+    /**
+     * Records an activity of a user, retaining only the most recent activity per user.
+     *
+     * @param userName
+     *            the name of the user
+     * @param time
+     *            the timestamp of the activity
+     */
+    public void recordActivity(final String userName, final long time)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        this.lastActivityByUser.merge(this.toKey(userName), Long.valueOf(time), (a, b) -> a.longValue() >= b.longValue() ? a : b);
+    }
+
+    /**
+     * Retrieves the last known activity of a user.
+     *
+     * @param userName
+     *            the name of the user
+     * @return the timestamp of the last known activity or {@code null} if no activity has been recorded
+     */
+    public Long getLastActivity(final String userName)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        return this.lastActivityByUser.get(this.toKey(userName));
+    }
+
+    /**
+     * @return the number of users with recorded activity
+     */
+    public int size()
+    {
+        return this.lastActivityByUser.size();
+    }
+
+    /**
+     * @return the ID of the most recent audit entry that has been processed into this index or {@code null} if no audit entry has been
+     *         processed yet
+     */
+    public Long getHighestEntryId()
+    {
+        return this.highestEntryId;
+    }
+
+    /**
+     * Updates the ID of the most recent audit entry that has been processed into this index.
+     *
+     * @param entryId
+     *            the ID of a processed audit entry
+     */
+    public void updateHighestEntryId(final long entryId)
+    {
+        if (this.highestEntryId == null || this.highestEntryId.longValue() < entryId)
+        {
+            this.highestEntryId = Long.valueOf(entryId);
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        // compact format - avoid serialising every single map entry as an object graph
+        out.writeInt(this.lastActivityByUser.size());
+        for (final Entry<String, Long> entry : this.lastActivityByUser.entrySet())
+        {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().longValue());
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        final int size = in.readInt();
+        this.lastActivityByUser = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+        for (int idx = 0; idx < size; idx++)
+        {
+            final String key = in.readUTF();
+            final long time = in.readLong();
+            this.lastActivityByUser.put(key, Long.valueOf(time));
+        }
+    }
+
+    protected String toKey(final String userName)
+    {
+        // user names are case-insensitive by default - audit data may not use the same case as the person node
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("UserActivityIndex [configurationKey=");
+        builder.append(this.configurationKey);
+        builder.append(", coveredFromTime=");
+        builder.append(this.coveredFromTime);
+        builder.append(", users=");
+        builder.append(this.lastActivityByUser.size());
+        builder.append(", highestEntryId=");
+        builder.append(this.highestEntryId);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class persist a {@link UserActivityIndex} via the {@link AttributeService} so that subsequent runs only need to process
+ * audit entries that have been recorded since the previous run.
+ *
+ * @author Axel Faust
+ */
+public class UserActivityIndexStore
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserActivityIndexStore.class);
+
+    protected static final String ATTR_KEY_ROOT = "acosix-deauth";
+
+    protected static final String ATTR_KEY_ACTIVITY_INDEX = "userActivityIndex";
+
+    protected final AttributeService attributeService;
+
+    protected final String indexName;
+
+    public UserActivityIndexStore(final AttributeService attributeService, final String indexName)
+    {
+        ParameterCheck.mandatory("attributeService", attributeService);
+        ParameterCheck.mandatoryString("indexName", indexName);
+        this.attributeService = attributeService;
+        this.indexName = indexName;
+    }
+
+    /**
+     * Loads the persisted index if it is compatible with a specific configuration and time frame.
+     *
+     * @param configurationKey
+     *            the key of the configuration which will be used to update the index
+     * @param fromTime
+     *            the earliest point in time for which user activity needs to be known
+     * @return the persisted index or {@code null} if no index has been persisted or the persisted index is incompatible
+     */
+    public UserActivityIndex load(final String configurationKey, final long fromTime)
+    {
+        final Serializable value = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_ACTIVITY_INDEX, this.indexName);
+
+        UserActivityIndex index = null;
+        if (value instanceof UserActivityIndex)
+        {
+            index = (UserActivityIndex) value;
+            if (!index.isCompatible(configurationKey, fromTime))
+            {
+                LOGGER.info("Discarding persisted user activity index {} as it is incompatible with configuration {} and time frame from {}",
+                        index, configurationKey, fromTime);
+                index = null;
+            }
+            else
+            {
+                LOGGER.debug("Loaded persisted user activity index {}", index);
+            }
+        }
+        else if (value != null)
+        {
+            LOGGER.warn("Discarding persisted user activity index of unexpected type {}", value.getClass());
+        }
+
+        return index;
+    }
+
+    /**
+     * Persists an index, replacing any previously persisted index.
+     *
+     * @param index
+     *            the index to persist
+     */
+    public void save(final UserActivityIndex index)
+    {
+        ParameterCheck.mandatory("index", index);
+        LOGGER.debug("Persisting user activity index {}", index);
+        this.attributeService.setAttribute(index, ATTR_KEY_ROOT, ATTR_KEY_ACTIVITY_INDEX, this.indexName);
+    }
+
+    /**
+     * Removes any persisted index.
+     */
+    public void clear()
+    {
+        this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_ACTIVITY_INDEX, this.indexName);
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.bootstrap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.audit.AuditService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorityResolver;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndexStore;
+
+/**
+ * Instances of this class warm up the state required to determine inactive users after the repository has been started, so that the
+ * first deauthorisation run does not have to pay the full cost of scanning the audit application. Warming is performed by a low-priority
+ * background thread after a configurable delay and never blocks the startup. The warm index of last user activity is persisted via the
+ * {@link AttributeService} and only incrementally updated on subsequent startups, and then kept up-to-date in-memory whenever it is used.
+ * Until warming has completed, {@link #getIndex(AuditActivityScanner, long) no index} is provided and callers need to fall back to their
+ * regular logic.
+ *
+ * @author Axel Faust
+ */
+public class ActivityIndexWarmer extends AbstractLifecycleBean implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ActivityIndexWarmer.class);
+
+    protected static final String INDEX_NAME = "warmActivityIndex";
+
+    protected boolean enabled = false;
+
+    protected AuditService auditService;
+
+    protected AttributeService attributeService;
+
+    protected TransactionService transactionService;
+
+    protected ProtectedAuthorityResolver protectedAuthorityResolver;
+
+    protected int startupDelaySeconds = 60;
+
+    protected int lookBackDays = 365;
+
+    protected String auditApplicationName;
+
+    protected String userAuditPath;
+
+    protected String dateFromAuditPath;
+
+    protected String dateToAuditPath;
+
+    protected String dateAuditPath;
+
+    protected volatile UserActivityIndex index;
+
+    protected Thread warmingThread;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (this.enabled)
+        {
+            PropertyCheck.mandatory(this, "auditService", this.auditService);
+            PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+            PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+            PropertyCheck.mandatory(this, "protectedAuthorityResolver", this.protectedAuthorityResolver);
+            PropertyCheck.mandatory(this, "auditApplicationName", this.auditApplicationName);
+            if (this.startupDelaySeconds < 0)
+            {
+                throw new IllegalStateException("Startup delay must not be negative");
+            }
+            if (this.lookBackDays <= 0)
+            {
+                throw new IllegalStateException("Look-back days must be a positive integer");
+            }
+        }
+    }
+
+    /**
+     * @param enabled
+     *            the enabled to set
+     */
+    public void setEnabled(final boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param auditService
+     *            the auditService to set
+     */
+    public void setAuditService(final AuditService auditService)
+    {
+        this.auditService = auditService;
+    }
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param protectedAuthorityResolver
+     *            the protectedAuthorityResolver to set
+     */
+    public void setProtectedAuthorityResolver(final ProtectedAuthorityResolver protectedAuthorityResolver)
+    {
+        this.protectedAuthorityResolver = protectedAuthorityResolver;
+    }
+
+    /**
+     * @param startupDelaySeconds
+     *            the startupDelaySeconds to set
+     */
+    public void setStartupDelaySeconds(final int startupDelaySeconds)
+    {
+        this.startupDelaySeconds = startupDelaySeconds;
+    }
+
+    /**
+     * @param lookBackDays
+     *            the lookBackDays to set
+     */
+    public void setLookBackDays(final int lookBackDays)
+    {
+        this.lookBackDays = lookBackDays;
+    }
+
+    /**
+     * @param auditApplicationName
+     *            the auditApplicationName to set
+     */
+    public void setAuditApplicationName(final String auditApplicationName)
+    {
+        this.auditApplicationName = auditApplicationName;
+    }
+
+    /**
+     * @param userAuditPath
+     *            the userAuditPath to set
+     */
+    public void setUserAuditPath(final String userAuditPath)
+    {
+        this.userAuditPath = userAuditPath;
+    }
+
+    /**
+     * @param dateFromAuditPath
+     *            the dateFromAuditPath to set
+     */
+    public void setDateFromAuditPath(final String dateFromAuditPath)
+    {
+        this.dateFromAuditPath = dateFromAuditPath;
+    }
+
+    /**
+     * @param dateToAuditPath
+     *            the dateToAuditPath to set
+     */
+    public void setDateToAuditPath(final String dateToAuditPath)
+    {
+        this.dateToAuditPath = dateToAuditPath;
+    }
+
+    /**
+     * @param dateAuditPath
+     *            the dateAuditPath to set
+     */
+    public void setDateAuditPath(final String dateAuditPath)
+    {
+        this.dateAuditPath = dateAuditPath;
+    }
+
+    /**
+     * @return {@code true} if warming has been completed and a warm index is available, {@code false} otherwise
+     */
+    public boolean isReady()
+    {
+        return this.index != null;
+    }
+
+    /**
+     * Retrieves the earliest point in time from which user activity is recorded in the warm index, e.g. to request an index which also
+     * provides the last activity of users who have not been active within the time frame of a specific run.
+     *
+     * @return the earliest point in time covered by the warm index or {@code null} if warming has not been completed yet
+     */
+    public Long getCoveredFromTime()
+    {
+        final UserActivityIndex index = this.index;
+        return index != null ? Long.valueOf(index.getCoveredFromTime()) : null;
+    }
+
+    /**
+     * Retrieves the warm index of last user activity for a specific time frame, bringing it up-to-date with any audit entries recorded
+     * since it has last been updated.
+     *
+     * @param scanner
+     *            the scanner to use for updating the warm index - its configuration must match the configuration used for warming
+     * @param fromTime
+     *            the earliest point in time for which user activity needs to be known
+     * @return a copy of the warm index restricted to the time frame or {@code null} if warming has not been completed yet, the warm
+     *         index is incompatible with the configuration of the scanner / the time frame, or the current tenant is not the default
+     *         tenant for which the index has been warmed
+     */
+    public UserActivityIndex getIndex(final AuditActivityScanner scanner, final long fromTime)
+    {
+        ParameterCheck.mandatory("scanner", scanner);
+
+        UserActivityIndex activityIndex = null;
+        if (this.index != null && TenantService.DEFAULT_DOMAIN.equals(TenantUtil.getCurrentDomain()))
+        {
+            synchronized (this)
+            {
+                if (this.index.isCompatible(scanner.getConfigurationKey(), fromTime))
+                {
+                    scanner.update(this.index, this.index.getCoveredFromTime());
+                    // callers read the index concurrently while it may be updated for the next caller
+                    activityIndex = this.index.copy(fromTime);
+                    LOGGER.debug("Using warm user activity index {}", activityIndex);
+                }
+                else
+                {
+                    LOGGER.debug("Warm user activity index {} is not compatible with configuration {} and time frame from {}", this.index,
+                            scanner.getConfigurationKey(), fromTime);
+                }
+            }
+        }
+        return activityIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ActivityIndexWarmer [enabled=");
+        builder.append(this.enabled);
+        builder.append(", startupDelaySeconds=");
+        builder.append(this.startupDelaySeconds);
+        builder.append(", lookBackDays=");
+        builder.append(this.lookBackDays);
+        builder.append(", auditApplicationName=");
+        builder.append(this.auditApplicationName);
+        builder.append(", index=");
+        builder.append(this.index);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onBootstrap(final ApplicationEvent event)
+    {
+        if (this.enabled)
+        {
+            this.warmingThread = new Thread(this::warmSafely, ActivityIndexWarmer.class.getSimpleName());
+            this.warmingThread.setDaemon(true);
+            this.warmingThread.setPriority(Thread.MIN_PRIORITY);
+            this.warmingThread.start();
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onShutdown(final ApplicationEvent event)
+    {
+        if (this.warmingThread != null)
+        {
+            this.warmingThread.interrupt();
+            this.warmingThread = null;
+        }
+    }
+
+    protected void warmSafely()
+    {
+        try
+        {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(this.startupDelaySeconds));
+            AuthenticationUtil.runAsSystem(() -> {
+                this.warm();
+                return null;
+            });
+        }
+        catch (final InterruptedException iex)
+        {
+            LOGGER.debug("Warming of user activity index has been interrupted");
+            Thread.currentThread().interrupt();
+        }
+        catch (final RuntimeException e)
+        {
+            LOGGER.warn("Failed to warm user activity index - runs will fall back to their regular logic", e);
+        }
+    }
+
+    protected void warm()
+    {
+        final long start = System.currentTimeMillis();
+        final long fromTime = start - TimeUnit.DAYS.toMillis(this.lookBackDays);
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+
+        // resolving the protected authorities also warms the caches of the relevant groups
+        txnHelper.doInTransaction(() -> {
+            return this.protectedAuthorityResolver.getProtectedAuthorities();
+        }, true, true);
+
+        final AuditActivityScanner scanner = this.createActivityScanner();
+        // each audit query of the scan runs in its own short transaction
+        scanner.setTransactionHelper(txnHelper);
+        final UserActivityIndexStore indexStore = new UserActivityIndexStore(this.attributeService, INDEX_NAME);
+        final UserActivityIndex persistedIndex = txnHelper.doInTransaction(() -> {
+            return indexStore.load(scanner.getConfigurationKey(), fromTime);
+        }, true, true);
+
+        final UserActivityIndex warmIndex;
+        if (persistedIndex != null)
+        {
+            scanner.update(persistedIndex, fromTime);
+            persistedIndex.prune(fromTime);
+            warmIndex = persistedIndex;
+        }
+        else
+        {
+            warmIndex = scanner.scan(fromTime);
+        }
+
+        txnHelper.doInTransaction(() -> {
+            indexStore.save(warmIndex);
+            return null;
+        }, false, true);
+
+        this.index = warmIndex;
+        LOGGER.info("Warmed user activity index {} in {} ms", warmIndex, System.currentTimeMillis() - start);
+    }
+
+    protected AuditActivityScanner createActivityScanner()
+    {
+        final AuditActivityScanner scanner = new AuditActivityScanner(this.auditApplicationName, this.auditService);
+        scanner.setUserAuditPath(this.userAuditPath);
+        scanner.setDateAuditPath(this.dateAuditPath);
+        scanner.setDateFromAuditPath(this.dateFromAuditPath);
+        scanner.setDateToAuditPath(this.dateToAuditPath);
+        return scanner;
+    }
+}
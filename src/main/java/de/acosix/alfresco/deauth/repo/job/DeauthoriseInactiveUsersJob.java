@@ -17,15 +17,35 @@ package de.acosix.alfresco.deauth.repo.job;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
 import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
 import org.alfresco.repo.lock.LockAcquisitionException;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.Tenant;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.audit.AuditService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
@@ -43,13 +63,40 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
-import de.acosix.alfresco.audit.repo.batch.AuditUserInfo.AuthorisedState;
 import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker;
 import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker.PersonAuditQueryMode;
 import de.acosix.alfresco.deauth.repo.DeauthModuleConstants;
+import de.acosix.alfresco.deauth.repo.batch.AdaptiveBatchSizer;
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisationStateSnapshot;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisedPersonFilteringWorker;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationCheckpoint;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationCheckpointStore;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationPipeline;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationThrottle;
 import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkSet;
+import de.acosix.alfresco.deauth.repo.batch.InactiveUserQueryMode;
+import de.acosix.alfresco.deauth.repo.batch.LoadMonitor;
+import de.acosix.alfresco.deauth.repo.batch.PartitionedDeauthorisationProcessor;
+import de.acosix.alfresco.deauth.repo.batch.PersonActivityIndexWorker;
+import de.acosix.alfresco.deauth.repo.batch.PersonAuditProbeWorker;
 import de.acosix.alfresco.deauth.repo.batch.PersonDeauthorisationWorker;
-import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorities;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorityResolver;
+import de.acosix.alfresco.deauth.repo.batch.QueryShardResult;
+import de.acosix.alfresco.deauth.repo.batch.QueryShardStore;
+import de.acosix.alfresco.deauth.repo.batch.ShardFilteringPersonWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.ThrottledBatchProcessWorker;
+import de.acosix.alfresco.deauth.repo.batch.TransactionalWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndexStore;
+import de.acosix.alfresco.deauth.repo.bootstrap.ActivityIndexWarmer;
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MeteredBatchProcessWorker;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.tracking.UserActivityTracker;
 import de.acosix.alfresco.utility.repo.batch.PersonBatchWorkProvider;
 import de.acosix.alfresco.utility.repo.job.JobUtilities;
 
@@ -80,6 +127,18 @@ public class DeauthoriseInactiveUsersJob implements Job
 
     protected static final int DEFAULT_LOGGING_INTERVAL = 100;
 
+    protected static final int DEFAULT_CHECKPOINT_MAX_AGE_MINUTES = 1440;
+
+    protected static final int DEFAULT_MIN_BATCH_SIZE = 5;
+
+    protected static final int DEFAULT_MAX_BATCH_SIZE = 200;
+
+    protected static final int DEFAULT_TARGET_BATCH_MILLIS = 1000;
+
+    protected static final int DEFAULT_PIPELINE_CAPACITY = 1000;
+
+    protected static final int DEFAULT_TENANT_THREADS = 2;
+
     protected static final QName LOCK_QNAME = QName.createQName(DeauthModuleConstants.SERVICE_NAMESPACE,
             DeauthoriseInactiveUsersJob.class.getSimpleName());
 
@@ -90,31 +149,176 @@ public class DeauthoriseInactiveUsersJob implements Job
     public void execute(final JobExecutionContext context) throws JobExecutionException
     {
         LOGGER.debug("Running deauthorisation of inactive users");
+        final List<String> tenantDomains = AuthenticationUtil.runAsSystem(() -> {
+            return this.determineTenantDomains(context);
+        });
+
+        final Map<String, Integer> deauthorisedByTenant;
+        if (tenantDomains.size() > 1)
+        {
+            deauthorisedByTenant = this.executeInTenantsConcurrently(context, tenantDomains);
+        }
+        else
+        {
+            final Integer deauthorised = this.executeInTenantSafely(context, TenantService.DEFAULT_DOMAIN);
+            deauthorisedByTenant = deauthorised != null ? Collections.singletonMap(TenantService.DEFAULT_DOMAIN, deauthorised)
+                    : Collections.emptyMap();
+        }
+        // per-tenant results for any job listeners
+        context.setResult(deauthorisedByTenant);
+    }
+
+    protected Map<String, Integer> executeInTenantsConcurrently(final JobExecutionContext context, final List<String> tenantDomains)
+    {
+        final int tenantThreads = Math.min(tenantDomains.size(),
+                this.getPositiveIntegerJobDataValue(context, "tenantThreads", DEFAULT_TENANT_THREADS, "Number of tenant threads"));
+        LOGGER.info("Running deauthorisation of inactive users in {} tenants using {} thread(s)", tenantDomains.size(), tenantThreads);
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final ExecutorService tenantExecutor = Executors.newFixedThreadPool(tenantThreads, runnable -> {
+            final Thread thread = new Thread(runnable,
+                    DeauthoriseInactiveUsersJob.class.getSimpleName() + "-Tenant-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long start = System.currentTimeMillis();
+        final Map<String, Integer> deauthorisedByTenant = new LinkedHashMap<>();
         try
         {
-            AuthenticationUtil.runAsSystem(() -> {
-                JobUtilities.runWithJobLock(context, LOCK_QNAME, lockReleaseCheck -> {
-                    final TransactionService transactionService = JobUtilities.getJobDataValue(context, "transactionService",
-                            TransactionService.class);
-                    transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
-                        this.deauthoriseInactiveUsers(context);
-                        return null;
-                    }, false, true);
-                });
-                return null;
-            });
-            LOGGER.debug("Completed deauthorisation of inactive users");
+            final Map<String, Future<Integer>> futures = new LinkedHashMap<>();
+            for (final String tenantDomain : tenantDomains)
+            {
+                futures.put(tenantDomain, tenantExecutor.submit(() -> {
+                    return this.executeInTenantSafely(context, tenantDomain);
+                }));
+            }
+
+            for (final Entry<String, Future<Integer>> entry : futures.entrySet())
+            {
+                try
+                {
+                    final Integer deauthorised = entry.getValue().get();
+                    if (deauthorised != null)
+                    {
+                        deauthorisedByTenant.put(entry.getKey(), deauthorised);
+                    }
+                }
+                catch (final ExecutionException eex)
+                {
+                    LOGGER.warn("Deauthorisation of inactive users in tenant {} failed", entry.getKey(), eex.getCause());
+                }
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            LOGGER.warn("Interrupted while waiting for deauthorisation of inactive users in all tenants");
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            tenantExecutor.shutdownNow();
+        }
+
+        final int deauthorised = deauthorisedByTenant.values().stream().mapToInt(Integer::intValue).sum();
+        LOGGER.info("Deauthorised {} inactive users in {} of {} tenants in {} ms", deauthorised, deauthorisedByTenant.size(),
+                tenantDomains.size(), System.currentTimeMillis() - start);
+        return deauthorisedByTenant;
+    }
+
+    /**
+     * Runs the deauthorisation of inactive users in a single tenant, guarded by a job lock specific to that tenant.
+     *
+     * @param context
+     *            the execution context of the job
+     * @param tenantDomain
+     *            the domain of the tenant
+     * @return the number of deauthorised users or {@code null} if the deauthorisation has not been run by this node / has failed
+     */
+    protected Integer executeInTenantSafely(final JobExecutionContext context, final String tenantDomain)
+    {
+        Integer result = null;
+        try
+        {
+            final long start = System.currentTimeMillis();
+            result = TenantUtil.runAsSystemTenant(() -> {
+                final int queryShards = this.determineQueryShards(context);
+                boolean deauthorise = true;
+                if (queryShards > 1)
+                {
+                    // all nodes of a cluster participate in the query phase
+                    deauthorise = this.evaluateQueryShards(context, queryShards);
+                }
+
+                Integer deauthorised = null;
+                if (deauthorise)
+                {
+                    final AtomicInteger deauthorisedInLock = new AtomicInteger(0);
+                    JobUtilities.runWithJobLock(context, this.getLockQName(), lockReleaseCheck -> {
+                        // no enclosing transaction - each phase / batch uses its own transactions
+                        deauthorisedInLock.set(this.deauthoriseInactiveUsers(context));
+                    });
+                    deauthorised = Integer.valueOf(deauthorisedInLock.get());
+                }
+                else
+                {
+                    LOGGER.debug("Not all query shards have been completed - deauthorisation is left to the node completing the last one");
+                }
+                return deauthorised;
+            }, tenantDomain);
+            LOGGER.debug("Completed deauthorisation of inactive users in tenant \"{}\" in {} ms", tenantDomain,
+                    System.currentTimeMillis() - start);
         }
         catch (final Exception e)
         {
             if (!(e instanceof LockAcquisitionException))
             {
-                LOGGER.debug("Deauthorisation of inactive users failed", e);
+                LOGGER.debug("Deauthorisation of inactive users in tenant \"{}\" failed", tenantDomain, e);
             }
         }
+        return result;
     }
 
-    protected void deauthoriseInactiveUsers(final JobExecutionContext context)
+    protected List<String> determineTenantDomains(final JobExecutionContext context)
+    {
+        final List<String> tenantDomains = new ArrayList<>();
+        tenantDomains.add(TenantService.DEFAULT_DOMAIN);
+
+        final String allTenantsParam = JobUtilities.getJobDataValue(context, "allTenants", String.class, true);
+        final TenantAdminService tenantAdminService = JobUtilities.getJobDataValue(context, "tenantAdminService", TenantAdminService.class,
+                true);
+        if (Boolean.parseBoolean(allTenantsParam) && tenantAdminService != null && tenantAdminService.isEnabled())
+        {
+            for (final Tenant tenant : tenantAdminService.getAllTenants())
+            {
+                if (tenant.isEnabled())
+                {
+                    tenantDomains.add(tenant.getTenantDomain());
+                }
+            }
+        }
+        return tenantDomains;
+    }
+
+    protected QName getLockQName()
+    {
+        final String tenantDomain = TenantUtil.getCurrentDomain();
+        // job locks are not tenant-specific
+        final QName lockQName = TenantService.DEFAULT_DOMAIN.equals(tenantDomain) ? LOCK_QNAME
+                : QName.createQName(DeauthModuleConstants.SERVICE_NAMESPACE, LOCK_QNAME.getLocalName() + "-Tenant-" + tenantDomain);
+        return lockQName;
+    }
+
+    protected String getStoreName()
+    {
+        final String tenantDomain = TenantUtil.getCurrentDomain();
+        // attributes are not tenant-specific
+        final String storeName = TenantService.DEFAULT_DOMAIN.equals(tenantDomain) ? this.getClass().getSimpleName()
+                : this.getClass().getSimpleName() + TenantService.SEPARATOR + tenantDomain;
+        return storeName;
+    }
+
+    protected int deauthoriseInactiveUsers(final JobExecutionContext context)
     {
         final TransactionService transactionService = JobUtilities.getJobDataValue(context, "transactionService", TransactionService.class);
         final AuthorizationService authorisationService = JobUtilities.getJobDataValue(context, "authorisationService",
@@ -154,54 +358,338 @@ public class DeauthoriseInactiveUsersJob implements Job
             }
         }
 
-        final List<AuditUserInfo> inactiveUsers = this.queryInactiveUsers(workerThreads, batchSize, loggingInterval, transactionService,
-                authorisationService, context);
-        final List<DeauthorisationUserInfo> work = new ArrayList<>();
-        inactiveUsers.stream().filter(user -> {
-            final boolean relevant = user.getAuthorisedState() == AuthorisedState.AUTHORISED;
-            return relevant;
-        }).forEach(user -> {
-            work.add(new DeauthorisationUserInfo(user));
-        });
+        final InactiveUserQueryMode queryMode = this.determineQueryMode(context);
+
+        final String dryRunParam = JobUtilities.getJobDataValue(context, "dryRun", String.class);
+        final boolean dryRun = Boolean.parseBoolean(dryRunParam);
+
+        final String checkpointMaxAgeParam = JobUtilities.getJobDataValue(context, "checkpointMaxAgeMinutes", String.class, true);
+        int checkpointMaxAge = DEFAULT_CHECKPOINT_MAX_AGE_MINUTES;
+        if (checkpointMaxAgeParam != null && !checkpointMaxAgeParam.trim().isEmpty())
+        {
+            checkpointMaxAge = Integer.parseInt(checkpointMaxAgeParam, 10);
+            if (checkpointMaxAge <= 0)
+            {
+                throw new IllegalStateException("Maximum age of checkpoints must be a positive integer");
+            }
+        }
+
+        final RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+        final AttributeService attributeService = JobUtilities.getJobDataValue(context, "attributeService", AttributeService.class);
+        final DeauthorisationCheckpointStore checkpointStore = new DeauthorisationCheckpointStore(attributeService,
+                this.getStoreName());
+        final String checkpointConfigurationKey = this.determineCheckpointConfigurationKey(context, queryMode, dryRun);
+        final long now = System.currentTimeMillis();
+        final long notCreatedBefore = now - TimeUnit.MINUTES.toMillis(checkpointMaxAge);
+
+        // shared by query and deauthorisation phases so that the authorisation state of each user is only read once
+        final AuthorisationStateSnapshot authorisationStateSnapshot = new AuthorisationStateSnapshot(authorisationService);
+        authorisationStateSnapshot.setMetricsRegistry(this.getMetricsRegistry(context));
+
+        final int queryShards = this.determineQueryShards(context);
+        List<DeauthorisationUserInfo> shardWork = null;
+        if (queryShards > 1)
+        {
+            // published shard results must take precedence over a checkpoint, which may stem from an earlier run with the same
+            // configuration and still be within its maximum age
+            final QueryShardStore queryShardStore = new QueryShardStore(attributeService, this.getStoreName());
+            final String queryShardRunKey = this.determineQueryShardRunKey(context, queryShards);
+            shardWork = txnHelper.doInTransaction(() -> {
+                final List<DeauthorisationUserInfo> shardUsers = queryShardStore.loadAll(queryShardRunKey, queryShards);
+                if (shardUsers != null)
+                {
+                    // results have been consumed and supersede any checkpoint
+                    queryShardStore.clear();
+                    checkpointStore.clear();
+                }
+                return shardUsers;
+            }, false, true);
+
+            if (shardWork != null)
+            {
+                LOGGER.debug("Combined results of {} query shards for run {} to {} inactive users", queryShards, queryShardRunKey,
+                        shardWork.size());
+            }
+        }
+
+        DeauthorisationCheckpoint checkpoint = shardWork == null ? txnHelper.doInTransaction(() -> {
+            return checkpointStore.load(checkpointConfigurationKey, notCreatedBefore);
+        }, true, true) : null;
+
+        if (checkpoint == null && queryShards == 1 && this.isPipelined(context, queryMode))
+        {
+            // pipelined runs are not checkpointed as the users are never known in full before their deauthorisation starts
+            return this.deauthoriseInactiveUsersPipelined(dryRun, workerThreads, batchSize, loggingInterval, transactionService,
+                    authorisationService, authorisationStateSnapshot, context);
+        }
+
+        final List<DeauthorisationUserInfo> work;
+        if (checkpoint != null)
+        {
+            work = checkpoint.getRemainingWork();
+            LOGGER.info("Continuing deauthorisation job from checkpoint with {} of {} inactive users remaining", work.size(),
+                    checkpoint.size());
+        }
+        else
+        {
+            if (shardWork != null)
+            {
+                work = shardWork;
+            }
+            else if (queryShards > 1)
+            {
+                LOGGER.info("Results of query shards are incomplete or have already been consumed by another node");
+                return 0;
+            }
+            else
+            {
+                // no enclosing transaction - batches, work provider pages, audit queries and index store access use their own
+                work = this.queryInactiveUserWork(queryMode, workerThreads, batchSize, loggingInterval, transactionService,
+                        authorisationStateSnapshot, context);
+            }
+
+            if (!work.isEmpty())
+            {
+                checkpoint = new DeauthorisationCheckpoint(checkpointConfigurationKey, now, work);
+                final DeauthorisationCheckpoint newCheckpoint = checkpoint;
+                txnHelper.doInTransaction(() -> {
+                    checkpointStore.save(newCheckpoint);
+                    return null;
+                }, false, true);
+            }
+        }
 
+        DeauthorisationMetrics.recordWorkList(this.getMetricsRegistry(context), work);
+        int deauthorised = 0;
         if (work.isEmpty())
         {
             LOGGER.info("No inactive users to deauthorise");
         }
         else
         {
-            this.deauthoriseInactiveUsers(work, workerThreads, batchSize, loggingInterval, transactionService, authorisationService,
-                    context);
+            deauthorised = this.deauthoriseInactiveUsers(work, dryRun, batchSize, loggingInterval, transactionService, authorisationService,
+                    authorisationStateSnapshot, checkpoint, checkpointStore, context);
+        }
+
+        if (checkpoint == null || checkpoint.isCompleted())
+        {
+            txnHelper.doInTransaction(() -> {
+                checkpointStore.clear();
+                return null;
+            }, false, true);
+        }
+        else
+        {
+            LOGGER.warn("Deauthorisation job failed to process {} of {} inactive users - these will be retried on the next run",
+                    checkpoint.size() - checkpoint.getProcessed(), checkpoint.size());
+        }
+        return deauthorised;
+    }
+
+    protected List<DeauthorisationUserInfo> queryInactiveUserWork(final InactiveUserQueryMode queryMode, final int workerThreads,
+            final int batchSize, final int loggingInterval, final TransactionService transactionService,
+            final AuthorisationStateSnapshot authorisationStateSnapshot, final JobExecutionContext context)
+    {
+        final List<DeauthorisationUserInfo> work;
+        switch (queryMode)
+        {
+            case AUDIT_SCAN:
+            case TRACKED:
+            case PROBE:
+                work = this.queryInactiveUsersByAuditScan(workerThreads, batchSize, loggingInterval, transactionService,
+                        authorisationStateSnapshot, context);
+                break;
+            case PERSON_AUDIT:
+                final Collection<AuditUserInfo> inactiveUsers = this.queryInactiveUsers(workerThreads, batchSize, loggingInterval,
+                        transactionService, authorisationStateSnapshot, 0, 1, context);
+                // filtered and sorted once, retaining neither the audit results nor an object per user
+                work = DeauthorisationWorkSet.ofAuthorised(inactiveUsers);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported mode: " + queryMode);
         }
+        return work;
     }
 
-    protected void deauthoriseInactiveUsers(final List<DeauthorisationUserInfo> work, final int workerThreads, final int batchSize,
+    protected int deauthoriseInactiveUsers(final List<DeauthorisationUserInfo> work, final boolean dryRun, final int batchSize,
             final int loggingInterval, final TransactionService transactionService, final AuthorizationService authorisationService,
+            final AuthorisationStateSnapshot authorisationStateSnapshot, final DeauthorisationCheckpoint checkpoint,
+            final DeauthorisationCheckpointStore checkpointStore, final JobExecutionContext context)
+    {
+        final MetricsRegistry metricsRegistry = this.getMetricsRegistry(context);
+
+        final PersonDeauthorisationWorker personDeauthorisationWorker = this.createDeauthorisationWorker(dryRun, batchSize,
+                authorisationService, authorisationStateSnapshot, context);
+        personDeauthorisationWorker.setBatchListener((processed, deauthorised) -> {
+            // serialise updates from parallel lanes so an older progress can never overwrite a newer one
+            synchronized (checkpoint)
+            {
+                checkpoint.markProcessed(processed, deauthorised);
+                transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                    checkpointStore.saveProgress(checkpoint);
+                    return null;
+                }, false, true);
+            }
+        });
+
+        final String deauthorisationLanesParam = JobUtilities.getJobDataValue(context, "deauthorisationLanes", String.class, true);
+        int deauthorisationLanes = 1;
+        if (deauthorisationLanesParam != null && !deauthorisationLanesParam.trim().isEmpty())
+        {
+            deauthorisationLanes = Integer.parseInt(deauthorisationLanesParam, 10);
+            if (deauthorisationLanes <= 0)
+            {
+                throw new IllegalStateException("Number of deauthorisation lanes must be a positive integer");
+            }
+        }
+
+        LOGGER.info("Running deauthorisation job on {} inactive users in {} lane(s){}", work.size(), deauthorisationLanes,
+                dryRun ? " (dry-run)" : "");
+
+        // each lane runs single-threaded to try and avoid issues with authorisationService
+        // (observed quite a lot of update conflicts and inconsistent state in multi-threaded updates)
+        final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthoriseInactiveUsers",
+                transactionService, deauthorisationLanes, batchSize, loggingInterval);
+        processor.setThrottle(this.createThrottle(context));
+        final long start = System.nanoTime();
+        processor.process(work, personDeauthorisationWorker);
+        metricsRegistry.recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, System.nanoTime() - start);
+
+        final int deauthorised = personDeauthorisationWorker.getDeauthorised();
+        LOGGER.info("Deauthorised {} inactive users ({} in total since start of checkpointed run)", deauthorised,
+                checkpoint.getDeauthorised());
+        return deauthorised;
+    }
+
+    protected int deauthoriseInactiveUsersPipelined(final boolean dryRun, final int workerThreads, final int batchSize,
+            final int loggingInterval, final TransactionService transactionService, final AuthorizationService authorisationService,
+            final AuthorisationStateSnapshot authorisationStateSnapshot, final JobExecutionContext context)
+    {
+        final MetricsRegistry metricsRegistry = this.getMetricsRegistry(context);
+        final PersonDeauthorisationWorker personDeauthorisationWorker = this.createDeauthorisationWorker(dryRun, batchSize,
+                authorisationService, authorisationStateSnapshot, context);
+
+        final int pipelineCapacity = this.getPositiveIntegerJobDataValue(context, "pipelineCapacity", DEFAULT_PIPELINE_CAPACITY,
+                "Capacity of the deauthorisation pipeline");
+        final DeauthorisationPipeline pipeline = new DeauthorisationPipeline(pipelineCapacity);
+        pipeline.setMetricsRegistry(metricsRegistry);
+
+        LOGGER.info("Running pipelined deauthorisation job{}", dryRun ? " (dry-run)" : "");
+
+        // pipeline is always drained by a single lane
+        final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthoriseInactiveUsers",
+                transactionService, 1, batchSize, loggingInterval);
+        processor.setThrottle(this.createThrottle(context));
+        final long start = System.nanoTime();
+        // the scan uses its own short transactions for pages of work - an enclosing transaction would span the entire query phase
+        processor.processPipelined(pipeline, personDeauthorisationWorker, () -> this.scanInactiveUsers(workerThreads, batchSize,
+                loggingInterval, transactionService, authorisationStateSnapshot, pipeline, context));
+        metricsRegistry.recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, System.nanoTime() - start);
+        metricsRegistry.setGauge(DeauthorisationMetrics.WORK_LIST_USERS, pipeline.getEnqueued());
+
+        LOGGER.info("Deauthorised {} of {} inactive users", personDeauthorisationWorker.getDeauthorised(), pipeline.getEnqueued());
+        return personDeauthorisationWorker.getDeauthorised();
+    }
+
+    protected PersonDeauthorisationWorker createDeauthorisationWorker(final boolean dryRun, final int batchSize,
+            final AuthorizationService authorisationService, final AuthorisationStateSnapshot authorisationStateSnapshot,
             final JobExecutionContext context)
     {
         final AuthorityService authorityService = JobUtilities.getJobDataValue(context, "authorityService", AuthorityService.class);
 
-        final String dryRunParam = JobUtilities.getJobDataValue(context, "dryRun", String.class);
-        final boolean dryRun = Boolean.parseBoolean(dryRunParam);
-
         final PersonDeauthorisationWorker personDeauthorisationWorker = new PersonDeauthorisationWorker(dryRun, authorityService,
                 authorisationService);
+        personDeauthorisationWorker.setMetricsRegistry(this.getMetricsRegistry(context));
+        personDeauthorisationWorker.setAdaptiveBatchSizer(this.createAdaptiveBatchSizer(context, batchSize));
+        personDeauthorisationWorker.setAuthorisationStateSnapshot(authorisationStateSnapshot);
+        personDeauthorisationWorker.setProtectedAuthorities(this.getProtectedAuthorities(context));
+        return personDeauthorisationWorker;
+    }
 
-        LOGGER.info("Running deauthorisation job on {} inactive users{}", work.size(), dryRun ? " (dry-run)" : "");
+    protected Collection<AuditUserInfo> queryInactiveUsers(final int workerThreads, final int batchSize, final int loggingInterval,
+            final TransactionService transactionService, final AuthorisationStateSnapshot authorisationStateSnapshot, final int shard,
+            final int shards, final JobExecutionContext context)
+    {
+        final NamespaceService namespaceService = JobUtilities.getJobDataValue(context, "namespaceService", NamespaceService.class);
+        final NodeService nodeService = JobUtilities.getJobDataValue(context, "nodeService", NodeService.class);
+        final PersonService personService = JobUtilities.getJobDataValue(context, "personService", PersonService.class);
+        final SearchService searchService = JobUtilities.getJobDataValue(context, "searchService", SearchService.class);
+        final AuditService auditService = JobUtilities.getJobDataValue(context, "auditService", AuditService.class);
 
-        // needs to run single-threaded to try and avoid issues with authorisationService
-        // (observed quite a lot of update conflicts and inconsistent state in multi-threaded updates)
-        final BatchProcessor<DeauthorisationUserInfo> processor = new BatchProcessor<>("DeauthoriseInactiveUsers",
-                transactionService.getRetryingTransactionHelper(), new CollectionWrappingWorkProvider<>(work, 1), 1, batchSize, null,
-                LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), loggingInterval);
-        processor.process(personDeauthorisationWorker, true);
+        final String auditApplicationName = JobUtilities.getJobDataValue(context, "auditApplicationName", String.class);
+        final String userAuditPath = this.getAuditPath(context, "userAuditPath");
+        final String dateAuditPath = this.getAuditPath(context, "dateAuditPath");
+        final String dateFromAuditPath = this.getAuditPath(context, "dateFromAuditPath");
+        final String dateToAuditPath = this.getAuditPath(context, "dateToAuditPath");
 
-        final int deauthorised = personDeauthorisationWorker.getDeauthorised();
-        LOGGER.info("Deauthorised {} inactive users", deauthorised);
+        final long fromTime = this.determineFromTime(context);
+
+        LOGGER.debug("Querying for inactive users (no activity since {}) via audit application {}", fromTime, auditApplicationName);
+        LOGGER.trace("Using userAuditPath {}, dateAuditPath {}, dateFromAuditPath {}, dateToAuditPath {}", userAuditPath, dateAuditPath,
+                dateFromAuditPath, dateToAuditPath);
+
+        final PersonAuditWorker personAuditWorker = new PersonAuditWorker(fromTime, PersonAuditQueryMode.INACTIVE_ONLY,
+                auditApplicationName, nodeService, auditService);
+
+        personAuditWorker.setUserAuditPath(userAuditPath);
+        personAuditWorker.setDateAuditPath(dateAuditPath);
+        personAuditWorker.setDateFromAuditPath(dateFromAuditPath);
+        personAuditWorker.setDateToAuditPath(dateToAuditPath);
+
+        // protected admin / guest users are excluded early so that they never become candidates
+        final ProtectedAuthorities protectedAuthorities = this.getProtectedAuthorities(context);
+        personAuditWorker.setIsAuthorisedCheck(userName -> {
+            final boolean authorized = !protectedAuthorities.isProtected(userName) && authorisationStateSnapshot.isAuthorised(userName);
+            return Boolean.valueOf(authorized);
+        });
+        personAuditWorker.setIsDeauthorisedCheck(userName -> {
+            final boolean deauthorized = authorisationStateSnapshot.isDeauthorised(userName);
+            return Boolean.valueOf(deauthorized);
+        });
+
+        BatchProcessWorkProvider<NodeRef> workProvider = new PersonBatchWorkProvider(namespaceService, nodeService, personService,
+                searchService);
+        String processName = "DeauthoriseInactiveUsers-PreparationQuery";
+        if (shards > 1)
+        {
+            workProvider = new ShardFilteringPersonWorkProvider(workProvider, nodeService, shard, shards);
+            processName = processName + "-Shard-" + shard;
+        }
+        workProvider = new TransactionalWorkProvider<>(workProvider, transactionService.getRetryingTransactionHelper());
+
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>(processName, transactionService.getRetryingTransactionHelper(),
+                workProvider, workerThreads, batchSize, null, LogFactory.getLog(this.getClass().getName() + ".batchProcessor"),
+                loggingInterval);
+
+        final MetricsRegistry metricsRegistry = this.getMetricsRegistry(context);
+        final long start = System.nanoTime();
+        // only authorised users can be candidates, so audit data does not need to be evaluated for any other person
+        final BatchProcessWorker<NodeRef> authorisedWorker = new AuthorisedPersonFilteringWorker(personAuditWorker, nodeService,
+                authorisationStateSnapshot);
+        processor.process(this.throttle(new MeteredBatchProcessWorker<>(authorisedWorker, metricsRegistry,
+                DeauthorisationMetrics.QUERY_PERSONS_SCANNED, DeauthorisationMetrics.QUERY_PERSON_EVALUATION), context), true);
+        DeauthorisationMetrics.recordQueryPhase(metricsRegistry, processor.getSuccessfullyProcessedEntries() + processor.getTotalErrors(),
+                System.nanoTime() - start);
+
+        // sorting is deferred to the (compact) work set built from these users
+        final Collection<AuditUserInfo> auditUsers = personAuditWorker.getUsers();
+        return auditUsers;
+    }
+
+    protected List<DeauthorisationUserInfo> queryInactiveUsersByAuditScan(final int workerThreads, final int batchSize,
+            final int loggingInterval, final TransactionService transactionService,
+            final AuthorisationStateSnapshot authorisationStateSnapshot, final JobExecutionContext context)
+    {
+        final PersonActivityIndexWorker personActivityIndexWorker = this.scanInactiveUsers(workerThreads, batchSize, loggingInterval,
+                transactionService, authorisationStateSnapshot, null, context);
+
+        final List<DeauthorisationUserInfo> users = personActivityIndexWorker.getUsers();
+        return users;
     }
 
-    protected List<AuditUserInfo> queryInactiveUsers(final int workerThreads, final int batchSize, final int loggingInterval,
-            final TransactionService transactionService, final AuthorizationService authorisationService, final JobExecutionContext context)
+    protected PersonActivityIndexWorker scanInactiveUsers(final int workerThreads, final int batchSize, final int loggingInterval,
+            final TransactionService transactionService, final AuthorisationStateSnapshot authorisationStateSnapshot,
+            final DeauthorisationPipeline pipeline, final JobExecutionContext context)
     {
         final NamespaceService namespaceService = JobUtilities.getJobDataValue(context, "namespaceService", NamespaceService.class);
         final NodeService nodeService = JobUtilities.getJobDataValue(context, "nodeService", NodeService.class);
@@ -209,19 +697,126 @@ public class DeauthoriseInactiveUsersJob implements Job
         final SearchService searchService = JobUtilities.getJobDataValue(context, "searchService", SearchService.class);
         final AuditService auditService = JobUtilities.getJobDataValue(context, "auditService", AuditService.class);
 
+        final String auditApplicationName = JobUtilities.getJobDataValue(context, "auditApplicationName", String.class);
+        final long fromTime = this.determineFromTime(context);
+
+        LOGGER.debug("Scanning for inactive users (no activity since {}) via audit application {}", fromTime, auditApplicationName);
+
+        final MetricsRegistry metricsRegistry = this.getMetricsRegistry(context);
+        final long start = System.nanoTime();
+
+        final AuditActivityScanner scanner = new AuditActivityScanner(auditApplicationName, auditService);
+        scanner.setMetricsRegistry(metricsRegistry);
+        scanner.setUserAuditPath(this.getAuditPath(context, "userAuditPath"));
+        scanner.setDateAuditPath(this.getAuditPath(context, "dateAuditPath"));
+        scanner.setDateFromAuditPath(this.getAuditPath(context, "dateFromAuditPath"));
+        scanner.setDateToAuditPath(this.getAuditPath(context, "dateToAuditPath"));
+        scanner.setTransactionHelper(transactionService.getRetryingTransactionHelper());
+
+        BatchProcessWorkProvider<NodeRef> workProvider = new PersonBatchWorkProvider(namespaceService, nodeService, personService,
+                searchService);
+        final PersonActivityIndexWorker personActivityIndexWorker;
+        if (this.determineQueryMode(context) == InactiveUserQueryMode.PROBE)
+        {
+            // the authorisation check of the worker precedes the probe, so no other person is probed
+            personActivityIndexWorker = new PersonAuditProbeWorker(fromTime, scanner, nodeService);
+        }
+        else
+        {
+            personActivityIndexWorker = new PersonActivityIndexWorker(fromTime,
+                    this.determineActivityIndex(scanner, fromTime, context), nodeService);
+        }
+
+        // protected admin / guest users are excluded early so that they never become candidates
+        final ProtectedAuthorities protectedAuthorities = this.getProtectedAuthorities(context);
+        personActivityIndexWorker.setIsAuthorisedCheck(userName -> {
+            final boolean authorized = !protectedAuthorities.isProtected(userName) && authorisationStateSnapshot.isAuthorised(userName);
+            return Boolean.valueOf(authorized);
+        });
+        personActivityIndexWorker.setPipeline(pipeline);
+        workProvider = new TransactionalWorkProvider<>(workProvider, transactionService.getRetryingTransactionHelper());
+
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("DeauthoriseInactiveUsers-PreparationQuery",
+                transactionService.getRetryingTransactionHelper(), workProvider, workerThreads, batchSize, null,
+                LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), loggingInterval);
+
+        processor.process(this.throttle(new MeteredBatchProcessWorker<>(personActivityIndexWorker, metricsRegistry,
+                DeauthorisationMetrics.QUERY_PERSONS_SCANNED, DeauthorisationMetrics.QUERY_PERSON_EVALUATION), context), true);
+        DeauthorisationMetrics.recordQueryPhase(metricsRegistry, processor.getSuccessfullyProcessedEntries() + processor.getTotalErrors(),
+                System.nanoTime() - start);
+
+        return personActivityIndexWorker;
+    }
+
+    protected UserActivityIndex determineActivityIndex(final AuditActivityScanner scanner, final long fromTime,
+            final JobExecutionContext context)
+    {
+        final String incrementalParam = JobUtilities.getJobDataValue(context, "incrementalActivityIndex", String.class, true);
+        final boolean incremental = Boolean.parseBoolean(incrementalParam);
+
+        final UserActivityIndex trackedIndex = this.determineQueryMode(context) == InactiveUserQueryMode.TRACKED
+                ? this.loadTrackedActivityIndex(fromTime, context) : null;
+
+        final UserActivityIndex activityIndex;
+        if (trackedIndex != null)
+        {
+            activityIndex = trackedIndex;
+        }
+        else if (incremental)
+        {
+            final AttributeService attributeService = JobUtilities.getJobDataValue(context, "attributeService", AttributeService.class);
+            final TransactionService transactionService = JobUtilities.getJobDataValue(context, "transactionService",
+                    TransactionService.class);
+            final RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+            final UserActivityIndexStore indexStore = new UserActivityIndexStore(attributeService, this.getStoreName());
+
+            // the scan itself runs each audit query in its own transaction
+            final UserActivityIndex persistedIndex = txnHelper.doInTransaction(() -> {
+                return indexStore.load(scanner.getConfigurationKey(), fromTime);
+            }, true, true);
+            if (persistedIndex != null)
+            {
+                scanner.update(persistedIndex, fromTime);
+                activityIndex = persistedIndex;
+            }
+            else
+            {
+                activityIndex = scanner.scan(fromTime);
+            }
+            activityIndex.prune(fromTime);
+            txnHelper.doInTransaction(() -> {
+                indexStore.save(activityIndex);
+                return null;
+            }, false, true);
+        }
+        else
+        {
+            final ActivityIndexWarmer activityIndexWarmer = JobUtilities.getJobDataValue(context, "activityIndexWarmer",
+                    ActivityIndexWarmer.class, true);
+            final UserActivityIndex warmIndex = activityIndexWarmer != null ? activityIndexWarmer.getIndex(scanner, fromTime) : null;
+            activityIndex = warmIndex != null ? warmIndex : scanner.scan(fromTime);
+        }
+        return activityIndex;
+    }
+
+    protected UserActivityIndex loadTrackedActivityIndex(final long fromTime, final JobExecutionContext context)
+    {
+        final UserActivityTracker activityTracker = JobUtilities.getJobDataValue(context, "activityTracker", UserActivityTracker.class,
+                true);
+        final UserActivityIndex trackedIndex = activityTracker != null ? activityTracker.loadIndex(fromTime) : null;
+        if (trackedIndex == null)
+        {
+            LOGGER.info("Tracked user activity is not available or does not cover the time since {} - falling back to audit scan",
+                    fromTime);
+        }
+        return trackedIndex;
+    }
+
+    protected long determineFromTime(final JobExecutionContext context)
+    {
         final String lookBackModeParam = JobUtilities.getJobDataValue(context, "lookBackMode", String.class, true);
         final String lookBackAmountParam = JobUtilities.getJobDataValue(context, "lookBackAmount", String.class, true);
 
-        final String auditApplicationName = JobUtilities.getJobDataValue(context, "auditApplicationName", String.class);
-        String userAuditPath = JobUtilities.getJobDataValue(context, "userAuditPath", String.class, true);
-        String dateAuditPath = JobUtilities.getJobDataValue(context, "dateAuditPath", String.class, true);
-        String dateFromAuditPath = JobUtilities.getJobDataValue(context, "dateFromAuditPath", String.class, true);
-        String dateToAuditPath = JobUtilities.getJobDataValue(context, "dateToAuditPath", String.class, true);
-        userAuditPath = userAuditPath != null && !userAuditPath.trim().isEmpty() ? userAuditPath : null;
-        dateAuditPath = dateAuditPath != null && !dateAuditPath.trim().isEmpty() ? dateAuditPath : null;
-        dateFromAuditPath = dateFromAuditPath != null && !dateFromAuditPath.trim().isEmpty() ? dateFromAuditPath : null;
-        dateToAuditPath = dateToAuditPath != null && !dateToAuditPath.trim().isEmpty() ? dateToAuditPath : null;
-
         LookBackMode lookBackMode = LookBackMode.MONTHS;
         if (lookBackModeParam != null && !lookBackModeParam.trim().isEmpty())
         {
@@ -271,37 +866,256 @@ public class DeauthoriseInactiveUsersJob implements Job
                 throw new UnsupportedOperationException("Unsupported mode: " + lookBackMode);
         }
         final long fromTime = cal.getTimeInMillis();
+        return fromTime;
+    }
 
-        LOGGER.debug("Querying for inactive users (no activity since {}) via audit application {}", fromTime, auditApplicationName);
-        LOGGER.trace("Using userAuditPath {}, dateAuditPath {}, dateFromAuditPath {}, dateToAuditPath {}", userAuditPath, dateAuditPath,
-                dateFromAuditPath, dateToAuditPath);
+    /**
+     * Evaluates any shards of the inactive user query not yet claimed by another node of the cluster and publishes their partial results.
+     *
+     * @param context
+     *            the execution context of the job
+     * @param queryShards
+     *            the number of shards
+     * @return {@code true} if the results of all shards have been published, {@code false} otherwise
+     */
+    protected boolean evaluateQueryShards(final JobExecutionContext context, final int queryShards)
+    {
+        final TransactionService transactionService = JobUtilities.getJobDataValue(context, "transactionService", TransactionService.class);
+        final AuthorizationService authorisationService = JobUtilities.getJobDataValue(context, "authorisationService",
+                AuthorizationService.class);
+        final AttributeService attributeService = JobUtilities.getJobDataValue(context, "attributeService", AttributeService.class);
 
-        final PersonAuditWorker personAuditWorker = new PersonAuditWorker(fromTime, PersonAuditQueryMode.INACTIVE_ONLY,
-                auditApplicationName, nodeService, auditService);
+        final int workerThreads = this.getPositiveIntegerJobDataValue(context, "workerThreads", DEFAULT_WORKER_THREADS,
+                "Number of worker threads");
+        final int batchSize = this.getPositiveIntegerJobDataValue(context, "batchSize", DEFAULT_BATCH_SIZE, "Batch size");
+        final int loggingInterval = this.getPositiveIntegerJobDataValue(context, "loggingInterval", DEFAULT_LOGGING_INTERVAL,
+                "Logging interval");
 
-        personAuditWorker.setUserAuditPath(userAuditPath);
-        personAuditWorker.setDateAuditPath(dateAuditPath);
-        personAuditWorker.setDateFromAuditPath(dateFromAuditPath);
-        personAuditWorker.setDateToAuditPath(dateToAuditPath);
+        final RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+        final QueryShardStore queryShardStore = new QueryShardStore(attributeService, this.getStoreName());
+        final String queryShardRunKey = this.determineQueryShardRunKey(context, queryShards);
+        final AuthorisationStateSnapshot authorisationStateSnapshot = new AuthorisationStateSnapshot(authorisationService);
+        authorisationStateSnapshot.setMetricsRegistry(this.getMetricsRegistry(context));
 
-        personAuditWorker.setIsAuthorisedCheck(userName -> {
-            final boolean authorized = authorisationService.isAuthorized(userName);
-            return Boolean.valueOf(authorized);
-        });
-        personAuditWorker.setIsDeauthorisedCheck(userName -> {
-            final boolean deauthorized = authorisationService.isDeauthorized(userName);
-            return Boolean.valueOf(deauthorized);
-        });
+        // start at a random shard to reduce contention between nodes triggered at the same time
+        final int firstShard = ThreadLocalRandom.current().nextInt(queryShards);
+        for (int idx = 0; idx < queryShards; idx++)
+        {
+            final int shard = (firstShard + idx) % queryShards;
+            final boolean completed = txnHelper.doInTransaction(() -> {
+                return Boolean.valueOf(queryShardStore.isCompleted(queryShardRunKey, shard));
+            }, true, true).booleanValue();
 
-        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("DeauthoriseInactiveUsers-PreparationQuery",
-                transactionService.getRetryingTransactionHelper(),
-                new PersonBatchWorkProvider(namespaceService, nodeService, personService, searchService), workerThreads, batchSize, null,
-                LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), loggingInterval);
+            if (!completed)
+            {
+                try
+                {
+                    JobUtilities.runWithJobLock(context, this.getQueryShardLockQName(shard), lockReleaseCheck -> {
+                        // re-check within lock - another node may have completed the shard in the meantime
+                        final boolean completedInLock = txnHelper.doInTransaction(() -> {
+                            return Boolean.valueOf(queryShardStore.isCompleted(queryShardRunKey, shard));
+                        }, true, true).booleanValue();
+                        if (!completedInLock)
+                        {
+                            LOGGER.debug("Evaluating query shard {} of run {}", shard, queryShardRunKey);
+                            // no enclosing transaction - query batches and work provider pages use their own
+                            final Collection<AuditUserInfo> inactiveUsers = this.queryInactiveUsers(workerThreads, batchSize,
+                                    loggingInterval, transactionService, authorisationStateSnapshot, shard, queryShards, context);
+                            final List<DeauthorisationUserInfo> shardUsers = DeauthorisationWorkSet.ofAuthorised(inactiveUsers);
+                            txnHelper.doInTransaction(() -> {
+                                queryShardStore.save(queryShardRunKey, new QueryShardResult(shard, shardUsers));
+                                return null;
+                            }, false, true);
+                        }
+                    });
+                }
+                catch (final LockAcquisitionException laex)
+                {
+                    LOGGER.debug("Query shard {} of run {} is being evaluated by another node", shard, queryShardRunKey);
+                }
+            }
+        }
 
-        processor.process(personAuditWorker, true);
+        final boolean allCompleted = txnHelper.doInTransaction(() -> {
+            boolean result = true;
+            for (int shard = 0; shard < queryShards && result; shard++)
+            {
+                result = queryShardStore.isCompleted(queryShardRunKey, shard);
+            }
+            return Boolean.valueOf(result);
+        }, true, true).booleanValue();
+        return allCompleted;
+    }
 
-        final List<AuditUserInfo> auditUsers = new ArrayList<>(personAuditWorker.getUsers());
-        Collections.sort(auditUsers);
-        return auditUsers;
+    protected int determineQueryShards(final JobExecutionContext context)
+    {
+        final int queryShards = this.getPositiveIntegerJobDataValue(context, "queryShards", 1, "Number of query shards");
+        final InactiveUserQueryMode queryMode = this.determineQueryMode(context);
+        if (queryShards > 1 && queryMode != InactiveUserQueryMode.PERSON_AUDIT)
+        {
+            // the other query modes are not split by person - running them once per shard would only multiply their cost
+            throw new IllegalStateException(
+                    "Query shards are only supported in the PERSON_AUDIT query mode - " + queryShards + " shards configured for " + queryMode);
+        }
+        return queryShards;
+    }
+
+    protected String determineQueryShardRunKey(final JobExecutionContext context, final int queryShards)
+    {
+        // scheduled fire time is identical on all nodes of a cluster for the same cron expression
+        final Date scheduledFireTime = context.getScheduledFireTime();
+        final String dryRunParam = JobUtilities.getJobDataValue(context, "dryRun", String.class);
+
+        final StringBuilder builder = new StringBuilder();
+        builder.append(scheduledFireTime != null ? scheduledFireTime.getTime() : 0);
+        builder.append('|');
+        builder.append(queryShards);
+        builder.append('|');
+        builder.append(
+                this.determineCheckpointConfigurationKey(context, InactiveUserQueryMode.PERSON_AUDIT, Boolean.parseBoolean(dryRunParam)));
+        return builder.toString();
+    }
+
+    protected QName getQueryShardLockQName(final int shard)
+    {
+        return QName.createQName(DeauthModuleConstants.SERVICE_NAMESPACE, this.getLockQName().getLocalName() + "-QueryShard-" + shard);
+    }
+
+    protected int getPositiveIntegerJobDataValue(final JobExecutionContext context, final String key, final int defaultValue,
+            final String description)
+    {
+        final String param = JobUtilities.getJobDataValue(context, key, String.class, true);
+        int value = defaultValue;
+        if (param != null && !param.trim().isEmpty())
+        {
+            value = Integer.parseInt(param, 10);
+            if (value <= 0)
+            {
+                throw new IllegalStateException(description + " must be a positive integer");
+            }
+        }
+        return value;
+    }
+
+    protected String determineCheckpointConfigurationKey(final JobExecutionContext context, final InactiveUserQueryMode queryMode,
+            final boolean dryRun)
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(queryMode);
+        builder.append('|');
+        builder.append(dryRun);
+        builder.append('|');
+        builder.append(JobUtilities.getJobDataValue(context, "lookBackMode", String.class, true));
+        builder.append('|');
+        builder.append(JobUtilities.getJobDataValue(context, "lookBackAmount", String.class, true));
+        builder.append('|');
+        builder.append(JobUtilities.getJobDataValue(context, "auditApplicationName", String.class));
+        for (final String auditPathKey : new String[] { "userAuditPath", "dateAuditPath", "dateFromAuditPath", "dateToAuditPath" })
+        {
+            builder.append('|');
+            final String auditPath = this.getAuditPath(context, auditPathKey);
+            builder.append(auditPath != null ? auditPath : "");
+        }
+        return builder.toString();
+    }
+
+    protected InactiveUserQueryMode determineQueryMode(final JobExecutionContext context)
+    {
+        final String queryModeParam = JobUtilities.getJobDataValue(context, "queryMode", String.class, true);
+        InactiveUserQueryMode queryMode = InactiveUserQueryMode.PERSON_AUDIT;
+        if (queryModeParam != null && !queryModeParam.trim().isEmpty())
+        {
+            queryMode = InactiveUserQueryMode.valueOf(queryModeParam.toUpperCase(Locale.ENGLISH));
+        }
+        return queryMode;
+    }
+
+    protected boolean isPipelined(final JobExecutionContext context, final InactiveUserQueryMode queryMode)
+    {
+        final String pipelinedParam = JobUtilities.getJobDataValue(context, "pipelined", String.class, true);
+        boolean pipelined = Boolean.parseBoolean(pipelinedParam);
+        if (pipelined && queryMode == InactiveUserQueryMode.PERSON_AUDIT)
+        {
+            // the PersonAuditWorker only provides its results at the end
+            LOGGER.info("Pipelined mode is not supported for query mode {} - running phases sequentially", queryMode);
+            pipelined = false;
+        }
+        else if (pipelined)
+        {
+            final int queryShards = this.determineQueryShards(context);
+            if (queryShards > 1)
+            {
+                // shards are only combined after all have been completed
+                LOGGER.info("Pipelined mode is not supported with {} query shards - running phases sequentially", queryShards);
+                pipelined = false;
+            }
+        }
+        return pipelined;
+    }
+
+    protected AdaptiveBatchSizer createAdaptiveBatchSizer(final JobExecutionContext context, final int batchSize)
+    {
+        final String adaptiveBatchSizeParam = JobUtilities.getJobDataValue(context, "adaptiveBatchSize", String.class, true);
+        AdaptiveBatchSizer adaptiveBatchSizer = null;
+        if (Boolean.parseBoolean(adaptiveBatchSizeParam))
+        {
+            final int minBatchSize = this.getPositiveIntegerJobDataValue(context, "minBatchSize", DEFAULT_MIN_BATCH_SIZE,
+                    "Minimum batch size");
+            final int maxBatchSize = this.getPositiveIntegerJobDataValue(context, "maxBatchSize", DEFAULT_MAX_BATCH_SIZE,
+                    "Maximum batch size");
+            final int targetBatchMillis = this.getPositiveIntegerJobDataValue(context, "targetBatchMillis", DEFAULT_TARGET_BATCH_MILLIS,
+                    "Target batch duration");
+            adaptiveBatchSizer = new AdaptiveBatchSizer(batchSize, minBatchSize, maxBatchSize, targetBatchMillis);
+        }
+        return adaptiveBatchSizer;
+    }
+
+    protected DeauthorisationThrottle createThrottle(final JobExecutionContext context)
+    {
+        final String maxUsersPerSecondParam = JobUtilities.getJobDataValue(context, "maxUsersPerSecond", String.class, true);
+        int maxUsersPerSecond = 0;
+        if (maxUsersPerSecondParam != null && !maxUsersPerSecondParam.trim().isEmpty())
+        {
+            maxUsersPerSecond = Integer.parseInt(maxUsersPerSecondParam, 10);
+            if (maxUsersPerSecond < 0)
+            {
+                throw new IllegalStateException("Maximum number of users per second must not be negative");
+            }
+        }
+
+        final String loadAwareParam = JobUtilities.getJobDataValue(context, "loadAware", String.class, true);
+        final LoadMonitor loadMonitor = Boolean.parseBoolean(loadAwareParam)
+                ? JobUtilities.getJobDataValue(context, "loadMonitor", LoadMonitor.class) : null;
+
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(maxUsersPerSecond, loadMonitor);
+        return throttle.isActive() ? throttle : null;
+    }
+
+    protected <T> BatchProcessWorker<T> throttle(final BatchProcessWorker<T> worker, final JobExecutionContext context)
+    {
+        final DeauthorisationThrottle throttle = this.createThrottle(context);
+        return throttle != null ? new ThrottledBatchProcessWorker<>(worker, throttle) : worker;
+    }
+
+    protected MetricsRegistry getMetricsRegistry(final JobExecutionContext context)
+    {
+        final MetricsRegistry metricsRegistry = JobUtilities.getJobDataValue(context, "metricsRegistry", MetricsRegistry.class, true);
+        return metricsRegistry != null ? metricsRegistry : NoOpMetricsRegistry.INSTANCE;
+    }
+
+    protected ProtectedAuthorities getProtectedAuthorities(final JobExecutionContext context)
+    {
+        final ProtectedAuthorityResolver protectedAuthorityResolver = JobUtilities.getJobDataValue(context, "protectedAuthorityResolver",
+                ProtectedAuthorityResolver.class);
+        final TransactionService transactionService = JobUtilities.getJobDataValue(context, "transactionService", TransactionService.class);
+        // cached by the resolver until group membership changes - only resolved in a short read-only transaction if not cached
+        return transactionService.getRetryingTransactionHelper().doInTransaction(protectedAuthorityResolver::getProtectedAuthorities,
+                true, false);
+    }
+
+    protected String getAuditPath(final JobExecutionContext context, final String key)
+    {
+        final String auditPath = JobUtilities.getJobDataValue(context, key, String.class, true);
+        return auditPath != null && !auditPath.trim().isEmpty() ? auditPath : null;
     }
 }
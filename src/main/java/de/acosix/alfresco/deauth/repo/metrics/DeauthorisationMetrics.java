@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkSet;
+
+/**
+ * This class defines the names of metrics recorded during deauthorisation runs.
+ *
+ * @author Axel Faust
+ */
+public final class DeauthorisationMetrics
+{
+
+    // query phase
+    public static final String QUERY_PHASE = "query.phase";
+
+    public static final String QUERY_PERSONS_SCANNED = "query.personsScanned";
+
+    public static final String QUERY_PERSONS_PER_SECOND = "query.personsPerSecond";
+
+    public static final String QUERY_PERSON_EVALUATION = "query.personEvaluation";
+
+    public static final String QUERY_AUDIT_QUERY = "query.auditQuery";
+
+    public static final String QUERY_AUDIT_ENTRIES = "query.auditEntries";
+
+    // shared
+    public static final String AUTHORISATION_CHECK = "authorisationCheck";
+
+    public static final String WORK_LIST_USERS = "workList.users";
+
+    public static final String WORK_LIST_ESTIMATED_BYTES = "workList.estimatedBytes";
+
+    // deauthorisation phase
+    public static final String DEAUTHORISATION_PHASE = "deauthorisation.phase";
+
+    public static final String DEAUTHORISATION_USERS_PROCESSED = "deauthorisation.usersProcessed";
+
+    public static final String DEAUTHORISATION_USERS_DEAUTHORISED = "deauthorisation.usersDeauthorised";
+
+    public static final String DEAUTHORISATION_DEAUTHORIZE_CALL = "deauthorisation.deauthorizeCall";
+
+    public static final String DEAUTHORISATION_TXN_STARTED = "deauthorisation.transactionsStarted";
+
+    public static final String DEAUTHORISATION_TXN_COMMITTED = "deauthorisation.transactionsCommitted";
+
+    public static final String DEAUTHORISATION_TXN_ROLLED_BACK = "deauthorisation.transactionsRolledBack";
+
+    public static final String DEAUTHORISATION_BATCH_COMMIT = "deauthorisation.batchCommit";
+
+    // pipelined mode
+    public static final String PIPELINE_USERS_ENQUEUED = "pipeline.usersEnqueued";
+
+    public static final String PIPELINE_QUEUE_DEPTH = "pipeline.queueDepth";
+
+    public static final String PIPELINE_PRODUCER_WAIT = "pipeline.producerWait";
+
+    // rough per-entry overhead of a work list entry (object headers, references, node reference and store reference)
+    private static final long ESTIMATED_BYTES_PER_USER = 160;
+
+    private DeauthorisationMetrics()
+    {
+        // constants only
+    }
+
+    /**
+     * Records the duration and throughput of a query phase.
+     *
+     * @param metricsRegistry
+     *            the registry to record to
+     * @param personsScanned
+     *            the number of persons scanned in the query phase
+     * @param durationNanos
+     *            the duration of the query phase in nanoseconds
+     */
+    public static void recordQueryPhase(final MetricsRegistry metricsRegistry, final int personsScanned, final long durationNanos)
+    {
+        metricsRegistry.recordDuration(QUERY_PHASE, durationNanos);
+        final long durationMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        metricsRegistry.setGauge(QUERY_PERSONS_PER_SECOND, personsScanned * 1000L / durationMillis);
+    }
+
+    /**
+     * Records the size and estimated memory footprint of a work list of users to deauthorise.
+     *
+     * @param metricsRegistry
+     *            the registry to record to
+     * @param work
+     *            the work list
+     */
+    public static void recordWorkList(final MetricsRegistry metricsRegistry, final List<DeauthorisationUserInfo> work)
+    {
+        final long estimatedBytes;
+        if (work instanceof DeauthorisationWorkSet)
+        {
+            estimatedBytes = ((DeauthorisationWorkSet) work).estimateRetainedBytes();
+        }
+        else
+        {
+            long userNameChars = 0;
+            for (final DeauthorisationUserInfo user : work)
+            {
+                userNameChars += user.getUserName().length();
+            }
+            final int averageUserNameLength = work.isEmpty() ? 0 : (int) (userNameChars / work.size());
+            estimatedBytes = estimateWorkListBytes(work.size(), averageUserNameLength);
+        }
+
+        metricsRegistry.setGauge(WORK_LIST_USERS, work.size());
+        metricsRegistry.setGauge(WORK_LIST_ESTIMATED_BYTES, estimatedBytes);
+    }
+
+    /**
+     * Estimates the memory held by a work list of users.
+     *
+     * @param users
+     *            the number of users in the work list
+     * @param averageUserNameLength
+     *            the average length of user names
+     * @return the estimated number of bytes
+     */
+    public static long estimateWorkListBytes(final int users, final int averageUserNameLength)
+    {
+        return users * (ESTIMATED_BYTES_PER_USER + 2L * averageUserNameLength);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface defines the management view of the {@link DefaultMetricsRegistry} exposed via JMX.
+ *
+ * @author Axel Faust
+ */
+public interface DeauthorisationMetricsMXBean
+{
+
+    /**
+     * @return the current values of all counters keyed by metric name
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the current values of all gauges keyed by metric name
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return the statistics of all timers
+     */
+    List<TimerStatistics> getTimers();
+
+    /**
+     * Resets all metrics collected so far.
+     */
+    void reset();
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * This default implementation of a metrics registry keeps all metrics in-memory for the lifetime of the server and exposes them via JMX.
+ * Timers record durations in a logarithmic histogram with buckets for each power of two microseconds, which allows percentiles to be
+ * approximated without retaining individual samples.
+ *
+ * @author Axel Faust
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry, DeauthorisationMetricsMXBean
+{
+
+    protected static final int HISTOGRAM_BUCKETS = 40;
+
+    protected final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordDuration(final String metric, final long durationNanos)
+    {
+        ParameterCheck.mandatoryString("metric", metric);
+        this.timers.computeIfAbsent(metric, k -> new Timer()).record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, durationNanos)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(final String metric, final long delta)
+    {
+        ParameterCheck.mandatoryString("metric", metric);
+        this.counters.computeIfAbsent(metric, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setGauge(final String metric, final long value)
+    {
+        ParameterCheck.mandatoryString("metric", metric);
+        this.gauges.computeIfAbsent(metric, k -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getCounters()
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        this.counters.forEach((metric, counter) -> result.put(metric, Long.valueOf(counter.sum())));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getGauges()
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        this.gauges.forEach((metric, gauge) -> result.put(metric, Long.valueOf(gauge.get())));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<TimerStatistics> getTimers()
+    {
+        final List<TimerStatistics> result = new ArrayList<>();
+        this.timers.forEach((metric, timer) -> result.add(timer.toStatistics(metric)));
+        Collections.sort(result, (a, b) -> a.getName().compareTo(b.getName()));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset()
+    {
+        this.counters.clear();
+        this.gauges.clear();
+        this.timers.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DefaultMetricsRegistry [counters=");
+        builder.append(this.getCounters());
+        builder.append(", gauges=");
+        builder.append(this.getGauges());
+        builder.append(", timers=");
+        builder.append(this.getTimers());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Instances of this class aggregate the recorded durations of a single timer metric.
+     *
+     * @author Axel Faust
+     */
+    protected static class Timer
+    {
+
+        protected final LongAdder count = new LongAdder();
+
+        protected final LongAdder total = new LongAdder();
+
+        protected final AtomicLong max = new AtomicLong();
+
+        protected final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        protected void record(final long micros)
+        {
+            this.count.increment();
+            this.total.add(micros);
+            this.max.accumulateAndGet(micros, Math::max);
+
+            final int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            this.histogram.incrementAndGet(bucket);
+        }
+
+        protected TimerStatistics toStatistics(final String name)
+        {
+            final long count = this.count.sum();
+            return new TimerStatistics(name, count, this.total.sum(), this.max.get(), this.percentile(count, 0.5),
+                    this.percentile(count, 0.95), this.percentile(count, 0.99));
+        }
+
+        protected long percentile(final long count, final double percentile)
+        {
+            long result = 0;
+            if (count > 0)
+            {
+                final long threshold = (long) Math.ceil(count * percentile);
+                long cumulative = 0;
+                for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++)
+                {
+                    cumulative += this.histogram.get(bucket);
+                    if (cumulative >= threshold)
+                    {
+                        // bucket n contains values in [2^(n-1), 2^n)
+                        result = Math.min((1L << bucket) - 1, this.max.get());
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class decorate a batch process worker to record the number and processing latency of the entries it processes.
+ *
+ * @param <T>
+ *            the type of entries being processed
+ * @author Axel Faust
+ */
+public class MeteredBatchProcessWorker<T> implements BatchProcessWorker<T>
+{
+
+    protected final BatchProcessWorker<T> delegate;
+
+    protected final MetricsRegistry metricsRegistry;
+
+    protected final String countMetric;
+
+    protected final String durationMetric;
+
+    public MeteredBatchProcessWorker(final BatchProcessWorker<T> delegate, final MetricsRegistry metricsRegistry, final String countMetric,
+            final String durationMetric)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        ParameterCheck.mandatory("metricsRegistry", metricsRegistry);
+        ParameterCheck.mandatoryString("countMetric", countMetric);
+        ParameterCheck.mandatoryString("durationMetric", durationMetric);
+        this.delegate = delegate;
+        this.metricsRegistry = metricsRegistry;
+        this.countMetric = countMetric;
+        this.durationMetric = durationMetric;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIdentifier(final T entry)
+    {
+        return this.delegate.getIdentifier(entry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeProcess() throws Throwable
+    {
+        this.delegate.beforeProcess();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final T entry) throws Throwable
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            this.delegate.process(entry);
+        }
+        finally
+        {
+            this.metricsRegistry.recordDuration(this.durationMetric, this.delegate.getIdentifier(entry), System.nanoTime() - start);
+            this.metricsRegistry.increment(this.countMetric, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterProcess() throws Throwable
+    {
+        this.delegate.afterProcess();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("MeteredBatchProcessWorker [delegate=");
+        builder.append(this.delegate);
+        builder.append(", countMetric=");
+        builder.append(this.countMetric);
+        builder.append(", durationMetric=");
+        builder.append(this.durationMetric);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+/**
+ * Instances of this interface collect metrics recorded by the components performing a deauthorisation. Implementations must be
+ * thread-safe as metrics are recorded from parallel batch worker threads.
+ *
+ * @author Axel Faust
+ */
+public interface MetricsRegistry
+{
+
+    /**
+     * Records the duration of an operation.
+     *
+     * @param metric
+     *            the name of the metric
+     * @param durationNanos
+     *            the duration in nanoseconds
+     */
+    void recordDuration(String metric, long durationNanos);
+
+    /**
+     * Records the duration of an operation performed for a specific subject, e.g. a single user. Implementations which do not track
+     * individual subjects may simply record the duration.
+     *
+     * @param metric
+     *            the name of the metric
+     * @param subject
+     *            the subject of the operation
+     * @param durationNanos
+     *            the duration in nanoseconds
+     */
+    default void recordDuration(final String metric, final String subject, final long durationNanos)
+    {
+        this.recordDuration(metric, durationNanos);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param metric
+     *            the name of the metric
+     * @param delta
+     *            the amount by which to increment the counter
+     */
+    void increment(String metric, long delta);
+
+    /**
+     * Sets the current value of a gauge.
+     *
+     * @param metric
+     *            the name of the metric
+     * @param value
+     *            the current value
+     */
+    void setGauge(String metric, long value);
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+/**
+ * This implementation of a metrics registry discards all recorded metrics and is used whenever no registry has been configured.
+ *
+ * @author Axel Faust
+ */
+public final class NoOpMetricsRegistry implements MetricsRegistry
+{
+
+    public static final NoOpMetricsRegistry INSTANCE = new NoOpMetricsRegistry();
+
+    private NoOpMetricsRegistry()
+    {
+        // singleton
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordDuration(final String metric, final long durationNanos)
+    {
+        // NO-OP
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(final String metric, final long delta)
+    {
+        // NO-OP
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setGauge(final String metric, final long value)
+    {
+        // NO-OP
+    }
+}
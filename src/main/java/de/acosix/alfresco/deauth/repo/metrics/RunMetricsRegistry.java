@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class collect the metrics of a single deauthorisation run in addition to passing them on to the global registry, so
+ * that a breakdown of where the time of that run went can be provided with its result. Apart from the statistics of all timers and
+ * counters, the slowest operations performed for individual subjects (users / persons) are retained, limited to a configurable number.
+ *
+ * @author Axel Faust
+ */
+public class RunMetricsRegistry implements MetricsRegistry
+{
+
+    /**
+     * Instances of this class describe a single slow operation performed for a subject.
+     *
+     * @author Axel Faust
+     */
+    public static class SlowOperation
+    {
+
+        protected final String subject;
+
+        protected final String operation;
+
+        protected final long durationMicros;
+
+        public SlowOperation(final String subject, final String operation, final long durationMicros)
+        {
+            this.subject = subject;
+            this.operation = operation;
+            this.durationMicros = durationMicros;
+        }
+
+        /**
+         * @return the subject
+         */
+        public String getSubject()
+        {
+            return this.subject;
+        }
+
+        /**
+         * @return the operation
+         */
+        public String getOperation()
+        {
+            return this.operation;
+        }
+
+        /**
+         * @return the durationMicros
+         */
+        public long getDurationMicros()
+        {
+            return this.durationMicros;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("SlowOperation [subject=");
+            builder.append(this.subject);
+            builder.append(", operation=");
+            builder.append(this.operation);
+            builder.append(", durationMicros=");
+            builder.append(this.durationMicros);
+            builder.append("]");
+            return builder.toString();
+        }
+    }
+
+    protected static final String PHASE_METRIC_SUFFIX = ".phase";
+
+    protected static final Comparator<SlowOperation> BY_DURATION = Comparator.comparingLong(SlowOperation::getDurationMicros);
+
+    protected final MetricsRegistry delegate;
+
+    protected final DefaultMetricsRegistry runMetrics = new DefaultMetricsRegistry();
+
+    protected final int slowOperationsLimit;
+
+    // min-heap so that the fastest of the retained slow operations can be evicted cheaply
+    protected final PriorityQueue<SlowOperation> slowOperations;
+
+    protected volatile long slowOperationThresholdMicros = -1;
+
+    public RunMetricsRegistry(final MetricsRegistry delegate, final int slowOperationsLimit)
+    {
+        ParameterCheck.mandatory("delegate", delegate);
+        if (slowOperationsLimit < 0)
+        {
+            throw new IllegalArgumentException("Limit of slow operations must not be negative");
+        }
+        this.delegate = delegate;
+        this.slowOperationsLimit = slowOperationsLimit;
+        this.slowOperations = new PriorityQueue<>(Math.max(1, slowOperationsLimit), BY_DURATION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordDuration(final String metric, final long durationNanos)
+    {
+        this.delegate.recordDuration(metric, durationNanos);
+        this.runMetrics.recordDuration(metric, durationNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordDuration(final String metric, final String subject, final long durationNanos)
+    {
+        this.delegate.recordDuration(metric, subject, durationNanos);
+        this.runMetrics.recordDuration(metric, durationNanos);
+
+        final long durationMicros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, durationNanos));
+        // cheap pre-check to avoid synchronising on the vast majority of fast operations
+        if (subject != null && this.slowOperationsLimit > 0 && durationMicros > this.slowOperationThresholdMicros)
+        {
+            synchronized (this.slowOperations)
+            {
+                this.slowOperations.add(new SlowOperation(subject, metric, durationMicros));
+                if (this.slowOperations.size() > this.slowOperationsLimit)
+                {
+                    this.slowOperations.poll();
+                }
+                if (this.slowOperations.size() == this.slowOperationsLimit)
+                {
+                    this.slowOperationThresholdMicros = this.slowOperations.peek().getDurationMicros();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(final String metric, final long delta)
+    {
+        this.delegate.increment(metric, delta);
+        this.runMetrics.increment(metric, delta);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setGauge(final String metric, final long value)
+    {
+        this.delegate.setGauge(metric, value);
+        this.runMetrics.setGauge(metric, value);
+    }
+
+    /**
+     * @return the total duration in milliseconds of each phase of the run, keyed by the name of the phase
+     */
+    public Map<String, Long> getPhaseMillis()
+    {
+        final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        for (final TimerStatistics timer : this.runMetrics.getTimers())
+        {
+            if (timer.getName().endsWith(PHASE_METRIC_SUFFIX))
+            {
+                final String phase = timer.getName().substring(0, timer.getName().length() - PHASE_METRIC_SUFFIX.length());
+                phaseMillis.put(phase, Long.valueOf(TimeUnit.MICROSECONDS.toMillis(timer.getTotalMicros())));
+            }
+        }
+        return phaseMillis;
+    }
+
+    /**
+     * @return the statistics of all operations timed during the run, excluding the phases
+     */
+    public List<TimerStatistics> getOperations()
+    {
+        final List<TimerStatistics> operations = new ArrayList<>();
+        for (final TimerStatistics timer : this.runMetrics.getTimers())
+        {
+            if (!timer.getName().endsWith(PHASE_METRIC_SUFFIX))
+            {
+                operations.add(timer);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * @return the counters recorded during the run
+     */
+    public Map<String, Long> getCounters()
+    {
+        return this.runMetrics.getCounters();
+    }
+
+    /**
+     * @return the number of rolled back (and thus retried) deauthorisation transactions
+     */
+    public long getRetries()
+    {
+        final Long retries = this.runMetrics.getCounters().get(DeauthorisationMetrics.DEAUTHORISATION_TXN_ROLLED_BACK);
+        return retries != null ? retries.longValue() : 0;
+    }
+
+    /**
+     * @return the slowest operations performed for individual subjects, ordered from slowest to fastest
+     */
+    public List<SlowOperation> getSlowestOperations()
+    {
+        final List<SlowOperation> slowestOperations;
+        synchronized (this.slowOperations)
+        {
+            slowestOperations = new ArrayList<>(this.slowOperations);
+        }
+        slowestOperations.sort(BY_DURATION.reversed());
+        return slowestOperations;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("RunMetricsRegistry [phaseMillis=");
+        builder.append(this.getPhaseMillis());
+        builder.append(", retries=");
+        builder.append(this.getRetries());
+        builder.append(", slowOperationsLimit=");
+        builder.append(this.slowOperationsLimit);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Instances of this class provide a point-in-time view on the statistics of a timer metric. All durations are given in microseconds.
+ * Percentiles are approximated from a logarithmic histogram and represent the upper bound of the histogram bucket containing them.
+ *
+ * @author Axel Faust
+ */
+public class TimerStatistics
+{
+
+    protected final String name;
+
+    protected final long count;
+
+    protected final long totalMicros;
+
+    protected final long maxMicros;
+
+    protected final long p50Micros;
+
+    protected final long p95Micros;
+
+    protected final long p99Micros;
+
+    @ConstructorProperties({ "name", "count", "totalMicros", "maxMicros", "p50Micros", "p95Micros", "p99Micros" })
+    public TimerStatistics(final String name, final long count, final long totalMicros, final long maxMicros, final long p50Micros,
+            final long p95Micros, final long p99Micros)
+    {
+        this.name = name;
+        this.count = count;
+        this.totalMicros = totalMicros;
+        this.maxMicros = maxMicros;
+        this.p50Micros = p50Micros;
+        this.p95Micros = p95Micros;
+        this.p99Micros = p99Micros;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return the count
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return the totalMicros
+     */
+    public long getTotalMicros()
+    {
+        return this.totalMicros;
+    }
+
+    /**
+     * @return the mean duration in microseconds
+     */
+    public long getMeanMicros()
+    {
+        return this.count > 0 ? this.totalMicros / this.count : 0;
+    }
+
+    /**
+     * @return the maxMicros
+     */
+    public long getMaxMicros()
+    {
+        return this.maxMicros;
+    }
+
+    /**
+     * @return the p50Micros
+     */
+    public long getP50Micros()
+    {
+        return this.p50Micros;
+    }
+
+    /**
+     * @return the p95Micros
+     */
+    public long getP95Micros()
+    {
+        return this.p95Micros;
+    }
+
+    /**
+     * @return the p99Micros
+     */
+    public long getP99Micros()
+    {
+        return this.p99Micros;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("TimerStatistics [name=");
+        builder.append(this.name);
+        builder.append(", count=");
+        builder.append(this.count);
+        builder.append(", meanMicros=");
+        builder.append(this.getMeanMicros());
+        builder.append(", p95Micros=");
+        builder.append(this.p95Micros);
+        builder.append(", maxMicros=");
+        builder.append(this.maxMicros);
+        builder.append("]");
+        return builder.toString();
+    }
+}
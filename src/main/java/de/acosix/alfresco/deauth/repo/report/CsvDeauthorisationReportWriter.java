@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the report of deauthorised users as CSV with one line per user. Aggregate counts are not part of the CSV report.
+ *
+ * @author Axel Faust
+ */
+public class CsvDeauthorisationReportWriter extends DeauthorisationReportWriter
+{
+
+    public CsvDeauthorisationReportWriter(final Writer writer)
+    {
+        super(writer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeHeader(final long authorisedUsersBefore) throws IOException
+    {
+        this.writer.write("\"userName\",\"firstName\",\"lastName\",\"email\"");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeUser(final DeauthorisedUserRow user) throws IOException
+    {
+        this.writer.write('\n');
+        this.writeValue(user.getUserName());
+        this.writer.write(',');
+        this.writeValue(user.getFirstName());
+        this.writer.write(',');
+        this.writeValue(user.getLastName());
+        this.writer.write(',');
+        this.writeValue(user.getEmail());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeFooter(final long authorisedUsersAfter, final int deauthorised) throws IOException
+    {
+        this.writer.write('\n');
+    }
+
+    protected void writeValue(final String value) throws IOException
+    {
+        this.writer.write('"');
+        if (value != null)
+        {
+            this.writer.write(value.replace("\"", "\"\""));
+        }
+        this.writer.write('"');
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.TempFileProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.metrics.RunMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+
+/**
+ * Instances of this class stream the report of deauthorised users into a temporary file while the deauthorisation is still in progress,
+ * so that neither the list of deauthorised users nor their person details need to be held in memory for rendering the report.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationReport
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationReport.class);
+
+    protected final ReportFormat format;
+
+    protected final NodeService nodeService;
+
+    protected final File file;
+
+    protected Writer fileWriter;
+
+    protected DeauthorisationReportWriter reportWriter;
+
+    protected volatile boolean completed;
+
+    protected String planId;
+
+    protected RunMetricsRegistry runMetrics;
+
+    public DeauthorisationReport(final ReportFormat format, final NodeService nodeService)
+    {
+        ParameterCheck.mandatory("format", format);
+        ParameterCheck.mandatory("nodeService", nodeService);
+        this.format = format;
+        this.nodeService = nodeService;
+        this.file = TempFileProvider.createTempFile("acosix-deauth-report-", "." + format.name().toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return the format
+     */
+    public ReportFormat getFormat()
+    {
+        return this.format;
+    }
+
+    /**
+     * @return {@code true} if the report has been completed, {@code false} otherwise
+     */
+    public boolean isCompleted()
+    {
+        return this.completed;
+    }
+
+    /**
+     * Sets the ID of the plan which has been saved for the users of the report. This operation must be called before the report is
+     * {@link #begin(long) begun}.
+     *
+     * @param planId
+     *            the planId to set
+     */
+    public synchronized void setPlanId(final String planId)
+    {
+        if (this.reportWriter != null)
+        {
+            throw new IllegalStateException("Report has already been started");
+        }
+        this.planId = planId;
+    }
+
+    /**
+     * @return the ID of the plan which has been saved for the users of the report or {@code null} if no plan has been saved
+     */
+    public String getPlanId()
+    {
+        return this.planId;
+    }
+
+    /**
+     * Sets the metrics of the run producing the report, so that a breakdown of timings can be included in the report. This operation must
+     * be called before the report is {@link #begin(long) begun}.
+     *
+     * @param runMetrics
+     *            the runMetrics to set
+     */
+    public synchronized void setRunMetrics(final RunMetricsRegistry runMetrics)
+    {
+        if (this.reportWriter != null)
+        {
+            throw new IllegalStateException("Report has already been started");
+        }
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * Begins the report.
+     *
+     * @param authorisedUsersBefore
+     *            the number of authorised users before the deauthorisation
+     */
+    public synchronized void begin(final long authorisedUsersBefore)
+    {
+        if (this.reportWriter != null)
+        {
+            throw new IllegalStateException("Report has already been started");
+        }
+
+        try
+        {
+            this.fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file), StandardCharsets.UTF_8));
+            this.reportWriter = DeauthorisationReportWriter.newWriter(this.format, this.fileWriter);
+            this.reportWriter.setPlanId(this.planId);
+            this.reportWriter.setRunMetrics(this.runMetrics);
+            this.reportWriter.writeHeader(authorisedUsersBefore);
+        }
+        catch (final IOException ioex)
+        {
+            throw new AlfrescoRuntimeException("Failed to begin report", ioex);
+        }
+    }
+
+    /**
+     * Creates the report row for a deauthorised user. This operation must be called within an active transaction as it loads the details
+     * of the user from the person node. Only the properties necessary for the report are loaded.
+     *
+     * @param user
+     *            the deauthorised user
+     * @return the row to {@link #writeUsers(Collection) write} once the deauthorisation of the user has been committed
+     */
+    public DeauthorisedUserRow createRow(final DeauthorisationUserInfo user)
+    {
+        ParameterCheck.mandatory("user", user);
+
+        final String firstName = this.getStringProperty(user, ContentModel.PROP_FIRSTNAME);
+        final String lastName = this.getStringProperty(user, ContentModel.PROP_LASTNAME);
+        final String email = this.getStringProperty(user, ContentModel.PROP_EMAIL);
+
+        final DeauthorisedUserRow row = new DeauthorisedUserRow(user.getUserName(), firstName, lastName, email);
+        return row;
+    }
+
+    /**
+     * Writes deauthorised users to the report.
+     *
+     * @param users
+     *            the rows of the users to write
+     */
+    public synchronized void writeUsers(final Collection<DeauthorisedUserRow> users)
+    {
+        ParameterCheck.mandatory("users", users);
+        if (this.reportWriter == null || this.completed)
+        {
+            throw new IllegalStateException("Report has not been started or has already been completed");
+        }
+
+        try
+        {
+            for (final DeauthorisedUserRow user : users)
+            {
+                this.reportWriter.writeUser(user);
+            }
+        }
+        catch (final IOException ioex)
+        {
+            throw new AlfrescoRuntimeException("Failed to write users to report", ioex);
+        }
+    }
+
+    /**
+     * Completes the report.
+     *
+     * @param authorisedUsersAfter
+     *            the number of authorised users after the deauthorisation
+     * @param deauthorised
+     *            the number of deauthorised users
+     */
+    public synchronized void complete(final long authorisedUsersAfter, final int deauthorised)
+    {
+        if (this.reportWriter == null || this.completed)
+        {
+            throw new IllegalStateException("Report has not been started or has already been completed");
+        }
+
+        try
+        {
+            this.reportWriter.writeFooter(authorisedUsersAfter, deauthorised);
+            this.fileWriter.close();
+            this.completed = true;
+        }
+        catch (final IOException ioex)
+        {
+            throw new AlfrescoRuntimeException("Failed to complete report", ioex);
+        }
+    }
+
+    /**
+     * Copies the content of the completed report to a character stream.
+     *
+     * @param writer
+     *            the writer to copy the report to
+     * @throws IOException
+     *             if an error occurs reading the report or writing to the target
+     */
+    public void writeTo(final Writer writer) throws IOException
+    {
+        this.checkCompleted();
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8)))
+        {
+            final char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+            {
+                writer.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Copies the UTF-8 encoded content of the completed report to a byte stream.
+     *
+     * @param outputStream
+     *            the stream to copy the report to
+     * @throws IOException
+     *             if an error occurs reading the report or writing to the target
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException
+    {
+        this.checkCompleted();
+        try (InputStream inputStream = new FileInputStream(this.file))
+        {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Discards the report, removing any temporary data.
+     */
+    public synchronized void discard()
+    {
+        if (this.fileWriter != null && !this.completed)
+        {
+            try
+            {
+                this.fileWriter.close();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.debug("Failed to close writer of discarded report", ioex);
+            }
+        }
+
+        if (this.file.exists() && !this.file.delete())
+        {
+            LOGGER.debug("Failed to delete temporary file {} of discarded report", this.file);
+            this.file.deleteOnExit();
+        }
+    }
+
+    protected void checkCompleted()
+    {
+        if (!this.completed)
+        {
+            throw new IllegalStateException("Report has not been completed");
+        }
+    }
+
+    protected String getStringProperty(final DeauthorisationUserInfo user, final QName property)
+    {
+        final Serializable value = this.nodeService.getProperty(user.getPersonRef(), property);
+        final String stringValue = value != null ? value.toString() : "";
+        return stringValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationReport [format=");
+        builder.append(this.format);
+        builder.append(", file=");
+        builder.append(this.file);
+        builder.append(", completed=");
+        builder.append(this.completed);
+        builder.append("]");
+        return builder.toString();
+    }
+}
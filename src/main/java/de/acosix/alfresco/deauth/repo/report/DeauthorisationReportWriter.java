@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.deauth.repo.metrics.RunMetricsRegistry;
+
+/**
+ * Base class for writers of the report of deauthorised users. Writers produce their output incrementally, so that users can be written as
+ * soon as they have been deauthorised without having to keep the entire report in memory.
+ *
+ * @author Axel Faust
+ */
+public abstract class DeauthorisationReportWriter
+{
+
+    /**
+     * The supported formats of reports.
+     *
+     * @author Axel Faust
+     */
+    public static enum ReportFormat
+    {
+        JSON, CSV;
+
+        /**
+         * Determines the report format for a format name as used in web script requests.
+         *
+         * @param format
+         *            the name of the format
+         * @return the report format - defaults to {@link #JSON JSON} if the format is not supported
+         */
+        public static ReportFormat fromFormatName(final String format)
+        {
+            ReportFormat reportFormat = JSON;
+            if (format != null && CSV.name().equals(format.toUpperCase(Locale.ENGLISH)))
+            {
+                reportFormat = CSV;
+            }
+            return reportFormat;
+        }
+    }
+
+    /**
+     * Creates a new writer for a specific format.
+     *
+     * @param format
+     *            the format of the report
+     * @param writer
+     *            the underlying writer to use for output
+     * @return the report writer
+     */
+    public static DeauthorisationReportWriter newWriter(final ReportFormat format, final Writer writer)
+    {
+        ParameterCheck.mandatory("format", format);
+
+        final DeauthorisationReportWriter reportWriter;
+        switch (format)
+        {
+            case JSON:
+                reportWriter = new JsonDeauthorisationReportWriter(writer);
+                break;
+            case CSV:
+                reportWriter = new CsvDeauthorisationReportWriter(writer);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported format: " + format);
+        }
+        return reportWriter;
+    }
+
+    protected final Writer writer;
+
+    protected String planId;
+
+    protected RunMetricsRegistry runMetrics;
+
+    protected DeauthorisationReportWriter(final Writer writer)
+    {
+        ParameterCheck.mandatory("writer", writer);
+        this.writer = writer;
+    }
+
+    /**
+     * Sets the ID of the plan which has been saved for the users of the report, to be included in the report if the format supports it.
+     *
+     * @param planId
+     *            the planId to set
+     */
+    public void setPlanId(final String planId)
+    {
+        this.planId = planId;
+    }
+
+    /**
+     * Sets the metrics of the run producing the report, to be included as a breakdown of timings in the report if the format supports it.
+     *
+     * @param runMetrics
+     *            the runMetrics to set
+     */
+    public void setRunMetrics(final RunMetricsRegistry runMetrics)
+    {
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * Writes the header of the report.
+     *
+     * @param authorisedUsersBefore
+     *            the number of authorised users before the deauthorisation
+     * @throws IOException
+     *             if an error occurs writing to the underlying writer
+     */
+    public abstract void writeHeader(long authorisedUsersBefore) throws IOException;
+
+    /**
+     * Writes a deauthorised user to the report.
+     *
+     * @param user
+     *            the user to write
+     * @throws IOException
+     *             if an error occurs writing to the underlying writer
+     */
+    public abstract void writeUser(DeauthorisedUserRow user) throws IOException;
+
+    /**
+     * Writes the footer of the report.
+     *
+     * @param authorisedUsersAfter
+     *            the number of authorised users after the deauthorisation
+     * @param deauthorised
+     *            the number of deauthorised users
+     * @throws IOException
+     *             if an error occurs writing to the underlying writer
+     */
+    public abstract void writeFooter(long authorisedUsersAfter, int deauthorised) throws IOException;
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the details of a deauthorised user as included in the report.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisedUserRow
+{
+
+    protected final String userName;
+
+    protected final String firstName;
+
+    protected final String lastName;
+
+    protected final String email;
+
+    public DeauthorisedUserRow(final String userName, final String firstName, final String lastName, final String email)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        this.userName = userName;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+    }
+
+    /**
+     * @return the userName
+     */
+    public String getUserName()
+    {
+        return this.userName;
+    }
+
+    /**
+     * @return the firstName
+     */
+    public String getFirstName()
+    {
+        return this.firstName;
+    }
+
+    /**
+     * @return the lastName
+     */
+    public String getLastName()
+    {
+        return this.lastName;
+    }
+
+    /**
+     * @return the email
+     */
+    public String getEmail()
+    {
+        return this.email;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisedUserRow [userName=");
+        builder.append(this.userName);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.acosix.alfresco.deauth.repo.metrics.RunMetricsRegistry.SlowOperation;
+import de.acosix.alfresco.deauth.repo.metrics.TimerStatistics;
+
+/**
+ * Writes the report of deauthorised users as a JSON object.
+ *
+ * @author Axel Faust
+ */
+public class JsonDeauthorisationReportWriter extends DeauthorisationReportWriter
+{
+
+    protected boolean firstUser = true;
+
+    public JsonDeauthorisationReportWriter(final Writer writer)
+    {
+        super(writer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeHeader(final long authorisedUsersBefore) throws IOException
+    {
+        this.writer.write("{\n    \"authorisedBefore\": \"");
+        this.writer.write(String.valueOf(authorisedUsersBefore));
+        this.writer.write("\",\n    \"users\": [");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeUser(final DeauthorisedUserRow user) throws IOException
+    {
+        if (!this.firstUser)
+        {
+            this.writer.write(',');
+        }
+        this.firstUser = false;
+
+        this.writer.write("\n        {\n            \"userName\": ");
+        this.writeString(user.getUserName());
+        this.writer.write(",\n            \"firstName\": ");
+        this.writeString(user.getFirstName());
+        this.writer.write(",\n            \"lastName\": ");
+        this.writeString(user.getLastName());
+        this.writer.write(",\n            \"email\": ");
+        this.writeString(user.getEmail());
+        this.writer.write("\n        }");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeFooter(final long authorisedUsersAfter, final int deauthorised) throws IOException
+    {
+        this.writer.write("\n    ],\n    \"authorisedAfter\": \"");
+        this.writer.write(String.valueOf(authorisedUsersAfter));
+        this.writer.write("\",\n    \"count\": ");
+        this.writer.write(String.valueOf(deauthorised));
+        if (this.planId != null)
+        {
+            this.writer.write(",\n    \"planId\": ");
+            this.writeString(this.planId);
+        }
+        if (this.runMetrics != null)
+        {
+            this.writer.write(",\n    \"timings\": {\n        \"phases\": ");
+            this.writeLongMap(this.runMetrics.getPhaseMillis());
+            this.writer.write(",\n        \"operations\": [");
+            boolean first = true;
+            for (final TimerStatistics operation : this.runMetrics.getOperations())
+            {
+                this.writer.write(first ? "\n            { \"name\": " : ",\n            { \"name\": ");
+                first = false;
+                this.writeString(operation.getName());
+                this.writer.write(", \"count\": ");
+                this.writer.write(String.valueOf(operation.getCount()));
+                this.writer.write(", \"meanMicros\": ");
+                this.writer.write(String.valueOf(operation.getMeanMicros()));
+                this.writer.write(", \"p50Micros\": ");
+                this.writer.write(String.valueOf(operation.getP50Micros()));
+                this.writer.write(", \"p95Micros\": ");
+                this.writer.write(String.valueOf(operation.getP95Micros()));
+                this.writer.write(", \"p99Micros\": ");
+                this.writer.write(String.valueOf(operation.getP99Micros()));
+                this.writer.write(", \"maxMicros\": ");
+                this.writer.write(String.valueOf(operation.getMaxMicros()));
+                this.writer.write(" }");
+            }
+            this.writer.write("\n        ],\n        \"retries\": ");
+            this.writer.write(String.valueOf(this.runMetrics.getRetries()));
+            this.writer.write(",\n        \"counters\": ");
+            this.writeLongMap(this.runMetrics.getCounters());
+            this.writer.write(",\n        \"slowestUsers\": [");
+            first = true;
+            for (final SlowOperation slowOperation : this.runMetrics.getSlowestOperations())
+            {
+                this.writer.write(first ? "\n            { \"user\": " : ",\n            { \"user\": ");
+                first = false;
+                this.writeString(slowOperation.getSubject());
+                this.writer.write(", \"operation\": ");
+                this.writeString(slowOperation.getOperation());
+                this.writer.write(", \"durationMicros\": ");
+                this.writer.write(String.valueOf(slowOperation.getDurationMicros()));
+                this.writer.write(" }");
+            }
+            this.writer.write("\n        ]\n    }");
+        }
+        this.writer.write("\n}\n");
+    }
+
+    protected void writeLongMap(final Map<String, Long> values) throws IOException
+    {
+        this.writer.write('{');
+        boolean first = true;
+        for (final Entry<String, Long> entry : values.entrySet())
+        {
+            this.writer.write(first ? " " : ", ");
+            first = false;
+            this.writeString(entry.getKey());
+            this.writer.write(": ");
+            this.writer.write(String.valueOf(entry.getValue()));
+        }
+        this.writer.write(first ? "}" : " }");
+    }
+
+    protected void writeString(final String value) throws IOException
+    {
+        this.writer.write('"');
+        if (value != null)
+        {
+            for (int idx = 0, length = value.length(); idx < length; idx++)
+            {
+                final char c = value.charAt(idx);
+                switch (c)
+                {
+                    case '"':
+                        this.writer.write("\\\"");
+                        break;
+                    case '\\':
+                        this.writer.write("\\\\");
+                        break;
+                    case '\n':
+                        this.writer.write("\\n");
+                        break;
+                    case '\r':
+                        this.writer.write("\\r");
+                        break;
+                    case '\t':
+                        this.writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20)
+                        {
+                            this.writer.write(String.format("\\u%04x", Integer.valueOf(c)));
+                        }
+                        else
+                        {
+                            this.writer.write(c);
+                        }
+                }
+            }
+        }
+        this.writer.write('"');
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.tracking;
+
+import java.io.Serializable;
+
+import org.alfresco.repo.audit.extractor.AbstractDataExtractor;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * This audit data extractor records the activity of users in a {@link UserActivityTracker} whenever an audit application containing a
+ * user name mapped via this extractor is written to. The user name is passed through unchanged, so this extractor can be used in place of
+ * the default {@code simpleValue} extractor for any path that already records the user name, e.g. the user of the
+ * {@code alfresco-access} login or {@code acosix-audit-activeUsers} audit applications.
+ *
+ * @author Axel Faust
+ */
+public class ActivityTrackingDataExtractor extends AbstractDataExtractor
+{
+
+    protected UserActivityTracker activityTracker;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "activityTracker", this.activityTracker);
+    }
+
+    /**
+     * @param activityTracker
+     *            the activityTracker to set
+     */
+    public void setActivityTracker(final UserActivityTracker activityTracker)
+    {
+        this.activityTracker = activityTracker;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSupported(final Serializable data)
+    {
+        return data instanceof String;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Serializable extractData(final Serializable value) throws Throwable
+    {
+        final String userName = (String) value;
+        if (!userName.isEmpty())
+        {
+            this.activityTracker.recordActivity(userName);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ActivityTrackingDataExtractor [activityTracker=");
+        builder.append(this.activityTracker);
+        builder.append("]");
+        return builder.toString();
+    }
+}
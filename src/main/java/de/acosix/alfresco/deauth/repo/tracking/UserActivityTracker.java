@@ -0,0 +1,449 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.tracking;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+
+/**
+ * Instances of this class track the last activity of users as it happens, so that inactive users can be determined without querying audit
+ * data. Activity is collected in-memory and coalesced per user, only recording a new timestamp for a user if the previously persisted one
+ * is older than a configurable resolution, and then flushed in batches via the {@link AttributeService} by a background thread. The time
+ * since which activity has been tracked without interruption is recorded alongside, so that the tracked activity is only ever used for
+ * time frames it fully covers.
+ *
+ * @author Axel Faust
+ */
+public class UserActivityTracker implements InitializingBean, DisposableBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserActivityTracker.class);
+
+    protected static final String ATTR_KEY_ROOT = "acosix-deauth";
+
+    protected static final String ATTR_KEY_TRACKED_ACTIVITY = "trackedActivity";
+
+    protected static final String ATTR_KEY_TRACKED_SINCE = "trackedActivitySince";
+
+    protected static final String ATTR_KEY_TRACKING_HEARTBEAT = "trackedActivityHeartbeat";
+
+    protected static final String INDEX_CONFIGURATION_KEY = "trackedActivity";
+
+    protected final Map<String, Long> pendingActivity = new ConcurrentHashMap<>();
+
+    protected final Map<String, Long> persistedActivity = new ConcurrentHashMap<>();
+
+    protected final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    protected boolean enabled = false;
+
+    protected AttributeService attributeService;
+
+    protected TransactionService transactionService;
+
+    protected int flushIntervalSeconds = 60;
+
+    protected int maxPendingUsers = 1000;
+
+    protected int resolutionMinutes = 60;
+
+    protected int maxTrackingGapMinutes = 1440;
+
+    protected long trackingStartTime;
+
+    protected boolean trackingInitialised;
+
+    protected ScheduledExecutorService flushExecutor;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        if (this.flushIntervalSeconds <= 0)
+        {
+            throw new IllegalStateException("Flush interval must be a positive integer");
+        }
+        if (this.maxPendingUsers <= 0)
+        {
+            throw new IllegalStateException("Maximum number of pending users must be a positive integer");
+        }
+        if (this.resolutionMinutes < 0)
+        {
+            throw new IllegalStateException("Resolution must not be negative");
+        }
+        if (this.maxTrackingGapMinutes <= 0)
+        {
+            throw new IllegalStateException("Maximum tracking gap must be a positive integer");
+        }
+
+        if (this.enabled)
+        {
+            this.trackingStartTime = System.currentTimeMillis();
+            this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, UserActivityTracker.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flushExecutor.scheduleWithFixedDelay(this::flushSafely, this.flushIntervalSeconds, this.flushIntervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.flushExecutor != null)
+        {
+            this.flushExecutor.shutdown();
+            // persist any pending activity before shutdown
+            this.flushSafely();
+        }
+    }
+
+    /**
+     * @param enabled
+     *            the enabled to set
+     */
+    public void setEnabled(final boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param flushIntervalSeconds
+     *            the interval in which to flush tracked activity
+     */
+    public void setFlushIntervalSeconds(final int flushIntervalSeconds)
+    {
+        this.flushIntervalSeconds = flushIntervalSeconds;
+    }
+
+    /**
+     * @param maxPendingUsers
+     *            the number of users with pending activity which triggers an early flush
+     */
+    public void setMaxPendingUsers(final int maxPendingUsers)
+    {
+        this.maxPendingUsers = maxPendingUsers;
+    }
+
+    /**
+     * @param resolutionMinutes
+     *            the minimum age of the persisted activity of a user before a more recent activity is recorded again
+     */
+    public void setResolutionMinutes(final int resolutionMinutes)
+    {
+        this.resolutionMinutes = resolutionMinutes;
+    }
+
+    /**
+     * @param maxTrackingGapMinutes
+     *            the maximum time without any flush (e.g. due to downtime or tracking being disabled) after which tracking is considered to
+     *            have been interrupted, so that previously tracked activity no longer covers the time since tracking was first started
+     */
+    public void setMaxTrackingGapMinutes(final int maxTrackingGapMinutes)
+    {
+        this.maxTrackingGapMinutes = maxTrackingGapMinutes;
+    }
+
+    /**
+     * @return {@code true} if activity is being tracked, {@code false} otherwise
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    /**
+     * Records the activity of a user at the current time.
+     *
+     * @param userName
+     *            the name of the active user
+     */
+    public void recordActivity(final String userName)
+    {
+        this.recordActivity(userName, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the activity of a user.
+     *
+     * @param userName
+     *            the name of the active user
+     * @param time
+     *            the time of the activity
+     */
+    public void recordActivity(final String userName, final long time)
+    {
+        ParameterCheck.mandatoryString("userName", userName);
+        if (this.enabled)
+        {
+            final String key = this.toKey(userName);
+            final Long persisted = this.persistedActivity.get(key);
+            if (persisted == null || time - persisted.longValue() >= TimeUnit.MINUTES.toMillis(this.resolutionMinutes))
+            {
+                this.pendingActivity.merge(key, Long.valueOf(time), (a, b) -> a.longValue() >= b.longValue() ? a : b);
+                if (this.pendingActivity.size() >= this.maxPendingUsers && this.flushRequested.compareAndSet(false, true))
+                {
+                    LOGGER.debug("Triggering early flush of tracked activity of {} users", this.pendingActivity.size());
+                    this.flushExecutor.execute(this::flushSafely);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the point in time since which activity has been tracked, e.g. to load an index which also provides the last activity of
+     * users who have not been active within the time frame of a specific run.
+     *
+     * @return the point in time since which activity has been tracked or {@code null} if tracking is disabled or has not been initialised
+     */
+    public Long getTrackedSince()
+    {
+        Long trackedSince = null;
+        if (this.enabled)
+        {
+            final Serializable since = AuthenticationUtil.runAsSystem(() -> {
+                return this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                    return this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKED_SINCE);
+                }, true, true);
+            });
+            trackedSince = since instanceof Long ? (Long) since : null;
+        }
+        return trackedSince;
+    }
+
+    /**
+     * Loads the tracked activity of all users into an index if tracking has covered the entire time frame.
+     *
+     * @param fromTime
+     *            the earliest point in time for which user activity needs to be known
+     * @return the index of the tracked activity or {@code null} if tracking is disabled or has not (continuously) covered the time frame
+     */
+    public UserActivityIndex loadIndex(final long fromTime)
+    {
+        UserActivityIndex index = null;
+        if (this.enabled)
+        {
+            index = AuthenticationUtil.runAsSystem(() -> {
+                return this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                    return this.loadIndexImpl(fromTime);
+                }, true, true);
+            });
+        }
+        return index;
+    }
+
+    /**
+     * Flushes the pending activity to the persistent store.
+     */
+    public synchronized void flush()
+    {
+        this.flushRequested.set(false);
+
+        final Map<String, Long> activity = new HashMap<>();
+        for (final String key : this.pendingActivity.keySet())
+        {
+            final Long time = this.pendingActivity.remove(key);
+            if (time != null)
+            {
+                activity.put(key, time);
+            }
+        }
+
+        try
+        {
+            AuthenticationUtil.runAsSystem(() -> {
+                return this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                    this.flushImpl(activity);
+                    return null;
+                }, false, true);
+            });
+            this.persistedActivity.putAll(activity);
+            LOGGER.debug("Flushed tracked activity of {} users", activity.size());
+        }
+        catch (final RuntimeException e)
+        {
+            // re-queue for the next flush
+            activity.forEach((key, time) -> {
+                this.pendingActivity.merge(key, time, (a, b) -> a.longValue() >= b.longValue() ? a : b);
+            });
+            throw e;
+        }
+    }
+
+    /**
+     * Removes all tracked activity, starting the tracking anew.
+     */
+    public synchronized void clear()
+    {
+        AuthenticationUtil.runAsSystem(() -> {
+            return this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                this.attributeService.removeAttributes(ATTR_KEY_ROOT, ATTR_KEY_TRACKED_ACTIVITY);
+                this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKED_SINCE);
+                this.attributeService.removeAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKING_HEARTBEAT);
+                return null;
+            }, false, true);
+        });
+        this.persistedActivity.clear();
+        this.trackingStartTime = System.currentTimeMillis();
+        this.trackingInitialised = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("UserActivityTracker [enabled=");
+        builder.append(this.enabled);
+        builder.append(", pendingUsers=");
+        builder.append(this.pendingActivity.size());
+        builder.append(", flushIntervalSeconds=");
+        builder.append(this.flushIntervalSeconds);
+        builder.append(", resolutionMinutes=");
+        builder.append(this.resolutionMinutes);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected void flushSafely()
+    {
+        try
+        {
+            this.flush();
+        }
+        catch (final RuntimeException e)
+        {
+            LOGGER.warn("Failed to flush tracked user activity - will retry with next flush", e);
+        }
+    }
+
+    protected void flushImpl(final Map<String, Long> activity)
+    {
+        final long now = System.currentTimeMillis();
+        if (!this.trackingInitialised)
+        {
+            final Serializable since = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKED_SINCE);
+            final Serializable heartbeat = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKING_HEARTBEAT);
+            final boolean interrupted = heartbeat instanceof Long
+                    && this.trackingStartTime - ((Long) heartbeat).longValue() > TimeUnit.MINUTES.toMillis(this.maxTrackingGapMinutes);
+            if (!(since instanceof Long) || !(heartbeat instanceof Long) || interrupted)
+            {
+                LOGGER.info("Starting to track user activity from {}{}", this.trackingStartTime,
+                        interrupted ? " as previous tracking has been interrupted" : "");
+                this.attributeService.setAttribute(Long.valueOf(this.trackingStartTime), ATTR_KEY_ROOT, ATTR_KEY_TRACKED_SINCE);
+            }
+        }
+
+        for (final Map.Entry<String, Long> entry : activity.entrySet())
+        {
+            this.attributeService.setAttribute(entry.getValue(), ATTR_KEY_ROOT, ATTR_KEY_TRACKED_ACTIVITY, entry.getKey());
+        }
+        this.attributeService.setAttribute(Long.valueOf(now), ATTR_KEY_ROOT, ATTR_KEY_TRACKING_HEARTBEAT);
+        this.trackingInitialised = true;
+    }
+
+    protected UserActivityIndex loadIndexImpl(final long fromTime)
+    {
+        final Serializable since = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKED_SINCE);
+        final Serializable heartbeat = this.attributeService.getAttribute(ATTR_KEY_ROOT, ATTR_KEY_TRACKING_HEARTBEAT);
+        final long maxGap = Math.max(TimeUnit.MINUTES.toMillis(this.maxTrackingGapMinutes),
+                TimeUnit.SECONDS.toMillis(this.flushIntervalSeconds));
+
+        UserActivityIndex index = null;
+        if (!(since instanceof Long) || ((Long) since).longValue() > fromTime)
+        {
+            LOGGER.debug("Tracked user activity does not cover the time frame from {} (tracked since {})", fromTime, since);
+        }
+        else if (!(heartbeat instanceof Long) || System.currentTimeMillis() - ((Long) heartbeat).longValue() > maxGap)
+        {
+            LOGGER.debug("Tracked user activity is stale (last flushed at {})", heartbeat);
+        }
+        else
+        {
+            final UserActivityIndex trackedIndex = new UserActivityIndex(INDEX_CONFIGURATION_KEY, fromTime);
+            this.attributeService.getAttributes((id, value, keys) -> {
+                if (value instanceof Long && keys.length == 3 && keys[2] instanceof String)
+                {
+                    trackedIndex.recordActivity((String) keys[2], ((Long) value).longValue());
+                }
+                return true;
+            }, ATTR_KEY_ROOT, ATTR_KEY_TRACKED_ACTIVITY);
+            // activity of this server which has not been flushed yet
+            this.pendingActivity.forEach(trackedIndex::recordActivity);
+            trackedIndex.prune(fromTime);
+
+            LOGGER.debug("Loaded tracked activity of {} users since {}", trackedIndex.size(), fromTime);
+            index = trackedIndex;
+        }
+        return index;
+    }
+
+    protected String toKey(final String userName)
+    {
+        // user names are case-insensitive by default
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+}
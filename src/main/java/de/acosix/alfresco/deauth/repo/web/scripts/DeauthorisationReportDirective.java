@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+
+/**
+ * This template directive copies the content of a completed {@link DeauthorisationReport report} directly into the output of a web script
+ * template without loading the report into memory.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationReportDirective implements TemplateDirectiveModel
+{
+
+    protected final DeauthorisationReport report;
+
+    public DeauthorisationReportDirective(final DeauthorisationReport report)
+    {
+        ParameterCheck.mandatory("report", report);
+        this.report = report;
+    }
+
+    /**
+     * @return the report
+     */
+    public DeauthorisationReport getReport()
+    {
+        return this.report;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void execute(final Environment env, final Map params, final TemplateModel[] loopVars, final TemplateDirectiveBody body)
+            throws TemplateException, IOException
+    {
+        this.report.writeTo(env.getOut());
+    }
+}
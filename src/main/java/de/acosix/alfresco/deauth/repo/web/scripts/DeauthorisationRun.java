@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.deauth.repo.batch.PersonDeauthorisationWorker;
+
+/**
+ * Instances of this class track the progress and result of a deauthorisation run executed asynchronously via the
+ * {@link DeauthorisationRunRegistry}.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationRun
+{
+
+    public static enum RunStatus
+    {
+        QUEUED, QUERYING, DEAUTHORISING, COMPLETED, FAILED;
+    }
+
+    protected final String runId;
+
+    protected final String runKey;
+
+    protected final long submitTime = System.currentTimeMillis();
+
+    protected volatile RunStatus status = RunStatus.QUEUED;
+
+    protected volatile long startTime = -1;
+
+    protected volatile long endTime = -1;
+
+    protected volatile int candidates = -1;
+
+    protected volatile PersonDeauthorisationWorker deauthorisationWorker;
+
+    protected volatile Map<String, Object> result;
+
+    protected volatile String errorMessage;
+
+    protected volatile String planId;
+
+    public DeauthorisationRun(final String runId, final String runKey)
+    {
+        ParameterCheck.mandatoryString("runId", runId);
+        ParameterCheck.mandatoryString("runKey", runKey);
+        this.runId = runId;
+        this.runKey = runKey;
+    }
+
+    /**
+     * @return the runId
+     */
+    public String getRunId()
+    {
+        return this.runId;
+    }
+
+    /**
+     * @return the key identifying the parameters of the run
+     */
+    public String getRunKey()
+    {
+        return this.runKey;
+    }
+
+    /**
+     * @return the status
+     */
+    public RunStatus getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * @return {@code true} if the run has been completed, either successfully or with a failure
+     */
+    public boolean isDone()
+    {
+        return this.status == RunStatus.COMPLETED || this.status == RunStatus.FAILED;
+    }
+
+    /**
+     * @return the submitTime
+     */
+    public long getSubmitTime()
+    {
+        return this.submitTime;
+    }
+
+    /**
+     * @return the startTime or {@code -1} if the run has not been started yet
+     */
+    public long getStartTime()
+    {
+        return this.startTime;
+    }
+
+    /**
+     * @return the endTime or {@code -1} if the run has not been completed yet
+     */
+    public long getEndTime()
+    {
+        return this.endTime;
+    }
+
+    /**
+     * @return the number of users found to be candidates for deauthorisation or {@code -1} if the query phase has not been completed yet
+     */
+    public int getCandidates()
+    {
+        return this.candidates;
+    }
+
+    /**
+     * @return the number of users deauthorised so far
+     */
+    public int getDeauthorised()
+    {
+        final PersonDeauthorisationWorker worker = this.deauthorisationWorker;
+        return worker != null ? worker.getDeauthorised() : 0;
+    }
+
+    /**
+     * @return the model of the final report or {@code null} if the run has not been completed successfully
+     */
+    public Map<String, Object> getResult()
+    {
+        return this.result;
+    }
+
+    /**
+     * @return the errorMessage
+     */
+    public String getErrorMessage()
+    {
+        return this.errorMessage;
+    }
+
+    /**
+     * @return the ID of the plan saved by this run or {@code null} if no plan has been saved (yet)
+     */
+    public String getPlanId()
+    {
+        return this.planId;
+    }
+
+    /**
+     * @param planId
+     *            the ID of the plan saved by this run
+     */
+    public void setPlanId(final String planId)
+    {
+        this.planId = planId;
+    }
+
+    /**
+     * Marks the start of the query phase of this run.
+     */
+    public void markQuerying()
+    {
+        this.startTime = System.currentTimeMillis();
+        this.status = RunStatus.QUERYING;
+    }
+
+    /**
+     * Marks the start of the deauthorisation phase of this run.
+     *
+     * @param candidates
+     *            the number of users found to be candidates for deauthorisation
+     * @param deauthorisationWorker
+     *            the worker performing the deauthorisation
+     */
+    public void markDeauthorising(final int candidates, final PersonDeauthorisationWorker deauthorisationWorker)
+    {
+        this.candidates = candidates;
+        this.deauthorisationWorker = deauthorisationWorker;
+        this.status = RunStatus.DEAUTHORISING;
+    }
+
+    /**
+     * Marks the successful completion of this run.
+     *
+     * @param result
+     *            the model of the final report
+     */
+    public void markCompleted(final Map<String, Object> result)
+    {
+        this.result = result != null ? Collections.unmodifiableMap(result) : Collections.emptyMap();
+        this.endTime = System.currentTimeMillis();
+        this.status = RunStatus.COMPLETED;
+    }
+
+    /**
+     * Marks the failed completion of this run.
+     *
+     * @param error
+     *            the error that caused the failure
+     */
+    public void markFailed(final Throwable error)
+    {
+        this.errorMessage = error.getMessage() != null ? error.getMessage() : error.getClass().getName();
+        this.endTime = System.currentTimeMillis();
+        this.status = RunStatus.FAILED;
+    }
+
+    /**
+     * Releases any resources held by the result of this run, e.g. the file backing the report.
+     */
+    public void discard()
+    {
+        final Map<String, Object> result = this.result;
+        final Object report = result != null ? result.get("report") : null;
+        if (report instanceof DeauthorisationReportDirective)
+        {
+            ((DeauthorisationReportDirective) report).getReport().discard();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("DeauthorisationRun [runId=");
+        builder.append(this.runId);
+        builder.append(", runKey=");
+        builder.append(this.runKey);
+        builder.append(", status=");
+        builder.append(this.status);
+        builder.append(", candidates=");
+        builder.append(this.candidates);
+        builder.append(", deauthorised=");
+        builder.append(this.getDeauthorised());
+        builder.append("]");
+        return builder.toString();
+    }
+}
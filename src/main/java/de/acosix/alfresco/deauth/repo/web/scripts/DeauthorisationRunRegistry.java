@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * This registry manages deauthorisation runs executed asynchronously on a managed background executor. Runs are tracked in-memory and
+ * thus only available on the server they were submitted to. Completed runs are retained for a configurable time so that their results can
+ * be retrieved.
+ *
+ * @author Axel Faust
+ */
+public class DeauthorisationRunRegistry implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeauthorisationRunRegistry.class);
+
+    protected final Map<String, DeauthorisationRun> runsById = new HashMap<>();
+
+    protected final Map<String, DeauthorisationRun> activeRunsByKey = new HashMap<>();
+
+    protected ExecutorService executorService;
+
+    protected int runRetentionMinutes = 60;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "executorService", this.executorService);
+        if (this.runRetentionMinutes <= 0)
+        {
+            throw new IllegalStateException("Retention time of runs must be a positive integer");
+        }
+    }
+
+    /**
+     * @param executorService
+     *            the executorService to set
+     */
+    public void setExecutorService(final ExecutorService executorService)
+    {
+        this.executorService = executorService;
+    }
+
+    /**
+     * @param runRetentionMinutes
+     *            the runRetentionMinutes to set
+     */
+    public void setRunRetentionMinutes(final int runRetentionMinutes)
+    {
+        this.runRetentionMinutes = runRetentionMinutes;
+    }
+
+    /**
+     * Submits a deauthorisation run for asynchronous execution. If a run for the same key is still in progress, that run will be returned
+     * instead of submitting a new one.
+     *
+     * @param runKey
+     *            the key identifying the parameters of the run
+     * @param work
+     *            the work to execute, providing the model of the final report
+     * @return the submitted or already active run
+     */
+    public synchronized DeauthorisationRun submit(final String runKey, final Function<DeauthorisationRun, Map<String, Object>> work)
+    {
+        ParameterCheck.mandatoryString("runKey", runKey);
+        ParameterCheck.mandatory("work", work);
+
+        this.evictExpiredRuns();
+
+        DeauthorisationRun run = this.activeRunsByKey.get(runKey);
+        if (run == null)
+        {
+            final DeauthorisationRun newRun = new DeauthorisationRun(UUID.randomUUID().toString(), runKey);
+            try
+            {
+                this.executorService.execute(() -> {
+                    this.execute(newRun, work);
+                });
+            }
+            catch (final RejectedExecutionException rex)
+            {
+                LOGGER.warn("Failed to submit deauthorisation run {}", newRun, rex);
+                throw rex;
+            }
+            this.runsById.put(newRun.getRunId(), newRun);
+            this.activeRunsByKey.put(runKey, newRun);
+            run = newRun;
+            LOGGER.debug("Submitted new deauthorisation run {}", run);
+        }
+        else
+        {
+            LOGGER.debug("Attaching to already active deauthorisation run {}", run);
+        }
+        return run;
+    }
+
+    /**
+     * Retrieves a deauthorisation run.
+     *
+     * @param runId
+     *            the ID of the run
+     * @return the run or {@code null} if no such run exists / the run has already been evicted
+     */
+    public synchronized DeauthorisationRun getRun(final String runId)
+    {
+        ParameterCheck.mandatoryString("runId", runId);
+        this.evictExpiredRuns();
+        return this.runsById.get(runId);
+    }
+
+    protected void execute(final DeauthorisationRun run, final Function<DeauthorisationRun, Map<String, Object>> work)
+    {
+        try
+        {
+            LOGGER.debug("Starting deauthorisation run {}", run);
+            run.markQuerying();
+            final Map<String, Object> result = work.apply(run);
+            run.markCompleted(result);
+            LOGGER.debug("Completed deauthorisation run {}", run);
+        }
+        catch (final RuntimeException | Error e)
+        {
+            LOGGER.warn("Deauthorisation run {} failed", run, e);
+            run.markFailed(e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                this.activeRunsByKey.remove(run.getRunKey(), run);
+            }
+        }
+    }
+
+    protected void evictExpiredRuns()
+    {
+        final long threshold = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(this.runRetentionMinutes);
+        final Iterator<DeauthorisationRun> iterator = this.runsById.values().iterator();
+        while (iterator.hasNext())
+        {
+            final DeauthorisationRun run = iterator.next();
+            if (run.isDone() && run.getEndTime() < threshold)
+            {
+                LOGGER.debug("Evicting expired deauthorisation run {}", run);
+                iterator.remove();
+                run.discard();
+            }
+        }
+    }
+}
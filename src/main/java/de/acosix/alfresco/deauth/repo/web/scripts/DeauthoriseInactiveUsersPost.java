@@ -15,15 +15,23 @@
  */
 package de.acosix.alfresco.deauth.repo.web.scripts;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
 import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.util.PropertyCheck;
 import org.apache.commons.logging.LogFactory;
@@ -31,16 +39,46 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
 import de.acosix.alfresco.audit.repo.batch.AuditUserInfo;
-import de.acosix.alfresco.audit.repo.batch.AuditUserInfo.AuthorisedState;
 import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker;
 import de.acosix.alfresco.audit.repo.batch.PersonAuditWorker.PersonAuditQueryMode;
 import de.acosix.alfresco.audit.repo.web.scripts.AbstractAuditUserWebScript;
+import de.acosix.alfresco.deauth.repo.batch.AdaptiveBatchSizer;
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisationStateSnapshot;
+import de.acosix.alfresco.deauth.repo.batch.AuthorisedPersonFilteringWorker;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationPipeline;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationPlan;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationPlanStore;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationThrottle;
 import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkFile;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkSet;
+import de.acosix.alfresco.deauth.repo.batch.InactiveUserQueryMode;
+import de.acosix.alfresco.deauth.repo.batch.LoadMonitor;
+import de.acosix.alfresco.deauth.repo.batch.PartitionedDeauthorisationProcessor;
+import de.acosix.alfresco.deauth.repo.batch.PersonActivityIndexWorker;
+import de.acosix.alfresco.deauth.repo.batch.PersonAuditProbeWorker;
 import de.acosix.alfresco.deauth.repo.batch.PersonDeauthorisationWorker;
-import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorities;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorityResolver;
+import de.acosix.alfresco.deauth.repo.batch.StoppingWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.ThrottledBatchProcessWorker;
+import de.acosix.alfresco.deauth.repo.batch.TransactionalWorkProvider;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.bootstrap.ActivityIndexWarmer;
+import de.acosix.alfresco.deauth.repo.metrics.DeauthorisationMetrics;
+import de.acosix.alfresco.deauth.repo.metrics.MeteredBatchProcessWorker;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.RunMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.tracking.UserActivityTracker;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+import de.acosix.alfresco.utility.repo.batch.PersonBatchWorkProvider;
 
 /**
  * This web script deauthorises any user that has been inactive in a specific timeframe into the past (based on data of an audit application
@@ -57,6 +95,44 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
 
         private boolean dryRun = false;
 
+        private InactiveUserQueryMode queryMode;
+
+        private boolean async = false;
+
+        private ReportFormat reportFormat = ReportFormat.JSON;
+
+        private int deauthorisationLanes = 1;
+
+        private boolean adaptiveBatchSize = false;
+
+        private int maxUsersPerSecond = 0;
+
+        private boolean loadAware = false;
+
+        private boolean pipelined = false;
+
+        private boolean savePlan = false;
+
+        private String planId;
+
+        private DeauthorisationPlan plan;
+
+        private int targetAuthorisedCount = 0;
+
+        private int deauthorisationQuota = -1;
+
+        private boolean spillToDisk = false;
+
+        private boolean timings = false;
+
+        private String auditConfigurationKey;
+
+        private RunMetricsRegistry runMetricsRegistry;
+
+        private AuthorisationStateSnapshot authorisationStateSnapshot;
+
+        private ProtectedAuthorities protectedAuthorities;
+
         /**
          * @return the dryRun
          */
@@ -74,6 +150,381 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
             this.dryRun = dryRun;
         }
 
+        /**
+         * @return the queryMode
+         */
+        public InactiveUserQueryMode getQueryMode()
+        {
+            return this.queryMode;
+        }
+
+        /**
+         * @param queryMode
+         *            the queryMode to set
+         */
+        public void setQueryMode(final InactiveUserQueryMode queryMode)
+        {
+            this.queryMode = queryMode;
+        }
+
+        /**
+         * @return the async
+         */
+        public boolean isAsync()
+        {
+            return this.async;
+        }
+
+        /**
+         * @param async
+         *            the async to set
+         */
+        public void setAsync(final boolean async)
+        {
+            this.async = async;
+        }
+
+        /**
+         * @return the reportFormat
+         */
+        public ReportFormat getReportFormat()
+        {
+            return this.reportFormat;
+        }
+
+        /**
+         * @param reportFormat
+         *            the reportFormat to set
+         */
+        public void setReportFormat(final ReportFormat reportFormat)
+        {
+            this.reportFormat = reportFormat;
+        }
+
+        /**
+         * @return the deauthorisationLanes
+         */
+        public int getDeauthorisationLanes()
+        {
+            return this.deauthorisationLanes;
+        }
+
+        /**
+         * @param deauthorisationLanes
+         *            the deauthorisationLanes to set
+         */
+        public void setDeauthorisationLanes(final int deauthorisationLanes)
+        {
+            this.deauthorisationLanes = deauthorisationLanes;
+        }
+
+        /**
+         * @return the adaptiveBatchSize
+         */
+        public boolean isAdaptiveBatchSize()
+        {
+            return this.adaptiveBatchSize;
+        }
+
+        /**
+         * @param adaptiveBatchSize
+         *            the adaptiveBatchSize to set
+         */
+        public void setAdaptiveBatchSize(final boolean adaptiveBatchSize)
+        {
+            this.adaptiveBatchSize = adaptiveBatchSize;
+        }
+
+        /**
+         * @return the maxUsersPerSecond
+         */
+        public int getMaxUsersPerSecond()
+        {
+            return this.maxUsersPerSecond;
+        }
+
+        /**
+         * @param maxUsersPerSecond
+         *            the maxUsersPerSecond to set
+         */
+        public void setMaxUsersPerSecond(final int maxUsersPerSecond)
+        {
+            this.maxUsersPerSecond = maxUsersPerSecond;
+        }
+
+        /**
+         * @return the loadAware
+         */
+        public boolean isLoadAware()
+        {
+            return this.loadAware;
+        }
+
+        /**
+         * @param loadAware
+         *            the loadAware to set
+         */
+        public void setLoadAware(final boolean loadAware)
+        {
+            this.loadAware = loadAware;
+        }
+
+        /**
+         * @return the pipelined
+         */
+        public boolean isPipelined()
+        {
+            return this.pipelined;
+        }
+
+        /**
+         * @param pipelined
+         *            the pipelined to set
+         */
+        public void setPipelined(final boolean pipelined)
+        {
+            this.pipelined = pipelined;
+        }
+
+        /**
+         * @return the savePlan
+         */
+        public boolean isSavePlan()
+        {
+            return this.savePlan;
+        }
+
+        /**
+         * @param savePlan
+         *            the savePlan to set
+         */
+        public void setSavePlan(final boolean savePlan)
+        {
+            this.savePlan = savePlan;
+        }
+
+        /**
+         * @return the ID of the plan to apply
+         */
+        public String getPlanId()
+        {
+            return this.planId;
+        }
+
+        /**
+         * @param planId
+         *            the ID of the plan to apply
+         */
+        public void setPlanId(final String planId)
+        {
+            this.planId = planId;
+        }
+
+        /**
+         * @return the plan being applied in the current execution
+         */
+        public DeauthorisationPlan getPlan()
+        {
+            return this.plan;
+        }
+
+        /**
+         * @param plan
+         *            the plan being applied in the current execution
+         */
+        public void setPlan(final DeauthorisationPlan plan)
+        {
+            this.plan = plan;
+        }
+
+        /**
+         * @return the targetAuthorisedCount
+         */
+        public int getTargetAuthorisedCount()
+        {
+            return this.targetAuthorisedCount;
+        }
+
+        /**
+         * @param targetAuthorisedCount
+         *            the targetAuthorisedCount to set
+         */
+        public void setTargetAuthorisedCount(final int targetAuthorisedCount)
+        {
+            this.targetAuthorisedCount = targetAuthorisedCount;
+        }
+
+        /**
+         * @return the number of users to deauthorise in the current execution to get below the target authorised count, or {@code -1} if
+         *         no target applies
+         */
+        public int getDeauthorisationQuota()
+        {
+            return this.deauthorisationQuota;
+        }
+
+        /**
+         * @param deauthorisationQuota
+         *            the number of users to deauthorise in the current execution to get below the target authorised count
+         */
+        public void setDeauthorisationQuota(final int deauthorisationQuota)
+        {
+            this.deauthorisationQuota = deauthorisationQuota;
+        }
+
+        /**
+         * @return the spillToDisk
+         */
+        public boolean isSpillToDisk()
+        {
+            return this.spillToDisk;
+        }
+
+        /**
+         * @param spillToDisk
+         *            the spillToDisk to set
+         */
+        public void setSpillToDisk(final boolean spillToDisk)
+        {
+            this.spillToDisk = spillToDisk;
+        }
+
+        /**
+         * @return the timings
+         */
+        public boolean isTimings()
+        {
+            return this.timings;
+        }
+
+        /**
+         * @param timings
+         *            the timings to set
+         */
+        public void setTimings(final boolean timings)
+        {
+            this.timings = timings;
+        }
+
+        /**
+         * @return the registry collecting the metrics of the current execution or {@code null} if timings have not been requested
+         */
+        public RunMetricsRegistry getRunMetricsRegistry()
+        {
+            return this.runMetricsRegistry;
+        }
+
+        /**
+         * @param runMetricsRegistry
+         *            the registry collecting the metrics of the current execution
+         */
+        public void setRunMetricsRegistry(final RunMetricsRegistry runMetricsRegistry)
+        {
+            this.runMetricsRegistry = runMetricsRegistry;
+        }
+
+        /**
+         * @return the snapshot of authorisation states for the current execution
+         */
+        public AuthorisationStateSnapshot getAuthorisationStateSnapshot()
+        {
+            return this.authorisationStateSnapshot;
+        }
+
+        /**
+         * @param authorisationStateSnapshot
+         *            the snapshot of authorisation states for the current execution
+         */
+        public void setAuthorisationStateSnapshot(final AuthorisationStateSnapshot authorisationStateSnapshot)
+        {
+            this.authorisationStateSnapshot = authorisationStateSnapshot;
+        }
+
+        /**
+         * @return the protected admin / guest authorities for the current execution
+         */
+        public ProtectedAuthorities getProtectedAuthorities()
+        {
+            return this.protectedAuthorities;
+        }
+
+        /**
+         * @param protectedAuthorities
+         *            the protected admin / guest authorities for the current execution
+         */
+        public void setProtectedAuthorities(final ProtectedAuthorities protectedAuthorities)
+        {
+            this.protectedAuthorities = protectedAuthorities;
+        }
+
+        /**
+         * @return the key of the audit configuration and tenant the run operates on
+         */
+        public String getAuditConfigurationKey()
+        {
+            return this.auditConfigurationKey;
+        }
+
+        /**
+         * @param auditConfigurationKey
+         *            the key of the audit configuration and tenant the run operates on
+         */
+        public void setAuditConfigurationKey(final String auditConfigurationKey)
+        {
+            this.auditConfigurationKey = auditConfigurationKey;
+        }
+
+        /**
+         * Retrieves the key identifying the effective parameters of a run. All parameters affecting the result of a run must be included,
+         * as asynchronous calls attach to an active run with the same key. This includes the audit configuration and the effective start
+         * of the time frame to look back into, so only calls resolving to the same point in time share a run.
+         *
+         * @return the key of the parameters
+         */
+        public String getRunKey()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("dryRun=");
+            builder.append(this.dryRun);
+            builder.append(", reportFormat=");
+            builder.append(this.reportFormat);
+            builder.append(", queryMode=");
+            builder.append(this.queryMode);
+            builder.append(", lookBackMode=");
+            builder.append(this.getLookBackMode());
+            builder.append(", lookBackAmount=");
+            builder.append(this.getLookBackAmount());
+            builder.append(", fromTime=");
+            builder.append(this.getFromTime());
+            builder.append(", auditConfiguration=");
+            builder.append(this.auditConfigurationKey);
+            builder.append(", workerThreads=");
+            builder.append(this.getWorkerThreads());
+            builder.append(", batchSize=");
+            builder.append(this.getBatchSize());
+            builder.append(", adaptiveBatchSize=");
+            builder.append(this.adaptiveBatchSize);
+            builder.append(", deauthorisationLanes=");
+            builder.append(this.deauthorisationLanes);
+            builder.append(", maxUsersPerSecond=");
+            builder.append(this.maxUsersPerSecond);
+            builder.append(", loadAware=");
+            builder.append(this.loadAware);
+            builder.append(", pipelined=");
+            builder.append(this.pipelined);
+            builder.append(", savePlan=");
+            builder.append(this.savePlan);
+            builder.append(", planId=");
+            builder.append(this.planId);
+            builder.append(", targetAuthorisedCount=");
+            builder.append(this.targetAuthorisedCount);
+            builder.append(", spillToDisk=");
+            builder.append(this.spillToDisk);
+            builder.append(", timings=");
+            builder.append(this.timings);
+            return builder.toString();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -83,7 +534,15 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
             final StringBuilder builder = new StringBuilder();
             builder.append("DeauthoriseInactiveUsersParameters [dryRun=");
             builder.append(this.dryRun);
+            builder.append(", async=");
+            builder.append(this.async);
             builder.append(", ");
+            if (this.queryMode != null)
+            {
+                builder.append("queryMode=");
+                builder.append(this.queryMode);
+                builder.append(", ");
+            }
             if (this.getLookBackMode() != null)
             {
                 builder.append("getLookBackMode()=");
@@ -98,6 +557,29 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
             builder.append(this.getWorkerThreads());
             builder.append(", batchSize=");
             builder.append(this.getBatchSize());
+            builder.append(", adaptiveBatchSize=");
+            builder.append(this.adaptiveBatchSize);
+            builder.append(", maxUsersPerSecond=");
+            builder.append(this.maxUsersPerSecond);
+            builder.append(", loadAware=");
+            builder.append(this.loadAware);
+            builder.append(", pipelined=");
+            builder.append(this.pipelined);
+            builder.append(", savePlan=");
+            builder.append(this.savePlan);
+            if (this.planId != null)
+            {
+                builder.append(", planId=");
+                builder.append(this.planId);
+            }
+            builder.append(", targetAuthorisedCount=");
+            builder.append(this.targetAuthorisedCount);
+            builder.append(", spillToDisk=");
+            builder.append(this.spillToDisk);
+            builder.append(", timings=");
+            builder.append(this.timings);
+            builder.append(", deauthorisationLanes=");
+            builder.append(this.deauthorisationLanes);
             builder.append("]");
             return builder.toString();
         }
@@ -109,6 +591,50 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
 
     protected AuthorizationService authorisationService;
 
+    protected InactiveUserQueryMode queryMode = InactiveUserQueryMode.PERSON_AUDIT;
+
+    protected DeauthorisationRunRegistry runRegistry;
+
+    protected int deauthorisationLanes = 1;
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    protected boolean adaptiveBatchSize = false;
+
+    protected int minBatchSize = 5;
+
+    protected int maxBatchSize = 200;
+
+    protected int targetBatchMillis = 1000;
+
+    protected int maxUsersPerSecond = 0;
+
+    protected boolean loadAware = false;
+
+    protected LoadMonitor loadMonitor;
+
+    protected UserActivityTracker activityTracker;
+
+    protected ActivityIndexWarmer activityIndexWarmer;
+
+    protected ProtectedAuthorityResolver protectedAuthorityResolver;
+
+    protected boolean pipelined = false;
+
+    protected int pipelineCapacity = 1000;
+
+    protected AttributeService attributeService;
+
+    protected int planMaxAgeDays = 7;
+
+    protected int targetAuthorisedCount = 0;
+
+    protected boolean spillToDisk = false;
+
+    protected int spillRunSize = 50000;
+
+    protected int slowestUsersLimit = 10;
+
     /**
      *
      * {@inheritDoc}
@@ -119,24 +645,266 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
         super.afterPropertiesSet();
         PropertyCheck.mandatory(this, "authorityService", this.authorityService);
         PropertyCheck.mandatory(this, "authorisationService", this.authorisationService);
+        PropertyCheck.mandatory(this, "queryMode", this.queryMode);
+        PropertyCheck.mandatory(this, "runRegistry", this.runRegistry);
+        PropertyCheck.mandatory(this, "metricsRegistry", this.metricsRegistry);
+        if (this.deauthorisationLanes <= 0)
+        {
+            throw new IllegalStateException("Number of deauthorisation lanes must be a positive integer");
+        }
+        if (this.minBatchSize <= 0 || this.maxBatchSize < this.minBatchSize)
+        {
+            throw new IllegalStateException("Minimum batch size must be a positive integer not greater than the maximum batch size");
+        }
+        if (this.targetBatchMillis <= 0)
+        {
+            throw new IllegalStateException("Target batch duration must be a positive integer");
+        }
+        if (this.maxUsersPerSecond < 0)
+        {
+            throw new IllegalStateException("Maximum number of users per second must not be negative");
+        }
+        PropertyCheck.mandatory(this, "loadMonitor", this.loadMonitor);
+        PropertyCheck.mandatory(this, "activityTracker", this.activityTracker);
+        PropertyCheck.mandatory(this, "protectedAuthorityResolver", this.protectedAuthorityResolver);
+        if (this.pipelineCapacity <= 0)
+        {
+            throw new IllegalStateException("Capacity of the deauthorisation pipeline must be a positive integer");
+        }
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        if (this.planMaxAgeDays <= 0)
+        {
+            throw new IllegalStateException("Maximum age of plans must be a positive integer");
+        }
+        if (this.slowestUsersLimit < 0)
+        {
+            throw new IllegalStateException("Number of slowest users to report must not be negative");
+        }
+        if (this.targetAuthorisedCount < 0)
+        {
+            throw new IllegalStateException("Target authorised count must not be negative");
+        }
+        if (this.spillRunSize <= 0)
+        {
+            throw new IllegalStateException("Size of sorted runs of spilled users must be a positive integer");
+        }
     }
 
     /**
      * @param authorityService
      *            the authorityService to set
      */
-    public void setAuthorityService(final AuthorityService authorityService)
+    public void setAuthorityService(final AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param authorisationService
+     *            the authorisationService to set
+     */
+    public void setAuthorisationService(final AuthorizationService authorisationService)
+    {
+        this.authorisationService = authorisationService;
+    }
+
+    /**
+     * @param queryMode
+     *            the default queryMode to set
+     */
+    public void setQueryMode(final InactiveUserQueryMode queryMode)
+    {
+        this.queryMode = queryMode;
+    }
+
+    /**
+     * @param runRegistry
+     *            the runRegistry to set
+     */
+    public void setRunRegistry(final DeauthorisationRunRegistry runRegistry)
+    {
+        this.runRegistry = runRegistry;
+    }
+
+    /**
+     * @param deauthorisationLanes
+     *            the default number of parallel lanes for the deauthorisation phase to set
+     */
+    public void setDeauthorisationLanes(final int deauthorisationLanes)
+    {
+        this.deauthorisationLanes = deauthorisationLanes;
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * @param adaptiveBatchSize
+     *            the default adaptiveBatchSize to set
+     */
+    public void setAdaptiveBatchSize(final boolean adaptiveBatchSize)
+    {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+    }
+
+    /**
+     * @param minBatchSize
+     *            the minimum size of adaptively sized batches to set
+     */
+    public void setMinBatchSize(final int minBatchSize)
+    {
+        this.minBatchSize = minBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize
+     *            the maximum size of adaptively sized batches to set
+     */
+    public void setMaxBatchSize(final int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param targetBatchMillis
+     *            the target duration of adaptively sized batches to set
+     */
+    public void setTargetBatchMillis(final int targetBatchMillis)
+    {
+        this.targetBatchMillis = targetBatchMillis;
+    }
+
+    /**
+     * @param maxUsersPerSecond
+     *            the default maximum number of users to process per second to set, with {@code 0} denoting no limit
+     */
+    public void setMaxUsersPerSecond(final int maxUsersPerSecond)
+    {
+        this.maxUsersPerSecond = maxUsersPerSecond;
+    }
+
+    /**
+     * @param loadAware
+     *            the default loadAware to set
+     */
+    public void setLoadAware(final boolean loadAware)
+    {
+        this.loadAware = loadAware;
+    }
+
+    /**
+     * @param loadMonitor
+     *            the loadMonitor to set
+     */
+    public void setLoadMonitor(final LoadMonitor loadMonitor)
+    {
+        this.loadMonitor = loadMonitor;
+    }
+
+    /**
+     * @param activityTracker
+     *            the activityTracker to set
+     */
+    public void setActivityTracker(final UserActivityTracker activityTracker)
+    {
+        this.activityTracker = activityTracker;
+    }
+
+    /**
+     * @param activityIndexWarmer
+     *            the activityIndexWarmer to set
+     */
+    public void setActivityIndexWarmer(final ActivityIndexWarmer activityIndexWarmer)
+    {
+        this.activityIndexWarmer = activityIndexWarmer;
+    }
+
+    /**
+     * @param protectedAuthorityResolver
+     *            the protectedAuthorityResolver to set
+     */
+    public void setProtectedAuthorityResolver(final ProtectedAuthorityResolver protectedAuthorityResolver)
+    {
+        this.protectedAuthorityResolver = protectedAuthorityResolver;
+    }
+
+    /**
+     * @param pipelined
+     *            the default pipelined to set
+     */
+    public void setPipelined(final boolean pipelined)
+    {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param planMaxAgeDays
+     *            the maximum age of plans of dry runs which may still be applied
+     */
+    public void setPlanMaxAgeDays(final int planMaxAgeDays)
+    {
+        this.planMaxAgeDays = planMaxAgeDays;
+    }
+
+    /**
+     * @param targetAuthorisedCount
+     *            the default target authorised count below which a run stops deauthorising users, {@code 0} to deauthorise all inactive
+     *            users
+     */
+    public void setTargetAuthorisedCount(final int targetAuthorisedCount)
+    {
+        this.targetAuthorisedCount = targetAuthorisedCount;
+    }
+
+    /**
+     * @param spillToDisk
+     *            the default spillToDisk to set
+     */
+    public void setSpillToDisk(final boolean spillToDisk)
+    {
+        this.spillToDisk = spillToDisk;
+    }
+
+    /**
+     * @param spillRunSize
+     *            the maximum number of users held in-memory while writing users to a temporary file in spill-to-disk mode
+     */
+    public void setSpillRunSize(final int spillRunSize)
+    {
+        this.spillRunSize = spillRunSize;
+    }
+
+    /**
+     * @param slowestUsersLimit
+     *            the maximum number of slowest users to include in the timings of a report
+     */
+    public void setSlowestUsersLimit(final int slowestUsersLimit)
     {
-        this.authorityService = authorityService;
+        this.slowestUsersLimit = slowestUsersLimit;
     }
 
     /**
-     * @param authorisationService
-     *            the authorisationService to set
+     * @param pipelineCapacity
+     *            the maximum number of users to hold in the queue between query and deauthorisation in pipelined mode
      */
-    public void setAuthorisationService(final AuthorizationService authorisationService)
+    public void setPipelineCapacity(final int pipelineCapacity)
     {
-        this.authorisationService = authorisationService;
+        this.pipelineCapacity = pipelineCapacity;
     }
 
     /**
@@ -158,76 +926,522 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
             final boolean dryRun = Boolean.parseBoolean(dryRunParam);
             params.setDryRun(dryRun);
 
+            final String asyncParam = req.getParameter("async");
+            final boolean async = Boolean.parseBoolean(asyncParam);
+            params.setAsync(async);
+
+            params.setReportFormat(ReportFormat.fromFormatName(req.getFormat()));
+
+            final String deauthorisationLanesParam = req.getParameter("deauthorisationLanes");
+            if (deauthorisationLanesParam != null && !deauthorisationLanesParam.trim().isEmpty())
+            {
+                try
+                {
+                    params.setDeauthorisationLanes(Integer.parseInt(deauthorisationLanesParam, 10));
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                            "Invalid number of deauthorisation lanes: " + deauthorisationLanesParam);
+                }
+                if (params.getDeauthorisationLanes() <= 0)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Number of deauthorisation lanes must be a positive integer");
+                }
+            }
+            else
+            {
+                params.setDeauthorisationLanes(this.deauthorisationLanes);
+            }
+
+            final String adaptiveBatchSizeParam = req.getParameter("adaptiveBatchSize");
+            if (adaptiveBatchSizeParam != null && !adaptiveBatchSizeParam.trim().isEmpty())
+            {
+                params.setAdaptiveBatchSize(Boolean.parseBoolean(adaptiveBatchSizeParam));
+            }
+            else
+            {
+                params.setAdaptiveBatchSize(this.adaptiveBatchSize);
+            }
+
+            final String maxUsersPerSecondParam = req.getParameter("maxUsersPerSecond");
+            if (maxUsersPerSecondParam != null && !maxUsersPerSecondParam.trim().isEmpty())
+            {
+                try
+                {
+                    params.setMaxUsersPerSecond(Integer.parseInt(maxUsersPerSecondParam, 10));
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                            "Invalid maximum number of users per second: " + maxUsersPerSecondParam);
+                }
+                if (params.getMaxUsersPerSecond() < 0)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Maximum number of users per second must not be negative");
+                }
+            }
+            else
+            {
+                params.setMaxUsersPerSecond(this.maxUsersPerSecond);
+            }
+
+            final String loadAwareParam = req.getParameter("loadAware");
+            if (loadAwareParam != null && !loadAwareParam.trim().isEmpty())
+            {
+                params.setLoadAware(Boolean.parseBoolean(loadAwareParam));
+            }
+            else
+            {
+                params.setLoadAware(this.loadAware);
+            }
+
+            final String pipelinedParam = req.getParameter("pipelined");
+            if (pipelinedParam != null && !pipelinedParam.trim().isEmpty())
+            {
+                params.setPipelined(Boolean.parseBoolean(pipelinedParam));
+            }
+            else
+            {
+                params.setPipelined(this.pipelined);
+            }
+
+            final String spillToDiskParam = req.getParameter("spillToDisk");
+            if (spillToDiskParam != null && !spillToDiskParam.trim().isEmpty())
+            {
+                params.setSpillToDisk(Boolean.parseBoolean(spillToDiskParam));
+            }
+            else
+            {
+                params.setSpillToDisk(this.spillToDisk);
+            }
+
+            final String timingsParam = req.getParameter("timings");
+            params.setTimings(Boolean.parseBoolean(timingsParam));
+
+            final String savePlanParam = req.getParameter("savePlan");
+            params.setSavePlan(Boolean.parseBoolean(savePlanParam));
+
+            final String planIdParam = req.getParameter("planId");
+            if (planIdParam != null && !planIdParam.trim().isEmpty())
+            {
+                params.setPlanId(planIdParam.trim());
+            }
+
+            final String targetAuthorisedCountParam = req.getParameter("targetAuthorisedCount");
+            if (targetAuthorisedCountParam != null && !targetAuthorisedCountParam.trim().isEmpty())
+            {
+                try
+                {
+                    params.setTargetAuthorisedCount(Integer.parseInt(targetAuthorisedCountParam, 10));
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                            "Invalid target authorised count: " + targetAuthorisedCountParam);
+                }
+                if (params.getTargetAuthorisedCount() < 0)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Target authorised count must not be negative");
+                }
+            }
+            else
+            {
+                params.setTargetAuthorisedCount(this.targetAuthorisedCount);
+            }
+
+            final String queryModeParam = req.getParameter("queryMode");
+            if (queryModeParam != null && !queryModeParam.trim().isEmpty())
+            {
+                try
+                {
+                    params.setQueryMode(InactiveUserQueryMode.valueOf(queryModeParam.toUpperCase(Locale.ENGLISH)));
+                }
+                catch (final IllegalArgumentException iae)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported query mode: " + queryModeParam);
+                }
+            }
+            else
+            {
+                params.setQueryMode(this.queryMode);
+            }
+
+            params.setAuditConfigurationKey(this.getAuditConfigurationKey());
+
             return params;
         }, req);
 
-        final List<AuditUserInfo> auditUsers = this.queryAuditUsers(PersonAuditQueryMode.INACTIVE_ONLY, parameters);
+        if (parameters.isAsync())
+        {
+            // web script requires admin authentication, so the run can continue with the same authentication
+            final String runAsUser = AuthenticationUtil.getFullyAuthenticatedUser();
+            final DeauthorisationRun run = this.runRegistry.submit(parameters.getRunKey(), r -> {
+                // no enclosing transaction - the phases of the run use their own transactions for pages / batches of work
+                return AuthenticationUtil.runAs(() -> {
+                    return this.executeDeauthorisation(parameters, r);
+                }, runAsUser);
+            });
+            model.put("run", run);
+            status.setCode(Status.STATUS_ACCEPTED);
+        }
+        else
+        {
+            model.putAll(this.executeDeauthorisation(parameters, null));
+        }
+
+        return model;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> Map<String, Object> executeDeauthorisation(final T parameters,
+            final DeauthorisationRun run)
+    {
+        final Map<String, Object> model = new HashMap<>();
+
+        if (parameters.isTimings())
+        {
+            // collects metrics of this run in addition to the global registry for the timings section of the report
+            parameters.setRunMetricsRegistry(new RunMetricsRegistry(this.metricsRegistry, this.slowestUsersLimit));
+        }
+        final MetricsRegistry metricsRegistry = this.getMetricsRegistry(parameters);
+
+        // shared by query and deauthorisation phases so that the authorisation state of each user is only read once
+        final AuthorisationStateSnapshot authorisationStateSnapshot = new AuthorisationStateSnapshot(this.authorisationService);
+        authorisationStateSnapshot.setMetricsRegistry(metricsRegistry);
+        parameters.setAuthorisationStateSnapshot(authorisationStateSnapshot);
+        // short transactions join the transaction of a synchronous call, but asynchronous runs execute without an enclosing transaction
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        // resolved once per run and shared by query and deauthorisation phases
+        parameters.setProtectedAuthorities(
+                txnHelper.doInTransaction(this.protectedAuthorityResolver::getProtectedAuthorities, true, false));
+
+        final DeauthorisationPlan plan = parameters.getPlanId() != null
+                ? txnHelper.doInTransaction(() -> this.loadPlan(parameters.getPlanId()), true, false)
+                : null;
+        parameters.setPlan(plan);
+        final boolean savePlan = parameters.isSavePlan() && parameters.isDryRun() && plan == null;
+        if (parameters.isSavePlan() && !savePlan)
+        {
+            LOGGER.info("Plans are only saved for dry runs which do not apply a plan - not saving a plan for {}", parameters);
+        }
 
-        LOGGER.debug("Query for inactive users using {} yielded {} results", "inactive", parameters, auditUsers.size());
+        final long authorizedUsersCount = txnHelper
+                .doInTransaction(() -> Long.valueOf(this.authorisationService.getAuthorizedUsersCount()), true, false).longValue();
+        if (parameters.getTargetAuthorisedCount() > 0)
+        {
+            final int quota = computeDeauthorisationQuota(authorizedUsersCount, parameters.getTargetAuthorisedCount());
+            parameters.setDeauthorisationQuota(quota);
+            LOGGER.debug("Deauthorising at most {} users to get below target of {} authorised users (currently {})", quota,
+                    parameters.getTargetAuthorisedCount(), authorizedUsersCount);
+        }
+        final int quota = parameters.getDeauthorisationQuota();
+
+        // the PersonAuditWorker only provides its results at the end, so users cannot be determined incrementally
+        // a plan requires the full list of users and applying a plan does not query users at all
+        // a target requires the full list of users to deauthorise the longest inactive users first
+        final boolean pipelined = parameters.isPipelined() && parameters.getQueryMode() != InactiveUserQueryMode.PERSON_AUDIT
+                && plan == null && !savePlan && quota == -1;
+        if (parameters.isPipelined() && !pipelined)
+        {
+            LOGGER.info("Pipelined mode is not supported for query mode {}, with plans or a target authorised count"
+                    + " - running phases sequentially for {}", InactiveUserQueryMode.PERSON_AUDIT, parameters);
+        }
+
+        // pipelined runs only ever hold a limited number of users in-memory anyway
+        // plans and targets require all users in-memory
+        final boolean spillToDisk = parameters.isSpillToDisk() && !pipelined && plan == null && !savePlan && quota == -1;
+        if (parameters.isSpillToDisk() && !spillToDisk)
+        {
+            LOGGER.info("Spill-to-disk mode is not supported in pipelined mode, with plans or a target authorised count"
+                    + " - holding users in-memory for {}", parameters);
+        }
 
-        final List<DeauthorisationUserInfo> work = new ArrayList<>();
+        final List<DeauthorisationUserInfo> work;
+        final DeauthorisationWorkFile workFile;
+        if (pipelined)
+        {
+            // users are determined concurrently to the deauthorisation
+            work = null;
+            workFile = null;
+        }
+        else if (quota == 0)
+        {
+            LOGGER.info("Number of authorised users ({}) is already below target of {} - not querying for inactive users",
+                    authorizedUsersCount, parameters.getTargetAuthorisedCount());
+            work = new DeauthorisationWorkSet.Builder().build();
+            workFile = null;
+        }
+        else if (plan != null)
+        {
+            LOGGER.info("Applying plan {} instead of querying for inactive users", plan);
+            work = plan.getWork();
+            workFile = null;
+            DeauthorisationMetrics.recordWorkList(metricsRegistry, work);
+        }
+        else if (spillToDisk)
+        {
+            work = null;
+            workFile = this.queryInactiveUserWorkFile(parameters);
+            LOGGER.debug("Filtered inactive users to {} which are currently authorised in {}", workFile.size(), workFile);
+            metricsRegistry.setGauge(DeauthorisationMetrics.WORK_LIST_USERS, workFile.size());
+        }
+        else
+        {
+            workFile = null;
+            work = this.queryInactiveUserWork(parameters);
+            LOGGER.debug("Filtered inactive users to {} which are currently authorised", work.size());
+            DeauthorisationMetrics.recordWorkList(metricsRegistry, work);
+        }
 
-        final List<Object> modelUsers = new ArrayList<>();
-        model.put("users", modelUsers);
-        auditUsers.forEach(userInfo -> {
-            if (userInfo.getAuthorisedState() == AuthorisedState.AUTHORISED)
+        final DeauthorisationReport report = new DeauthorisationReport(parameters.getReportFormat(), this.nodeService);
+        try
+        {
+            if (savePlan)
             {
-                final DeauthorisationUserInfo workInfo = new DeauthorisationUserInfo(userInfo);
-                work.add(workInfo);
+                final String planId = this.savePlan(parameters, work);
+                report.setPlanId(planId);
+                model.put("planId", planId);
+                if (run != null)
+                {
+                    run.setPlanId(planId);
+                }
+            }
+
+            model.put("authorisedUsersBefore", Long.valueOf(authorizedUsersCount));
+            report.setRunMetrics(parameters.getRunMetricsRegistry());
+            report.begin(authorizedUsersCount);
 
-                final Map<String, Object> modelInactiveUser = new HashMap<>();
-                modelInactiveUser.put("info", workInfo);
-                modelInactiveUser.put("node", userInfo.getPersonRef());
-                modelUsers.add(modelInactiveUser);
+            final int deauthorised;
+            if (pipelined)
+            {
+                deauthorised = this.runPipelinedDeauthorisation(parameters, run, report);
+            }
+            else if (workFile != null)
+            {
+                deauthorised = this.runSpilledDeauthorisation(workFile, parameters, run, report);
+            }
+            else
+            {
+                deauthorised = this.runDeauthorisation(work, parameters, run, report);
             }
-        });
-        LOGGER.debug("Filtered inactive users to {} which are currently authorised", work.size());
-        // can use the current transaction for the "before" count
-        final long authorizedUsersCount = this.authorisationService.getAuthorizedUsersCount();
-        model.put("authorisedUsersBefore", Long.valueOf(authorizedUsersCount));
 
-        final int deauthorised = this.runDeauthorisation(work, parameters);
+            LOGGER.debug("Deauthorised {} inactive users", deauthorised);
+            if (work != null)
+            {
+                LOGGER.trace("User details after processing: {}", work);
+            }
+
+            model.put("deauthorised", Integer.valueOf(deauthorised));
+            final long authorisedUsersAfter;
+            if (!parameters.isDryRun())
+            {
+                // need nested transaction for an "after" count
+                final Long authorizedUsersCount2 = txnHelper.doInTransaction(() -> {
+                    final long authorizedUsersCount3 = this.authorisationService.getAuthorizedUsersCount();
+                    return Long.valueOf(authorizedUsersCount3);
+                }, true, true);
+                authorisedUsersAfter = authorizedUsersCount2.longValue();
+            }
+            else
+            {
+                authorisedUsersAfter = authorizedUsersCount - deauthorised;
+            }
+            model.put("authorisedUsersAfter", Long.valueOf(authorisedUsersAfter));
 
-        LOGGER.debug("Deauthorised {} inactive users", deauthorised);
-        LOGGER.trace("User details after processing: {}", work);
+            if (plan != null && !parameters.isDryRun())
+            {
+                // a plan can only be applied once
+                txnHelper.doInTransaction(() -> {
+                    new DeauthorisationPlanStore(this.attributeService).remove(plan.getPlanId());
+                    return null;
+                }, false, true);
+            }
 
-        model.put("deauthorised", Integer.valueOf(deauthorised));
-        if (!parameters.isDryRun())
+            report.complete(authorisedUsersAfter, deauthorised);
+            model.put("report", new DeauthorisationReportDirective(report));
+        }
+        catch (final RuntimeException | Error e)
         {
-            // need nested transaction for an "after" count
-            final Long authorizedUsersCount2 = this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
-                final long authorizedUsersCount3 = this.authorisationService.getAuthorizedUsersCount();
-                return Long.valueOf(authorizedUsersCount3);
-            }, true, true);
-            model.put("authorisedUsersAfter", authorizedUsersCount2);
+            report.discard();
+            throw e;
         }
-        else
+        finally
         {
-            model.put("authorisedUsersAfter", Long.valueOf(authorizedUsersCount - deauthorised));
+            if (workFile != null)
+            {
+                workFile.discard();
+            }
         }
 
         return model;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void executeFinallyImpl(final WebScriptRequest req, final Status status, final Cache cache, final Map<String, Object> model)
+    {
+        super.executeFinallyImpl(req, status, cache, model);
+
+        // report of synchronous execution is only rendered once (reports of asynchronous runs are managed by the run registry)
+        final Object report = model != null && !model.containsKey("run") ? model.get("report") : null;
+        if (report instanceof DeauthorisationReportDirective)
+        {
+            ((DeauthorisationReportDirective) report).getReport().discard();
+        }
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> List<DeauthorisationUserInfo> queryInactiveUserWork(final T parameters)
+    {
+        final List<DeauthorisationUserInfo> work;
+        switch (parameters.getQueryMode())
+        {
+            case AUDIT_SCAN:
+            case TRACKED:
+            case PROBE:
+                work = this.queryInactiveUsersByAuditScan(parameters);
+                break;
+            case PERSON_AUDIT:
+                final Collection<AuditUserInfo> auditUsers = this.queryInactiveAuthorisedUsers(parameters);
+                LOGGER.debug("Query for inactive users using {} yielded {} results", parameters, auditUsers.size());
+
+                // filtered and sorted once, retaining neither the audit results nor an object per user
+                work = DeauthorisationWorkSet.ofAuthorised(auditUsers);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported mode: " + parameters.getQueryMode());
+        }
+        return work;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> DeauthorisationWorkFile queryInactiveUserWorkFile(final T parameters)
+    {
+        final DeauthorisationWorkFile.Writer writer = new DeauthorisationWorkFile.Writer(this.spillRunSize);
+        try
+        {
+            switch (parameters.getQueryMode())
+            {
+                case AUDIT_SCAN:
+                case TRACKED:
+                case PROBE:
+                    this.scanInactiveUsers(parameters, null, writer);
+                    break;
+                case PERSON_AUDIT:
+                    // PersonAuditWorker only provides its results in-memory, so these are only moved to disk after the query
+                    final Collection<AuditUserInfo> auditUsers = this.queryInactiveAuthorisedUsers(parameters);
+                    LOGGER.debug("Query for inactive users using {} yielded {} results", parameters, auditUsers.size());
+                    writer.addAllAuthorised(auditUsers);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unsupported mode: " + parameters.getQueryMode());
+            }
+            return writer.finish();
+        }
+        catch (final RuntimeException | Error e)
+        {
+            writer.discard();
+            throw e;
+        }
+    }
+
     protected <T extends DeauthoriseInactiveUsersParameters> int runDeauthorisation(final Collection<DeauthorisationUserInfo> work,
-            final T parameters)
+            final T parameters, final DeauthorisationRun run, final DeauthorisationReport report)
     {
         // can run as system as web script requires admin authentication
         // improves performance and may avoid overwhelming readersCache, readersDeniedCache and others
         return AuthenticationUtil.runAsSystem(() -> {
             // though deauthorising a user should be a simple operation and not require changes affecting nodes, we still do it in batches
-            final PersonDeauthorisationWorker personDeauthorisationWorker = new PersonDeauthorisationWorker(parameters.isDryRun(),
-                    this.authorityService, this.authorisationService);
+            final PersonDeauthorisationWorker personDeauthorisationWorker = this.createDeauthorisationWorker(parameters, report);
+            if (run != null)
+            {
+                run.markDeauthorising(work.size(), personDeauthorisationWorker);
+            }
 
             if (!work.isEmpty())
             {
-                // needs to run single-threaded to try and avoid issues with authorisationService
+                // each lane runs single-threaded to try and avoid issues with authorisationService
                 // (observed quite a lot of update conflicts and inconsistent state in multi-threaded updates)
-                final BatchProcessor<DeauthorisationUserInfo> processor = new BatchProcessor<>("DeauthoriseInactiveUsers",
-                        this.transactionService.getRetryingTransactionHelper(), new CollectionWrappingWorkProvider<>(work, 1), 1,
-                        parameters.getBatchSize(), null, LogFactory.getLog(this.getClass().getName() + ".batchProcessor"),
-                        this.loggingInterval);
-                processor.process(personDeauthorisationWorker, true);
+                final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthoriseInactiveUsers",
+                        this.transactionService, parameters.getDeauthorisationLanes(), parameters.getBatchSize(), this.loggingInterval);
+                processor.setThrottle(this.createThrottle(parameters));
+                final long start = System.nanoTime();
+                final int quota = parameters.getDeauthorisationQuota();
+                if (quota == -1)
+                {
+                    processor.process(work, personDeauthorisationWorker);
+                }
+                else
+                {
+                    // longest inactive users first, stopping as soon as the target has been reached
+                    processor.processUntil(DeauthorisationWorkSet.of(work).selectByLastActivity(), personDeauthorisationWorker, quota);
+                }
+                this.getMetricsRegistry(parameters).recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, System.nanoTime() - start);
+            }
+
+            final int deauthorised = personDeauthorisationWorker.getDeauthorised();
+            return deauthorised;
+        });
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> int runSpilledDeauthorisation(final DeauthorisationWorkFile workFile,
+            final T parameters, final DeauthorisationRun run, final DeauthorisationReport report)
+    {
+        // can run as system as web script requires admin authentication
+        return AuthenticationUtil.runAsSystem(() -> {
+            final PersonDeauthorisationWorker personDeauthorisationWorker = this.createDeauthorisationWorker(parameters, report);
+            if (run != null)
+            {
+                run.markDeauthorising(workFile.size(), personDeauthorisationWorker);
+            }
+
+            if (!workFile.isEmpty())
+            {
+                // users are read back sequentially from disk in a single lane
+                final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthoriseInactiveUsers",
+                        this.transactionService, 1, parameters.getBatchSize(), this.loggingInterval);
+                processor.setThrottle(this.createThrottle(parameters));
+                final long start = System.nanoTime();
+                processor.process(workFile.createWorkProvider(parameters.getBatchSize()), personDeauthorisationWorker);
+                this.getMetricsRegistry(parameters).recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, System.nanoTime() - start);
+            }
+
+            final int deauthorised = personDeauthorisationWorker.getDeauthorised();
+            return deauthorised;
+        });
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> int runPipelinedDeauthorisation(final T parameters,
+            final DeauthorisationRun run, final DeauthorisationReport report)
+    {
+        // can run as system as web script requires admin authentication
+        return AuthenticationUtil.runAsSystem(() -> {
+            final PersonDeauthorisationWorker personDeauthorisationWorker = this.createDeauthorisationWorker(parameters, report);
+            if (run != null)
+            {
+                // number of candidates is not known until the query has been completed
+                run.markDeauthorising(-1, personDeauthorisationWorker);
+            }
+
+            final DeauthorisationPipeline pipeline = new DeauthorisationPipeline(this.pipelineCapacity);
+            pipeline.setMetricsRegistry(this.getMetricsRegistry(parameters));
+
+            // pipeline is always drained by a single lane
+            final PartitionedDeauthorisationProcessor processor = new PartitionedDeauthorisationProcessor("DeauthoriseInactiveUsers",
+                    this.transactionService, 1, parameters.getBatchSize(), this.loggingInterval);
+            processor.setThrottle(this.createThrottle(parameters));
+            final long start = System.nanoTime();
+            processor.processPipelined(pipeline, personDeauthorisationWorker, () -> {
+                this.scanInactiveUsers(parameters, pipeline, null);
+            });
+            this.getMetricsRegistry(parameters).recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, System.nanoTime() - start);
+            this.getMetricsRegistry(parameters).setGauge(DeauthorisationMetrics.WORK_LIST_USERS, pipeline.getEnqueued());
+            LOGGER.debug("Pipelined scan for inactive users using {} yielded {} currently authorised users", parameters,
+                    pipeline.getEnqueued());
+
+            if (run != null)
+            {
+                run.markDeauthorising(pipeline.getEnqueued(), personDeauthorisationWorker);
             }
 
             final int deauthorised = personDeauthorisationWorker.getDeauthorised();
@@ -235,6 +1449,169 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
         });
     }
 
+    protected <T extends DeauthoriseInactiveUsersParameters> PersonDeauthorisationWorker createDeauthorisationWorker(final T parameters,
+            final DeauthorisationReport report)
+    {
+        final PersonDeauthorisationWorker personDeauthorisationWorker = new PersonDeauthorisationWorker(parameters.isDryRun(),
+                this.authorityService, this.authorisationService);
+        personDeauthorisationWorker.setReport(report);
+        personDeauthorisationWorker.setAuthorisationStateSnapshot(parameters.getAuthorisationStateSnapshot());
+        personDeauthorisationWorker.setProtectedAuthorities(this.getProtectedAuthorities(parameters));
+        final DeauthorisationPlan plan = parameters.getPlan();
+        if (plan != null)
+        {
+            // users may have become active again since the plan was created
+            final AuditActivityScanner scanner = this.createActivityScanner(parameters);
+            final long planCreatedTime = plan.getCreatedTime();
+            personDeauthorisationWorker.setRecentActivityCheck(userName -> {
+                return scanner.hasActivitySince(userName, planCreatedTime);
+            });
+        }
+        personDeauthorisationWorker.setMetricsRegistry(this.getMetricsRegistry(parameters));
+        if (parameters.isAdaptiveBatchSize())
+        {
+            personDeauthorisationWorker.setAdaptiveBatchSizer(
+                    new AdaptiveBatchSizer(parameters.getBatchSize(), this.minBatchSize, this.maxBatchSize, this.targetBatchMillis));
+        }
+        return personDeauthorisationWorker;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> Collection<AuditUserInfo> queryInactiveAuthorisedUsers(final T parameters)
+    {
+        final long start = System.nanoTime();
+        final PersonAuditWorker personAuditWorker = this.createBatchWorker(PersonAuditQueryMode.INACTIVE_ONLY, parameters);
+
+        final BatchProcessWorkProvider<NodeRef> workProvider = new PersonBatchWorkProvider(this.namespaceService, this.nodeService,
+                this.personService, this.searchService);
+        final BatchProcessWorkProvider<NodeRef> txnWorkProvider = new TransactionalWorkProvider<>(workProvider,
+                this.transactionService.getRetryingTransactionHelper());
+
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("DeauthoriseInactiveUsers-PreparationQuery",
+                this.transactionService.getRetryingTransactionHelper(), txnWorkProvider, parameters.getWorkerThreads(),
+                parameters.getBatchSize(), null, LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), this.loggingInterval);
+        // only authorised users can be candidates, so audit data does not need to be evaluated for any other person
+        final BatchProcessWorker<NodeRef> authorisedWorker = new AuthorisedPersonFilteringWorker(personAuditWorker, this.nodeService,
+                this.getAuthorisationStateSnapshot(parameters));
+        final BatchProcessWorker<NodeRef> meteredWorker = new MeteredBatchProcessWorker<>(authorisedWorker,
+                this.getMetricsRegistry(parameters), DeauthorisationMetrics.QUERY_PERSONS_SCANNED,
+                DeauthorisationMetrics.QUERY_PERSON_EVALUATION);
+        final DeauthorisationThrottle throttle = this.createThrottle(parameters);
+        processor.process(throttle != null ? new ThrottledBatchProcessWorker<>(meteredWorker, throttle) : meteredWorker, true);
+        DeauthorisationMetrics.recordQueryPhase(this.getMetricsRegistry(parameters),
+                processor.getSuccessfullyProcessedEntries() + processor.getTotalErrors(), System.nanoTime() - start);
+
+        // sorting is deferred to the (compact) work set built from these users
+        final Collection<AuditUserInfo> auditUsers = personAuditWorker.getUsers();
+        return auditUsers;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> List<DeauthorisationUserInfo> queryInactiveUsersByAuditScan(
+            final T parameters)
+    {
+        final PersonActivityIndexWorker personActivityIndexWorker = this.scanInactiveUsers(parameters, null, null);
+
+        final List<DeauthorisationUserInfo> users = personActivityIndexWorker.getUsers();
+        LOGGER.debug("Scan for inactive users using {} yielded {} currently authorised users", parameters, users.size());
+        return users;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> PersonActivityIndexWorker scanInactiveUsers(final T parameters,
+            final DeauthorisationPipeline pipeline, final DeauthorisationWorkFile.Writer workFileWriter)
+    {
+        final long fromTime = parameters.getFromTime();
+        LOGGER.debug("Scanning for inactive users (no activity since {}) via audit application {}", fromTime, this.auditApplicationName);
+
+        final long start = System.nanoTime();
+        final AuditActivityScanner scanner = this.createActivityScanner(parameters);
+        final AuthorisationStateSnapshot authorisationStateSnapshot = this.getAuthorisationStateSnapshot(parameters);
+
+        BatchProcessWorkProvider<NodeRef> workProvider = new PersonBatchWorkProvider(this.namespaceService, this.nodeService,
+                this.personService, this.searchService);
+        final PersonActivityIndexWorker personActivityIndexWorker;
+        if (parameters.getQueryMode() == InactiveUserQueryMode.PROBE)
+        {
+            // the authorisation check of the worker precedes the probe, so no other person is probed
+            personActivityIndexWorker = new PersonAuditProbeWorker(fromTime, scanner, this.nodeService);
+        }
+        else
+        {
+            // a target deauthorises the longest inactive users first - indices retain activity before the look-back period if available
+            final boolean retainEarlierActivity = parameters.getDeauthorisationQuota() > 0;
+            UserActivityIndex activityIndex = null;
+            if (parameters.getQueryMode() == InactiveUserQueryMode.TRACKED)
+            {
+                final Long trackedSince = retainEarlierActivity ? this.activityTracker.getTrackedSince() : null;
+                final long indexFromTime = trackedSince != null ? Math.min(fromTime, trackedSince.longValue()) : fromTime;
+                activityIndex = this.transactionService.getRetryingTransactionHelper()
+                        .doInTransaction(() -> this.activityTracker.loadIndex(indexFromTime), true, false);
+                if (activityIndex == null)
+                {
+                    LOGGER.info("Tracked user activity is not available or does not cover the time since {} - falling back to audit scan",
+                            fromTime);
+                }
+            }
+            if (activityIndex == null && this.activityIndexWarmer != null)
+            {
+                final Long warmFromTime = retainEarlierActivity ? this.activityIndexWarmer.getCoveredFromTime() : null;
+                activityIndex = this.activityIndexWarmer.getIndex(scanner,
+                        warmFromTime != null ? Math.min(fromTime, warmFromTime.longValue()) : fromTime);
+            }
+            if (activityIndex == null)
+            {
+                activityIndex = scanner.scan(fromTime);
+            }
+            personActivityIndexWorker = new PersonActivityIndexWorker(fromTime, activityIndex, this.nodeService);
+        }
+
+        // protected admin / guest users are excluded early so that they never become candidates
+        final ProtectedAuthorities protectedAuthorities = this.getProtectedAuthorities(parameters);
+        personActivityIndexWorker.setIsAuthorisedCheck(userName -> {
+            return !protectedAuthorities.isProtected(userName) && authorisationStateSnapshot.isAuthorised(userName);
+        });
+        personActivityIndexWorker.setPipeline(pipeline);
+        personActivityIndexWorker.setWorkFileWriter(workFileWriter);
+
+        workProvider = new TransactionalWorkProvider<>(workProvider, this.transactionService.getRetryingTransactionHelper());
+        final int quota = parameters.getDeauthorisationQuota();
+        if (quota > 0)
+        {
+            // users without any known activity are deauthorised first, so once the quota is covered by them no other user can take
+            // precedence and the remaining people do not need to be evaluated
+            workProvider = new StoppingWorkProvider<>(workProvider,
+                    () -> personActivityIndexWorker.getCandidatesWithoutActivity() >= quota);
+        }
+
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("DeauthoriseInactiveUsers-PreparationQuery",
+                this.transactionService.getRetryingTransactionHelper(), workProvider, parameters.getWorkerThreads(),
+                parameters.getBatchSize(), null, LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), this.loggingInterval);
+        final BatchProcessWorker<NodeRef> meteredWorker = new MeteredBatchProcessWorker<>(personActivityIndexWorker,
+                this.getMetricsRegistry(parameters), DeauthorisationMetrics.QUERY_PERSONS_SCANNED,
+                DeauthorisationMetrics.QUERY_PERSON_EVALUATION);
+        final DeauthorisationThrottle throttle = this.createThrottle(parameters);
+        processor.process(throttle != null ? new ThrottledBatchProcessWorker<>(meteredWorker, throttle) : meteredWorker, true);
+        DeauthorisationMetrics.recordQueryPhase(this.getMetricsRegistry(parameters),
+                processor.getSuccessfullyProcessedEntries() + processor.getTotalErrors(), System.nanoTime() - start);
+
+        return personActivityIndexWorker;
+    }
+
+    /**
+     * Computes the number of users to deauthorise in order to get below a target number of authorised users. As the target is the
+     * number of authorised users <b>below</b> which a run should stop, reaching the target exactly is not sufficient, i.e. with 100
+     * authorised users and a target of 100, one user needs to be deauthorised, and with a target of 101 none.
+     *
+     * @param authorisedUsersCount
+     *            the current number of authorised users
+     * @param targetAuthorisedCount
+     *            the target number of authorised users
+     * @return the number of users to deauthorise - never negative
+     */
+    protected static int computeDeauthorisationQuota(final long authorisedUsersCount, final int targetAuthorisedCount)
+    {
+        final long quota = Math.max(0, authorisedUsersCount - targetAuthorisedCount + 1);
+        return (int) Math.min(Integer.MAX_VALUE, quota);
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -245,13 +1622,125 @@ public class DeauthoriseInactiveUsersPost extends AbstractAuditUserWebScript
     {
         final PersonAuditWorker personAuditWorker = super.createBatchWorker(mode, parameters);
 
+        final AuthorisationStateSnapshot authorisationStateSnapshot = this.getAuthorisationStateSnapshot(parameters);
+        // protected admin / guest users are excluded early so that they never become candidates
+        final ProtectedAuthorities protectedAuthorities = this.getProtectedAuthorities(parameters);
         personAuditWorker.setIsAuthorisedCheck(userName -> {
-            return this.authorisationService.isAuthorized(userName);
+            return !protectedAuthorities.isProtected(userName) && authorisationStateSnapshot.isAuthorised(userName);
         });
         personAuditWorker.setIsDeauthorisedCheck(userName -> {
-            return this.authorisationService.isDeauthorized(userName);
+            return authorisationStateSnapshot.isDeauthorised(userName);
         });
 
         return personAuditWorker;
     }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> DeauthorisationThrottle createThrottle(final T parameters)
+    {
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(parameters.getMaxUsersPerSecond(),
+                parameters.isLoadAware() ? this.loadMonitor : null);
+        return throttle.isActive() ? throttle : null;
+    }
+
+    protected String getAuditConfigurationKey()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(TenantUtil.getCurrentDomain());
+        builder.append('|');
+        builder.append(this.auditApplicationName);
+        builder.append('|');
+        builder.append(this.userAuditPath != null ? this.userAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateAuditPath != null ? this.dateAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateFromAuditPath != null ? this.dateFromAuditPath : "");
+        builder.append('|');
+        builder.append(this.dateToAuditPath != null ? this.dateToAuditPath : "");
+        return builder.toString();
+    }
+
+    protected AuditActivityScanner createActivityScanner(final AuditUserWebScriptParameters parameters)
+    {
+        final AuditActivityScanner scanner = new AuditActivityScanner(this.auditApplicationName, this.auditService);
+        scanner.setMetricsRegistry(this.getMetricsRegistry(parameters));
+        scanner.setUserAuditPath(this.userAuditPath);
+        scanner.setDateAuditPath(this.dateAuditPath);
+        scanner.setDateFromAuditPath(this.dateFromAuditPath);
+        scanner.setDateToAuditPath(this.dateToAuditPath);
+        scanner.setTransactionHelper(this.transactionService.getRetryingTransactionHelper());
+        return scanner;
+    }
+
+    protected DeauthorisationPlan loadPlan(final String planId)
+    {
+        final long notCreatedBefore = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(this.planMaxAgeDays);
+        final DeauthorisationPlan plan = new DeauthorisationPlanStore(this.attributeService).load(planId, notCreatedBefore);
+        if (plan == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND,
+                    "No deauthorisation plan with ID " + planId + " is known or it has already expired");
+        }
+        return plan;
+    }
+
+    protected <T extends DeauthoriseInactiveUsersParameters> String savePlan(final T parameters,
+            final List<DeauthorisationUserInfo> work)
+    {
+        final long now = System.currentTimeMillis();
+        final DeauthorisationPlan plan = new DeauthorisationPlan(UUID.randomUUID().toString(), now, parameters.getFromTime(),
+                parameters.getRunKey(), work);
+        // need nested transaction as the execution may run in a read-only transaction
+        this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+            final DeauthorisationPlanStore planStore = new DeauthorisationPlanStore(this.attributeService);
+            final int expired = planStore.removeExpired(now - TimeUnit.DAYS.toMillis(this.planMaxAgeDays));
+            LOGGER.debug("Removed {} expired plans", expired);
+            planStore.save(plan);
+            return null;
+        }, false, true);
+        LOGGER.info("Saved plan {} for dry run {}", plan, parameters);
+        return plan.getPlanId();
+    }
+
+    protected AuthorisationStateSnapshot getAuthorisationStateSnapshot(final AuditUserWebScriptParameters parameters)
+    {
+        AuthorisationStateSnapshot authorisationStateSnapshot = null;
+        if (parameters instanceof DeauthoriseInactiveUsersParameters)
+        {
+            authorisationStateSnapshot = ((DeauthoriseInactiveUsersParameters) parameters).getAuthorisationStateSnapshot();
+        }
+        if (authorisationStateSnapshot == null)
+        {
+            authorisationStateSnapshot = new AuthorisationStateSnapshot(this.authorisationService);
+            authorisationStateSnapshot.setMetricsRegistry(this.getMetricsRegistry(parameters));
+        }
+        return authorisationStateSnapshot;
+    }
+
+    protected MetricsRegistry getMetricsRegistry(final AuditUserWebScriptParameters parameters)
+    {
+        MetricsRegistry metricsRegistry = null;
+        if (parameters instanceof DeauthoriseInactiveUsersParameters)
+        {
+            metricsRegistry = ((DeauthoriseInactiveUsersParameters) parameters).getRunMetricsRegistry();
+        }
+        if (metricsRegistry == null)
+        {
+            metricsRegistry = this.metricsRegistry;
+        }
+        return metricsRegistry;
+    }
+
+    protected ProtectedAuthorities getProtectedAuthorities(final AuditUserWebScriptParameters parameters)
+    {
+        ProtectedAuthorities protectedAuthorities = null;
+        if (parameters instanceof DeauthoriseInactiveUsersParameters)
+        {
+            protectedAuthorities = ((DeauthoriseInactiveUsersParameters) parameters).getProtectedAuthorities();
+        }
+        if (protectedAuthorities == null)
+        {
+            protectedAuthorities = this.protectedAuthorityResolver.getProtectedAuthorities();
+        }
+        return protectedAuthorities;
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.alfresco.util.PropertyCheck;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+
+/**
+ * This web script streams the report of a completed asynchronous deauthorisation run directly from its backing file, optionally
+ * compressing it on the fly.
+ *
+ * @author Axel Faust
+ */
+public class DeauthoriseInactiveUsersReportGet extends AbstractWebScript implements InitializingBean
+{
+
+    protected DeauthorisationRunRegistry runRegistry;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "runRegistry", this.runRegistry);
+    }
+
+    /**
+     * @param runRegistry
+     *            the runRegistry to set
+     */
+    public void setRunRegistry(final DeauthorisationRunRegistry runRegistry)
+    {
+        this.runRegistry = runRegistry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException
+    {
+        final String runId = req.getServiceMatch().getTemplateVars().get("runId");
+        final DeauthorisationRun run = runId != null ? this.runRegistry.getRun(runId) : null;
+        if (run == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No deauthorisation run with ID " + runId + " is known");
+        }
+
+        final Map<String, Object> result = run.getResult();
+        final Object reportDirective = result != null ? result.get("report") : null;
+        if (!(reportDirective instanceof DeauthorisationReportDirective))
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Deauthorisation run with ID " + runId + " has no report (yet)");
+        }
+
+        final DeauthorisationReport report = ((DeauthorisationReportDirective) reportDirective).getReport();
+        final boolean gzip = Boolean.parseBoolean(req.getParameter("gzip"));
+        final String extension = report.getFormat() == ReportFormat.CSV ? "csv" : "json";
+
+        if (gzip)
+        {
+            res.setContentType("application/gzip");
+        }
+        else
+        {
+            res.setContentType(report.getFormat() == ReportFormat.CSV ? "text/csv" : "application/json");
+            res.setContentEncoding("UTF-8");
+        }
+        res.setHeader("Content-Disposition",
+                "attachment; filename=\"deauthorisation-report-" + runId + "." + extension + (gzip ? ".gz" : "") + "\"");
+
+        if (gzip)
+        {
+            try (OutputStream gzipStream = new GZIPOutputStream(res.getOutputStream(), 8192))
+            {
+                report.writeTo(gzipStream);
+            }
+        }
+        else
+        {
+            report.writeTo(res.getOutputStream());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.util.PropertyCheck;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * This web script provides the progress and - once completed - the final report of an asynchronous deauthorisation run.
+ *
+ * @author Axel Faust
+ */
+public class DeauthoriseInactiveUsersRunGet extends DeclarativeWebScript implements InitializingBean
+{
+
+    protected DeauthorisationRunRegistry runRegistry;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "runRegistry", this.runRegistry);
+    }
+
+    /**
+     * @param runRegistry
+     *            the runRegistry to set
+     */
+    public void setRunRegistry(final DeauthorisationRunRegistry runRegistry)
+    {
+        this.runRegistry = runRegistry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        Map<String, Object> model = super.executeImpl(req, status, cache);
+        if (model == null)
+        {
+            model = new HashMap<>();
+        }
+
+        final String runId = req.getServiceMatch().getTemplateVars().get("runId");
+        final DeauthorisationRun run = runId != null ? this.runRegistry.getRun(runId) : null;
+        if (run == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No deauthorisation run with ID " + runId + " is known");
+        }
+
+        model.put("run", run);
+        final Map<String, Object> result = run.getResult();
+        if (result != null)
+        {
+            model.putAll(result);
+        }
+
+        return model;
+    }
+}
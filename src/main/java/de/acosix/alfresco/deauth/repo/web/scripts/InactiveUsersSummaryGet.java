@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import de.acosix.alfresco.audit.repo.web.scripts.AbstractAuditUserWebScript;
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.InactiveUserSummary;
+import de.acosix.alfresco.deauth.repo.batch.InactiveUserSummaryWorker;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorityResolver;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.bootstrap.ActivityIndexWarmer;
+import de.acosix.alfresco.deauth.repo.metrics.MetricsRegistry;
+import de.acosix.alfresco.deauth.repo.metrics.NoOpMetricsRegistry;
+import de.acosix.alfresco.deauth.repo.tracking.UserActivityTracker;
+import de.acosix.alfresco.utility.repo.batch.PersonBatchWorkProvider;
+
+/**
+ * This web script provides a summary of the number of authorised users, inactive authorised users and protected admin / guest users, as
+ * well as a histogram of the age of the last activity of authorised users. In contrast to a dry run of {@link DeauthoriseInactiveUsersPost
+ * the deauthorisation web script}, only counts are aggregated while streaming over all people, without determining a list of users or
+ * producing a report. As monitoring may poll this summary frequently, summaries are cached for a configurable time.
+ *
+ * @author Axel Faust
+ */
+public class InactiveUsersSummaryGet extends AbstractAuditUserWebScript
+{
+
+    protected static class InactiveUsersSummaryParameters extends AuditUserWebScriptParameters
+    {
+
+        private boolean refresh = false;
+
+        /**
+         * @return the refresh
+         */
+        public boolean isRefresh()
+        {
+            return this.refresh;
+        }
+
+        /**
+         * @param refresh
+         *            the refresh to set
+         */
+        public void setRefresh(final boolean refresh)
+        {
+            this.refresh = refresh;
+        }
+
+        /**
+         * Retrieves the key identifying the effective parameters of a summary. In contrast to {@link #toString() toString} this does not
+         * include parameters derived from the current time.
+         *
+         * @return the key of the parameters
+         */
+        public String getCacheKey()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("lookBackMode=");
+            builder.append(this.getLookBackMode());
+            builder.append(", lookBackAmount=");
+            builder.append(this.getLookBackAmount());
+            return builder.toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("InactiveUsersSummaryParameters [refresh=");
+            builder.append(this.refresh);
+            builder.append(", ");
+            if (this.getLookBackMode() != null)
+            {
+                builder.append("getLookBackMode()=");
+                builder.append(this.getLookBackMode());
+                builder.append(", ");
+            }
+            builder.append("lookBackAmount=");
+            builder.append(this.getLookBackAmount());
+            builder.append(", fromTime=");
+            builder.append(this.getFromTime());
+            builder.append(", workerThreads=");
+            builder.append(this.getWorkerThreads());
+            builder.append(", batchSize=");
+            builder.append(this.getBatchSize());
+            builder.append("]");
+            return builder.toString();
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InactiveUsersSummaryGet.class);
+
+    protected final Map<String, InactiveUserSummary> summariesByKey = new HashMap<>();
+
+    protected AuthorizationService authorisationService;
+
+    protected ProtectedAuthorityResolver protectedAuthorityResolver;
+
+    protected UserActivityTracker activityTracker;
+
+    protected ActivityIndexWarmer activityIndexWarmer;
+
+    protected MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+
+    protected int cacheTtlSeconds = 300;
+
+    protected int[] histogramDays = { 7, 30, 90, 180, 365 };
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "authorisationService", this.authorisationService);
+        PropertyCheck.mandatory(this, "protectedAuthorityResolver", this.protectedAuthorityResolver);
+        PropertyCheck.mandatory(this, "activityTracker", this.activityTracker);
+        PropertyCheck.mandatory(this, "metricsRegistry", this.metricsRegistry);
+        if (this.cacheTtlSeconds < 0)
+        {
+            throw new IllegalStateException("Time to live of cached summaries must not be negative");
+        }
+        for (int idx = 0; idx < this.histogramDays.length; idx++)
+        {
+            if (this.histogramDays[idx] <= 0 || (idx > 0 && this.histogramDays[idx] <= this.histogramDays[idx - 1]))
+            {
+                throw new IllegalStateException("Histogram bucket boundaries must be positive integers in ascending order");
+            }
+        }
+    }
+
+    /**
+     * @param authorisationService
+     *            the authorisationService to set
+     */
+    public void setAuthorisationService(final AuthorizationService authorisationService)
+    {
+        this.authorisationService = authorisationService;
+    }
+
+    /**
+     * @param protectedAuthorityResolver
+     *            the protectedAuthorityResolver to set
+     */
+    public void setProtectedAuthorityResolver(final ProtectedAuthorityResolver protectedAuthorityResolver)
+    {
+        this.protectedAuthorityResolver = protectedAuthorityResolver;
+    }
+
+    /**
+     * @param activityTracker
+     *            the activityTracker to set
+     */
+    public void setActivityTracker(final UserActivityTracker activityTracker)
+    {
+        this.activityTracker = activityTracker;
+    }
+
+    /**
+     * @param activityIndexWarmer
+     *            the activityIndexWarmer to set
+     */
+    public void setActivityIndexWarmer(final ActivityIndexWarmer activityIndexWarmer)
+    {
+        this.activityIndexWarmer = activityIndexWarmer;
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * @param cacheTtlSeconds
+     *            the time in seconds for which a summary is served from the cache, {@code 0} to disable caching
+     */
+    public void setCacheTtlSeconds(final int cacheTtlSeconds)
+    {
+        this.cacheTtlSeconds = cacheTtlSeconds;
+    }
+
+    /**
+     * @param histogramDays
+     *            the comma-separated, ascending upper bounds in days of the buckets of the histogram of the age of the last activity
+     */
+    public void setHistogramDays(final String histogramDays)
+    {
+        final List<Integer> days = new ArrayList<>();
+        if (histogramDays != null)
+        {
+            for (final String day : histogramDays.split(","))
+            {
+                if (!day.trim().isEmpty())
+                {
+                    days.add(Integer.valueOf(day.trim()));
+                }
+            }
+        }
+        this.histogramDays = days.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        Map<String, Object> model = super.executeImpl(req, status, cache);
+        if (model == null)
+        {
+            model = new HashMap<>();
+        }
+
+        final InactiveUsersSummaryParameters parameters = this.parseRequest(() -> {
+            final InactiveUsersSummaryParameters params = new InactiveUsersSummaryParameters();
+
+            final String refreshParam = req.getParameter("refresh");
+            params.setRefresh(Boolean.parseBoolean(refreshParam));
+
+            return params;
+        }, req);
+
+        model.put("summary", this.getSummary(parameters));
+        return model;
+    }
+
+    protected synchronized InactiveUserSummary getSummary(final InactiveUsersSummaryParameters parameters)
+    {
+        // synchronised so that concurrent polls wait for a single computation instead of computing the same summary in parallel
+        final long now = System.currentTimeMillis();
+        final long threshold = now - TimeUnit.SECONDS.toMillis(this.cacheTtlSeconds);
+        final Iterator<InactiveUserSummary> iterator = this.summariesByKey.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().getComputedTime() <= threshold)
+            {
+                iterator.remove();
+            }
+        }
+
+        final String cacheKey = parameters.getCacheKey();
+        InactiveUserSummary summary = parameters.isRefresh() ? null : this.summariesByKey.get(cacheKey);
+        if (summary == null)
+        {
+            summary = this.computeSummary(parameters, now);
+            if (this.cacheTtlSeconds > 0)
+            {
+                this.summariesByKey.put(cacheKey, summary);
+            }
+        }
+        else
+        {
+            LOGGER.debug("Using cached summary {} for {}", summary, parameters);
+        }
+        return summary;
+    }
+
+    protected InactiveUserSummary computeSummary(final InactiveUsersSummaryParameters parameters, final long referenceTime)
+    {
+        final long fromTime = parameters.getFromTime();
+        // activity needs to be known for the entire time frame of the histogram as well
+        final long maxHistogramDays = this.histogramDays.length > 0 ? this.histogramDays[this.histogramDays.length - 1] : 0;
+        final long indexFromTime = Math.min(fromTime, referenceTime - TimeUnit.DAYS.toMillis(maxHistogramDays));
+        LOGGER.debug("Computing summary of inactive users (no activity since {}) with activity since {}", fromTime, indexFromTime);
+
+        final long start = System.nanoTime();
+        UserActivityIndex activityIndex = this.activityTracker.isEnabled() ? this.activityTracker.loadIndex(indexFromTime) : null;
+        if (activityIndex == null)
+        {
+            final AuditActivityScanner scanner = new AuditActivityScanner(this.auditApplicationName, this.auditService);
+            scanner.setMetricsRegistry(this.metricsRegistry);
+            scanner.setUserAuditPath(this.userAuditPath);
+            scanner.setDateAuditPath(this.dateAuditPath);
+            scanner.setDateFromAuditPath(this.dateFromAuditPath);
+            scanner.setDateToAuditPath(this.dateToAuditPath);
+            activityIndex = this.activityIndexWarmer != null ? this.activityIndexWarmer.getIndex(scanner, indexFromTime) : null;
+            if (activityIndex == null)
+            {
+                activityIndex = scanner.scan(indexFromTime);
+            }
+        }
+
+        final InactiveUserSummaryWorker summaryWorker = new InactiveUserSummaryWorker(referenceTime, fromTime, activityIndex,
+                this.authorisationService, this.nodeService, this.protectedAuthorityResolver.getProtectedAuthorities(), this.histogramDays);
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("InactiveUsersSummary",
+                this.transactionService.getRetryingTransactionHelper(),
+                new PersonBatchWorkProvider(this.namespaceService, this.nodeService, this.personService, this.searchService),
+                parameters.getWorkerThreads(), parameters.getBatchSize(), null,
+                LogFactory.getLog(this.getClass().getName() + ".batchProcessor"), this.loggingInterval);
+        processor.process(summaryWorker, true);
+
+        final InactiveUserSummary summary = summaryWorker.getSummary();
+        LOGGER.debug("Computed summary {} for {} in {} ms", summary, parameters,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return summary;
+    }
+}
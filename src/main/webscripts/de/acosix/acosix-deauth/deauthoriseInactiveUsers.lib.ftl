@@ -0,0 +1,33 @@
+<#-- 
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+  -->
+<#macro runJSON run>
+<#escape x as jsonUtils.encodeJSONString(x)>
+    "runId": "${run.runId}",
+    "status": "${run.status}",
+    "submitTime": ${run.submitTime?c},
+    "startTime": ${run.startTime?c},
+    "endTime": ${run.endTime?c},
+    "candidates": ${run.candidates?c},
+    "deauthorisedSoFar": ${run.deauthorised?c}<#if run.planId??>,
+    "planId": "${run.planId}"</#if><#if run.errorMessage??>,
+    "error": "${run.errorMessage}"</#if>
+</#escape>
+</#macro>
+
+<#macro runCSV run>
+"runId","status","candidates","deauthorised","planId"
+"${run.runId}","${run.status}","${run.candidates?c}","${run.deauthorised?c}","${run.planId!""}"
+</#macro>
@@ -13,7 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
   -->
- <#compress>
-"userName","firstName","lastName","email"<#list users as inactiveUser><#if inactiveUser.info.deauthorised?? && inactiveUser.info.deauthorised>
-"${inactiveUser.node.properties.userName}","${(inactiveUser.node.properties.firstName!"")?replace("\"", "\"\"")}","${(inactiveUser.node.properties.lastName!"")?replace("\"", "\"\"")}","${(inactiveUser.node.properties.email!"")?replace("\"", "\"\"")}"</#if></#list>
-</#compress>
\ No newline at end of file
+<#import "/de/acosix/acosix-deauth/deauthoriseInactiveUsers.lib.ftl" as deauthLib />
+<#if run??><#compress>
+<@deauthLib.runCSV run=run />
+</#compress><#else><@report /></#if>
\ No newline at end of file
@@ -13,20 +13,11 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
   -->
-
-<#escape x as jsonUtils.encodeJSONString(x)><#compress>
+<#import "/de/acosix/acosix-deauth/deauthoriseInactiveUsers.lib.ftl" as deauthLib />
+<#if run??>
+<#compress>
 {
-    <#assign first=true />
-    "authorisedBefore": "${authorisedUsersBefore?c}",
-    "authorisedAfter": "${authorisedUsersAfter?c}",
-    "count" : ${deauthorised?c},
-    "users": [<#list users as inactiveUser><#if inactiveUser.info.deauthorised?? && inactiveUser.info.deauthorised>
-        <#if !first>,</#if>{
-            "userName": "${inactiveUser.node.properties.userName}",
-            "firstName": "${inactiveUser.node.properties.firstName!""}",
-            "lastName": "${inactiveUser.node.properties.lastName!""}",
-            "email": "${inactiveUser.node.properties.email!""}"
-        }<#assign first=false />
-    </#if></#list>]
+    <@deauthLib.runJSON run=run />
 }
-</#compress></#escape>
\ No newline at end of file
+</#compress>
+<#else><@report /></#if>
\ No newline at end of file
@@ -0,0 +1,30 @@
+<#-- 
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+  -->
+<#compress>
+{
+    "computedTime": ${summary.computedTime?c},
+    "fromTime": ${summary.fromTime?c},
+    "authorised": ${summary.authorised?c},
+    "protectedAuthorised": ${summary.protectedAuthorised?c},
+    "inactiveAuthorised": ${summary.inactiveAuthorised?c},
+    "lastActivityAgeHistogram": [<#list summary.histogram as bucket>
+        {
+            "maxAgeDays": <#if bucket.maxAgeDays??>${bucket.maxAgeDays?c}<#else>null</#if>,
+            "users": ${bucket.users?c}
+        }<#if bucket_has_next>,</#if></#list>
+    ]
+}
+</#compress>
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class AdaptiveBatchSizerTest
+{
+
+    private static final int MIN = 5;
+
+    private static final int MAX = 200;
+
+    private static final long TARGET_MILLIS = 1000;
+
+    @Test
+    public void initialSizeBounded()
+    {
+        Assert.assertEquals(MAX, new AdaptiveBatchSizer(500, MIN, MAX, TARGET_MILLIS).getBatchSize());
+        Assert.assertEquals(MIN, new AdaptiveBatchSizer(1, MIN, MAX, TARGET_MILLIS).getBatchSize());
+        Assert.assertEquals(50, new AdaptiveBatchSizer(50, MIN, MAX, TARGET_MILLIS).getBatchSize());
+    }
+
+    @Test
+    public void unchangedWithoutObservations()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+        Assert.assertEquals(100, sizer.nextBatchSize());
+        Assert.assertEquals(100, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void growsByAtMostHalfWhenFasterThanTarget()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        // 1 ms per entry - ideal size would be 1000
+        commit(sizer, 100, 100);
+        Assert.assertEquals(151, sizer.nextBatchSize());
+
+        commit(sizer, 151, 151);
+        Assert.assertEquals("Growth must be capped by the maximum", MAX, sizer.nextBatchSize());
+
+        commit(sizer, MAX, MAX);
+        Assert.assertEquals(MAX, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void shrinksByAtMostHalfWhenSlowerThanTarget()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        // 40 ms per entry - ideal size would be 25
+        commit(sizer, 100, 4000);
+        Assert.assertEquals(50, sizer.nextBatchSize());
+
+        commit(sizer, 50, 2000);
+        Assert.assertEquals(25, sizer.nextBatchSize());
+
+        // ideal size reached - duration now matches the target
+        commit(sizer, 25, 1000);
+        Assert.assertEquals(25, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void shrinkBoundedByMinimum()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(8, MIN, MAX, TARGET_MILLIS);
+
+        // 2 s per entry - ideal size would be 0
+        commit(sizer, 8, 16000);
+        Assert.assertEquals(MIN, sizer.nextBatchSize());
+
+        commit(sizer, MIN, 10000);
+        Assert.assertEquals(MIN, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void unchangedWithinTolerance()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        commit(sizer, 100, 1150);
+        commit(sizer, 100, 850);
+        commit(sizer, 100, 1190);
+        Assert.assertEquals(100, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void averageOfRoundConsidered()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        // a single slow batch among fast ones does not outweigh the round
+        commit(sizer, 100, 400);
+        commit(sizer, 100, 400);
+        commit(sizer, 100, 2200);
+        Assert.assertEquals(100, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void halvedWhenRollbackRateExceeded()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        // batches are fast enough to grow, but conflicts take precedence
+        for (int idx = 0; idx < 8; idx++)
+        {
+            commit(sizer, 100, 100);
+        }
+        sizer.onBatchRolledBack();
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(50, sizer.nextBatchSize());
+
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(25, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void rollbacksAtThresholdTolerated()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        // exactly 10% of batches rolled back is not above the threshold, so duration based adjustment applies
+        for (int idx = 0; idx < 9; idx++)
+        {
+            commit(sizer, 100, 100);
+        }
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(151, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void halvingBoundedByMinimum()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(8, MIN, MAX, TARGET_MILLIS);
+
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(MIN, sizer.nextBatchSize());
+
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(MIN, sizer.nextBatchSize());
+    }
+
+    @Test
+    public void observationsResetAfterAdjustment()
+    {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, MIN, MAX, TARGET_MILLIS);
+
+        sizer.onBatchRolledBack();
+        Assert.assertEquals(50, sizer.nextBatchSize());
+
+        // the rollback of the previous round must not count against this one
+        commit(sizer, 50, 1000);
+        Assert.assertEquals(50, sizer.nextBatchSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveMinimumRejected()
+    {
+        new AdaptiveBatchSizer(10, 0, MAX, TARGET_MILLIS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maximumBelowMinimumRejected()
+    {
+        new AdaptiveBatchSizer(10, 20, 10, TARGET_MILLIS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveTargetRejected()
+    {
+        new AdaptiveBatchSizer(10, MIN, MAX, 0);
+    }
+
+    protected static void commit(final AdaptiveBatchSizer sizer, final int entries, final long durationMillis)
+    {
+        sizer.onBatchCommitted(entries, TimeUnit.MILLISECONDS.toNanos(durationMillis));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuditService;
+
+/**
+ * @author Axel Faust
+ */
+public class AuditActivityScannerTest
+{
+
+    private static final String APPLICATION_NAME = "test";
+
+    private static final String DATE_FROM_PATH = "/test/session/from";
+
+    private static final String DATE_TO_PATH = "/test/session/to";
+
+    private InMemoryAuditService auditService;
+
+    private AuditActivityScanner scanner;
+
+    @Before
+    public void setUp()
+    {
+        this.auditService = new InMemoryAuditService(APPLICATION_NAME, new String[] { "jdoe", "mmustermann", "inactive" });
+        this.auditService.addEntry(2, 500);
+        this.auditService.addEntry(0, 1000);
+        this.auditService.addEntry(1, 1500);
+        this.auditService.addEntry(0, 2000);
+        this.auditService.addEntry(2, 2500);
+
+        this.scanner = new AuditActivityScanner(APPLICATION_NAME, this.auditService.asService());
+        // small pages to cover paging
+        this.scanner.setPageSize(2);
+    }
+
+    @Test
+    public void scanRecordsLastActivitySinceFromTime()
+    {
+        final UserActivityIndex index = this.scanner.scan(1000);
+
+        Assert.assertEquals(Long.valueOf(2000), index.getLastActivity("jdoe"));
+        Assert.assertEquals(Long.valueOf(1500), index.getLastActivity("mmustermann"));
+        Assert.assertEquals(Long.valueOf(2500), index.getLastActivity("inactive"));
+        Assert.assertEquals(Long.valueOf(5), index.getHighestEntryId());
+    }
+
+    @Test
+    public void updateOnlyScansNewEntries()
+    {
+        final UserActivityIndex index = this.scanner.scan(1000);
+        this.auditService.addEntry(1, 3000);
+
+        this.scanner.update(index, 1000);
+        Assert.assertEquals(Long.valueOf(3000), index.getLastActivity("mmustermann"));
+        Assert.assertEquals(Long.valueOf(6), index.getHighestEntryId());
+    }
+
+    @Test
+    public void updateRescansEntriesCommittedOutOfOrder()
+    {
+        final UserActivityIndex index = this.scanner.scan(1000);
+
+        // entry 6 is still uncommitted while entry 7 has already been committed and scanned
+        final long lateEntryId = this.auditService.addEntry(1, 3000, null, false);
+        this.auditService.addEntry(0, 3100);
+        this.scanner.update(index, 1000);
+        Assert.assertEquals(Long.valueOf(7), index.getHighestEntryId());
+        Assert.assertEquals(Long.valueOf(1500), index.getLastActivity("mmustermann"));
+
+        this.auditService.commitEntry(lateEntryId);
+        this.scanner.update(index, 1000);
+        Assert.assertEquals("Entry committed out of order should be picked up", Long.valueOf(3000), index.getLastActivity("mmustermann"));
+        Assert.assertEquals("Re-scanned entries should not lower activity", Long.valueOf(3100), index.getLastActivity("jdoe"));
+        Assert.assertEquals(Long.valueOf(7), index.getHighestEntryId());
+    }
+
+    @Test
+    public void updateWithoutRescanWindowSkipsEntriesCommittedOutOfOrder()
+    {
+        this.scanner.setRescanWindow(0);
+        final UserActivityIndex index = this.scanner.scan(1000);
+
+        final long lateEntryId = this.auditService.addEntry(1, 3000, null, false);
+        this.auditService.addEntry(0, 3100);
+        this.scanner.update(index, 1000);
+        this.auditService.commitEntry(lateEntryId);
+        this.scanner.update(index, 1000);
+
+        Assert.assertEquals(Long.valueOf(1500), index.getLastActivity("mmustermann"));
+    }
+
+    @Test
+    public void dateRangeEndUsedAsActivity()
+    {
+        final InMemoryAuditService auditService = new InMemoryAuditService(APPLICATION_NAME, new String[] { "jdoe", "mmustermann" });
+        auditService.addEntry(0, 1200, dateRange(1100, 1150), true);
+        auditService.addEntry(1, 1300, dateRange(1250, 1280), true);
+        auditService.addEntry(0, 1400, dateRange(900, 950), true);
+
+        final AuditActivityScanner scanner = this.createDateRangeScanner(auditService);
+        final UserActivityIndex index = scanner.scan(1000);
+
+        Assert.assertEquals("Latest end of range should be retained", Long.valueOf(1150), index.getLastActivity("jdoe"));
+        Assert.assertEquals(Long.valueOf(1280), index.getLastActivity("mmustermann"));
+    }
+
+    @Test
+    public void dateRangeRecordedBeforeFromTimeNotConsidered()
+    {
+        // documented limitation - entries are selected by the time they were recorded, not by their date range
+        final InMemoryAuditService auditService = new InMemoryAuditService(APPLICATION_NAME, new String[] { "jdoe" });
+        auditService.addEntry(0, 900, dateRange(850, 1500), true);
+
+        final AuditActivityScanner scanner = this.createDateRangeScanner(auditService);
+        final UserActivityIndex index = scanner.scan(1000);
+
+        Assert.assertNull(index.getLastActivity("jdoe"));
+        Assert.assertEquals(Long.valueOf(1500), this.createDateRangeScanner(auditService).scan(0).getLastActivity("jdoe"));
+    }
+
+    @Test
+    public void probeLastActivity()
+    {
+        Assert.assertEquals(Long.valueOf(2000), this.scanner.probeLastActivity("jdoe", 0));
+        Assert.assertNull("No activity since from time", this.scanner.probeLastActivity("mmustermann", 2000));
+        Assert.assertEquals("Unbounded probe yields activity before any look-back period", Long.valueOf(1500),
+                this.scanner.probeLastActivity("mmustermann", 0));
+        Assert.assertTrue(this.scanner.hasActivitySince("inactive", 2500));
+        Assert.assertFalse(this.scanner.hasActivitySince("inactive", 2501));
+    }
+
+    protected AuditActivityScanner createDateRangeScanner(final InMemoryAuditService auditService)
+    {
+        final AuditActivityScanner scanner = new AuditActivityScanner(APPLICATION_NAME, auditService.asService());
+        scanner.setDateFromAuditPath(DATE_FROM_PATH);
+        scanner.setDateToAuditPath(DATE_TO_PATH);
+        return scanner;
+    }
+
+    protected static Map<String, Serializable> dateRange(final long from, final long to)
+    {
+        final Map<String, Serializable> values = new HashMap<>();
+        values.put(DATE_FROM_PATH, new Date(from));
+        values.put(DATE_TO_PATH, new Date(to));
+        return values;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.AuthorisationStateSnapshot.AuthorisationState;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+
+/**
+ * @author Axel Faust
+ */
+public class AuthorisationStateSnapshotTest
+{
+
+    private InMemoryAuthorizationService authorisationService;
+
+    private AuthorisationStateSnapshot snapshot;
+
+    @Before
+    public void setUp()
+    {
+        this.authorisationService = new InMemoryAuthorizationService(Arrays.asList("jdoe", "mmustermann"));
+        this.snapshot = new AuthorisationStateSnapshot(this.authorisationService.asService());
+    }
+
+    @Test
+    public void stateLoadedOncePerUser()
+    {
+        Assert.assertTrue(this.snapshot.isAuthorised("jdoe"));
+        Assert.assertTrue(this.snapshot.isAuthorised("jdoe"));
+        Assert.assertEquals(AuthorisationState.AUTHORISED, this.snapshot.getState("jdoe"));
+
+        Assert.assertEquals("State should only be loaded once", 1, this.authorisationService.getIsAuthorizedCalls());
+        Assert.assertEquals(1, this.snapshot.size());
+    }
+
+    @Test
+    public void userNamesCaseInsensitive()
+    {
+        Assert.assertTrue(this.snapshot.isAuthorised("JDoe"));
+        Assert.assertTrue(this.snapshot.isAuthorised("jdoe"));
+        Assert.assertTrue(this.snapshot.isAuthorised("JDOE"));
+
+        Assert.assertEquals("Case variants should share state", 1, this.authorisationService.getIsAuthorizedCalls());
+        Assert.assertEquals(1, this.snapshot.size());
+    }
+
+    @Test
+    public void unauthorisedUser()
+    {
+        Assert.assertEquals(AuthorisationState.UNAUTHORISED, this.snapshot.getState("unknown"));
+        Assert.assertFalse(this.snapshot.isAuthorised("unknown"));
+        Assert.assertFalse(this.snapshot.isDeauthorised("unknown"));
+
+        Assert.assertEquals(1, this.authorisationService.getIsAuthorizedCalls());
+        Assert.assertEquals(1, this.authorisationService.getIsDeauthorizedCalls());
+    }
+
+    @Test
+    public void markDeauthorisedWithoutReload()
+    {
+        Assert.assertTrue(this.snapshot.isAuthorised("mmustermann"));
+        this.snapshot.markDeauthorised("MMustermann");
+
+        Assert.assertTrue(this.snapshot.isDeauthorised("mmustermann"));
+        Assert.assertFalse(this.snapshot.isAuthorised("mmustermann"));
+        Assert.assertEquals(AuthorisationState.DEAUTHORISED, this.snapshot.getState("MMUSTERMANN"));
+        Assert.assertEquals("State should not be reloaded after marking deauthorisation", 1,
+                this.authorisationService.getIsAuthorizedCalls());
+        Assert.assertEquals(0, this.authorisationService.getIsDeauthorizedCalls());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+
+/**
+ * @author Axel Faust
+ */
+public class AuthorisedPersonFilteringWorkerTest
+{
+
+    private NodeService nodeService;
+
+    private InMemoryAuthorizationService authorisationService;
+
+    private AuthorisedPersonFilteringWorker worker;
+
+    private final List<NodeRef> processed = new ArrayList<>();
+
+    @Before
+    public void setUp()
+    {
+        this.nodeService = new InMemoryNodeService().asService();
+        this.authorisationService = new InMemoryAuthorizationService(Arrays.asList("jdoe", "mmustermann"));
+
+        final BatchProcessWorkerAdaptor<NodeRef> delegate = new BatchProcessWorkerAdaptor<NodeRef>()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void process(final NodeRef entry) throws Throwable
+            {
+                AuthorisedPersonFilteringWorkerTest.this.processed.add(entry);
+            }
+        };
+        this.worker = new AuthorisedPersonFilteringWorker(delegate, this.nodeService,
+                new AuthorisationStateSnapshot(this.authorisationService.asService()));
+    }
+
+    @Test
+    public void onlyAuthorisedPersonsPassedOn() throws Throwable
+    {
+        final NodeRef jdoe = this.createPerson("jdoe");
+        final NodeRef guest = this.createPerson("guest");
+        final NodeRef mmustermann = this.createPerson("mmustermann");
+
+        this.worker.process(jdoe);
+        this.worker.process(guest);
+        this.worker.process(mmustermann);
+
+        Assert.assertEquals(Arrays.asList(jdoe, mmustermann), this.processed);
+    }
+
+    @Test
+    public void personWithoutUserNameSkipped() throws Throwable
+    {
+        final NodeRef person = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "no-user-name");
+        this.nodeService.setProperty(person, ContentModel.PROP_FIRSTNAME, "Jane");
+
+        this.worker.process(person);
+
+        Assert.assertTrue(this.processed.isEmpty());
+        Assert.assertEquals("No authorisation state should be loaded without a user name", 0,
+                this.authorisationService.getIsAuthorizedCalls());
+    }
+
+    protected NodeRef createPerson(final String userName)
+    {
+        final NodeRef person = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName + "-person");
+        this.nodeService.setProperty(person, ContentModel.PROP_USERNAME, userName);
+        return person;
+    }
+}
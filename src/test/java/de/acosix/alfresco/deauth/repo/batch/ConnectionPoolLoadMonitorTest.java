@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class ConnectionPoolLoadMonitorTest
+{
+
+    /**
+     * Data source stand-in exposing configurable pool statistics and connection wait time without an actual database.
+     *
+     * @author Axel Faust
+     */
+    protected static class StubDataSource extends BasicDataSource
+    {
+
+        protected volatile int active;
+
+        protected long waitMillis;
+
+        protected boolean failing;
+
+        protected volatile int connectionRequests;
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized int getMaxActive()
+        {
+            return 10;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized int getNumActive()
+        {
+            return this.active;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection() throws SQLException
+        {
+            this.connectionRequests++;
+            if (this.failing)
+            {
+                throw new SQLException("Pool exhausted");
+            }
+            if (this.waitMillis > 0)
+            {
+                try
+                {
+                    Thread.sleep(this.waitMillis);
+                }
+                catch (final InterruptedException iex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return (Connection) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                    (proxy, method, args) -> null);
+        }
+    }
+
+    private StubDataSource dataSource;
+
+    private ConnectionPoolLoadMonitor monitor;
+
+    @Before
+    public void setUp()
+    {
+        this.dataSource = new StubDataSource();
+        this.monitor = new ConnectionPoolLoadMonitor();
+        this.monitor.setDataSource(this.dataSource);
+        this.monitor.setMaxPoolUtilisationPercent(50);
+        this.monitor.setMaxConnectionWaitMillis(100);
+        // sample on every check unless a test requires otherwise
+        this.monitor.setSampleIntervalMillis(0);
+        this.monitor.afterPropertiesSet();
+    }
+
+    @Test
+    public void notOverloadedBelowThresholds()
+    {
+        this.dataSource.active = 5;
+        Assert.assertFalse(this.monitor.isOverloaded(false));
+    }
+
+    @Test
+    public void overloadedByPoolUtilisation()
+    {
+        this.dataSource.active = 6;
+        Assert.assertTrue(this.monitor.isOverloaded(false));
+    }
+
+    @Test
+    public void overloadedByConnectionWait()
+    {
+        this.dataSource.waitMillis = 150;
+        Assert.assertTrue(this.monitor.isOverloaded(false));
+    }
+
+    @Test
+    public void overloadedIfConnectionUnavailable()
+    {
+        this.dataSource.failing = true;
+        Assert.assertTrue(this.monitor.isOverloaded(false));
+    }
+
+    @Test
+    public void lowerThresholdWhilePaused()
+    {
+        // 50% is not above the threshold when running, but above 80% of it when paused
+        this.dataSource.active = 5;
+        Assert.assertFalse(this.monitor.isOverloaded(false));
+        Assert.assertTrue("Paused operation must only resume below the lowered threshold", this.monitor.isOverloaded(true));
+
+        this.dataSource.active = 4;
+        Assert.assertFalse(this.monitor.isOverloaded(true));
+    }
+
+    @Test
+    public void sampleSharedWithinInterval()
+    {
+        this.monitor.setSampleIntervalMillis(60000);
+        this.dataSource.active = 6;
+        Assert.assertTrue(this.monitor.isOverloaded(false));
+
+        // load has dropped, but the previous sample is still current
+        this.dataSource.active = 0;
+        Assert.assertTrue(this.monitor.isOverloaded(false));
+        Assert.assertEquals("Only one sample must have been taken within the interval", 1, this.dataSource.connectionRequests);
+    }
+
+    @Test
+    public void backPressureAppliedThroughThrottle()
+    {
+        this.dataSource.active = 6;
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(0, this.monitor);
+        throttle.setPauseCheckIntervalMillis(10);
+
+        // relieve the pool from another thread while the throttle is paused
+        final Thread relief = new Thread(() -> {
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            this.dataSource.active = 3;
+        });
+        relief.start();
+
+        final long start = System.currentTimeMillis();
+        throttle.acquire(1);
+        Assert.assertTrue("Throttle must have paused until load dropped", System.currentTimeMillis() - start >= 40);
+        Assert.assertTrue("Load must have been sampled repeatedly while paused", this.dataSource.connectionRequests > 2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalidUtilisationRejected()
+    {
+        this.monitor.setMaxPoolUtilisationPercent(101);
+        this.monitor.afterPropertiesSet();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationCheckpoint.Progress;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationCheckpointTest
+{
+
+    private static final int USERS = 100;
+
+    private List<DeauthorisationUserInfo> work;
+
+    private DeauthorisationCheckpoint checkpoint;
+
+    @Before
+    public void setUp()
+    {
+        this.work = new ArrayList<>();
+        for (int idx = 0; idx < USERS; idx++)
+        {
+            final String userName = "user" + idx;
+            this.work.add(new DeauthorisationUserInfo(userName,
+                    new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "person-" + idx), Long.valueOf(idx)));
+        }
+        this.checkpoint = new DeauthorisationCheckpoint("key", 12345L, this.work);
+    }
+
+    @Test
+    public void remainingWorkExcludesProcessedUsers()
+    {
+        Assert.assertEquals(USERS, this.checkpoint.size());
+        Assert.assertEquals(USERS, this.checkpoint.getRemainingWork().size());
+
+        this.checkpoint.markProcessed(this.work.subList(0, 10), 7);
+        this.checkpoint.markProcessed(Arrays.asList(this.work.get(50), this.work.get(99)), 2);
+
+        Assert.assertEquals(12, this.checkpoint.getProcessed());
+        Assert.assertEquals(9, this.checkpoint.getDeauthorised());
+        Assert.assertFalse(this.checkpoint.isCompleted());
+
+        final DeauthorisationWorkSet remainingWork = this.checkpoint.getRemainingWork();
+        Assert.assertEquals(USERS - 12, remainingWork.size());
+        Assert.assertEquals("user10", remainingWork.get(0).getUserName());
+        Assert.assertEquals(this.work.get(10).getPersonRef(), remainingWork.get(0).getPersonRef());
+        for (final DeauthorisationUserInfo user : remainingWork)
+        {
+            Assert.assertNotEquals("user50", user.getUserName());
+            Assert.assertNotEquals("user99", user.getUserName());
+        }
+    }
+
+    @Test
+    public void completedOnceAllProcessed()
+    {
+        this.checkpoint.markProcessed(this.work, USERS);
+        Assert.assertTrue(this.checkpoint.isCompleted());
+        Assert.assertTrue(this.checkpoint.getRemainingWork().isEmpty());
+    }
+
+    @Test
+    public void unknownUsersIgnored()
+    {
+        this.checkpoint.markProcessed(Arrays.asList(
+                new DeauthorisationUserInfo("unknown", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "unknown"), null)), 0);
+        Assert.assertEquals(0, this.checkpoint.getProcessed());
+    }
+
+    @Test
+    public void serialisationRoundTrip() throws IOException, ClassNotFoundException
+    {
+        this.checkpoint.markProcessed(this.work.subList(0, 10), 10);
+
+        final DeauthorisationCheckpoint copy = roundTrip(this.checkpoint);
+        Assert.assertEquals("key", copy.getConfigurationKey());
+        Assert.assertEquals(12345L, copy.getCreatedTime());
+        Assert.assertEquals(USERS, copy.size());
+        // progress is persisted separately
+        Assert.assertEquals(0, copy.getProcessed());
+        Assert.assertEquals(0, copy.getDeauthorised());
+
+        final DeauthorisationWorkSet remainingWork = copy.getRemainingWork();
+        for (int idx = 0; idx < USERS; idx++)
+        {
+            Assert.assertEquals(this.work.get(idx).getUserName(), remainingWork.get(idx).getUserName());
+            Assert.assertEquals(this.work.get(idx).getPersonRef(), remainingWork.get(idx).getPersonRef());
+        }
+    }
+
+    @Test
+    public void progressRoundTrip() throws IOException, ClassNotFoundException
+    {
+        this.checkpoint.markProcessed(this.work.subList(0, 10), 4);
+        this.checkpoint.markProcessed(Arrays.asList(this.work.get(63)), 1);
+
+        final Progress progress = roundTrip(this.checkpoint.getProgress());
+        // progress must be a copy, unaffected by later batches
+        this.checkpoint.markProcessed(Arrays.asList(this.work.get(70)), 1);
+
+        final DeauthorisationCheckpoint restored = roundTrip(this.checkpoint);
+        Assert.assertTrue(restored.restoreProgress(progress));
+        Assert.assertEquals(11, restored.getProcessed());
+        Assert.assertEquals(5, restored.getDeauthorised());
+
+        final DeauthorisationWorkSet remainingWork = restored.getRemainingWork();
+        Assert.assertEquals(USERS - 11, remainingWork.size());
+        Assert.assertEquals("user10", remainingWork.get(0).getUserName());
+        Assert.assertEquals("user70", remainingWork.get(69 - 10).getUserName());
+    }
+
+    @Test
+    public void progressOfOtherCheckpointRejected()
+    {
+        final DeauthorisationCheckpoint otherCheckpoint = new DeauthorisationCheckpoint("key", 54321L, this.work);
+        otherCheckpoint.markProcessed(this.work.subList(0, 10), 10);
+        Assert.assertFalse(this.checkpoint.restoreProgress(otherCheckpoint.getProgress()));
+
+        final DeauthorisationCheckpoint largerCheckpoint = new DeauthorisationCheckpoint("key", 12345L, this.work);
+        final DeauthorisationCheckpoint smallerCheckpoint = new DeauthorisationCheckpoint("key", 12345L, this.work.subList(0, 10));
+        largerCheckpoint.markProcessed(this.work.subList(50, 60), 10);
+        Assert.assertFalse(smallerCheckpoint.restoreProgress(largerCheckpoint.getProgress()));
+        Assert.assertEquals(0, smallerCheckpoint.getProcessed());
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T extends Serializable> T roundTrip(final T value) throws IOException, ClassNotFoundException
+    {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos))
+        {
+            oos.writeObject(value);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())))
+        {
+            return (T) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAttributeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuditService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationPlanStoreTest
+{
+
+    private static final String APPLICATION = "test";
+
+    private static final String[] USERS = { "alice", "bob", "carol" };
+
+    private static final long FROM_TIME = 50000;
+
+    private static final long CREATED_TIME = 100000;
+
+    private InMemoryAttributeService attributes;
+
+    private DeauthorisationPlanStore store;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.attributes = new InMemoryAttributeService();
+        this.store = new DeauthorisationPlanStore(this.attributes.asService());
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void planPersistedWithUsersAndLastActivity()
+    {
+        this.store.save(plan("plan1", CREATED_TIME));
+
+        final DeauthorisationPlan loaded = this.store.load("plan1", CREATED_TIME);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals("plan1", loaded.getPlanId());
+        Assert.assertEquals(CREATED_TIME, loaded.getCreatedTime());
+        Assert.assertEquals(FROM_TIME, loaded.getFromTime());
+        Assert.assertEquals("dry run", loaded.getDescription());
+        Assert.assertEquals(USERS.length, loaded.size());
+
+        final List<String> userNames = new ArrayList<>();
+        for (final DeauthorisationUserInfo user : loaded.getWork())
+        {
+            userNames.add(user.getUserName());
+            Assert.assertEquals(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, user.getUserName()), user.getPersonRef());
+            if ("carol".equals(user.getUserName()))
+            {
+                Assert.assertNull("Unknown last activity must be retained", user.getLastActivity());
+            }
+            else
+            {
+                Assert.assertNotNull("Known last activity must be retained", user.getLastActivity());
+            }
+        }
+        Collections.sort(userNames);
+        Assert.assertEquals(Arrays.asList(USERS), userNames);
+    }
+
+    @Test
+    public void unknownPlanNotLoaded()
+    {
+        Assert.assertNull(this.store.load("unknown", 0));
+    }
+
+    @Test
+    public void outdatedPlanNotLoaded()
+    {
+        this.store.save(plan("plan1", CREATED_TIME));
+
+        Assert.assertNull("Plan created before the earliest allowed time must be ignored", this.store.load("plan1", CREATED_TIME + 1));
+        Assert.assertEquals("Ignoring an outdated plan must not remove it", 2, this.attributes.size());
+    }
+
+    @Test
+    public void removedPlanNotLoaded()
+    {
+        this.store.save(plan("plan1", CREATED_TIME));
+        this.store.remove("plan1");
+
+        Assert.assertNull(this.store.load("plan1", 0));
+        Assert.assertEquals("Both plan and creation time must have been removed", 0, this.attributes.size());
+    }
+
+    @Test
+    public void onlyExpiredPlansRemoved()
+    {
+        this.store.save(plan("old1", CREATED_TIME - 2000));
+        this.store.save(plan("old2", CREATED_TIME - 1000));
+        this.store.save(plan("current", CREATED_TIME));
+
+        Assert.assertEquals(2, this.store.removeExpired(CREATED_TIME));
+
+        Assert.assertNull(this.store.load("old1", 0));
+        Assert.assertNull(this.store.load("old2", 0));
+        Assert.assertNotNull(this.store.load("current", 0));
+        Assert.assertEquals(2, this.attributes.size());
+        Assert.assertEquals("Repeated removal must not find any further plans", 0, this.store.removeExpired(CREATED_TIME));
+    }
+
+    @Test
+    public void usersActiveSincePlanCreationNotDeauthorised()
+    {
+        final InMemoryAuditService auditService = new InMemoryAuditService(APPLICATION, USERS);
+        // bob logged in again after the plan was created, alice only before
+        auditService.addEntry(0, CREATED_TIME - 500);
+        auditService.addEntry(1, CREATED_TIME + 500);
+
+        this.store.save(plan("plan1", CREATED_TIME));
+        final DeauthorisationPlan stalePlan = this.store.load("plan1", 0);
+
+        final InMemoryAuthorizationService authorisationService = new InMemoryAuthorizationService(Arrays.asList(USERS));
+        final PersonDeauthorisationWorker worker = new PersonDeauthorisationWorker(false, null, authorisationService.asService());
+        worker.setProtectedAuthorities(new ProtectedAuthorities(Collections.<String> emptyList()));
+        final AuditActivityScanner scanner = new AuditActivityScanner(APPLICATION, auditService.asService());
+        worker.setRecentActivityCheck(userName -> Boolean.valueOf(scanner.hasActivitySince(userName, stalePlan.getCreatedTime())));
+
+        final List<DeauthorisationUserInfo> work = new ArrayList<>();
+        for (final DeauthorisationUserInfo user : stalePlan.getWork())
+        {
+            work.add(user);
+        }
+        final BatchProcessor<DeauthorisationUserInfo> processor = new BatchProcessor<>("DeauthorisationPlanStoreTest",
+                InMemoryTransactionManager.createTransactionService(0).getRetryingTransactionHelper(),
+                new CollectionWrappingWorkProvider<>(work, 2), 1, 2, null, LogFactory.getLog(this.getClass()), 100);
+        processor.process(worker, true);
+
+        Assert.assertEquals(2, worker.getDeauthorised());
+        Assert.assertTrue(authorisationService.getDeauthorisedUsers().contains("alice"));
+        Assert.assertTrue(authorisationService.getDeauthorisedUsers().contains("carol"));
+        Assert.assertFalse("User active since the plan was created must not be deauthorised",
+                authorisationService.getDeauthorisedUsers().contains("bob"));
+    }
+
+    protected static DeauthorisationPlan plan(final String planId, final long createdTime)
+    {
+        final List<DeauthorisationUserInfo> work = new ArrayList<>();
+        work.add(new DeauthorisationUserInfo("alice", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "alice"),
+                Long.valueOf(FROM_TIME - 20000)));
+        work.add(new DeauthorisationUserInfo("bob", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "bob"),
+                Long.valueOf(FROM_TIME - 10000)));
+        work.add(new DeauthorisationUserInfo("carol", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "carol"), null));
+        return new DeauthorisationPlan(planId, createdTime, FROM_TIME, "dry run", work);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationThrottleTest
+{
+
+    @Test
+    public void inactiveWithoutLimits()
+    {
+        Assert.assertFalse(new DeauthorisationThrottle(0, null).isActive());
+        Assert.assertTrue(new DeauthorisationThrottle(10, null).isActive());
+        Assert.assertTrue(new DeauthorisationThrottle(0, paused -> false).isActive());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRateRejected()
+    {
+        new DeauthorisationThrottle(-1, null);
+    }
+
+    @Test
+    public void rateLimited()
+    {
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(100, null);
+
+        // first batch is accounted for after the fact, reserving the next 100 ms
+        final long start = System.nanoTime();
+        throttle.acquire(10);
+        Assert.assertTrue("First batch must not be delayed", elapsedMillis(start) < 50);
+
+        throttle.acquire(10);
+        throttle.acquire(10);
+        Assert.assertTrue("Subsequent batches must wait for their time slots", elapsedMillis(start) >= 190);
+    }
+
+    @Test
+    public void unusedTimeNotAccumulated()
+    {
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(1000, null);
+        throttle.acquire(10);
+        sleep(100);
+
+        // idle period must not allow a burst beyond the rate limit
+        final long start = System.nanoTime();
+        throttle.acquire(50);
+        throttle.acquire(50);
+        Assert.assertTrue("Second batch after idle period must wait for its time slot", elapsedMillis(start) >= 45);
+    }
+
+    @Test
+    public void pausedWhileOverloaded()
+    {
+        final List<Boolean> checks = new ArrayList<>();
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(0, paused -> {
+            checks.add(Boolean.valueOf(paused));
+            // overloaded on first check and the two subsequent checks while paused
+            return checks.size() <= 3;
+        });
+        throttle.setPauseCheckIntervalMillis(20);
+
+        final long start = System.nanoTime();
+        throttle.acquire(10);
+
+        Assert.assertTrue("Processing must have been paused for three check intervals", elapsedMillis(start) >= 60);
+        Assert.assertEquals("Checks while paused must be flagged so lower thresholds apply",
+                Arrays.asList(Boolean.FALSE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE), checks);
+    }
+
+    @Test
+    public void notPausedWithoutLoad()
+    {
+        final List<Boolean> checks = new ArrayList<>();
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(0, paused -> {
+            checks.add(Boolean.valueOf(paused));
+            return false;
+        });
+        throttle.setPauseCheckIntervalMillis(1000);
+
+        final long start = System.nanoTime();
+        throttle.acquire(10);
+        throttle.acquire(10);
+
+        Assert.assertTrue(elapsedMillis(start) < 500);
+        Assert.assertEquals(Arrays.asList(Boolean.FALSE, Boolean.FALSE), checks);
+    }
+
+    @Test
+    public void interruptedWhilePaused()
+    {
+        final DeauthorisationThrottle throttle = new DeauthorisationThrottle(0, paused -> true);
+        throttle.setPauseCheckIntervalMillis(1000);
+
+        Thread.currentThread().interrupt();
+        try
+        {
+            throttle.acquire(1);
+            Assert.fail("Interrupt should have aborted the pause");
+        }
+        catch (final AlfrescoRuntimeException expected)
+        {
+            Assert.assertTrue("Interrupt status must be restored", Thread.interrupted());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositivePauseCheckIntervalRejected()
+    {
+        new DeauthorisationThrottle(0, paused -> false).setPauseCheckIntervalMillis(0);
+    }
+
+    protected static long elapsedMillis(final long startNanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    protected static void sleep(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(iex);
+        }
+    }
+}
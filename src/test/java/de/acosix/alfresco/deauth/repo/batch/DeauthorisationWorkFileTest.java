@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationWorkFileTest
+{
+
+    private static final StoreRef ARCHIVE_STORE = new StoreRef(StoreRef.PROTOCOL_ARCHIVE, "SpacesStore");
+
+    /**
+     * Writer keeping track of all run files it has written.
+     */
+    protected static class TrackingWriter extends DeauthorisationWorkFile.Writer
+    {
+
+        protected final List<File> writtenRuns = Collections.synchronizedList(new ArrayList<>());
+
+        protected TrackingWriter(final int runSize)
+        {
+            super(runSize);
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected File writeRun(final DeauthorisationWorkSet.Builder run)
+        {
+            final File runFile = super.writeRun(run);
+            this.writtenRuns.add(runFile);
+            return runFile;
+        }
+    }
+
+    @Test
+    public void mergedRunsSortedByUserName()
+    {
+        final List<String> userNames = new ArrayList<>();
+        for (int idx = 0; idx < 25; idx++)
+        {
+            userNames.add(String.format("user%02d", idx));
+        }
+        Collections.shuffle(userNames, new Random(7));
+
+        final TrackingWriter writer = new TrackingWriter(4);
+        for (final String userName : userNames)
+        {
+            writer.add(new DeauthorisationUserInfo(userName, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName), null));
+        }
+        final DeauthorisationWorkFile workFile = writer.finish();
+        try
+        {
+            Assert.assertEquals(7, writer.writtenRuns.size());
+            for (final File runFile : writer.writtenRuns)
+            {
+                Assert.assertFalse("Run file " + runFile + " should have been deleted after merge", runFile.exists());
+            }
+
+            final List<DeauthorisationUserInfo> users = readAll(workFile, 6);
+            Assert.assertEquals(25, workFile.size());
+            Assert.assertEquals(25, users.size());
+            for (int idx = 0; idx < users.size(); idx++)
+            {
+                Assert.assertEquals(String.format("user%02d", idx), users.get(idx).getUserName());
+            }
+        }
+        finally
+        {
+            workFile.discard();
+        }
+    }
+
+    @Test
+    public void singleRunUsedWithoutMerge()
+    {
+        final TrackingWriter writer = new TrackingWriter(2);
+        writer.add(new DeauthorisationUserInfo("b", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "b"), null));
+        writer.add(new DeauthorisationUserInfo("a", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "a"), null));
+        final DeauthorisationWorkFile workFile = writer.finish();
+        try
+        {
+            Assert.assertEquals(1, writer.writtenRuns.size());
+            final List<DeauthorisationUserInfo> users = readAll(workFile, 10);
+            Assert.assertEquals(2, users.size());
+            Assert.assertEquals("a", users.get(0).getUserName());
+            Assert.assertEquals("b", users.get(1).getUserName());
+        }
+        finally
+        {
+            workFile.discard();
+        }
+    }
+
+    @Test
+    public void recordFormatRoundTrip()
+    {
+        final String uuid = UUID.randomUUID().toString();
+        final NodeRef uuidRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, uuid);
+        final NodeRef plainRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "admin-person");
+        final NodeRef upperCaseUuidRef = new NodeRef(ARCHIVE_STORE, UUID.randomUUID().toString().toUpperCase());
+
+        // run size of 1 so that each record passes through both the run and the merge
+        final DeauthorisationWorkFile.Writer writer = new DeauthorisationWorkFile.Writer(1);
+        writer.add(new DeauthorisationUserInfo("carol", upperCaseUuidRef, Long.valueOf(0)));
+        writer.add(new DeauthorisationUserInfo("alice", uuidRef, Long.valueOf(1234567890123L)));
+        writer.add(new DeauthorisationUserInfo("bob", plainRef, null));
+        final DeauthorisationWorkFile workFile = writer.finish();
+        try
+        {
+            final List<DeauthorisationUserInfo> users = readAll(workFile, 2);
+            Assert.assertEquals(3, users.size());
+
+            Assert.assertEquals("alice", users.get(0).getUserName());
+            Assert.assertEquals(uuidRef, users.get(0).getPersonRef());
+            Assert.assertEquals(Long.valueOf(1234567890123L), users.get(0).getLastActivity());
+
+            Assert.assertEquals("bob", users.get(1).getUserName());
+            Assert.assertEquals(plainRef, users.get(1).getPersonRef());
+            Assert.assertNull("User without activity should be read back without last activity", users.get(1).getLastActivity());
+
+            Assert.assertEquals("carol", users.get(2).getUserName());
+            Assert.assertEquals(upperCaseUuidRef, users.get(2).getPersonRef());
+            Assert.assertEquals(Long.valueOf(0), users.get(2).getLastActivity());
+        }
+        finally
+        {
+            workFile.discard();
+        }
+    }
+
+    @Test
+    public void concurrentAddsRetainAllUsers() throws Exception
+    {
+        final int threads = 4;
+        final int usersPerThread = 250;
+        final TrackingWriter writer = new TrackingWriter(16);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++)
+            {
+                final int offset = thread * usersPerThread;
+                futures.add(executor.submit(() -> {
+                    for (int idx = offset; idx < offset + usersPerThread; idx++)
+                    {
+                        final String userName = String.format("user%04d", idx);
+                        writer.add(new DeauthorisationUserInfo(userName,
+                                new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, UUID.randomUUID().toString()), null));
+                    }
+                }));
+            }
+            for (final Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        final DeauthorisationWorkFile workFile = writer.finish();
+        try
+        {
+            final List<DeauthorisationUserInfo> users = readAll(workFile, 100);
+            Assert.assertEquals(threads * usersPerThread, users.size());
+            for (int idx = 0; idx < users.size(); idx++)
+            {
+                Assert.assertEquals(String.format("user%04d", idx), users.get(idx).getUserName());
+            }
+        }
+        finally
+        {
+            workFile.discard();
+        }
+    }
+
+    @Test
+    public void discardRemovesRuns()
+    {
+        final TrackingWriter writer = new TrackingWriter(2);
+        for (int idx = 0; idx < 5; idx++)
+        {
+            writer.add(new DeauthorisationUserInfo("user" + idx, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "user" + idx),
+                    null));
+        }
+        writer.discard();
+
+        Assert.assertEquals(2, writer.writtenRuns.size());
+        for (final File runFile : writer.writtenRuns)
+        {
+            Assert.assertFalse("Run file " + runFile + " should have been deleted on discard", runFile.exists());
+        }
+    }
+
+    protected static List<DeauthorisationUserInfo> readAll(final DeauthorisationWorkFile workFile, final int chunkSize)
+    {
+        final BatchProcessWorkProvider<DeauthorisationUserInfo> provider = workFile.createWorkProvider(chunkSize);
+        final List<DeauthorisationUserInfo> users = new ArrayList<>();
+        Collection<DeauthorisationUserInfo> work = provider.getNextWork();
+        while (!work.isEmpty())
+        {
+            users.addAll(work);
+            work = provider.getNextWork();
+        }
+        Assert.assertTrue("Work file readers should have been closed at the end of the file", workFile.openReaders.isEmpty());
+        return users;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationWorkSetTest
+{
+
+    @Test
+    public void selectByLastActivityLongestInactiveFirst()
+    {
+        final DeauthorisationWorkSet.Builder builder = new DeauthorisationWorkSet.Builder();
+        add(builder, "recent", Long.valueOf(3000));
+        add(builder, "never1", null);
+        add(builder, "oldest", Long.valueOf(1000));
+        add(builder, "never2", null);
+        add(builder, "older", Long.valueOf(2000));
+        final DeauthorisationWorkSet workSet = builder.build();
+
+        final List<String> userNames = new ArrayList<>();
+        for (final DeauthorisationUserInfo user : workSet.selectByLastActivity())
+        {
+            userNames.add(user.getUserName());
+        }
+
+        // users without known activity first, in order of user names, then by ascending last activity
+        Assert.assertEquals(Arrays.asList("never1", "never2", "oldest", "older", "recent"), userNames);
+    }
+
+    @Test
+    public void selectByLastActivityTiesInUserNameOrder()
+    {
+        final DeauthorisationWorkSet.Builder builder = new DeauthorisationWorkSet.Builder();
+        add(builder, "zeta", Long.valueOf(1000));
+        add(builder, "unknownB", null);
+        add(builder, "alpha", Long.valueOf(1000));
+        add(builder, "epoch", Long.valueOf(0));
+        add(builder, "unknownA", null);
+        add(builder, "beta", Long.valueOf(1000));
+        final DeauthorisationWorkSet workSet = builder.build();
+
+        final List<String> userNames = new ArrayList<>();
+        for (final DeauthorisationUserInfo user : workSet.selectByLastActivity())
+        {
+            userNames.add(user.getUserName());
+        }
+
+        // no activity precedes even the earliest possible activity, ties keep the user name order established by build()
+        Assert.assertEquals(Arrays.asList("unknownA", "unknownB", "epoch", "alpha", "beta", "zeta"), userNames);
+    }
+
+    @Test
+    public void userNamesNotInterned()
+    {
+        final String userName = new String("notInterned".toCharArray());
+        Assert.assertNotSame(userName, userName.intern());
+
+        final DeauthorisationWorkSet.Builder builder = new DeauthorisationWorkSet.Builder();
+        add(builder, userName, null);
+        final DeauthorisationWorkSet workSet = builder.build();
+
+        Assert.assertSame(userName, workSet.get(0).getUserName());
+    }
+
+    @Test
+    public void lastActivityRetained()
+    {
+        final DeauthorisationWorkSet.Builder builder = new DeauthorisationWorkSet.Builder();
+        add(builder, "active", Long.valueOf(1000));
+        add(builder, "never", null);
+        final DeauthorisationWorkSet workSet = builder.build();
+
+        Assert.assertEquals(Long.valueOf(1000), workSet.get(0).getLastActivity());
+        Assert.assertNull(workSet.get(1).getLastActivity());
+    }
+
+    protected static void add(final DeauthorisationWorkSet.Builder builder, final String userName, final Long lastActivity)
+    {
+        builder.add(userName, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName), lastActivity);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class InactiveUserSummaryWorkerTest
+{
+
+    private static final long REFERENCE_TIME = TimeUnit.DAYS.toMillis(1000);
+
+    private static final long FROM_TIME = REFERENCE_TIME - TimeUnit.DAYS.toMillis(30);
+
+    private static final int[] HISTOGRAM_DAYS = { 7, 30, 90 };
+
+    private final List<NodeRef> persons = new ArrayList<>();
+
+    private final List<String> authorisedUsers = new ArrayList<>();
+
+    private NodeService nodeService;
+
+    private UserActivityIndex activityIndex;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.nodeService = new InMemoryNodeService().asService();
+        this.activityIndex = new UserActivityIndex("test", 0);
+
+        this.givenUser("admin", true, null);
+        this.givenUser("active", true, Integer.valueOf(2));
+        this.givenUser("recent", true, Integer.valueOf(10));
+        this.givenUser("stale", true, Integer.valueOf(45));
+        this.givenUser("ancient", true, Integer.valueOf(95));
+        this.givenUser("never", true, null);
+        this.givenUser("former", false, Integer.valueOf(200));
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void authorisedUsersSummarised()
+    {
+        final InactiveUserSummary summary = this.summarise(this.newWorker(), 0);
+
+        Assert.assertEquals(REFERENCE_TIME, summary.getComputedTime());
+        Assert.assertEquals(FROM_TIME, summary.getFromTime());
+        Assert.assertEquals("Users which are not authorised must not be counted", 6, summary.getAuthorised());
+        Assert.assertEquals(1, summary.getProtectedAuthorised());
+        Assert.assertEquals("Users without activity since the start of the time frame are inactive", 3, summary.getInactiveAuthorised());
+        assertHistogram(summary, 1, 1, 1, 2);
+    }
+
+    @Test
+    public void histogramBucketBoundaries()
+    {
+        this.givenUser("weekOld", true, Integer.valueOf(7));
+        this.givenUser("quarterOld", true, Integer.valueOf(90));
+        // clock skew between servers may result in activity after the reference time
+        this.activityIndex.recordActivity("active", REFERENCE_TIME + TimeUnit.MINUTES.toMillis(5));
+
+        final InactiveUserSummary summary = this.summarise(this.newWorker(), 0);
+
+        // upper bound of a bucket is exclusive
+        assertHistogram(summary, 1, 2, 1, 3);
+        Assert.assertNull("Last bucket must be open-ended", summary.getHistogram().get(3).getMaxAgeDays());
+        Assert.assertEquals(Integer.valueOf(7), summary.getHistogram().get(0).getMaxAgeDays());
+    }
+
+    @Test
+    public void failedBatchNotCounted()
+    {
+        final InactiveUserSummaryWorker worker = new InactiveUserSummaryWorker(REFERENCE_TIME, FROM_TIME, this.activityIndex,
+                new InMemoryAuthorizationService(this.authorisedUsers).asService(), this.nodeService,
+                new ProtectedAuthorities(Arrays.asList("admin")), HISTOGRAM_DAYS)
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void process(final NodeRef entry) throws Throwable
+            {
+                super.process(entry);
+                if (entry.getId().equals("stale"))
+                {
+                    throw new IllegalStateException("Failing batch of " + entry);
+                }
+            }
+        };
+
+        // batch of "recent" and "stale" fails on all attempts
+        final InactiveUserSummary summary = this.summarise(worker, 2);
+
+        Assert.assertEquals(4, summary.getAuthorised());
+        Assert.assertEquals(2, summary.getInactiveAuthorised());
+        assertHistogram(summary, 1, 0, 0, 2);
+    }
+
+    @Test
+    public void retriedBatchCountedOnce()
+    {
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final InactiveUserSummaryWorker worker = new InactiveUserSummaryWorker(REFERENCE_TIME, FROM_TIME, this.activityIndex,
+                new InMemoryAuthorizationService(this.authorisedUsers).asService(), this.nodeService,
+                new ProtectedAuthorities(Arrays.asList("admin")), HISTOGRAM_DAYS)
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void process(final NodeRef entry) throws Throwable
+            {
+                super.process(entry);
+                if (entry.getId().equals("stale") && failed.compareAndSet(false, true))
+                {
+                    throw new ConcurrencyFailureException("Conflict on " + entry);
+                }
+            }
+        };
+
+        final InactiveUserSummary summary = this.summarise(worker, 2);
+
+        Assert.assertTrue("Conflict should have been raised", failed.get());
+        Assert.assertEquals(6, summary.getAuthorised());
+        Assert.assertEquals(3, summary.getInactiveAuthorised());
+        assertHistogram(summary, 1, 1, 1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchingHistogramRejected()
+    {
+        new InactiveUserSummary(REFERENCE_TIME, FROM_TIME, 0, 0, 0, HISTOGRAM_DAYS, new long[HISTOGRAM_DAYS.length]);
+    }
+
+    protected void givenUser(final String userName, final boolean authorised, final Integer lastActiveDaysAgo)
+    {
+        final NodeRef person = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName);
+        this.nodeService.setProperty(person, ContentModel.PROP_USERNAME, userName);
+        this.persons.add(person);
+        if (authorised)
+        {
+            this.authorisedUsers.add(userName);
+        }
+        if (lastActiveDaysAgo != null)
+        {
+            this.activityIndex.recordActivity(userName, REFERENCE_TIME - TimeUnit.DAYS.toMillis(lastActiveDaysAgo.intValue()));
+        }
+    }
+
+    protected InactiveUserSummaryWorker newWorker()
+    {
+        return new InactiveUserSummaryWorker(REFERENCE_TIME, FROM_TIME, this.activityIndex,
+                new InMemoryAuthorizationService(this.authorisedUsers).asService(), this.nodeService,
+                new ProtectedAuthorities(Arrays.asList("admin")), HISTOGRAM_DAYS);
+    }
+
+    protected InactiveUserSummary summarise(final InactiveUserSummaryWorker worker, final int batchSize)
+    {
+        final int effectiveBatchSize = batchSize > 0 ? batchSize : this.persons.size();
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("InactiveUserSummaryWorkerTest",
+                InMemoryTransactionManager.createTransactionService(1).getRetryingTransactionHelper(),
+                new CollectionWrappingWorkProvider<>(this.persons, effectiveBatchSize), 1, effectiveBatchSize, null,
+                LogFactory.getLog(this.getClass()), 100);
+        processor.process(worker, true);
+        return worker.getSummary();
+    }
+
+    protected static void assertHistogram(final InactiveUserSummary summary, final long... expectedUsers)
+    {
+        final List<InactiveUserSummary.Bucket> histogram = summary.getHistogram();
+        Assert.assertEquals(expectedUsers.length, histogram.size());
+        for (int idx = 0; idx < expectedUsers.length; idx++)
+        {
+            Assert.assertEquals("Unexpected number of users in bucket " + idx, expectedUsers[idx], histogram.get(idx).getUsers());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+
+/**
+ * @author Axel Faust
+ */
+public class PartitionedDeauthorisationProcessorTest
+{
+
+    private static final int USERS = 400;
+
+    private static final int LANES = 4;
+
+    private static final int BATCH_SIZE = 10;
+
+    private List<DeauthorisationUserInfo> work;
+
+    private InMemoryAuthorizationService authorisationService;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        final List<String> userNames = new ArrayList<>();
+        this.work = new ArrayList<>();
+        for (int idx = 0; idx < USERS; idx++)
+        {
+            final String userName = "user" + idx;
+            userNames.add(userName);
+            this.work.add(new DeauthorisationUserInfo(userName, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName), null));
+        }
+        this.authorisationService = new InMemoryAuthorizationService(userNames);
+        // widen the window for concurrent writes to conflict
+        this.authorisationService.setWriteDelayMillis(1);
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void concurrentLanesDoNotConflict()
+    {
+        // no retries - any conflict between the lanes would fail batches
+        final PersonDeauthorisationWorker worker = this.createWorker();
+        this.createProcessor(0).process(this.work, worker);
+
+        Assert.assertEquals("Lanes must not conflict with each other", 0, this.authorisationService.getConflicts());
+        this.assertExact(worker);
+        Assert.assertEquals("All users should have been deauthorised", USERS, worker.getDeauthorised());
+    }
+
+    @Test
+    public void concurrentLanesWithoutSerialisedWritesStayExact()
+    {
+        // control for the stand-in - unserialised lanes do conflict, but counts must remain exact even for failed batches
+        final PersonDeauthorisationWorker worker = new PersonDeauthorisationWorker(false, null, this.authorisationService.asService())
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected void acquireWriteLock()
+            {
+                // NO-OP
+            }
+        };
+        worker.setProtectedAuthorities(new ProtectedAuthorities(Collections.<String> emptyList()));
+        this.createProcessor(0).process(this.work, worker);
+
+        Assert.assertTrue("Unserialised lanes should conflict", this.authorisationService.getConflicts() > 0);
+        this.assertExact(worker);
+    }
+
+    @Test
+    public void conflictsWithExternalWritersAreRetried() throws InterruptedException
+    {
+        final PersonDeauthorisationWorker worker = this.createWorker();
+
+        final Thread externalWriter = new Thread(() -> {
+            try
+            {
+                for (int idx = 0; idx < 20; idx++)
+                {
+                    TimeUnit.MILLISECONDS.sleep(5);
+                    this.authorisationService.commitExternalChange();
+                }
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        externalWriter.start();
+        try
+        {
+            this.createProcessor(20).process(this.work, worker);
+        }
+        finally
+        {
+            externalWriter.join();
+        }
+
+        this.assertExact(worker);
+        Assert.assertEquals("All users should have been deauthorised", USERS, worker.getDeauthorised());
+    }
+
+    @Test
+    public void partitionBalancesLanes()
+    {
+        final PartitionedDeauthorisationProcessor processor = this.createProcessor(0);
+        final List<DeauthorisationUserInfo> work = this.work.subList(0, 10);
+        this.assertBalancedPartitions(work, processor.partition(work));
+
+        final DeauthorisationWorkSet.Builder builder = new DeauthorisationWorkSet.Builder();
+        work.forEach(builder::add);
+        final DeauthorisationWorkSet workSet = builder.build();
+        this.assertBalancedPartitions(workSet, processor.partition(workSet));
+
+        final List<DeauthorisationUserInfo> smallWork = this.work.subList(0, 2);
+        Assert.assertEquals("Empty lanes should be omitted", 2, processor.partition(smallWork).size());
+    }
+
+    protected PersonDeauthorisationWorker createWorker()
+    {
+        final PersonDeauthorisationWorker worker = new PersonDeauthorisationWorker(false, null, this.authorisationService.asService());
+        worker.setProtectedAuthorities(new ProtectedAuthorities(Collections.<String> emptyList()));
+        return worker;
+    }
+
+    protected PartitionedDeauthorisationProcessor createProcessor(final int maxRetries)
+    {
+        return new PartitionedDeauthorisationProcessor("PartitionedDeauthorisationProcessorTest",
+                InMemoryTransactionManager.createTransactionService(maxRetries), LANES, BATCH_SIZE, 1000);
+    }
+
+    protected void assertExact(final PersonDeauthorisationWorker worker)
+    {
+        final Map<String, Integer> committedDeauthorisations = this.authorisationService.getCommittedDeauthorisations();
+        for (final Entry<String, Integer> entry : committedDeauthorisations.entrySet())
+        {
+            Assert.assertEquals("User " + entry.getKey() + " deauthorised more than once", 1, entry.getValue().intValue());
+        }
+        Assert.assertEquals("Count must match committed deauthorisations", committedDeauthorisations.size(), worker.getDeauthorised());
+
+        // any user not deauthorised must still be authorised, i.e. not lost in between
+        final Set<String> deauthorisedUsers = this.authorisationService.getDeauthorisedUsers();
+        for (final DeauthorisationUserInfo user : this.work)
+        {
+            final boolean deauthorised = deauthorisedUsers.contains(user.getUserName());
+            Assert.assertEquals("Committed deauthorisation and authorisation state of " + user.getUserName() + " differ",
+                    committedDeauthorisations.containsKey(user.getUserName()), deauthorised);
+            Assert.assertNotEquals("User " + user.getUserName() + " neither authorised nor deauthorised", deauthorised,
+                    this.authorisationService.asService().isAuthorized(user.getUserName()));
+        }
+    }
+
+    protected void assertBalancedPartitions(final List<DeauthorisationUserInfo> work, final List<List<DeauthorisationUserInfo>> partitions)
+    {
+        Assert.assertEquals("Unexpected number of lanes", LANES, partitions.size());
+
+        final Set<String> partitionedUsers = new HashSet<>();
+        int minSize = Integer.MAX_VALUE;
+        int maxSize = 0;
+        for (final List<DeauthorisationUserInfo> partition : partitions)
+        {
+            minSize = Math.min(minSize, partition.size());
+            maxSize = Math.max(maxSize, partition.size());
+            for (final DeauthorisationUserInfo user : partition)
+            {
+                Assert.assertTrue("User " + user.getUserName() + " assigned to more than one lane", partitionedUsers.add(user.getUserName()));
+            }
+        }
+        Assert.assertEquals("Not all users assigned to a lane", work.size(), partitionedUsers.size());
+        Assert.assertTrue("Lanes not balanced", maxSize - minSize <= 1);
+    }
+}
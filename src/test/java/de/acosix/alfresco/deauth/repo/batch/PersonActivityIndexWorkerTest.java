@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class PersonActivityIndexWorkerTest
+{
+
+    private static final int USERS = 10;
+
+    private static final int BATCH_SIZE = 4;
+
+    private static final String FAILING_USER = "user5";
+
+    private NodeService nodeService;
+
+    private List<NodeRef> persons;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.nodeService = new InMemoryNodeService().asService();
+        this.persons = new ArrayList<>();
+        for (int idx = 0; idx < USERS; idx++)
+        {
+            final String userName = "user" + idx;
+            final NodeRef personRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName);
+            this.nodeService.setProperty(personRef, ContentModel.PROP_USERNAME, userName);
+            this.persons.add(personRef);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void failedBatchNotPublished()
+    {
+        final PersonActivityIndexWorker worker = this.createWorker();
+        worker.setIsAuthorisedCheck(userName -> {
+            if (FAILING_USER.equals(userName))
+            {
+                throw new IllegalStateException("Failing check for " + userName);
+            }
+            return Boolean.TRUE;
+        });
+        this.process(worker, 0);
+
+        final Set<String> users = this.assertPublishedOnce(worker);
+        Assert.assertFalse("User of failed attempt must not be published", users.contains(FAILING_USER));
+        Assert.assertEquals("All users not affected by the failure should have been published", USERS - 1, users.size());
+    }
+
+    @Test
+    public void retriedBatchPublishedOnce()
+    {
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final PersonActivityIndexWorker worker = this.createWorker();
+        worker.setIsAuthorisedCheck(userName -> {
+            if (FAILING_USER.equals(userName) && failed.compareAndSet(false, true))
+            {
+                throw new ConcurrencyFailureException("Conflict on " + userName);
+            }
+            return Boolean.TRUE;
+        });
+        this.process(worker, 1);
+
+        final Set<String> users = this.assertPublishedOnce(worker);
+        Assert.assertTrue("Conflict should have been raised", failed.get());
+        Assert.assertEquals("All users should have been published", USERS, users.size());
+    }
+
+    @Test
+    public void lastActivityOnlyDeterminedForAuthorisedUsers()
+    {
+        final Set<String> determined = Collections.synchronizedSet(new HashSet<>());
+        final PersonActivityIndexWorker worker = new PersonActivityIndexWorker(Long.MAX_VALUE, this.nodeService)
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected Long determineLastActivity(final String userName)
+            {
+                determined.add(userName);
+                return null;
+            }
+        };
+        worker.setIsAuthorisedCheck(userName -> Boolean.valueOf(!FAILING_USER.equals(userName)));
+        this.process(worker, 0);
+
+        Assert.assertFalse("Last activity must not be determined for users that are not authorised", determined.contains(FAILING_USER));
+        Assert.assertEquals(USERS - 1, determined.size());
+        Assert.assertEquals(USERS - 1, this.assertPublishedOnce(worker).size());
+    }
+
+    @Test
+    public void candidatesWithoutActivityCounted()
+    {
+        final UserActivityIndex activityIndex = new UserActivityIndex("test", 0);
+        // user0 and user1 active before the time frame, user2 active within it, all others without any known activity
+        activityIndex.recordActivity("user0", 500);
+        activityIndex.recordActivity("user1", 900);
+        activityIndex.recordActivity("user2", 1500);
+
+        final PersonActivityIndexWorker worker = new PersonActivityIndexWorker(1000, activityIndex, this.nodeService);
+        this.process(worker, 0);
+
+        Assert.assertEquals(USERS - 3, worker.getCandidatesWithoutActivity());
+        final DeauthorisationWorkSet workSet = worker.getUsers();
+        Assert.assertEquals(USERS - 1, workSet.size());
+        for (final DeauthorisationUserInfo user : workSet)
+        {
+            if ("user0".equals(user.getUserName()))
+            {
+                Assert.assertEquals("Activity before the time frame should be retained", Long.valueOf(500), user.getLastActivity());
+            }
+        }
+    }
+
+    protected PersonActivityIndexWorker createWorker()
+    {
+        return new PersonActivityIndexWorker(Long.MAX_VALUE, this.nodeService)
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected Long determineLastActivity(final String userName)
+            {
+                return null;
+            }
+        };
+    }
+
+    protected void process(final PersonActivityIndexWorker worker, final int maxRetries)
+    {
+        final TransactionService transactionService = InMemoryTransactionManager.createTransactionService(maxRetries);
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("PersonActivityIndexWorkerTest",
+                transactionService.getRetryingTransactionHelper(), new CollectionWrappingWorkProvider<>(this.persons, BATCH_SIZE), 1,
+                BATCH_SIZE, null, LogFactory.getLog(this.getClass()), 100);
+        processor.process(worker, true);
+    }
+
+    protected Set<String> assertPublishedOnce(final PersonActivityIndexWorker worker)
+    {
+        final DeauthorisationWorkSet workSet = worker.getUsers();
+        final Set<String> users = new HashSet<>();
+        for (final DeauthorisationUserInfo user : workSet)
+        {
+            Assert.assertTrue("User " + user.getUserName() + " published more than once", users.add(user.getUserName()));
+        }
+        Assert.assertEquals("Candidates must only include published users", workSet.size(), worker.getCandidates());
+        return users;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.audit.AuditQueryParameters;
+import org.alfresco.service.cmr.audit.AuditService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuditService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class PersonAuditProbeWorkerTest
+{
+
+    private static final String APPLICATION = "test";
+
+    private static final String[] USERS = { "jdoe", "mmustermann", "guest-user", "newbie" };
+
+    private static final long FROM_TIME = 10000;
+
+    private InMemoryAuditService auditService;
+
+    private NodeService nodeService;
+
+    private final List<NodeRef> persons = new ArrayList<>();
+
+    // user and maximum number of results of each audit query run
+    private final List<String> probedUsers = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<Integer> probeLimits = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.auditService = new InMemoryAuditService(APPLICATION, USERS);
+        this.nodeService = new InMemoryNodeService().asService();
+        for (final String userName : USERS)
+        {
+            final NodeRef person = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName);
+            this.nodeService.setProperty(person, ContentModel.PROP_USERNAME, userName);
+            this.persons.add(person);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void lastActivityBeforeTimeFrameResolved()
+    {
+        // jdoe last active long before, mmustermann shortly before and guest-user within the time frame - newbie never active
+        this.auditService.addEntry(0, 1000);
+        this.auditService.addEntry(1, 2000);
+        this.auditService.addEntry(0, 3000);
+        this.auditService.addEntry(1, 9000);
+        this.auditService.addEntry(2, 12000);
+
+        final Map<String, Long> candidates = this.probe();
+
+        Assert.assertEquals(3, candidates.size());
+        Assert.assertEquals(Long.valueOf(3000), candidates.get("jdoe"));
+        Assert.assertEquals(Long.valueOf(9000), candidates.get("mmustermann"));
+        Assert.assertTrue("User without any audit entry must be a candidate", candidates.containsKey("newbie"));
+        Assert.assertNull(candidates.get("newbie"));
+        Assert.assertFalse("User active within the time frame must not be a candidate", candidates.containsKey("guest-user"));
+    }
+
+    @Test
+    public void onlyNewestEntryRead()
+    {
+        // heavy user with many entries must cost a single, limited query just like a light user
+        for (int idx = 0; idx < 100; idx++)
+        {
+            this.auditService.addEntry(0, 1000 + idx);
+        }
+        this.auditService.addEntry(1, 500);
+
+        final Map<String, Long> candidates = this.probe();
+
+        Assert.assertEquals(Long.valueOf(1099), candidates.get("jdoe"));
+        Assert.assertEquals(Long.valueOf(500), candidates.get("mmustermann"));
+        Assert.assertEquals("Each user must be probed exactly once", USERS.length, this.probedUsers.size());
+        for (final Integer limit : this.probeLimits)
+        {
+            Assert.assertEquals("Probe must be limited to the newest entry", Integer.valueOf(1), limit);
+        }
+    }
+
+    @Test
+    public void unauthorisedUsersNotProbed()
+    {
+        this.auditService.addEntry(0, 1000);
+        this.auditService.addEntry(2, 2000);
+
+        final Map<String, Long> candidates = this.probe(userName -> Boolean.valueOf(!"guest-user".equals(userName)));
+
+        Assert.assertFalse("Unauthorised user must not be probed", this.probedUsers.contains("guest-user"));
+        Assert.assertFalse(candidates.containsKey("guest-user"));
+        Assert.assertEquals(3, candidates.size());
+    }
+
+    @Test
+    public void activityDeterminedFromAuditValues()
+    {
+        final Map<String, Serializable> values = new HashMap<>();
+        values.put("/test/date", new Date(4000));
+        // audited later than the time frame started, but reporting an activity before it
+        this.auditService.addEntry(0, 15000, values, true);
+        this.auditService.addEntry(1, 15000);
+
+        final AuditActivityScanner scanner = new AuditActivityScanner(APPLICATION, this.countingAuditService());
+        scanner.setDateAuditPath("/test/date");
+        final Map<String, Long> candidates = this.probe(scanner, null);
+
+        Assert.assertEquals(Long.valueOf(4000), candidates.get("jdoe"));
+        Assert.assertFalse("Entry without date value must fall back to the audit time", candidates.containsKey("mmustermann"));
+    }
+
+    protected Map<String, Long> probe()
+    {
+        return this.probe(null);
+    }
+
+    protected Map<String, Long> probe(final Function<String, Boolean> isAuthorisedCheck)
+    {
+        return this.probe(new AuditActivityScanner(APPLICATION, this.countingAuditService()), isAuthorisedCheck);
+    }
+
+    protected Map<String, Long> probe(final AuditActivityScanner scanner, final Function<String, Boolean> isAuthorisedCheck)
+    {
+        final PersonAuditProbeWorker worker = new PersonAuditProbeWorker(FROM_TIME, scanner, this.nodeService);
+        worker.setIsAuthorisedCheck(isAuthorisedCheck);
+
+        final BatchProcessor<NodeRef> processor = new BatchProcessor<>("PersonAuditProbeWorkerTest",
+                InMemoryTransactionManager.createTransactionService(0).getRetryingTransactionHelper(),
+                new CollectionWrappingWorkProvider<>(this.persons, 2), 1, 2, null, LogFactory.getLog(this.getClass()), 100);
+        processor.process(worker, true);
+
+        final Map<String, Long> candidates = new HashMap<>();
+        for (final DeauthorisationUserInfo user : worker.getUsers())
+        {
+            candidates.put(user.getUserName(), user.getLastActivity());
+        }
+        return candidates;
+    }
+
+    protected AuditService countingAuditService()
+    {
+        final AuditService delegate = this.auditService.asService();
+        return (AuditService) Proxy.newProxyInstance(AuditService.class.getClassLoader(), new Class<?>[] { AuditService.class },
+                (proxy, method, args) -> {
+                    if ("auditQuery".equals(method.getName()))
+                    {
+                        this.probedUsers.add(((AuditQueryParameters) args[1]).getUser());
+                        this.probeLimits.add((Integer) args[2]);
+                    }
+                    return method.invoke(delegate, args);
+                });
+    }
+}
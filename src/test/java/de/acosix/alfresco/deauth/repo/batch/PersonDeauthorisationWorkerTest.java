@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReport;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuthorizationService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class PersonDeauthorisationWorkerTest
+{
+
+    private static final int USERS = 10;
+
+    private static final String FAILING_USER = "user5";
+
+    private List<String> userNames;
+
+    private InMemoryAuthorizationService authorisationService;
+
+    private DeauthorisationReport report;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.userNames = new ArrayList<>();
+        for (int idx = 0; idx < USERS; idx++)
+        {
+            this.userNames.add("user" + idx);
+        }
+        this.authorisationService = new InMemoryAuthorizationService(this.userNames);
+        this.report = new DeauthorisationReport(ReportFormat.CSV, new InMemoryNodeService().asService());
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.report.discard();
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void failedFinalAttemptNeitherCountedNorReported() throws IOException
+    {
+        this.authorisationService.addAlwaysConflictingUsers(FAILING_USER);
+
+        final PersonDeauthorisationWorker worker = this.process(3, 2);
+
+        this.assertCommittedOnce();
+        Assert.assertFalse("User with failed final attempt must not be deauthorised",
+                this.authorisationService.getDeauthorisedUsers().contains(FAILING_USER));
+        Assert.assertTrue("Retries of failed batch should have been attempted", this.authorisationService.getConflicts() > 1);
+
+        final int committed = this.authorisationService.getDeauthorisedUsers().size();
+        Assert.assertTrue("Users in batches without the failing user should have been deauthorised", committed > 0);
+        Assert.assertEquals("Count must only include committed deauthorisations", committed, worker.getDeauthorised());
+
+        final List<String> reportedUsers = this.completeReport(worker);
+        Assert.assertEquals("Report must only include committed deauthorisations", committed, reportedUsers.size());
+        Assert.assertFalse("Report must not include user with failed final attempt", reportedUsers.contains(FAILING_USER));
+        Assert.assertTrue("Report must include all committed deauthorisations",
+                reportedUsers.containsAll(this.authorisationService.getDeauthorisedUsers()));
+    }
+
+    @Test
+    public void conflictsResolvedByRetryCountedOnce() throws IOException
+    {
+        // single conflict on first commit, resolved by a retry of the batch
+        final PersonDeauthorisationWorker worker = this.process(1, 10, () -> this.authorisationService.commitExternalChange());
+
+        this.assertCommittedOnce();
+        Assert.assertEquals("All users should have been deauthorised", USERS, this.authorisationService.getDeauthorisedUsers().size());
+        Assert.assertEquals("Retried batch must be counted once", USERS, worker.getDeauthorised());
+        Assert.assertEquals("Retried batch must be reported once", USERS, this.completeReport(worker).size());
+    }
+
+    protected PersonDeauthorisationWorker process(final int maxRetries, final int batchSize)
+    {
+        return this.process(maxRetries, batchSize, null);
+    }
+
+    protected PersonDeauthorisationWorker process(final int maxRetries, final int batchSize, final Runnable onFirstProcess)
+    {
+        final TransactionService transactionService = InMemoryTransactionManager.createTransactionService(maxRetries);
+
+        final PersonDeauthorisationWorker worker = new PersonDeauthorisationWorker(false, null, this.authorisationService.asService())
+        {
+
+            private boolean first = true;
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void process(final DeauthorisationUserInfo entry) throws Throwable
+            {
+                super.process(entry);
+                if (this.first && onFirstProcess != null)
+                {
+                    this.first = false;
+                    onFirstProcess.run();
+                }
+            }
+        };
+        worker.setProtectedAuthorities(new ProtectedAuthorities(Collections.<String> emptyList()));
+        worker.setReport(this.report);
+        this.report.begin(USERS);
+
+        final List<DeauthorisationUserInfo> work = new ArrayList<>();
+        for (final String userName : this.userNames)
+        {
+            work.add(new DeauthorisationUserInfo(userName, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName), null));
+        }
+
+        final BatchProcessor<DeauthorisationUserInfo> processor = new BatchProcessor<>("PersonDeauthorisationWorkerTest",
+                transactionService.getRetryingTransactionHelper(), new CollectionWrappingWorkProvider<>(work, batchSize), 1, batchSize,
+                null, LogFactory.getLog(this.getClass()), 100);
+        processor.process(worker, true);
+
+        return worker;
+    }
+
+    protected void assertCommittedOnce()
+    {
+        final Map<String, Integer> committedDeauthorisations = this.authorisationService.getCommittedDeauthorisations();
+        for (final Entry<String, Integer> entry : committedDeauthorisations.entrySet())
+        {
+            Assert.assertEquals("User " + entry.getKey() + " deauthorised more than once", 1, entry.getValue().intValue());
+        }
+    }
+
+    protected List<String> completeReport(final PersonDeauthorisationWorker worker) throws IOException
+    {
+        this.report.complete(this.authorisationService.asService().getAuthorizedUsersCount(), worker.getDeauthorised());
+
+        final StringWriter writer = new StringWriter();
+        this.report.writeTo(writer);
+
+        final List<String> reportedUsers = new ArrayList<>();
+        final String[] lines = writer.toString().split("\n");
+        // skip header
+        for (int idx = 1; idx < lines.length; idx++)
+        {
+            final String line = lines[idx];
+            if (!line.isEmpty())
+            {
+                reportedUsers.add(line.substring(1, line.indexOf('"', 1)));
+            }
+        }
+        return reportedUsers;
+    }
+}
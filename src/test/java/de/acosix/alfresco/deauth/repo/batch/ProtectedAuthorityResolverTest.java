@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+
+/**
+ * @author Axel Faust
+ */
+public class ProtectedAuthorityResolverTest
+{
+
+    /**
+     * Minimal stand-in of the authority service providing the transitive user members of groups.
+     *
+     * @author Axel Faust
+     */
+    protected static class GroupMembership implements InvocationHandler
+    {
+
+        protected final Map<String, Set<String>> usersByGroup = new HashMap<>();
+
+        protected final List<String> resolvedGroups = new ArrayList<>();
+
+        protected synchronized void addMembers(final String group, final String... userNames)
+        {
+            this.usersByGroup.computeIfAbsent(group, key -> new HashSet<>()).addAll(Arrays.asList(userNames));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final Object result;
+            switch (method.getName())
+            {
+                case "authorityExists":
+                    result = Boolean.valueOf(this.usersByGroup.containsKey(args[0]));
+                    break;
+                case "getContainedAuthorities":
+                    this.resolvedGroups.add((String) args[1]);
+                    result = new HashSet<>(this.usersByGroup.get(args[1]));
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Operation not supported by stand-in: " + method);
+            }
+            return result;
+        }
+    }
+
+    private static final String ADMIN_GROUP = "GROUP_ALFRESCO_ADMINISTRATORS";
+
+    private static final String GUEST_GROUP = "GROUP_GUESTS";
+
+    private GroupMembership groupMembership;
+
+    private List<QName> boundPolicies;
+
+    private ProtectedAuthorityResolver resolver;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.groupMembership = new GroupMembership();
+        this.groupMembership.addMembers(ADMIN_GROUP, "jdoe", "mmustermann");
+        this.groupMembership.addMembers(GUEST_GROUP, "visitor");
+
+        this.boundPolicies = new ArrayList<>();
+        final PolicyComponent policyComponent = (PolicyComponent) Proxy.newProxyInstance(PolicyComponent.class.getClassLoader(),
+                new Class<?>[] { PolicyComponent.class }, (proxy, method, args) -> {
+                    if ("bindAssociationBehaviour".equals(method.getName()))
+                    {
+                        this.boundPolicies.add((QName) args[0]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException("Operation not supported by stand-in: " + method);
+                });
+
+        this.resolver = new ProtectedAuthorityResolver();
+        this.resolver.setAuthorityService((AuthorityService) Proxy.newProxyInstance(AuthorityService.class.getClassLoader(),
+                new Class<?>[] { AuthorityService.class }, this.groupMembership));
+        this.resolver.setPolicyComponent(policyComponent);
+        this.resolver.setAdminGroups(ADMIN_GROUP + ", GROUP_MISSING");
+        this.resolver.setGuestGroups(GUEST_GROUP);
+        this.resolver.setProtectedUsers(" service-account ,, ");
+        this.resolver.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void membershipChangesObserved()
+    {
+        Assert.assertEquals("Both creation and deletion of group members must be observed", 2, this.boundPolicies.size());
+    }
+
+    @Test
+    public void defaultAndConfiguredUsersProtected()
+    {
+        final ProtectedAuthorities protectedAuthorities = this.resolver.getProtectedAuthorities();
+
+        Assert.assertTrue(protectedAuthorities.isProtected(AuthenticationUtil.getAdminUserName()));
+        Assert.assertTrue(protectedAuthorities.isProtected(AuthenticationUtil.getGuestUserName()));
+        Assert.assertTrue("Configured users must be protected", protectedAuthorities.isProtected("service-account"));
+        Assert.assertTrue("Protection must not depend on case", protectedAuthorities.isProtected("Service-Account"));
+        Assert.assertFalse(protectedAuthorities.isProtected("jane"));
+    }
+
+    @Test
+    public void groupMembersProtected()
+    {
+        final ProtectedAuthorities protectedAuthorities = this.resolver.getProtectedAuthorities();
+
+        Assert.assertTrue("Admin group member must be protected", protectedAuthorities.isProtected("jdoe"));
+        Assert.assertTrue("Admin group member must be protected", protectedAuthorities.isProtected("MMustermann"));
+        Assert.assertTrue("Guest group member must be protected", protectedAuthorities.isProtected("visitor"));
+        // admin, guest, service-account and three group members
+        Assert.assertEquals(6, protectedAuthorities.size());
+        Assert.assertFalse("Members of missing groups must not be resolved", this.groupMembership.resolvedGroups.contains("GROUP_MISSING"));
+    }
+
+    @Test
+    public void resolvedOnlyOnce()
+    {
+        final ProtectedAuthorities first = this.resolver.getProtectedAuthorities();
+        final ProtectedAuthorities second = this.resolver.getProtectedAuthorities();
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals("Each group must only have been resolved once", Arrays.asList(ADMIN_GROUP, GUEST_GROUP),
+                this.groupMembership.resolvedGroups);
+    }
+
+    @Test
+    public void resolvedAgainAfterCommittedMembershipChange()
+    {
+        Assert.assertFalse(this.resolver.getProtectedAuthorities().isProtected("newadmin"));
+
+        final RetryingTransactionHelper txnHelper = InMemoryTransactionManager.createTransactionService(0).getRetryingTransactionHelper();
+        txnHelper.doInTransaction(() -> {
+            this.groupMembership.addMembers(ADMIN_GROUP, "newadmin");
+            this.resolver.onCreateChildAssociation(null, false);
+            // change is not visible to other transactions yet, so the cache must remain valid
+            Assert.assertFalse(this.resolver.getProtectedAuthorities().isProtected("newadmin"));
+            return null;
+        }, false, true);
+
+        Assert.assertTrue("New admin group member must be protected after commit",
+                this.resolver.getProtectedAuthorities().isProtected("newadmin"));
+        Assert.assertEquals(4, this.groupMembership.resolvedGroups.size());
+    }
+
+    @Test
+    public void cacheRetainedAfterRolledBackMembershipChange()
+    {
+        final ProtectedAuthorities before = this.resolver.getProtectedAuthorities();
+
+        final RetryingTransactionHelper txnHelper = InMemoryTransactionManager.createTransactionService(0).getRetryingTransactionHelper();
+        try
+        {
+            txnHelper.doInTransaction(() -> {
+                this.resolver.onDeleteChildAssociation(null);
+                throw new IllegalStateException("Rolling back membership change");
+            }, false, true);
+            Assert.fail("Transaction should have been rolled back");
+        }
+        catch (final IllegalStateException expected)
+        {
+            // expected
+        }
+
+        Assert.assertSame("Rolled back change must not invalidate the cache", before, this.resolver.getProtectedAuthorities());
+    }
+
+    @Test
+    public void tenantsResolvedSeparately()
+    {
+        final ProtectedAuthorities defaultDomain = this.resolver.getProtectedAuthorities();
+        final ProtectedAuthorities tenantDomain = TenantUtil.runAsTenant(() -> this.resolver.getProtectedAuthorities(), "acme.com");
+
+        Assert.assertNotSame(defaultDomain, tenantDomain);
+        Assert.assertTrue(tenantDomain.isProtected(AuthenticationUtil.getAdminUserName() + "@acme.com"));
+        Assert.assertFalse("Admin of the default domain is not special within a tenant",
+                tenantDomain.isProtected(AuthenticationUtil.getAdminUserName()));
+        Assert.assertFalse("Tenant admin is not special within the default domain",
+                defaultDomain.isProtected(AuthenticationUtil.getAdminUserName() + "@acme.com"));
+        Assert.assertSame(tenantDomain, TenantUtil.runAsTenant(() -> this.resolver.getProtectedAuthorities(), "acme.com"));
+    }
+
+    @Test
+    public void allTenantsInvalidated()
+    {
+        final ProtectedAuthorities defaultDomain = this.resolver.getProtectedAuthorities();
+        final ProtectedAuthorities tenantDomain = TenantUtil.runAsTenant(() -> this.resolver.getProtectedAuthorities(), "acme.com");
+
+        this.resolver.invalidate();
+
+        Assert.assertNotSame(defaultDomain, this.resolver.getProtectedAuthorities());
+        Assert.assertNotSame(tenantDomain, TenantUtil.runAsTenant(() -> this.resolver.getProtectedAuthorities(), "acme.com"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryAttributeService;
+
+/**
+ * @author Axel Faust
+ */
+public class QueryShardStoreTest
+{
+
+    private static final String RUN_KEY = "1514764800000|2|PERSON_AUDIT|true|DAYS|90|acosix-audit-activeUsers||||";
+
+    private AttributeService attributeService;
+
+    private QueryShardStore store;
+
+    @Before
+    public void setUp()
+    {
+        this.attributeService = new InMemoryAttributeService().asService();
+        this.store = new QueryShardStore(this.attributeService, "DeauthoriseInactiveUsersJob");
+    }
+
+    @Test
+    public void combinedOnlyOnceAllShardsPublished()
+    {
+        this.store.save(RUN_KEY, new QueryShardResult(1, users("mmustermann")));
+        Assert.assertFalse(this.store.isCompleted(RUN_KEY, 0));
+        Assert.assertTrue(this.store.isCompleted(RUN_KEY, 1));
+        Assert.assertNull("Results must not be combined while a shard is missing", this.store.loadAll(RUN_KEY, 2));
+
+        this.store.save(RUN_KEY, new QueryShardResult(0, users("jdoe", "asmith")));
+        final DeauthorisationWorkSet combined = this.store.loadAll(RUN_KEY, 2);
+        Assert.assertNotNull(combined);
+
+        final List<String> userNames = new ArrayList<>();
+        combined.forEach(user -> userNames.add(user.getUserName()));
+        Collections.sort(userNames);
+        Assert.assertEquals(Arrays.asList("asmith", "jdoe", "mmustermann"), userNames);
+        Assert.assertEquals(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "jdoe-person"),
+                combined.getPersonRef(indexOf(combined, "jdoe")));
+    }
+
+    @Test
+    public void emptyShardCountsAsPublished()
+    {
+        this.store.save(RUN_KEY, new QueryShardResult(0, Collections.<DeauthorisationUserInfo> emptyList()));
+        Assert.assertTrue(this.store.isCompleted(RUN_KEY, 0));
+        Assert.assertEquals(0, this.store.loadAll(RUN_KEY, 1).size());
+    }
+
+    @Test
+    public void resultsSeparatedByRunAndStore()
+    {
+        final QueryShardStore tenantStore = new QueryShardStore(this.attributeService, "DeauthoriseInactiveUsersJob@tenant");
+        final String otherRunKey = "1514851200000" + RUN_KEY.substring(RUN_KEY.indexOf('|'));
+
+        this.store.save(RUN_KEY, new QueryShardResult(0, users("jdoe")));
+
+        Assert.assertFalse("Result of previous run must not be used", this.store.isCompleted(otherRunKey, 0));
+        Assert.assertFalse("Result of other store must not be used", tenantStore.isCompleted(RUN_KEY, 0));
+
+        tenantStore.save(RUN_KEY, new QueryShardResult(0, users("tenant-user")));
+        tenantStore.clear();
+        Assert.assertFalse(tenantStore.isCompleted(RUN_KEY, 0));
+        Assert.assertTrue("Clearing a store must not affect other stores", this.store.isCompleted(RUN_KEY, 0));
+    }
+
+    protected static List<DeauthorisationUserInfo> users(final String... userNames)
+    {
+        final List<DeauthorisationUserInfo> users = new ArrayList<>();
+        for (final String userName : userNames)
+        {
+            users.add(new DeauthorisationUserInfo(userName, new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, userName + "-person"),
+                    null));
+        }
+        return users;
+    }
+
+    protected static int indexOf(final DeauthorisationWorkSet workSet, final String userName)
+    {
+        int index = -1;
+        for (int idx = 0; idx < workSet.size() && index == -1; idx++)
+        {
+            if (userName.equals(workSet.getUserName(idx)))
+            {
+                index = idx;
+            }
+        }
+        return index;
+    }
+}
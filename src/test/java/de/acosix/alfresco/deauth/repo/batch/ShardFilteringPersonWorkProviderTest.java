@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class ShardFilteringPersonWorkProviderTest
+{
+
+    private static final int PERSONS = 60;
+
+    private static final int PAGE_SIZE = 7;
+
+    private NodeService nodeService;
+
+    private final List<NodeRef> persons = new ArrayList<>();
+
+    @Before
+    public void setUp()
+    {
+        this.nodeService = new InMemoryNodeService().asService();
+        for (int idx = 0; idx < PERSONS; idx++)
+        {
+            final NodeRef person = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "person-" + idx);
+            this.nodeService.setProperty(person, ContentModel.PROP_USERNAME, "User" + idx);
+            this.persons.add(person);
+        }
+    }
+
+    @Test
+    public void shardOfUserIgnoresCase()
+    {
+        for (int idx = 0; idx < PERSONS; idx++)
+        {
+            final int shard = ShardFilteringPersonWorkProvider.determineShard("User" + idx, 4);
+            Assert.assertTrue("Shard out of range: " + shard, shard >= 0 && shard < 4);
+            Assert.assertEquals(shard, ShardFilteringPersonWorkProvider.determineShard("user" + idx, 4));
+            Assert.assertEquals(shard, ShardFilteringPersonWorkProvider.determineShard("USER" + idx, 4));
+        }
+        Assert.assertEquals(0, ShardFilteringPersonWorkProvider.determineShard("jdoe", 1));
+    }
+
+    @Test
+    public void shardsPartitionAllPersons()
+    {
+        final int shards = 3;
+        final Set<NodeRef> covered = new HashSet<>();
+        for (int shard = 0; shard < shards; shard++)
+        {
+            final List<NodeRef> shardPersons = this.readAll(new ShardFilteringPersonWorkProvider(
+                    new CollectionWrappingWorkProvider<>(this.persons, PAGE_SIZE), this.nodeService, shard, shards));
+            Assert.assertFalse("Shard " + shard + " should not be empty for " + PERSONS + " persons", shardPersons.isEmpty());
+            for (final NodeRef person : shardPersons)
+            {
+                final String userName = (String) this.nodeService.getProperty(person, ContentModel.PROP_USERNAME);
+                Assert.assertEquals(shard, ShardFilteringPersonWorkProvider.determineShard(userName, shards));
+                Assert.assertTrue("Person " + person + " provided by more than one shard", covered.add(person));
+            }
+        }
+        Assert.assertEquals("Every person must be provided by exactly one shard", new HashSet<>(this.persons), covered);
+    }
+
+    @Test
+    public void estimatedWorkSizeSplitAcrossShards()
+    {
+        final ShardFilteringPersonWorkProvider provider = new ShardFilteringPersonWorkProvider(
+                new CollectionWrappingWorkProvider<>(this.persons, PAGE_SIZE), this.nodeService, 1, 7);
+        Assert.assertEquals((PERSONS + 6) / 7, provider.getTotalEstimatedWorkSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardOutOfRangeRejected()
+    {
+        new ShardFilteringPersonWorkProvider(new CollectionWrappingWorkProvider<>(this.persons, PAGE_SIZE), this.nodeService, 3, 3);
+    }
+
+    protected List<NodeRef> readAll(final BatchProcessWorkProvider<NodeRef> provider)
+    {
+        final List<NodeRef> result = new ArrayList<>();
+        Collection<NodeRef> work = provider.getNextWork();
+        while (!work.isEmpty())
+        {
+            result.addAll(work);
+            work = provider.getNextWork();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.acosix.alfresco.utility.repo.batch.CollectionWrappingWorkProvider;
+
+/**
+ * @author Axel Faust
+ */
+public class StoppingWorkProviderTest
+{
+
+    @Test
+    public void allWorkProvidedIfConditionNeverMet()
+    {
+        final StoppingWorkProvider<Integer> provider = new StoppingWorkProvider<>(new CollectionWrappingWorkProvider<>(numbers(10), 3),
+                () -> false);
+
+        Assert.assertEquals(numbers(10), drain(provider));
+        Assert.assertFalse(provider.isStopped());
+    }
+
+    @Test
+    public void noFurtherWorkOnceConditionMet()
+    {
+        final AtomicInteger found = new AtomicInteger(0);
+        final StoppingWorkProvider<Integer> provider = new StoppingWorkProvider<>(new CollectionWrappingWorkProvider<>(numbers(10), 3),
+                () -> found.get() >= 4);
+
+        final List<Integer> provided = new ArrayList<>();
+        Collection<Integer> work = provider.getNextWork();
+        while (!work.isEmpty())
+        {
+            provided.addAll(work);
+            // simulates a worker finding results in each processed page
+            found.addAndGet(work.size());
+            work = provider.getNextWork();
+        }
+
+        // condition is only checked before each page, so the page meeting it is processed in full
+        Assert.assertEquals(numbers(6), provided);
+        Assert.assertTrue(provider.isStopped());
+        Assert.assertTrue("Provider must remain stopped", provider.getNextWork().isEmpty());
+    }
+
+    @Test
+    public void stoppedBeforeFirstPage()
+    {
+        final AtomicInteger delegateCalls = new AtomicInteger(0);
+        final BatchProcessWorkProvider<Integer> delegate = new BatchProcessWorkProvider<Integer>()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public int getTotalEstimatedWorkSize()
+            {
+                return 5;
+            }
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public Collection<Integer> getNextWork()
+            {
+                delegateCalls.incrementAndGet();
+                return numbers(5);
+            }
+        };
+        final StoppingWorkProvider<Integer> provider = new StoppingWorkProvider<>(delegate, () -> true);
+
+        Assert.assertTrue(drain(provider).isEmpty());
+        Assert.assertEquals("Delegate must not be asked for work once stopped", 0, delegateCalls.get());
+    }
+
+    protected static List<Integer> numbers(final int count)
+    {
+        final List<Integer> numbers = new ArrayList<>();
+        for (int idx = 0; idx < count; idx++)
+        {
+            numbers.add(Integer.valueOf(idx));
+        }
+        return numbers;
+    }
+
+    protected static List<Integer> drain(final StoppingWorkProvider<Integer> provider)
+    {
+        final List<Integer> provided = new ArrayList<>();
+        Collection<Integer> work = provider.getNextWork();
+        while (!work.isEmpty())
+        {
+            provided.addAll(work);
+            work = provider.getNextWork();
+        }
+        return provided;
+    }
+}
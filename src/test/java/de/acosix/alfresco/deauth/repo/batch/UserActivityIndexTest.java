@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.batch;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class UserActivityIndexTest
+{
+
+    private UserActivityIndex index;
+
+    @Before
+    public void setUp()
+    {
+        this.index = new UserActivityIndex("key", 1000);
+        this.index.recordActivity("old", 1500);
+        this.index.recordActivity("middle", 2500);
+        this.index.recordActivity("recent", 3500);
+    }
+
+    @Test
+    public void recordActivityRetainsMostRecent()
+    {
+        this.index.recordActivity("middle", 2000);
+        Assert.assertEquals(Long.valueOf(2500), this.index.getLastActivity("middle"));
+
+        this.index.recordActivity("MIDDLE", 3000);
+        Assert.assertEquals("User names should be case-insensitive", Long.valueOf(3000), this.index.getLastActivity("Middle"));
+        Assert.assertEquals(3, this.index.size());
+    }
+
+    @Test
+    public void pruneRemovesOlderActivity()
+    {
+        this.index.prune(2500);
+
+        Assert.assertEquals(2500, this.index.getCoveredFromTime());
+        Assert.assertNull(this.index.getLastActivity("old"));
+        Assert.assertEquals("Activity at the boundary should be retained", Long.valueOf(2500), this.index.getLastActivity("middle"));
+        Assert.assertEquals(Long.valueOf(3500), this.index.getLastActivity("recent"));
+        Assert.assertEquals(2, this.index.size());
+    }
+
+    @Test
+    public void pruneBeforeCoveredTimeIgnored()
+    {
+        this.index.prune(500);
+
+        Assert.assertEquals("Covered time must never be extended by pruning", 1000, this.index.getCoveredFromTime());
+        Assert.assertEquals(3, this.index.size());
+    }
+
+    @Test
+    public void compatibility()
+    {
+        Assert.assertTrue(this.index.isCompatible("key", 1000));
+        Assert.assertTrue(this.index.isCompatible("key", 2000));
+        Assert.assertFalse("Index does not cover earlier activity", this.index.isCompatible("key", 999));
+        Assert.assertFalse(this.index.isCompatible("otherKey", 2000));
+    }
+
+    @Test
+    public void copyIndependentAndRestricted()
+    {
+        this.index.updateHighestEntryId(42);
+        final UserActivityIndex copy = this.index.copy(2000);
+
+        Assert.assertEquals(2000, copy.getCoveredFromTime());
+        Assert.assertEquals(2, copy.size());
+        Assert.assertNull(copy.getLastActivity("old"));
+        Assert.assertEquals(Long.valueOf(42), copy.getHighestEntryId());
+
+        this.index.recordActivity("new", 4000);
+        Assert.assertNull("Copy must not be affected by updates of the original", copy.getLastActivity("new"));
+
+        Assert.assertEquals("Copy must not cover more than the original", 1000, this.index.copy(500).getCoveredFromTime());
+    }
+
+    @Test
+    public void highestEntryIdOnlyIncreases()
+    {
+        Assert.assertNull(this.index.getHighestEntryId());
+        this.index.updateHighestEntryId(10);
+        this.index.updateHighestEntryId(5);
+        Assert.assertEquals(Long.valueOf(10), this.index.getHighestEntryId());
+    }
+
+    @Test
+    public void serialisationRoundTrip() throws IOException, ClassNotFoundException
+    {
+        this.index.updateHighestEntryId(42);
+
+        final UserActivityIndex copy = DeauthorisationCheckpointTest.roundTrip(this.index);
+        Assert.assertEquals("key", copy.getConfigurationKey());
+        Assert.assertEquals(1000, copy.getCoveredFromTime());
+        Assert.assertEquals(Long.valueOf(42), copy.getHighestEntryId());
+        Assert.assertEquals(3, copy.size());
+        Assert.assertEquals(Long.valueOf(1500), copy.getLastActivity("old"));
+        Assert.assertEquals(Long.valueOf(2500), copy.getLastActivity("middle"));
+        Assert.assertEquals(Long.valueOf(3500), copy.getLastActivity("recent"));
+
+        // deserialised index must remain usable
+        copy.recordActivity("new", 4000);
+        Assert.assertEquals(Long.valueOf(4000), copy.getLastActivity("new"));
+    }
+
+    @Test
+    public void emptySerialisationRoundTrip() throws IOException, ClassNotFoundException
+    {
+        final UserActivityIndex copy = DeauthorisationCheckpointTest.roundTrip(new UserActivityIndex("key", 1000));
+        Assert.assertEquals(0, copy.size());
+        Assert.assertNull(copy.getHighestEntryId());
+    }
+}
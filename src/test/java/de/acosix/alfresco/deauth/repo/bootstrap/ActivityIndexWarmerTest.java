@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.bootstrap;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.audit.AuditQueryParameters;
+import org.alfresco.service.cmr.audit.AuditService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.AuditActivityScanner;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorities;
+import de.acosix.alfresco.deauth.repo.batch.ProtectedAuthorityResolver;
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAttributeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAuditService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+
+/**
+ * @author Axel Faust
+ */
+public class ActivityIndexWarmerTest
+{
+
+    private static final String APPLICATION = "test";
+
+    private static final String[] USERS = { "jdoe", "mmustermann", "guest-user" };
+
+    private static final int LOOK_BACK_DAYS = 365;
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final long now = System.currentTimeMillis();
+
+    private final AtomicInteger protectedAuthorityResolutions = new AtomicInteger(0);
+
+    // starting entry ID of each scan query - null for full scans
+    private final List<Long> scanFromIds = Collections.synchronizedList(new ArrayList<>());
+
+    private InMemoryAuditService auditService;
+
+    private AttributeService attributeService;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.auditService = new InMemoryAuditService(APPLICATION, USERS);
+        this.attributeService = new InMemoryAttributeService().asService();
+
+        // mmustermann only active before the look-back period
+        this.auditService.addEntry(1, this.now - 400 * DAY);
+        this.auditService.addEntry(0, this.now - 100 * DAY);
+        this.auditService.addEntry(0, this.now - 2 * DAY);
+    }
+
+    @After
+    public void tearDown()
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void noIndexBeforeWarming()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+
+        Assert.assertFalse(warmer.isReady());
+        Assert.assertNull(warmer.getCoveredFromTime());
+        Assert.assertNull(warmer.getIndex(this.newScanner(), this.now - 30 * DAY));
+    }
+
+    @Test
+    public void warmIndexCoversLookBackPeriod()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.warm();
+
+        Assert.assertTrue(warmer.isReady());
+        Assert.assertEquals("Protected authorities should have been resolved while warming", 1, this.protectedAuthorityResolutions.get());
+        final long coveredFrom = warmer.getCoveredFromTime().longValue();
+        Assert.assertTrue(coveredFrom >= this.now - LOOK_BACK_DAYS * DAY);
+        Assert.assertTrue(coveredFrom <= System.currentTimeMillis() - LOOK_BACK_DAYS * DAY);
+
+        final UserActivityIndex index = warmer.getIndex(this.newScanner(), this.now - 200 * DAY);
+        Assert.assertNotNull(index);
+        Assert.assertEquals(Long.valueOf(this.now - 2 * DAY), index.getLastActivity("jdoe"));
+        Assert.assertNull("Activity before the look-back period must not be included", index.getLastActivity("mmustermann"));
+    }
+
+    @Test
+    public void indexRestrictedToRequestedTimeFrame()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.warm();
+
+        final UserActivityIndex index = warmer.getIndex(this.newScanner(), this.now - DAY);
+        Assert.assertNull("Activity before the requested time frame must not be included", index.getLastActivity("jdoe"));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void indexUpdatedOnUse()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.warm();
+        this.auditService.addEntry(2, System.currentTimeMillis());
+        this.scanFromIds.clear();
+
+        final UserActivityIndex index = warmer.getIndex(this.newScanner(), this.now - 30 * DAY);
+        Assert.assertNotNull("Activity recorded after warming must be included", index.getLastActivity("guest-user"));
+        Assert.assertFalse("Update must not scan all entries again", this.scanFromIds.contains(null));
+
+        // copies handed out must not be affected by later updates
+        this.auditService.addEntry(1, System.currentTimeMillis());
+        warmer.getIndex(this.newScanner(), this.now - 30 * DAY);
+        Assert.assertNull(index.getLastActivity("mmustermann"));
+    }
+
+    @Test
+    public void persistedIndexUpdatedIncrementally()
+    {
+        this.newWarmer().warm();
+        this.auditService.addEntry(2, System.currentTimeMillis());
+        this.scanFromIds.clear();
+
+        // e.g. after a restart
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.warm();
+
+        Assert.assertFalse("Persisted index must only be updated with new entries", this.scanFromIds.contains(null));
+        final UserActivityIndex index = warmer.getIndex(this.newScanner(), this.now - 30 * DAY);
+        Assert.assertNotNull(index.getLastActivity("jdoe"));
+        Assert.assertNotNull(index.getLastActivity("guest-user"));
+    }
+
+    @Test
+    public void incompatibleRequestsNotServed()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.warm();
+
+        Assert.assertNull("Time frame beyond the look-back period is not covered",
+                warmer.getIndex(this.newScanner(), this.now - 400 * DAY));
+
+        final AuditActivityScanner otherScanner = this.newScanner();
+        otherScanner.setDateAuditPath("/test/date");
+        Assert.assertNull("Index of a different configuration must not be used", warmer.getIndex(otherScanner, this.now - 30 * DAY));
+
+        Assert.assertNull("Index is only warmed for the default tenant",
+                TenantUtil.runAsTenant(() -> warmer.getIndex(this.newScanner(), this.now - 30 * DAY), "acme.com"));
+    }
+
+    @Test
+    public void failedWarmingTolerated()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.setStartupDelaySeconds(0);
+        warmer.setAuditService((AuditService) Proxy.newProxyInstance(AuditService.class.getClassLoader(),
+                new Class<?>[] { AuditService.class }, (proxy, method, args) -> {
+                    throw new IllegalStateException("Audit service unavailable");
+                }));
+
+        warmer.warmSafely();
+
+        Assert.assertFalse("Failure must leave callers on their regular logic", warmer.isReady());
+    }
+
+    @Test
+    public void disabledWarmerNotStarted()
+    {
+        final ActivityIndexWarmer warmer = new ActivityIndexWarmer();
+        warmer.afterPropertiesSet();
+        warmer.onBootstrap(null);
+
+        Assert.assertNull(warmer.warmingThread);
+        Assert.assertFalse(warmer.isReady());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalidLookBackRejected()
+    {
+        final ActivityIndexWarmer warmer = this.newWarmer();
+        warmer.setLookBackDays(0);
+        warmer.afterPropertiesSet();
+    }
+
+    protected ActivityIndexWarmer newWarmer()
+    {
+        final ProtectedAuthorityResolver resolver = new ProtectedAuthorityResolver()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public ProtectedAuthorities getProtectedAuthorities()
+            {
+                ActivityIndexWarmerTest.this.protectedAuthorityResolutions.incrementAndGet();
+                return new ProtectedAuthorities(Collections.<String> emptyList());
+            }
+        };
+
+        final ActivityIndexWarmer warmer = new ActivityIndexWarmer();
+        warmer.setEnabled(true);
+        warmer.setAuditService(this.scanRecordingAuditService());
+        warmer.setAttributeService(this.attributeService);
+        warmer.setTransactionService(InMemoryTransactionManager.createTransactionService(0));
+        warmer.setProtectedAuthorityResolver(resolver);
+        warmer.setAuditApplicationName(APPLICATION);
+        warmer.setLookBackDays(LOOK_BACK_DAYS);
+        warmer.afterPropertiesSet();
+        return warmer;
+    }
+
+    protected AuditActivityScanner newScanner()
+    {
+        return new AuditActivityScanner(APPLICATION, this.scanRecordingAuditService());
+    }
+
+    protected AuditService scanRecordingAuditService()
+    {
+        final AuditService delegate = this.auditService.asService();
+        return (AuditService) Proxy.newProxyInstance(AuditService.class.getClassLoader(), new Class<?>[] { AuditService.class },
+                (proxy, method, args) -> {
+                    if ("auditQuery".equals(method.getName()))
+                    {
+                        this.scanFromIds.add(((AuditQueryParameters) args[1]).getFromId());
+                    }
+                    return method.invoke(delegate, args);
+                });
+    }
+}
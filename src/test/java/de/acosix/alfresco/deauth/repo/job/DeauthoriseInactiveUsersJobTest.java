@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.tenant.TenantService;
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.JobExecutionContext;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthoriseInactiveUsersJobTest
+{
+
+    /**
+     * Job stand-in which simulates the deauthorisation in each tenant, recording the threads and concurrency of execution.
+     *
+     * @author Axel Faust
+     */
+    protected static class TenantRecordingJob extends DeauthoriseInactiveUsersJob
+    {
+
+        protected final int tenantThreads;
+
+        protected final long durationMillis;
+
+        protected final AtomicInteger running = new AtomicInteger(0);
+
+        protected final AtomicInteger maxRunning = new AtomicInteger(0);
+
+        protected final List<String> executedTenants = Collections.synchronizedList(new ArrayList<>());
+
+        protected final Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+
+        protected TenantRecordingJob(final int tenantThreads, final long durationMillis)
+        {
+            this.tenantThreads = tenantThreads;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected int getPositiveIntegerJobDataValue(final JobExecutionContext context, final String key, final int defaultValue,
+                final String description)
+        {
+            return "tenantThreads".equals(key) ? this.tenantThreads : defaultValue;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected Integer executeInTenantSafely(final JobExecutionContext context, final String tenantDomain)
+        {
+            this.threads.add(Thread.currentThread());
+            this.executedTenants.add(tenantDomain);
+            final int running = this.running.incrementAndGet();
+            this.maxRunning.accumulateAndGet(running, Math::max);
+            try
+            {
+                Thread.sleep(this.durationMillis);
+                return this.simulateDeauthorisation(tenantDomain);
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            finally
+            {
+                this.running.decrementAndGet();
+            }
+        }
+
+        protected Integer simulateDeauthorisation(final String tenantDomain)
+        {
+            // number of users deauthorised in each tenant derived from its name for easy verification
+            return Integer.valueOf(tenantDomain.length());
+        }
+    }
+
+    private static final List<String> TENANTS = Arrays.asList(TenantService.DEFAULT_DOMAIN, "acme.com", "example.org", "test.net",
+            "foo.de");
+
+    @Test
+    public void resultsCollectedInTenantOrder()
+    {
+        final TenantRecordingJob job = new TenantRecordingJob(2, 10);
+        final Map<String, Integer> deauthorisedByTenant = job.executeInTenantsConcurrently(null, TENANTS);
+
+        Assert.assertEquals(TENANTS, new ArrayList<>(deauthorisedByTenant.keySet()));
+        for (final String tenantDomain : TENANTS)
+        {
+            Assert.assertEquals(Integer.valueOf(tenantDomain.length()), deauthorisedByTenant.get(tenantDomain));
+        }
+    }
+
+    @Test
+    public void concurrencyBoundedByTenantThreads()
+    {
+        final TenantRecordingJob job = new TenantRecordingJob(2, 100);
+        job.executeInTenantsConcurrently(null, TENANTS);
+
+        Assert.assertEquals("Every tenant must have been processed exactly once", TENANTS.size(), job.executedTenants.size());
+        Assert.assertEquals(new HashSet<>(TENANTS), new HashSet<>(job.executedTenants));
+        Assert.assertEquals("Tenants should have been processed concurrently up to the configured limit", 2, job.maxRunning.get());
+        Assert.assertEquals(2, job.threads.size());
+    }
+
+    @Test
+    public void threadsLimitedByNumberOfTenants()
+    {
+        final TenantRecordingJob job = new TenantRecordingJob(8, 10);
+        job.executeInTenantsConcurrently(null, TENANTS.subList(0, 2));
+
+        Assert.assertTrue("No more threads than tenants should have been used", job.threads.size() <= 2);
+    }
+
+    @Test
+    public void failedAndSkippedTenantsOmitted()
+    {
+        final TenantRecordingJob job = new TenantRecordingJob(2, 10)
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected Integer simulateDeauthorisation(final String tenantDomain)
+            {
+                final Integer result;
+                if ("acme.com".equals(tenantDomain))
+                {
+                    throw new IllegalStateException("Unexpected failure in " + tenantDomain);
+                }
+                else if ("example.org".equals(tenantDomain))
+                {
+                    // e.g. job lock held by another node
+                    result = null;
+                }
+                else
+                {
+                    result = super.simulateDeauthorisation(tenantDomain);
+                }
+                return result;
+            }
+        };
+        final Map<String, Integer> deauthorisedByTenant = job.executeInTenantsConcurrently(null, TENANTS);
+
+        Assert.assertEquals("Failure in one tenant must not affect the others",
+                Arrays.asList(TenantService.DEFAULT_DOMAIN, "test.net", "foo.de"), new ArrayList<>(deauthorisedByTenant.keySet()));
+    }
+
+    @Test
+    public void tenantThreadsTerminated() throws InterruptedException
+    {
+        final TenantRecordingJob job = new TenantRecordingJob(3, 10);
+        job.executeInTenantsConcurrently(null, TENANTS);
+
+        final List<Thread> threads = new ArrayList<>(job.threads);
+        for (final Thread thread : threads)
+        {
+            thread.join(5000);
+            Assert.assertFalse("Tenant thread " + thread.getName() + " must have been terminated", thread.isAlive());
+            Assert.assertTrue(thread.isDaemon());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class DefaultMetricsRegistryTest
+{
+
+    @Test
+    public void countersAccumulated()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 5);
+        registry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 3);
+        registry.increment(DeauthorisationMetrics.DEAUTHORISATION_USERS_DEAUTHORISED, 1);
+
+        final Map<String, Long> counters = registry.getCounters();
+        Assert.assertEquals(Long.valueOf(8), counters.get(DeauthorisationMetrics.QUERY_PERSONS_SCANNED));
+        Assert.assertEquals(Long.valueOf(1), counters.get(DeauthorisationMetrics.DEAUTHORISATION_USERS_DEAUTHORISED));
+        Assert.assertEquals("Counters must be ordered by name",
+                Arrays.asList(DeauthorisationMetrics.DEAUTHORISATION_USERS_DEAUTHORISED, DeauthorisationMetrics.QUERY_PERSONS_SCANNED),
+                new ArrayList<>(counters.keySet()));
+    }
+
+    @Test
+    public void gaugesOverwritten()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.setGauge(DeauthorisationMetrics.PIPELINE_QUEUE_DEPTH, 100);
+        registry.setGauge(DeauthorisationMetrics.PIPELINE_QUEUE_DEPTH, 20);
+
+        Assert.assertEquals(Long.valueOf(20), registry.getGauges().get(DeauthorisationMetrics.PIPELINE_QUEUE_DEPTH));
+    }
+
+    @Test
+    public void timerStatisticsApproximated()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        for (int idx = 0; idx < 90; idx++)
+        {
+            registry.recordDuration(DeauthorisationMetrics.AUTHORISATION_CHECK, TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        for (int idx = 0; idx < 10; idx++)
+        {
+            registry.recordDuration(DeauthorisationMetrics.AUTHORISATION_CHECK, TimeUnit.MICROSECONDS.toNanos(10000));
+        }
+
+        final List<TimerStatistics> timers = registry.getTimers();
+        Assert.assertEquals(1, timers.size());
+        final TimerStatistics timer = timers.get(0);
+        Assert.assertEquals(DeauthorisationMetrics.AUTHORISATION_CHECK, timer.getName());
+        Assert.assertEquals(100, timer.getCount());
+        Assert.assertEquals(109000, timer.getTotalMicros());
+        Assert.assertEquals(1090, timer.getMeanMicros());
+        Assert.assertEquals(10000, timer.getMaxMicros());
+        // percentiles are reported as the upper bound of the power-of-two bucket containing them, capped by the maximum
+        Assert.assertEquals(127, timer.getP50Micros());
+        Assert.assertEquals(10000, timer.getP95Micros());
+        Assert.assertEquals(10000, timer.getP99Micros());
+    }
+
+    @Test
+    public void negativeDurationsRecordedAsZero()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        // e.g. clock adjustments when durations are derived from wall-clock time
+        registry.recordDuration(DeauthorisationMetrics.AUTHORISATION_CHECK, -5000);
+
+        final TimerStatistics timer = registry.getTimers().get(0);
+        Assert.assertEquals(1, timer.getCount());
+        Assert.assertEquals(0, timer.getTotalMicros());
+        Assert.assertEquals(0, timer.getP99Micros());
+    }
+
+    @Test
+    public void resetDiscardsAllMetrics()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 1);
+        registry.setGauge(DeauthorisationMetrics.WORK_LIST_USERS, 1);
+        registry.recordDuration(DeauthorisationMetrics.QUERY_PHASE, 1);
+
+        registry.reset();
+
+        Assert.assertTrue(registry.getCounters().isEmpty());
+        Assert.assertTrue(registry.getGauges().isEmpty());
+        Assert.assertTrue(registry.getTimers().isEmpty());
+    }
+
+    @Test
+    public void metricsExposedViaJmx() throws Exception
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 42);
+        registry.recordDuration(DeauthorisationMetrics.QUERY_PHASE, TimeUnit.MILLISECONDS.toNanos(1));
+
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final ObjectName name = new ObjectName("Alfresco:Type=Configuration,Category=test,Name=Metrics");
+        server.registerMBean(registry, name);
+
+        final TabularData counters = (TabularData) server.getAttribute(name, "Counters");
+        final CompositeData counter = counters.get(new Object[] { DeauthorisationMetrics.QUERY_PERSONS_SCANNED });
+        Assert.assertNotNull(counter);
+        Assert.assertEquals(Long.valueOf(42), counter.get("value"));
+
+        final CompositeData[] timers = (CompositeData[]) server.getAttribute(name, "Timers");
+        Assert.assertEquals(1, timers.length);
+        Assert.assertEquals(DeauthorisationMetrics.QUERY_PHASE, timers[0].get("name"));
+        Assert.assertEquals(Long.valueOf(1000), timers[0].get("totalMicros"));
+
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        Assert.assertTrue(registry.getCounters().isEmpty());
+    }
+}
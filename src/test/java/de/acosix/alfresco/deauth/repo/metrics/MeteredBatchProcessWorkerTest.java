@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationWorkSet;
+
+/**
+ * @author Axel Faust
+ */
+public class MeteredBatchProcessWorkerTest
+{
+
+    private static final String COUNT_METRIC = DeauthorisationMetrics.QUERY_PERSONS_SCANNED;
+
+    private static final String DURATION_METRIC = DeauthorisationMetrics.QUERY_PERSON_EVALUATION;
+
+    @Test
+    public void processingMeteredPerEntry() throws Throwable
+    {
+        final List<String> calls = new ArrayList<>();
+        final RunMetricsRegistry registry = new RunMetricsRegistry(new DefaultMetricsRegistry(), 10);
+        final MeteredBatchProcessWorker<String> worker = new MeteredBatchProcessWorker<>(recordingWorker(calls, null), registry,
+                COUNT_METRIC, DURATION_METRIC);
+
+        worker.beforeProcess();
+        worker.process("jdoe");
+        worker.process("mmustermann");
+        worker.afterProcess();
+
+        Assert.assertEquals("All calls must be passed on", Arrays.asList("before", "process:jdoe", "process:mmustermann", "after"),
+                calls);
+        Assert.assertEquals(Long.valueOf(2), registry.getCounters().get(COUNT_METRIC));
+        Assert.assertEquals(2, registry.getOperations().get(0).getCount());
+        Assert.assertEquals(DURATION_METRIC, registry.getOperations().get(0).getName());
+
+        final List<String> subjects = new ArrayList<>();
+        for (final RunMetricsRegistry.SlowOperation operation : registry.getSlowestOperations())
+        {
+            subjects.add(operation.getSubject());
+        }
+        Collections.sort(subjects);
+        Assert.assertEquals("Durations must be recorded for the identifier of the entry", Arrays.asList("id-jdoe", "id-mmustermann"),
+                subjects);
+    }
+
+    @Test
+    public void failedEntriesMetered()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        final MeteredBatchProcessWorker<String> worker = new MeteredBatchProcessWorker<>(
+                recordingWorker(new ArrayList<>(), "jdoe"), registry, COUNT_METRIC, DURATION_METRIC);
+
+        try
+        {
+            worker.process("jdoe");
+            Assert.fail("Failure of the delegate must be propagated");
+        }
+        catch (final Throwable expected)
+        {
+            Assert.assertTrue(expected instanceof IllegalStateException);
+        }
+
+        Assert.assertEquals(Long.valueOf(1), registry.getCounters().get(COUNT_METRIC));
+        Assert.assertEquals(1, registry.getTimers().get(0).getCount());
+    }
+
+    @Test
+    public void queryPhaseThroughputRecorded()
+    {
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        DeauthorisationMetrics.recordQueryPhase(registry, 5000, 2_000_000_000L);
+
+        Assert.assertEquals(Long.valueOf(2500), registry.getGauges().get(DeauthorisationMetrics.QUERY_PERSONS_PER_SECOND));
+        Assert.assertEquals(2_000_000, registry.getTimers().get(0).getTotalMicros());
+
+        // phases faster than a millisecond must not divide by zero
+        DeauthorisationMetrics.recordQueryPhase(registry, 10, 1000);
+        Assert.assertEquals(Long.valueOf(10000), registry.getGauges().get(DeauthorisationMetrics.QUERY_PERSONS_PER_SECOND));
+    }
+
+    @Test
+    public void workListSizeRecorded()
+    {
+        final List<DeauthorisationUserInfo> work = new ArrayList<>();
+        work.add(new DeauthorisationUserInfo("jdoe", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "jdoe"), null));
+        work.add(new DeauthorisationUserInfo("mmustermann", new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "mmustermann"), null));
+
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        DeauthorisationMetrics.recordWorkList(registry, work);
+
+        Assert.assertEquals(Long.valueOf(2), registry.getGauges().get(DeauthorisationMetrics.WORK_LIST_USERS));
+        // average user name length of 7
+        Assert.assertEquals(Long.valueOf(DeauthorisationMetrics.estimateWorkListBytes(2, 7)),
+                registry.getGauges().get(DeauthorisationMetrics.WORK_LIST_ESTIMATED_BYTES));
+
+        final DeauthorisationWorkSet workSet = new DeauthorisationWorkSet.Builder().build();
+        DeauthorisationMetrics.recordWorkList(registry, workSet);
+        Assert.assertEquals(Long.valueOf(0), registry.getGauges().get(DeauthorisationMetrics.WORK_LIST_USERS));
+        Assert.assertEquals(Long.valueOf(workSet.estimateRetainedBytes()),
+                registry.getGauges().get(DeauthorisationMetrics.WORK_LIST_ESTIMATED_BYTES));
+    }
+
+    protected static BatchProcessWorker<String> recordingWorker(final List<String> calls, final String failingEntry)
+    {
+        return new BatchProcessWorker<String>()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public String getIdentifier(final String entry)
+            {
+                return "id-" + entry;
+            }
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void beforeProcess() throws Throwable
+            {
+                calls.add("before");
+            }
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void process(final String entry) throws Throwable
+            {
+                calls.add("process:" + entry);
+                if (entry.equals(failingEntry))
+                {
+                    throw new IllegalStateException("Failing on " + entry);
+                }
+            }
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public void afterProcess() throws Throwable
+            {
+                calls.add("after");
+            }
+        };
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.metrics.RunMetricsRegistry.SlowOperation;
+
+/**
+ * @author Axel Faust
+ */
+public class RunMetricsRegistryTest
+{
+
+    private static final String OPERATION = DeauthorisationMetrics.DEAUTHORISATION_DEAUTHORIZE_CALL;
+
+    private DefaultMetricsRegistry globalRegistry;
+
+    @Before
+    public void setUp()
+    {
+        this.globalRegistry = new DefaultMetricsRegistry();
+    }
+
+    @Test
+    public void metricsPassedOnToGlobalRegistry()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 5);
+        runRegistry.recordDuration(OPERATION, "jdoe", millis(3));
+        runRegistry.recordDuration(DeauthorisationMetrics.QUERY_PHASE, millis(100));
+        runRegistry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 42);
+        runRegistry.setGauge(DeauthorisationMetrics.WORK_LIST_USERS, 7);
+
+        Assert.assertEquals(Long.valueOf(42), this.globalRegistry.getCounters().get(DeauthorisationMetrics.QUERY_PERSONS_SCANNED));
+        Assert.assertEquals(Long.valueOf(7), this.globalRegistry.getGauges().get(DeauthorisationMetrics.WORK_LIST_USERS));
+        Assert.assertEquals(2, this.globalRegistry.getTimers().size());
+        Assert.assertEquals(Long.valueOf(42), runRegistry.getCounters().get(DeauthorisationMetrics.QUERY_PERSONS_SCANNED));
+    }
+
+    @Test
+    public void runMetricsIndependentOfGlobalRegistry()
+    {
+        // global registry accumulates metrics of previous runs
+        this.globalRegistry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 1000);
+
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 5);
+        runRegistry.increment(DeauthorisationMetrics.QUERY_PERSONS_SCANNED, 10);
+
+        Assert.assertEquals(Long.valueOf(10), runRegistry.getCounters().get(DeauthorisationMetrics.QUERY_PERSONS_SCANNED));
+        Assert.assertEquals(Long.valueOf(1010), this.globalRegistry.getCounters().get(DeauthorisationMetrics.QUERY_PERSONS_SCANNED));
+    }
+
+    @Test
+    public void phasesSeparatedFromOperations()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 5);
+        runRegistry.recordDuration(DeauthorisationMetrics.QUERY_PHASE, millis(1500));
+        runRegistry.recordDuration(DeauthorisationMetrics.DEAUTHORISATION_PHASE, millis(2500));
+        runRegistry.recordDuration(OPERATION, "jdoe", millis(3));
+        runRegistry.recordDuration(OPERATION, "mmustermann", millis(5));
+
+        final Map<String, Long> phaseMillis = runRegistry.getPhaseMillis();
+        Assert.assertEquals(2, phaseMillis.size());
+        Assert.assertEquals(Long.valueOf(1500), phaseMillis.get("query"));
+        Assert.assertEquals(Long.valueOf(2500), phaseMillis.get("deauthorisation"));
+
+        final List<TimerStatistics> operations = runRegistry.getOperations();
+        Assert.assertEquals(1, operations.size());
+        Assert.assertEquals(OPERATION, operations.get(0).getName());
+        Assert.assertEquals(2, operations.get(0).getCount());
+        Assert.assertEquals(8000, operations.get(0).getTotalMicros());
+    }
+
+    @Test
+    public void slowestOperationsRetainedUpToLimit()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 3);
+        final List<Integer> durations = Arrays.asList(4, 9, 1, 7, 3, 8, 2, 6, 5);
+        for (final Integer duration : durations)
+        {
+            runRegistry.recordDuration(OPERATION, "user" + duration, millis(duration.intValue()));
+        }
+
+        final List<SlowOperation> slowest = runRegistry.getSlowestOperations();
+        Assert.assertEquals(3, slowest.size());
+        Assert.assertEquals("user9", slowest.get(0).getSubject());
+        Assert.assertEquals("user8", slowest.get(1).getSubject());
+        Assert.assertEquals("user7", slowest.get(2).getSubject());
+        Assert.assertEquals(9000, slowest.get(0).getDurationMicros());
+        Assert.assertEquals(OPERATION, slowest.get(0).getOperation());
+
+        Assert.assertEquals("All operations must be included in the statistics", durations.size(),
+                runRegistry.getOperations().get(0).getCount());
+    }
+
+    @Test
+    public void operationsWithoutSubjectNotRetained()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 3);
+        runRegistry.recordDuration(OPERATION, millis(100));
+        runRegistry.recordDuration(OPERATION, null, millis(100));
+
+        Assert.assertTrue(runRegistry.getSlowestOperations().isEmpty());
+        Assert.assertEquals(2, runRegistry.getOperations().get(0).getCount());
+    }
+
+    @Test
+    public void noSlowOperationsRetainedWithoutLimit()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 0);
+        runRegistry.recordDuration(OPERATION, "jdoe", millis(100));
+
+        Assert.assertTrue(runRegistry.getSlowestOperations().isEmpty());
+    }
+
+    @Test
+    public void slowestOperationsRetainedUnderConcurrency() throws InterruptedException
+    {
+        final int limit = 10;
+        final int threads = 4;
+        final int operationsPerThread = 2500;
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, limit);
+
+        final List<Thread> workers = new ArrayList<>();
+        for (int threadIdx = 0; threadIdx < threads; threadIdx++)
+        {
+            final int offset = threadIdx;
+            workers.add(new Thread(() -> {
+                for (int idx = 0; idx < operationsPerThread; idx++)
+                {
+                    // unique durations interleaved between threads
+                    final long micros = idx * threads + offset;
+                    runRegistry.recordDuration(OPERATION, "user" + micros, TimeUnit.MICROSECONDS.toNanos(micros));
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (final Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        final List<Long> expected = new ArrayList<>();
+        for (long micros = threads * operationsPerThread - 1; expected.size() < limit; micros--)
+        {
+            expected.add(Long.valueOf(micros));
+        }
+        final List<Long> actual = new ArrayList<>();
+        for (final SlowOperation operation : runRegistry.getSlowestOperations())
+        {
+            actual.add(Long.valueOf(operation.getDurationMicros()));
+        }
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(threads * operationsPerThread, runRegistry.getOperations().get(0).getCount());
+    }
+
+    @Test
+    public void retriesDerivedFromRolledBackTransactions()
+    {
+        final RunMetricsRegistry runRegistry = new RunMetricsRegistry(this.globalRegistry, 0);
+        Assert.assertEquals(0, runRegistry.getRetries());
+
+        runRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_TXN_ROLLED_BACK, 2);
+        runRegistry.increment(DeauthorisationMetrics.DEAUTHORISATION_TXN_ROLLED_BACK, 1);
+        Assert.assertEquals(3, runRegistry.getRetries());
+        Assert.assertEquals(Collections.singleton(DeauthorisationMetrics.DEAUTHORISATION_TXN_ROLLED_BACK),
+                runRegistry.getCounters().keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitRejected()
+    {
+        new RunMetricsRegistry(this.globalRegistry, -1);
+    }
+
+    protected static long millis(final int millis)
+    {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
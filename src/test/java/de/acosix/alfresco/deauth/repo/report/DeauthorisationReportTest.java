@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.report;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.DeauthorisationUserInfo;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+import de.acosix.alfresco.deauth.repo.test.InMemoryNodeService;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationReportTest
+{
+
+    private NodeService nodeService;
+
+    private DeauthorisationUserInfo user;
+
+    private DeauthorisationReport report;
+
+    @Before
+    public void setUp()
+    {
+        this.nodeService = new InMemoryNodeService().asService();
+        final NodeRef personRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "jdoe");
+        this.nodeService.setProperty(personRef, ContentModel.PROP_USERNAME, "jdoe");
+        this.nodeService.setProperty(personRef, ContentModel.PROP_FIRSTNAME, "John \"Johnny\"");
+        this.nodeService.setProperty(personRef, ContentModel.PROP_LASTNAME, "Doe");
+        this.user = new DeauthorisationUserInfo("jdoe", personRef, null);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.report != null)
+        {
+            this.report.discard();
+        }
+    }
+
+    @Test
+    public void jsonReportSpooledAndEscaped() throws IOException
+    {
+        this.report = new DeauthorisationReport(ReportFormat.JSON, this.nodeService);
+        this.report.begin(10);
+        this.report.writeUsers(Arrays.asList(this.report.createRow(this.user)));
+        this.report.complete(9, 1);
+
+        final String content = this.readReport();
+        Assert.assertTrue(content.contains("\"authorisedBefore\": \"10\""));
+        Assert.assertTrue(content.contains("\"userName\": \"jdoe\""));
+        Assert.assertTrue("Quotes should be escaped", content.contains("\"firstName\": \"John \\\"Johnny\\\"\""));
+        Assert.assertTrue("Missing properties should be empty", content.contains("\"email\": \"\""));
+        Assert.assertTrue(content.contains("\"authorisedAfter\": \"9\""));
+        Assert.assertTrue(content.contains("\"count\": 1"));
+    }
+
+    @Test
+    public void csvReportSpooledAndEscaped() throws IOException
+    {
+        this.report = new DeauthorisationReport(ReportFormat.CSV, this.nodeService);
+        this.report.begin(10);
+        this.report.writeUsers(Arrays.asList(this.report.createRow(this.user)));
+        this.report.complete(9, 1);
+
+        final String[] lines = this.readReport().split("\n");
+        Assert.assertEquals("\"userName\",\"firstName\",\"lastName\",\"email\"", lines[0]);
+        Assert.assertEquals("\"jdoe\",\"John \"\"Johnny\"\"\",\"Doe\",\"\"", lines[1]);
+    }
+
+    @Test
+    public void byteAndCharacterContentMatch() throws IOException
+    {
+        this.report = new DeauthorisationReport(ReportFormat.JSON, this.nodeService);
+        this.report.begin(1);
+        this.report.writeUsers(Arrays.asList(this.report.createRow(this.user)));
+        this.report.complete(0, 1);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        this.report.writeTo(bos);
+        Assert.assertEquals(this.readReport(), new String(bos.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void incompleteReportNotReadable() throws IOException
+    {
+        this.report = new DeauthorisationReport(ReportFormat.JSON, this.nodeService);
+        this.report.begin(1);
+        this.readReport();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void completedReportNotWritable()
+    {
+        this.report = new DeauthorisationReport(ReportFormat.CSV, this.nodeService);
+        this.report.begin(1);
+        this.report.complete(1, 0);
+        this.report.writeUsers(Arrays.asList(this.report.createRow(this.user)));
+    }
+
+    @Test
+    public void discardRemovesSpoolFile()
+    {
+        this.report = new DeauthorisationReport(ReportFormat.CSV, this.nodeService);
+        this.report.begin(1);
+        Assert.assertTrue(this.report.file.exists());
+
+        this.report.discard();
+        Assert.assertFalse("Spool file should have been deleted", this.report.file.exists());
+    }
+
+    protected String readReport() throws IOException
+    {
+        final StringWriter writer = new StringWriter();
+        this.report.writeTo(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+
+/**
+ * Instances of this class provide an in-memory stand-in for the {@link AttributeService}. Like the actual service, at most three keys are
+ * supported per attribute, and values are stored / retrieved as serialised copies so that changes to an object after it has been stored
+ * do not affect the stored attribute. Operations not used by this module are not supported.
+ *
+ * @author Axel Faust
+ */
+public class InMemoryAttributeService implements InvocationHandler
+{
+
+    protected static final int MAX_KEYS = 3;
+
+    protected final Map<List<Serializable>, byte[]> attributes = new LinkedHashMap<>();
+
+    protected long nextId = 1;
+
+    protected final Map<List<Serializable>, Long> ids = new LinkedHashMap<>();
+
+    /**
+     * @return the proxy implementing the service interface
+     */
+    public AttributeService asService()
+    {
+        return (AttributeService) Proxy.newProxyInstance(AttributeService.class.getClassLoader(), new Class<?>[] { AttributeService.class },
+                this);
+    }
+
+    /**
+     * @return the number of stored attributes
+     */
+    public synchronized int size()
+    {
+        return this.attributes.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        final Object result;
+        if (method.getDeclaringClass() == Object.class)
+        {
+            result = method.invoke(this, args);
+        }
+        else
+        {
+            switch (method.getName())
+            {
+                case "exists":
+                    result = Boolean.valueOf(this.getAttribute((Serializable[]) args[0]) != null);
+                    break;
+                case "getAttribute":
+                    result = this.getAttribute((Serializable[]) args[0]);
+                    break;
+                case "setAttribute":
+                    this.setAttribute((Serializable) args[0], (Serializable[]) args[1]);
+                    result = null;
+                    break;
+                case "removeAttribute":
+                    this.removeAttribute((Serializable[]) args[0]);
+                    result = null;
+                    break;
+                case "removeAttributes":
+                    this.removeAttributes((Serializable[]) args[0]);
+                    result = null;
+                    break;
+                case "getAttributes":
+                    this.getAttributes((AttributeQueryCallback) args[0], (Serializable[]) args[1]);
+                    result = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Operation not supported by in-memory stand-in: " + method);
+            }
+        }
+        return result;
+    }
+
+    protected synchronized Serializable getAttribute(final Serializable[] keys)
+    {
+        final byte[] value = this.attributes.get(toKey(keys));
+        return value != null ? deserialise(value) : null;
+    }
+
+    protected synchronized void setAttribute(final Serializable value, final Serializable[] keys)
+    {
+        final List<Serializable> key = toKey(keys);
+        this.attributes.put(key, serialise(value));
+        this.ids.computeIfAbsent(key, k -> Long.valueOf(this.nextId++));
+    }
+
+    protected synchronized void removeAttribute(final Serializable[] keys)
+    {
+        final List<Serializable> key = toKey(keys);
+        this.attributes.remove(key);
+        this.ids.remove(key);
+    }
+
+    protected synchronized void removeAttributes(final Serializable[] keys)
+    {
+        for (final List<Serializable> key : this.findKeys(keys))
+        {
+            this.attributes.remove(key);
+            this.ids.remove(key);
+        }
+    }
+
+    protected void getAttributes(final AttributeQueryCallback callback, final Serializable[] keys)
+    {
+        final Map<List<Serializable>, Serializable> matches = new LinkedHashMap<>();
+        final Map<List<Serializable>, Long> matchIds = new LinkedHashMap<>();
+        synchronized (this)
+        {
+            for (final List<Serializable> key : this.findKeys(keys))
+            {
+                matches.put(key, deserialise(this.attributes.get(key)));
+                matchIds.put(key, this.ids.get(key));
+            }
+        }
+
+        // callback may modify attributes, so it must be called on a copy
+        for (final Entry<List<Serializable>, Serializable> match : matches.entrySet())
+        {
+            final boolean proceed = callback.handleAttribute(matchIds.get(match.getKey()), match.getValue(),
+                    match.getKey().toArray(new Serializable[MAX_KEYS]));
+            if (!proceed)
+            {
+                break;
+            }
+        }
+    }
+
+    protected List<List<Serializable>> findKeys(final Serializable[] keys)
+    {
+        if (keys.length > MAX_KEYS)
+        {
+            throw new IllegalArgumentException("A maximum of " + MAX_KEYS + " keys is supported: " + Arrays.asList(keys));
+        }
+
+        final List<List<Serializable>> matches = new ArrayList<>();
+        for (final List<Serializable> key : this.attributes.keySet())
+        {
+            if (key.subList(0, keys.length).equals(Arrays.asList(keys)))
+            {
+                matches.add(key);
+            }
+        }
+        return matches;
+    }
+
+    protected static List<Serializable> toKey(final Serializable[] keys)
+    {
+        if (keys.length == 0 || keys.length > MAX_KEYS)
+        {
+            throw new IllegalArgumentException("Between 1 and " + MAX_KEYS + " keys are supported: " + Arrays.asList(keys));
+        }
+        return Arrays.asList(Arrays.copyOf(keys, MAX_KEYS));
+    }
+
+    protected static byte[] serialise(final Serializable value)
+    {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos))
+        {
+            oos.writeObject(value);
+        }
+        catch (final IOException ioex)
+        {
+            throw new IllegalArgumentException("Attribute value cannot be serialised", ioex);
+        }
+        return bos.toByteArray();
+    }
+
+    protected static Serializable deserialise(final byte[] value)
+    {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(value)))
+        {
+            return (Serializable) ois.readObject();
+        }
+        catch (final IOException | ClassNotFoundException ex)
+        {
+            throw new IllegalStateException("Attribute value cannot be deserialised", ex);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.test;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.service.cmr.audit.AuditQueryParameters;
+import org.alfresco.service.cmr.audit.AuditService;
+import org.alfresco.service.cmr.audit.AuditService.AuditQueryCallback;
+
+/**
+ * Instances of this class provide an in-memory stand-in for the {@link AuditService} holding the entries of a single audit application with
+ * the user recorded as the user of each entry. Entries are kept in compact arrays in order of their IDs (starting with {@code 1}) so that
+ * millions of entries can be held, and only queries by ID / time range and by user (as run by the activity scanner, probes and person audit
+ * queries without a user audit path) are supported. Entries may carry audit values and may be recorded as uncommitted, i.e. invisible to
+ * queries until they are committed, to simulate entries with lower IDs committing after entries with higher IDs. Operations of the service
+ * not used by this module are not supported.
+ *
+ * @author Axel Faust
+ */
+public class InMemoryAuditService implements InvocationHandler
+{
+
+    protected final String applicationName;
+
+    protected final String[] userNames;
+
+    protected int[] entryUsers = new int[1024];
+
+    protected long[] entryTimes = new long[1024];
+
+    protected int size = 0;
+
+    protected final Map<Integer, Map<String, Serializable>> entryValues = new HashMap<>();
+
+    protected final BitSet uncommitted = new BitSet();
+
+    protected Map<String, int[]> entriesByUser;
+
+    public InMemoryAuditService(final String applicationName, final String[] userNames)
+    {
+        this.applicationName = applicationName;
+        this.userNames = userNames.clone();
+    }
+
+    /**
+     * @return the proxy implementing the service interface
+     */
+    public AuditService asService()
+    {
+        return (AuditService) Proxy.newProxyInstance(AuditService.class.getClassLoader(), new Class<?>[] { AuditService.class }, this);
+    }
+
+    /**
+     * Records an audit entry. Entries must be recorded in order of their time.
+     *
+     * @param userIndex
+     *            the index of the user of the entry in the user names this instance was created with
+     * @param time
+     *            the time of the entry
+     * @return the ID of the entry
+     */
+    public long addEntry(final int userIndex, final long time)
+    {
+        return this.addEntry(userIndex, time, null, true);
+    }
+
+    /**
+     * Records an audit entry. Entries must be recorded in order of their time.
+     *
+     * @param userIndex
+     *            the index of the user of the entry in the user names this instance was created with
+     * @param time
+     *            the time of the entry
+     * @param values
+     *            the audit values of the entry
+     * @param committed
+     *            {@code true} if the entry should be visible to queries immediately, {@code false} if it only becomes visible once
+     *            {@link #commitEntry(long) committed}
+     * @return the ID of the entry
+     */
+    public synchronized long addEntry(final int userIndex, final long time, final Map<String, Serializable> values,
+            final boolean committed)
+    {
+        if (this.size == this.entryUsers.length)
+        {
+            this.entryUsers = Arrays.copyOf(this.entryUsers, this.size * 2);
+            this.entryTimes = Arrays.copyOf(this.entryTimes, this.size * 2);
+        }
+        final int entryIdx = this.size;
+        this.entryUsers[entryIdx] = userIndex;
+        this.entryTimes[entryIdx] = time;
+        if (values != null)
+        {
+            this.entryValues.put(Integer.valueOf(entryIdx), new HashMap<>(values));
+        }
+        if (!committed)
+        {
+            this.uncommitted.set(entryIdx);
+        }
+        this.size++;
+        this.entriesByUser = null;
+        return entryIdx + 1;
+    }
+
+    /**
+     * Commits an audit entry previously recorded as uncommitted, making it visible to queries.
+     *
+     * @param entryId
+     *            the ID of the entry
+     */
+    public synchronized void commitEntry(final long entryId)
+    {
+        this.uncommitted.clear((int) entryId - 1);
+    }
+
+    /**
+     * @return the number of recorded entries
+     */
+    public synchronized int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        final Object result;
+        if (method.getDeclaringClass() == Object.class)
+        {
+            result = method.invoke(this, args);
+        }
+        else if ("auditQuery".equals(method.getName()) && args.length == 3)
+        {
+            this.auditQuery((AuditQueryCallback) args[0], (AuditQueryParameters) args[1], ((Integer) args[2]).intValue());
+            result = null;
+        }
+        else
+        {
+            throw new UnsupportedOperationException("Operation not supported by in-memory stand-in: " + method);
+        }
+        return result;
+    }
+
+    protected synchronized void auditQuery(final AuditQueryCallback callback, final AuditQueryParameters parameters, final int maxResults)
+    {
+        if (!parameters.getSearchKeyValues().isEmpty())
+        {
+            throw new UnsupportedOperationException("Queries by search keys are not supported by in-memory stand-in: " + parameters);
+        }
+        if (parameters.getApplicationName() != null && !this.applicationName.equals(parameters.getApplicationName()))
+        {
+            return;
+        }
+
+        final int[] candidates;
+        if (parameters.getUser() != null)
+        {
+            candidates = this.getEntriesByUser().getOrDefault(parameters.getUser(), new int[0]);
+        }
+        else
+        {
+            candidates = null;
+        }
+        final int candidateCount = candidates != null ? candidates.length : this.size;
+
+        int results = 0;
+        for (int step = 0; step < candidateCount && (maxResults <= 0 || results < maxResults); step++)
+        {
+            final int ordinal = parameters.isForward() ? step : candidateCount - 1 - step;
+            final int entryIdx = candidates != null ? candidates[ordinal] : ordinal;
+            final long entryId = entryIdx + 1;
+            final long time = this.entryTimes[entryIdx];
+            if (this.uncommitted.get(entryIdx) || !this.matches(parameters, entryId, time))
+            {
+                continue;
+            }
+
+            results++;
+            final Map<String, Serializable> values = this.entryValues.getOrDefault(Integer.valueOf(entryIdx),
+                    Collections.<String, Serializable> emptyMap());
+            final boolean proceed = callback.handleAuditEntry(Long.valueOf(entryId), this.applicationName,
+                    this.userNames[this.entryUsers[entryIdx]], time, values);
+            if (!proceed)
+            {
+                break;
+            }
+        }
+    }
+
+    protected boolean matches(final AuditQueryParameters parameters, final long entryId, final long time)
+    {
+        final Long fromId = parameters.getFromId();
+        final Long toId = parameters.getToId();
+        final Long fromTime = parameters.getFromTime();
+        final Long toTime = parameters.getToTime();
+        final boolean matches = (fromId == null || entryId >= fromId.longValue()) && (toId == null || entryId < toId.longValue())
+                && (fromTime == null || time >= fromTime.longValue()) && (toTime == null || time < toTime.longValue());
+        return matches;
+    }
+
+    protected Map<String, int[]> getEntriesByUser()
+    {
+        if (this.entriesByUser == null)
+        {
+            final int[] counts = new int[this.userNames.length];
+            for (int idx = 0; idx < this.size; idx++)
+            {
+                counts[this.entryUsers[idx]]++;
+            }
+            final int[][] entries = new int[this.userNames.length][];
+            for (int userIdx = 0; userIdx < entries.length; userIdx++)
+            {
+                entries[userIdx] = new int[counts[userIdx]];
+                counts[userIdx] = 0;
+            }
+            for (int idx = 0; idx < this.size; idx++)
+            {
+                final int userIdx = this.entryUsers[idx];
+                entries[userIdx][counts[userIdx]++] = idx;
+            }
+
+            this.entriesByUser = new HashMap<>(Math.max(16, (int) (this.userNames.length / 0.75f) + 1));
+            for (int userIdx = 0; userIdx < entries.length; userIdx++)
+            {
+                this.entriesByUser.put(this.userNames[userIdx], entries[userIdx]);
+            }
+        }
+        return this.entriesByUser;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.enterprise.repo.authorization.AuthorizationService;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Instances of this class provide an in-memory stand-in for the Enterprise-only {@link AuthorizationService}. The authorisation state of
+ * all users is kept in a single versioned structure, and deauthorisations are only applied when the transaction performing them commits.
+ * Like the persisted state of the actual service, the structure is updated optimistically: a transaction which has written to it fails to
+ * commit with a {@link ConcurrencyFailureException} if any other transaction has committed a change to the structure since the first
+ * write of the transaction. This allows to test the behaviour of the deauthorisation under the update conflicts observed with concurrent
+ * writes. Operations of the service not used by this module are not supported.
+ *
+ * @author Axel Faust
+ */
+public class InMemoryAuthorizationService implements InvocationHandler
+{
+
+    protected static class PendingWrites
+    {
+
+        protected final long readVersion;
+
+        protected final Set<String> deauthorisedUsers = new HashSet<>();
+
+        protected PendingWrites(final long readVersion)
+        {
+            this.readVersion = readVersion;
+        }
+    }
+
+    protected final String txnKey = InMemoryAuthorizationService.class.getName() + "-" + System.identityHashCode(this);
+
+    protected final Set<String> authorisedUsers = new HashSet<>();
+
+    protected final Set<String> deauthorisedUsers = new HashSet<>();
+
+    protected final Map<String, Integer> committedDeauthorisations = new HashMap<>();
+
+    protected final Set<String> alwaysConflictingUsers = new HashSet<>();
+
+    protected final AtomicInteger conflicts = new AtomicInteger();
+
+    protected final AtomicInteger isAuthorizedCalls = new AtomicInteger();
+
+    protected final AtomicInteger isDeauthorizedCalls = new AtomicInteger();
+
+    protected long version;
+
+    protected volatile int writeDelayMillis;
+
+    public InMemoryAuthorizationService(final Collection<String> authorisedUsers)
+    {
+        this.authorisedUsers.addAll(authorisedUsers);
+    }
+
+    /**
+     * @return the proxy implementing the service interface
+     */
+    public AuthorizationService asService()
+    {
+        return (AuthorizationService) Proxy.newProxyInstance(AuthorizationService.class.getClassLoader(),
+                new Class<?>[] { AuthorizationService.class }, this);
+    }
+
+    /**
+     * Marks users whose deauthorisation should always fail to commit due to an update conflict, e.g. to test the handling of batches that
+     * have run out of retries.
+     *
+     * @param userNames
+     *            the names of the users
+     */
+    public synchronized void addAlwaysConflictingUsers(final String... userNames)
+    {
+        Collections.addAll(this.alwaysConflictingUsers, userNames);
+    }
+
+    /**
+     * @param writeDelayMillis
+     *            the delay of each write, widening the window for concurrent writes to conflict
+     */
+    public void setWriteDelayMillis(final int writeDelayMillis)
+    {
+        this.writeDelayMillis = writeDelayMillis;
+    }
+
+    /**
+     * Simulates a change to the authorisation state committed by some other party, e.g. a user being authorised on login.
+     */
+    public synchronized void commitExternalChange()
+    {
+        this.version++;
+    }
+
+    /**
+     * @return the names of the users that have been deauthorised in committed transactions
+     */
+    public synchronized Set<String> getDeauthorisedUsers()
+    {
+        return new HashSet<>(this.deauthorisedUsers);
+    }
+
+    /**
+     * @return the number of committed deauthorisations per user
+     */
+    public synchronized Map<String, Integer> getCommittedDeauthorisations()
+    {
+        return new HashMap<>(this.committedDeauthorisations);
+    }
+
+    /**
+     * @return the number of transactions that failed to commit due to an update conflict
+     */
+    public int getConflicts()
+    {
+        return this.conflicts.get();
+    }
+
+    /**
+     * @return the number of calls to check whether a user is authorised
+     */
+    public int getIsAuthorizedCalls()
+    {
+        return this.isAuthorizedCalls.get();
+    }
+
+    /**
+     * @return the number of calls to check whether a user is deauthorised
+     */
+    public int getIsDeauthorizedCalls()
+    {
+        return this.isDeauthorizedCalls.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        final Object result;
+        if (method.getDeclaringClass() == Object.class)
+        {
+            result = method.invoke(this, args);
+        }
+        else
+        {
+            switch (method.getName())
+            {
+                case "isAuthorized":
+                    this.isAuthorizedCalls.incrementAndGet();
+                    result = Boolean.valueOf(this.isAuthorised((String) args[0]));
+                    break;
+                case "isDeauthorized":
+                    this.isDeauthorizedCalls.incrementAndGet();
+                    result = Boolean.valueOf(this.isDeauthorised((String) args[0]));
+                    break;
+                case "deauthorize":
+                    this.deauthorise((String) args[0]);
+                    result = null;
+                    break;
+                case "getAuthorizedUsersCount":
+                    result = this.toNumber(method.getReturnType(), this.getAuthorisedCount());
+                    break;
+                case "getDeauthorizedUsersCount":
+                    result = this.toNumber(method.getReturnType(), this.getDeauthorisedCount());
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Operation not supported by in-memory stand-in: " + method);
+            }
+        }
+        return result;
+    }
+
+    protected synchronized boolean isAuthorised(final String userName)
+    {
+        return this.authorisedUsers.contains(userName);
+    }
+
+    protected synchronized boolean isDeauthorised(final String userName)
+    {
+        return this.deauthorisedUsers.contains(userName);
+    }
+
+    protected synchronized int getAuthorisedCount()
+    {
+        return this.authorisedUsers.size();
+    }
+
+    protected synchronized int getDeauthorisedCount()
+    {
+        return this.deauthorisedUsers.size();
+    }
+
+    protected void deauthorise(final String userName) throws InterruptedException
+    {
+        PendingWrites pendingWrites = AlfrescoTransactionSupport.getResource(this.txnKey);
+        if (pendingWrites == null)
+        {
+            synchronized (this)
+            {
+                pendingWrites = new PendingWrites(this.version);
+            }
+            final PendingWrites txnPendingWrites = pendingWrites;
+            AlfrescoTransactionSupport.bindResource(this.txnKey, txnPendingWrites);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void beforeCommit(final boolean readOnly)
+                {
+                    InMemoryAuthorizationService.this.commit(txnPendingWrites);
+                }
+            });
+        }
+
+        pendingWrites.deauthorisedUsers.add(userName);
+        if (this.writeDelayMillis > 0)
+        {
+            TimeUnit.MILLISECONDS.sleep(this.writeDelayMillis);
+        }
+    }
+
+    protected synchronized void commit(final PendingWrites pendingWrites)
+    {
+        if (pendingWrites.readVersion != this.version || !Collections.disjoint(pendingWrites.deauthorisedUsers, this.alwaysConflictingUsers))
+        {
+            this.conflicts.incrementAndGet();
+            throw new ConcurrencyFailureException("Authorisation state has been modified concurrently");
+        }
+
+        for (final String userName : pendingWrites.deauthorisedUsers)
+        {
+            if (this.authorisedUsers.remove(userName))
+            {
+                this.deauthorisedUsers.add(userName);
+            }
+            this.committedDeauthorisations.merge(userName, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+        }
+        this.version++;
+    }
+
+    protected Object toNumber(final Class<?> type, final int value)
+    {
+        final Object result;
+        if (type == int.class || type == Integer.class)
+        {
+            result = Integer.valueOf(value);
+        }
+        else
+        {
+            result = Long.valueOf(value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.test;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Instances of this class provide an in-memory stand-in for the {@link NodeService} which only supports reading / setting properties, e.g.
+ * as required for loading the person details included in deauthorisation reports. Operations not used by this module are not supported.
+ *
+ * @author Axel Faust
+ */
+public class InMemoryNodeService implements InvocationHandler
+{
+
+    protected final Map<NodeRef, Map<QName, Serializable>> properties = new ConcurrentHashMap<>();
+
+    /**
+     * @return the proxy implementing the service interface
+     */
+    public NodeService asService()
+    {
+        return (NodeService) Proxy.newProxyInstance(NodeService.class.getClassLoader(), new Class<?>[] { NodeService.class }, this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        final Object result;
+        if (method.getDeclaringClass() == Object.class)
+        {
+            result = method.invoke(this, args);
+        }
+        else
+        {
+            switch (method.getName())
+            {
+                case "exists":
+                    result = Boolean.valueOf(args[0] instanceof NodeRef && this.properties.containsKey(args[0]));
+                    break;
+                case "getProperty":
+                    result = this.getProperties((NodeRef) args[0]).get(args[1]);
+                    break;
+                case "getProperties":
+                    result = new HashMap<>(this.getProperties((NodeRef) args[0]));
+                    break;
+                case "setProperty":
+                    this.getProperties((NodeRef) args[0]).put((QName) args[1], (Serializable) args[2]);
+                    result = null;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Operation not supported by in-memory stand-in: " + method);
+            }
+        }
+        return result;
+    }
+
+    protected Map<QName, Serializable> getProperties(final NodeRef nodeRef)
+    {
+        return this.properties.computeIfAbsent(nodeRef, key -> new ConcurrentHashMap<>());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.test;
+
+import org.alfresco.repo.transaction.TransactionServiceImpl;
+import org.alfresco.service.transaction.TransactionService;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.SmartTransactionObject;
+
+/**
+ * Instances of this class manage transactions without any backing resources, so that components relying on the transaction
+ * synchronisation of Alfresco (transaction listeners / resources, {@link org.alfresco.repo.transaction.RetryingTransactionHelper retrying
+ * transaction helpers} and {@link org.alfresco.repo.batch.BatchProcessor batch processors}) can be tested without a repository context.
+ * Conflicts are simulated by test stand-ins throwing exceptions from transaction listeners.
+ *
+ * @author Axel Faust
+ */
+public class InMemoryTransactionManager extends AbstractPlatformTransactionManager
+{
+
+    private static final long serialVersionUID = -2585245383432961049L;
+
+    protected static class InMemoryTransaction
+    {
+
+        protected volatile boolean rollbackOnly;
+    }
+
+    protected static class InMemoryTransactionObject implements SmartTransactionObject
+    {
+
+        protected InMemoryTransaction transaction;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isRollbackOnly()
+        {
+            return this.transaction != null && this.transaction.rollbackOnly;
+        }
+
+        /**
+         * Flushes the underlying session - a no-op as there is none.
+         */
+        public void flush()
+        {
+            // NO-OP
+        }
+    }
+
+    protected final transient ThreadLocal<InMemoryTransaction> currentTransaction = new ThreadLocal<>();
+
+    /**
+     * Creates a transaction service backed by a new in-memory transaction manager.
+     *
+     * @param maxRetries
+     *            the maximum number of retries of retrying transaction helpers provided by the service
+     * @return the transaction service
+     */
+    public static TransactionService createTransactionService(final int maxRetries)
+    {
+        final TransactionServiceImpl transactionService = new TransactionServiceImpl();
+        transactionService.setTransactionManager(new InMemoryTransactionManager());
+        transactionService.setMaxRetries(maxRetries);
+        // keep retries fast in tests
+        transactionService.setMinRetryWaitMs(1);
+        transactionService.setRetryWaitIncrementMs(1);
+        transactionService.setMaxRetryWaitMs(10);
+        return transactionService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Object doGetTransaction()
+    {
+        final InMemoryTransactionObject transactionObject = new InMemoryTransactionObject();
+        transactionObject.transaction = this.currentTransaction.get();
+        return transactionObject;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isExistingTransaction(final Object transaction)
+    {
+        return ((InMemoryTransactionObject) transaction).transaction != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doBegin(final Object transaction, final TransactionDefinition definition)
+    {
+        final InMemoryTransactionObject transactionObject = (InMemoryTransactionObject) transaction;
+        transactionObject.transaction = new InMemoryTransaction();
+        this.currentTransaction.set(transactionObject.transaction);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Object doSuspend(final Object transaction)
+    {
+        final InMemoryTransactionObject transactionObject = (InMemoryTransactionObject) transaction;
+        final InMemoryTransaction suspended = transactionObject.transaction;
+        transactionObject.transaction = null;
+        this.currentTransaction.remove();
+        return suspended;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doResume(final Object transaction, final Object suspendedResources)
+    {
+        this.currentTransaction.set((InMemoryTransaction) suspendedResources);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doCommit(final DefaultTransactionStatus status)
+    {
+        // NO-OP - no resources to commit
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doRollback(final DefaultTransactionStatus status)
+    {
+        // NO-OP - no resources to roll back
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doSetRollbackOnly(final DefaultTransactionStatus status)
+    {
+        final InMemoryTransactionObject transactionObject = (InMemoryTransactionObject) status.getTransaction();
+        if (transactionObject.transaction != null)
+        {
+            transactionObject.transaction.rollbackOnly = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doCleanupAfterCompletion(final Object transaction)
+    {
+        ((InMemoryTransactionObject) transaction).transaction = null;
+        this.currentTransaction.remove();
+    }
+}
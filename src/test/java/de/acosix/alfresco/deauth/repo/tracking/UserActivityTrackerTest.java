@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.tracking;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.UserActivityIndex;
+import de.acosix.alfresco.deauth.repo.test.InMemoryAttributeService;
+import de.acosix.alfresco.deauth.repo.test.InMemoryTransactionManager;
+
+/**
+ * @author Axel Faust
+ */
+public class UserActivityTrackerTest
+{
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private InMemoryAttributeService attributes;
+
+    private AttributeService attributeService;
+
+    private UserActivityTracker tracker;
+
+    @Before
+    public void setUp()
+    {
+        AuthenticationUtil.setRunAsUserSystem();
+
+        this.attributes = new InMemoryAttributeService();
+        this.attributeService = this.attributes.asService();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.tracker != null)
+        {
+            this.tracker.destroy();
+        }
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    @Test
+    public void disabledTrackerIgnoresActivity()
+    {
+        this.startTracker(false, 60, 1000);
+
+        this.tracker.recordActivity("jdoe");
+
+        Assert.assertNull(this.tracker.getTrackedSince());
+        Assert.assertNull(this.tracker.loadIndex(0));
+        Assert.assertEquals("No flush must have been scheduled", 0, this.attributes.size());
+        Assert.assertEquals(0, this.tracker.pendingActivity.size());
+    }
+
+    @Test
+    public void flushedActivityLoaded()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("JDoe", start + MINUTE);
+        this.tracker.recordActivity("mmustermann", start + 2 * MINUTE);
+        this.tracker.flush();
+
+        Assert.assertEquals(Long.valueOf(start), this.tracker.getTrackedSince());
+        final UserActivityIndex index = this.tracker.loadIndex(start);
+        Assert.assertNotNull(index);
+        Assert.assertEquals("User names must be tracked case-insensitively", Long.valueOf(start + MINUTE), index.getLastActivity("jdoe"));
+        Assert.assertEquals(Long.valueOf(start + 2 * MINUTE), index.getLastActivity("mmustermann"));
+        Assert.assertNull(index.getLastActivity("guest"));
+    }
+
+    @Test
+    public void activityCoalescedWithinResolution()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.flush();
+
+        // not persisted again until persisted activity is older than the resolution
+        this.tracker.recordActivity("jdoe", start + 30 * MINUTE);
+        this.tracker.flush();
+        Assert.assertEquals(Long.valueOf(start), this.tracker.loadIndex(start).getLastActivity("jdoe"));
+
+        this.tracker.recordActivity("jdoe", start + 60 * MINUTE);
+        this.tracker.flush();
+        Assert.assertEquals(Long.valueOf(start + 60 * MINUTE), this.tracker.loadIndex(start).getLastActivity("jdoe"));
+    }
+
+    @Test
+    public void mostRecentPendingActivityRetained()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start + 5 * MINUTE);
+        this.tracker.recordActivity("jdoe", start + MINUTE);
+        this.tracker.flush();
+
+        Assert.assertEquals(Long.valueOf(start + 5 * MINUTE), this.tracker.loadIndex(start).getLastActivity("jdoe"));
+    }
+
+    @Test
+    public void pendingActivityIncludedInIndex()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.flush();
+        this.tracker.recordActivity("mmustermann", start + MINUTE);
+
+        final UserActivityIndex index = this.tracker.loadIndex(start);
+        Assert.assertEquals("Activity not yet flushed must be included", Long.valueOf(start + MINUTE),
+                index.getLastActivity("mmustermann"));
+    }
+
+    @Test
+    public void timeFrameBeforeTrackingNotCovered()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.flush();
+
+        Assert.assertNull(this.tracker.loadIndex(start - DAY));
+    }
+
+    @Test
+    public void notCoveredBeforeFirstFlush()
+    {
+        this.startTracker(true, 60, 1000);
+
+        Assert.assertNull(this.tracker.getTrackedSince());
+        Assert.assertNull(this.tracker.loadIndex(this.tracker.trackingStartTime));
+    }
+
+    @Test
+    public void staleTrackingNotUsed()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.flush();
+        // e.g. all servers with tracking enabled have been shut down for longer than the maximum gap
+        this.attributeService.setAttribute(Long.valueOf(start - 2 * DAY), UserActivityTracker.ATTR_KEY_ROOT,
+                UserActivityTracker.ATTR_KEY_TRACKING_HEARTBEAT);
+
+        Assert.assertNull(this.tracker.loadIndex(start));
+    }
+
+    @Test
+    public void continuousTrackingRetainsStart()
+    {
+        final long previousStart = System.currentTimeMillis() - 10 * DAY;
+        this.attributeService.setAttribute(Long.valueOf(previousStart), UserActivityTracker.ATTR_KEY_ROOT,
+                UserActivityTracker.ATTR_KEY_TRACKED_SINCE);
+        this.attributeService.setAttribute(Long.valueOf(System.currentTimeMillis() - 10 * MINUTE), UserActivityTracker.ATTR_KEY_ROOT,
+                UserActivityTracker.ATTR_KEY_TRACKING_HEARTBEAT);
+
+        this.startTracker(true, 60, 1000);
+        this.tracker.flush();
+
+        Assert.assertEquals("Restart within maximum gap must continue tracking", Long.valueOf(previousStart),
+                this.tracker.getTrackedSince());
+        Assert.assertNotNull(this.tracker.loadIndex(previousStart));
+    }
+
+    @Test
+    public void interruptedTrackingRestarted()
+    {
+        final long previousStart = System.currentTimeMillis() - 10 * DAY;
+        this.attributeService.setAttribute(Long.valueOf(previousStart), UserActivityTracker.ATTR_KEY_ROOT,
+                UserActivityTracker.ATTR_KEY_TRACKED_SINCE);
+        this.attributeService.setAttribute(Long.valueOf(System.currentTimeMillis() - 3 * DAY), UserActivityTracker.ATTR_KEY_ROOT,
+                UserActivityTracker.ATTR_KEY_TRACKING_HEARTBEAT);
+
+        this.startTracker(true, 60, 1000);
+        this.tracker.flush();
+
+        Assert.assertEquals("Restart after maximum gap must start tracking anew", Long.valueOf(this.tracker.trackingStartTime),
+                this.tracker.getTrackedSince());
+        Assert.assertNull(this.tracker.loadIndex(previousStart));
+    }
+
+    @Test
+    public void clearRemovesTrackedActivity()
+    {
+        this.startTracker(true, 60, 1000);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.flush();
+        this.tracker.clear();
+
+        Assert.assertEquals(0, this.attributes.size());
+        Assert.assertNull(this.tracker.getTrackedSince());
+
+        // persisted activity must be forgotten, so that activity within the resolution is recorded again
+        this.tracker.recordActivity("jdoe", this.tracker.trackingStartTime + MINUTE);
+        this.tracker.flush();
+        Assert.assertEquals(Long.valueOf(this.tracker.trackingStartTime + MINUTE),
+                this.tracker.loadIndex(this.tracker.trackingStartTime).getLastActivity("jdoe"));
+    }
+
+    @Test
+    public void earlyFlushOnMaxPendingUsers() throws InterruptedException
+    {
+        this.startTracker(true, 60, 2);
+        final long start = this.tracker.trackingStartTime;
+
+        this.tracker.recordActivity("jdoe", start);
+        this.tracker.recordActivity("mmustermann", start);
+
+        // two activities plus tracking start and heartbeat
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.attributes.size() < 4 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Flush should have been triggered before the flush interval elapsed", 4, this.attributes.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void negativeResolutionRejected()
+    {
+        this.startTracker(true, -1, 1000);
+    }
+
+    protected void startTracker(final boolean enabled, final int resolutionMinutes, final int maxPendingUsers)
+    {
+        final UserActivityTracker tracker = new UserActivityTracker();
+        tracker.setEnabled(enabled);
+        tracker.setAttributeService(this.attributeService);
+        tracker.setTransactionService(InMemoryTransactionManager.createTransactionService(0));
+        // flushes are triggered explicitly unless the maximum of pending users is reached
+        tracker.setFlushIntervalSeconds(3600);
+        tracker.setResolutionMinutes(resolutionMinutes);
+        tracker.setMaxPendingUsers(maxPendingUsers);
+        tracker.setMaxTrackingGapMinutes(1440);
+        tracker.afterPropertiesSet();
+        this.tracker = tracker;
+    }
+}
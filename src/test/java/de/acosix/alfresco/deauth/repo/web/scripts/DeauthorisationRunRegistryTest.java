@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.web.scripts.DeauthorisationRun.RunStatus;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthorisationRunRegistryTest
+{
+
+    private static final String RUN_KEY = "dryRun=true";
+
+    private ExecutorService executorService;
+
+    private DeauthorisationRunRegistry registry;
+
+    private CountDownLatch release;
+
+    private AtomicInteger executions;
+
+    @Before
+    public void setUp()
+    {
+        this.executorService = Executors.newFixedThreadPool(2);
+        this.registry = new DeauthorisationRunRegistry();
+        this.registry.setExecutorService(this.executorService);
+        this.registry.afterPropertiesSet();
+
+        this.release = new CountDownLatch(1);
+        this.executions = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.release.countDown();
+        this.executorService.shutdownNow();
+    }
+
+    @Test
+    public void sameKeyAttachesToActiveRun() throws InterruptedException
+    {
+        final DeauthorisationRun run = this.registry.submit(RUN_KEY, this.blockingWork());
+        final DeauthorisationRun attachedRun = this.registry.submit(RUN_KEY, this.blockingWork());
+
+        Assert.assertSame("Call with same key should attach to active run", run, attachedRun);
+
+        this.awaitCompletion();
+        Assert.assertEquals("Attached call must not execute work again", 1, this.executions.get());
+        Assert.assertEquals(RunStatus.COMPLETED, run.getStatus());
+        Assert.assertSame(run, this.registry.getRun(run.getRunId()));
+    }
+
+    @Test
+    public void differentKeyStartsNewRun() throws InterruptedException
+    {
+        final DeauthorisationRun run = this.registry.submit(RUN_KEY, this.blockingWork());
+        final DeauthorisationRun otherRun = this.registry.submit(RUN_KEY + ", maxUsersPerSecond=10", this.blockingWork());
+
+        Assert.assertNotSame("Call with different key must not attach to active run", run, otherRun);
+        Assert.assertNotEquals(run.getRunId(), otherRun.getRunId());
+
+        this.awaitCompletion();
+        Assert.assertEquals(2, this.executions.get());
+    }
+
+    @Test
+    public void completedRunNotAttached() throws InterruptedException
+    {
+        this.release.countDown();
+        final DeauthorisationRun run = this.registry.submit(RUN_KEY, this.blockingWork());
+        this.awaitCompletion();
+
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try
+        {
+            this.registry.setExecutorService(executorService);
+            final DeauthorisationRun nextRun = this.registry.submit(RUN_KEY, this.blockingWork());
+            Assert.assertNotSame("Call after completion must start a new run", run, nextRun);
+
+            executorService.shutdown();
+            Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertEquals(2, this.executions.get());
+        }
+        finally
+        {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedRunNotAttached() throws InterruptedException
+    {
+        final DeauthorisationRun run = this.registry.submit(RUN_KEY, r -> {
+            throw new IllegalStateException("Failing run");
+        });
+        this.awaitCompletion();
+        Assert.assertEquals(RunStatus.FAILED, run.getStatus());
+
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try
+        {
+            this.registry.setExecutorService(executorService);
+            this.release.countDown();
+            final DeauthorisationRun nextRun = this.registry.submit(RUN_KEY, this.blockingWork());
+            Assert.assertNotSame("Call after failure must start a new run", run, nextRun);
+        }
+        finally
+        {
+            executorService.shutdown();
+            Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    protected Function<DeauthorisationRun, Map<String, Object>> blockingWork()
+    {
+        return r -> {
+            this.executions.incrementAndGet();
+            try
+            {
+                this.release.await();
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", iex);
+            }
+            return Collections.<String, Object> emptyMap();
+        };
+    }
+
+    protected void awaitCompletion() throws InterruptedException
+    {
+        this.release.countDown();
+        this.executorService.shutdown();
+        Assert.assertTrue("Runs did not complete in time", this.executorService.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.acosix.alfresco.deauth.repo.batch.InactiveUserQueryMode;
+import de.acosix.alfresco.deauth.repo.report.DeauthorisationReportWriter.ReportFormat;
+import de.acosix.alfresco.deauth.repo.web.scripts.DeauthoriseInactiveUsersPost.DeauthoriseInactiveUsersParameters;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthoriseInactiveUsersParametersTest
+{
+
+    @Test
+    public void runKeyStableForSameParameters()
+    {
+        Assert.assertEquals(createParameters().getRunKey(), createParameters().getRunKey());
+    }
+
+    @Test
+    public void runKeyIgnoresAsync()
+    {
+        assertSameRunKey(parameters -> parameters.setAsync(true));
+    }
+
+    @Test
+    public void runKeyCoversBehaviouralParameters()
+    {
+        assertDifferentRunKey(parameters -> parameters.setDryRun(true));
+        assertDifferentRunKey(parameters -> parameters.setReportFormat(ReportFormat.CSV));
+        assertDifferentRunKey(parameters -> parameters.setQueryMode(InactiveUserQueryMode.PROBE));
+        assertDifferentRunKey(parameters -> parameters.setDeauthorisationLanes(4));
+        assertDifferentRunKey(parameters -> parameters.setAdaptiveBatchSize(true));
+        assertDifferentRunKey(parameters -> parameters.setMaxUsersPerSecond(10));
+        assertDifferentRunKey(parameters -> parameters.setLoadAware(true));
+        assertDifferentRunKey(parameters -> parameters.setPipelined(true));
+        assertDifferentRunKey(parameters -> parameters.setSavePlan(true));
+        assertDifferentRunKey(parameters -> parameters.setPlanId("plan"));
+        assertDifferentRunKey(parameters -> parameters.setTargetAuthorisedCount(100));
+        assertDifferentRunKey(parameters -> parameters.setSpillToDisk(true));
+        assertDifferentRunKey(parameters -> parameters.setTimings(true));
+    }
+
+    @Test
+    public void runKeyCoversAuditConfiguration()
+    {
+        assertDifferentRunKey(parameters -> parameters.setAuditConfigurationKey("|alfresco-access|/alfresco-access/login/user|||"));
+        assertDifferentRunKey(parameters -> parameters.setAuditConfigurationKey("tenant|acosix-audit-activeUsers||||"));
+    }
+
+    @Test
+    public void runKeyCoversEffectiveFromTime()
+    {
+        final DeauthoriseInactiveUsersParameters parameters = createParameters();
+        Assert.assertTrue("Run key should contain the effective start of the look-back time frame",
+                parameters.getRunKey().contains("fromTime=" + parameters.getFromTime() + ","));
+    }
+
+    protected static DeauthoriseInactiveUsersParameters createParameters()
+    {
+        final DeauthoriseInactiveUsersParameters parameters = new DeauthoriseInactiveUsersParameters();
+        parameters.setQueryMode(InactiveUserQueryMode.AUDIT_SCAN);
+        parameters.setAuditConfigurationKey("|acosix-audit-activeUsers||||");
+        return parameters;
+    }
+
+    protected static void assertSameRunKey(final Consumer<DeauthoriseInactiveUsersParameters> change)
+    {
+        final DeauthoriseInactiveUsersParameters parameters = createParameters();
+        change.accept(parameters);
+        Assert.assertEquals("Run key should not be affected by " + parameters, createParameters().getRunKey(), parameters.getRunKey());
+    }
+
+    protected static void assertDifferentRunKey(final Consumer<DeauthoriseInactiveUsersParameters> change)
+    {
+        final DeauthoriseInactiveUsersParameters parameters = createParameters();
+        change.accept(parameters);
+        Assert.assertNotEquals("Run key should be affected by " + parameters, createParameters().getRunKey(), parameters.getRunKey());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017, 2018 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.deauth.repo.web.scripts;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Axel Faust
+ */
+public class DeauthoriseInactiveUsersPostTest
+{
+
+    @Test
+    public void quotaGetsBelowTarget()
+    {
+        // target is the count below which to stop, so reaching it exactly still requires one more deauthorisation
+        Assert.assertEquals(1, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(100, 100));
+        Assert.assertEquals(11, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(110, 100));
+        Assert.assertEquals(100, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(100, 1));
+    }
+
+    @Test
+    public void quotaZeroWhenAlreadyBelowTarget()
+    {
+        Assert.assertEquals(0, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(99, 100));
+        Assert.assertEquals(0, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(0, 100));
+    }
+
+    @Test
+    public void quotaLimitedToIntegerRange()
+    {
+        Assert.assertEquals(Integer.MAX_VALUE, DeauthoriseInactiveUsersPost.computeDeauthorisationQuota(Long.MAX_VALUE - 1, 1));
+    }
+}